@@ -27,6 +27,7 @@ import com.android.tradefed.testtype.IAbi;
 import com.android.tradefed.testtype.IAbiReceiver;
 import com.android.tradefed.testtype.IBuildReceiver;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.HashMap;
 import java.util.Scanner;
@@ -87,20 +88,17 @@ public class CtsHostJankTest extends DeviceTestCase implements IAbiReceiver, IBu
         mDevice.executeShellCommand(
                 String.format(RUN_UI_AUTOMATOR_CMD, mJarName, mDeviceTestClass + "#" + testName),
                 new IShellOutputReceiver() {
-                    private StringBuilder sb = new StringBuilder();
+                    private ByteArrayOutputStream out = new ByteArrayOutputStream();
 
                     @Override
                     public void addOutput(byte[] data, int offset, int length) {
-                        byte[] raw = new byte[length];
-                        for (int i = 0; i < length; i++) {
-                            raw[i] = data[i + offset];
-                        }
-                        sb.append(new String(raw));
+                        // Decoded once in flush(), so characters split across chunks survive.
+                        out.write(data, offset, length);
                     }
 
                     @Override
                     public void flush() {
-                        Log.logAndDisplay(LogLevel.INFO, TAG, sb.toString());
+                        Log.logAndDisplay(LogLevel.INFO, TAG, out.toString());
                     }
 
                     @Override
@@ -37,7 +37,9 @@ $(LOCAL_BUILT_MODULE): $(LOCAL_PATH)/etc/$(LOCAL_MODULE) | $(ACP)
 # the other stuff
 # ============================================================
 subdirs := $(addprefix $(LOCAL_PATH)/,$(addsuffix /Android.mk, \
+		benchmarks \
 		src \
+		tests \
 	))
 
 include $(subdirs)
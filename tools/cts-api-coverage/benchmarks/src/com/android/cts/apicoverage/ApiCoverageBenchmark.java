@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.apicoverage;
+
+import dex.reader.DexBuffer;
+import dex.reader.DexFileReader;
+import dex.structure.DexMethodReference;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Measures attributing the method references of test APKs to the API, comparing the signature
+ * index of {@link ApiClass} with a linear search of its constructors and methods, and the time
+ * to scan the APKs serially and in parallel.
+ * <p/>
+ * Usage: ApiCoverageBenchmark API_XML [APK]...
+ * <br/>
+ * Run with the api.xml made by "make cts-test-coverage" and the test APKs of the CTS build.
+ */
+public class ApiCoverageBenchmark {
+
+    /** A method reference of an APK, named like dexdeps names it */
+    private static class Reference {
+        final String mPackageName;
+        final String mClassName;
+        final String mName;
+        final List<String> mParameterTypes;
+        final String mReturnType;
+
+        Reference(DexMethodReference method) {
+            mPackageName = DexScanner.packageNameOnly(method.getDeclaringClassName());
+            mClassName = DexScanner.classNameOnly(method.getDeclaringClassName());
+            mName = method.getName();
+            mParameterTypes = new ArrayList<String>();
+            for (String parameterType : method.getParameterTypes()) {
+                mParameterTypes.add(DexScanner.descriptorToDot(parameterType));
+            }
+            mReturnType = DexScanner.descriptorToDot(method.getReturnType());
+        }
+
+        boolean isConstructor() {
+            return "<init>".equals(mName);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: ApiCoverageBenchmark API_XML [APK]...");
+            System.exit(1);
+        }
+        long load = System.currentTimeMillis();
+        ApiCoverage apiCoverage = CtsApiCoverage.getEmptyApiCoverage(args[0]);
+        apiCoverage.removeEmptyAbstractClasses();
+        load = System.currentTimeMillis() - load;
+
+        List<File> testApks = new ArrayList<File>();
+        List<Reference> references = new ArrayList<Reference>();
+        for (String path : Arrays.asList(args).subList(1, args.length)) {
+            testApks.add(new File(path));
+            readReferences(new File(path), references);
+        }
+        System.out.println(String.format("Loaded the API in %,d ms, %,d references in %,d APKs",
+                load, references.size(), testApks.size()));
+
+        for (int i = 0; i < 5; i++) {
+            long linear = System.nanoTime();
+            int linearFound = attributeLinear(apiCoverage, references);
+            linear = System.nanoTime() - linear;
+            long indexed = System.nanoTime();
+            int indexedFound = attributeIndexed(apiCoverage, references);
+            indexed = System.nanoTime() - indexed;
+            if (linearFound != indexedFound) {
+                throw new IllegalStateException(String.format(
+                        "linear search found %d members, index found %d", linearFound,
+                        indexedFound));
+            }
+            System.out.println(String.format("Attributing %,d references: linear %,d ms, "
+                    + "indexed %,d ms", references.size(), linear / 1000000, indexed / 1000000));
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads : new int[] {1, processors}) {
+            long scan = System.currentTimeMillis();
+            CtsApiCoverage.addApiCoverage(apiCoverage, testApks, threads, null);
+            scan = System.currentTimeMillis() - scan;
+            System.out.println(String.format("Scanning %,d APKs with %d threads: %,d ms",
+                    testApks.size(), threads, scan));
+        }
+    }
+
+    private static void readReferences(File testApk, List<Reference> references)
+            throws Exception {
+        ZipFile zip = new ZipFile(testApk);
+        try {
+            ZipEntry entry = zip.getEntry("classes.dex");
+            if (entry == null) {
+                return;
+            }
+            ByteArrayOutputStream dex = new ByteArrayOutputStream();
+            InputStream in = zip.getInputStream(entry);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    dex.write(buffer, 0, length);
+                }
+            } finally {
+                in.close();
+            }
+            for (DexMethodReference method : new DexFileReader().read(
+                    new DexBuffer(dex.toByteArray())).getExternalMethodReferences()) {
+                references.add(new Reference(method));
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /** @return the number of references found with a linear search, like before the index */
+    private static int attributeLinear(ApiCoverage apiCoverage, List<Reference> references) {
+        int found = 0;
+        for (Reference reference : references) {
+            ApiPackage apiPackage = apiCoverage.getPackage(reference.mPackageName);
+            ApiClass apiClass = apiPackage != null
+                    ? apiPackage.getClass(reference.mClassName) : null;
+            if (apiClass == null) {
+                continue;
+            }
+            if (reference.isConstructor()) {
+                for (ApiConstructor constructor : apiClass.getConstructors()) {
+                    if (reference.mParameterTypes.equals(constructor.getParameterTypes())) {
+                        found++;
+                        break;
+                    }
+                }
+            } else {
+                for (ApiMethod method : apiClass.getMethods()) {
+                    if (reference.mName.equals(method.getName())
+                            && reference.mParameterTypes.equals(method.getParameterTypes())
+                            && reference.mReturnType.equals(method.getReturnType())) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /** @return the number of references found with the signature index */
+    private static int attributeIndexed(ApiCoverage apiCoverage, List<Reference> references) {
+        int found = 0;
+        for (Reference reference : references) {
+            ApiPackage apiPackage = apiCoverage.getPackage(reference.mPackageName);
+            ApiClass apiClass = apiPackage != null
+                    ? apiPackage.getClass(reference.mClassName) : null;
+            if (apiClass == null) {
+                continue;
+            }
+            int bit = reference.isConstructor()
+                    ? apiClass.getConstructorBit(reference.mParameterTypes)
+                    : apiClass.getMethodBit(reference.mName, reference.mParameterTypes,
+                            reference.mReturnType);
+            if (bit >= 0) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
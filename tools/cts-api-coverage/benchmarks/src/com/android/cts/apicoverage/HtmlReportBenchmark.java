@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.apicoverage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Measures the time and peak heap of writing the HTML report by transforming the XML report with
+ * api-coverage.xsl, by streaming it, and by writing one page per package in parallel.
+ * <p/>
+ * Usage: HtmlReportBenchmark API_XML [APK]...
+ * <br/>
+ * Run with the api.xml made by "make cts-test-coverage" and the test APKs of the CTS build.
+ */
+public class HtmlReportBenchmark {
+
+    /** An output stream that only counts the bytes written to it */
+    private static class CountingOutputStream extends OutputStream {
+        long mCount = 0;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    private interface Report {
+        /** @return the number of bytes written */
+        long write() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: HtmlReportBenchmark API_XML [APK]...");
+            System.exit(1);
+        }
+        final ApiCoverage apiCoverage = CtsApiCoverage.getEmptyApiCoverage(args[0]);
+        apiCoverage.removeEmptyAbstractClasses();
+        final List<File> testApks = new ArrayList<File>();
+        for (String path : Arrays.asList(args).subList(1, args.length)) {
+            testApks.add(new File(path));
+        }
+        CtsApiCoverage.addApiCoverage(apiCoverage, testApks,
+                Runtime.getRuntime().availableProcessors(), null);
+
+        final File pagesDir = new File(System.getProperty("java.io.tmpdir"),
+                "html-report-benchmark");
+        for (int i = 0; i < 5; i++) {
+            report("XSLT", new Report() {
+                @Override
+                public long write() throws Exception {
+                    CountingOutputStream out = new CountingOutputStream();
+                    printXsltHtmlReport(testApks, apiCoverage, "android",
+                            "Benchmark", out);
+                    return out.mCount;
+                }
+            });
+            report("Streaming", new Report() {
+                @Override
+                public long write() throws Exception {
+                    CountingOutputStream out = new CountingOutputStream();
+                    HtmlReport.printHtmlReport(testApks, apiCoverage, "android", "Benchmark",
+                            out);
+                    return out.mCount;
+                }
+            });
+            report("Pages", new Report() {
+                @Override
+                public long write() throws Exception {
+                    HtmlReport.printHtmlPages(testApks, apiCoverage, "android", "Benchmark",
+                            pagesDir, Runtime.getRuntime().availableProcessors());
+                    long length = 0;
+                    for (File page : pagesDir.listFiles()) {
+                        length += page.length();
+                    }
+                    return length;
+                }
+            });
+        }
+        for (File page : pagesDir.listFiles()) {
+            page.delete();
+        }
+        pagesDir.delete();
+    }
+
+    /**
+     * Writes the XML report transformed with api-coverage.xsl, like the HTML report was written
+     * before {@link HtmlReport} wrote it directly.
+     */
+    private static void printXsltHtmlReport(final List<File> testApks, final ApiCoverage apiCoverage,
+            final String packageFilter, final String reportTitle, final OutputStream out)
+                throws IOException, TransformerException {
+        final PipedOutputStream xmlOut = new PipedOutputStream();
+        final PipedInputStream xmlIn = new PipedInputStream(xmlOut);
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                XmlReport.printXmlReport(testApks, apiCoverage, packageFilter, reportTitle, xmlOut);
+
+                // Close the output stream to avoid "Write dead end" errors.
+                try {
+                    xmlOut.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+
+        InputStream xsl = CtsApiCoverage.class.getResourceAsStream("/api-coverage.xsl");
+        StreamSource xslSource = new StreamSource(xsl);
+        TransformerFactory factory = TransformerFactory.newInstance();
+        Transformer transformer = factory.newTransformer(xslSource);
+
+        StreamSource xmlSource = new StreamSource(xmlIn);
+        StreamResult result = new StreamResult(out);
+        transformer.transform(xmlSource, result);
+    }
+
+    private static void report(String name, Report report) throws Exception {
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long start = System.nanoTime();
+        long length = report.write();
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        System.out.println(String.format("%-10s %,8d ms %,10d kB written %,10d kB peak heap",
+                name, elapsedMs, length / 1024, peak / 1024));
+    }
+}
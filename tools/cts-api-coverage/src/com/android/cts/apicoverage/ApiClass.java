@@ -17,11 +17,20 @@
 package com.android.cts.apicoverage;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-
-/** Representation of a class in the API with constructors and methods. */
+import java.util.Map;
+
+/**
+ * Representation of a class in the API with constructors and methods.
+ * <p/>
+ * Constructors and methods are indexed by their signature, and each has a bit in the coverage
+ * bits of the class: constructors use the even bits and methods the odd bits, so they can be
+ * added in any order.
+ */
 class ApiClass implements Comparable<ApiClass>, HasCoverage {
 
     private final String mName;
@@ -34,6 +43,49 @@ class ApiClass implements Comparable<ApiClass>, HasCoverage {
 
     private final List<ApiMethod> mApiMethods = new ArrayList<ApiMethod>();
 
+    /** the coverage bit of each constructor and method, by signature */
+    private final Map<MemberKey, Integer> mMemberBits = new HashMap<MemberKey, Integer>();
+
+    /**
+     * The signature of a constructor or method, compared by name, parameter types and return
+     * type. Lookups wrap the types given without copying them.
+     */
+    private static class MemberKey {
+        private final String mName;
+        private final List<String> mParameterTypes;
+        private final String mReturnType;
+        private final int mHashCode;
+
+        MemberKey(String name, List<String> parameterTypes, String returnType) {
+            mName = name;
+            mParameterTypes = parameterTypes;
+            mReturnType = returnType;
+            int hashCode = name.hashCode();
+            hashCode = 31 * hashCode + parameterTypes.hashCode();
+            hashCode = 31 * hashCode + (returnType != null ? returnType.hashCode() : 0);
+            mHashCode = hashCode;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof MemberKey)) {
+                return false;
+            }
+            MemberKey other = (MemberKey) obj;
+            return mHashCode == other.mHashCode && mName.equals(other.mName)
+                    && mParameterTypes.equals(other.mParameterTypes)
+                    && (mReturnType == null ? other.mReturnType == null
+                            : mReturnType.equals(other.mReturnType));
+        }
+    }
+
+    private static final String CONSTRUCTOR_NAME = "<init>";
+
     ApiClass(String name, boolean deprecated, boolean classAbstract) {
         mName = name;
         mDeprecated = deprecated;
@@ -59,16 +111,26 @@ class ApiClass implements Comparable<ApiClass>, HasCoverage {
     }
 
     public void addConstructor(ApiConstructor constructor) {
+        MemberKey key = new MemberKey(CONSTRUCTOR_NAME, constructor.getParameterTypes(), null);
+        if (!mMemberBits.containsKey(key)) {
+            // like a linear search, the first of duplicate signatures wins
+            mMemberBits.put(key, mApiConstructors.size() * 2);
+        }
         mApiConstructors.add(constructor);
     }
 
     public ApiConstructor getConstructor(List<String> parameterTypes) {
-        for (ApiConstructor constructor : mApiConstructors) {
-            if (parameterTypes.equals(constructor.getParameterTypes())) {
-                return constructor;
-            }
-        }
-        return null;
+        int bit = getConstructorBit(parameterTypes);
+        return bit >= 0 ? mApiConstructors.get(bit / 2) : null;
+    }
+
+    /**
+     * @return the coverage bit of the constructor with given parameter types, or -1 if there is
+     * no such constructor
+     */
+    public int getConstructorBit(List<String> parameterTypes) {
+        Integer bit = mMemberBits.get(new MemberKey(CONSTRUCTOR_NAME, parameterTypes, null));
+        return bit != null ? bit : -1;
     }
 
     public Collection<ApiConstructor> getConstructors() {
@@ -76,18 +138,40 @@ class ApiClass implements Comparable<ApiClass>, HasCoverage {
     }
 
     public void addMethod(ApiMethod method) {
+        MemberKey key = new MemberKey(method.getName(), method.getParameterTypes(),
+                method.getReturnType());
+        if (!mMemberBits.containsKey(key)) {
+            mMemberBits.put(key, mApiMethods.size() * 2 + 1);
+        }
         mApiMethods.add(method);
     }
 
     public ApiMethod getMethod(String name, List<String> parameterTypes, String returnType) {
-        for (ApiMethod method : mApiMethods) {
-            if (name.equals(method.getName())
-                    && parameterTypes.equals(method.getParameterTypes())
-                    && returnType.equals(method.getReturnType())) {
-                return method;
+        int bit = getMethodBit(name, parameterTypes, returnType);
+        return bit >= 0 ? mApiMethods.get(bit / 2) : null;
+    }
+
+    /**
+     * @return the coverage bit of the method with given signature, or -1 if there is no such
+     * method
+     */
+    public int getMethodBit(String name, List<String> parameterTypes, String returnType) {
+        Integer bit = mMemberBits.get(new MemberKey(name, parameterTypes, returnType));
+        return bit != null ? bit : -1;
+    }
+
+    /**
+     * Marks the constructors and methods of the given coverage bits as covered.
+     */
+    public void addCoverage(BitSet coverageBits) {
+        for (int bit = coverageBits.nextSetBit(0); bit >= 0;
+                bit = coverageBits.nextSetBit(bit + 1)) {
+            if (bit % 2 == 0) {
+                mApiConstructors.get(bit / 2).setCovered(true);
+            } else {
+                mApiMethods.get(bit / 2).setCovered(true);
             }
         }
-        return null;
     }
 
     public Collection<ApiMethod> getMethods() {
@@ -39,6 +39,16 @@ class ApiCoverage {
         return Collections.unmodifiableCollection(mPackages.values());
     }
 
+    /**
+     * Adds the coverage of one APK. Not thread safe, the marks of APKs scanned in parallel are
+     * added one at a time.
+     */
+    public void addCoverage(CoverageMarks marks) {
+        for (CoverageMarks.ClassMarks classMarks : marks.getClassMarks()) {
+            classMarks.mApiClass.addCoverage(classMarks.mCoverageBits);
+        }
+    }
+
     public void removeEmptyAbstractClasses() {
         for (Map.Entry<String, ApiPackage> entry : mPackages.entrySet()) {
             ApiPackage pkg = entry.getValue();
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.apicoverage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A directory of the {@link CoverageMarks} of APKs scanned before, so only APKs that changed are
+ * scanned again.
+ * <p/>
+ * Marks are keyed by the digest of the APK, and only valid for the API and scanner they were made
+ * with: each file records the digest of the API XML file and the {@link DexScanner#VERSION}, and
+ * marks of another API or scanner are scanned again.
+ */
+class CoverageCache {
+
+    /** the version of the cache files, to increase when their format or content changes */
+    private static final int VERSION = 2;
+
+    private static final String FILE_SUFFIX = ".coverage";
+
+    private final File mCacheDir;
+
+    private final String mApiDigest;
+
+    private final ApiCoverage mApiCoverage;
+
+    /**
+     * @param cacheDir the directory of the cache, created if needed
+     * @param apiXml the API XML file the {@link ApiCoverage} was read from
+     * @param apiCoverage the API to read marks for
+     */
+    CoverageCache(File cacheDir, File apiXml, ApiCoverage apiCoverage) throws IOException {
+        mCacheDir = cacheDir;
+        mApiDigest = digest(apiXml);
+        mApiCoverage = apiCoverage;
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Could not create coverage cache " + cacheDir);
+        }
+    }
+
+    /**
+     * @return the marks of the APK with given digest, or <code>null</code> if there are none for
+     * this API and scanner
+     */
+    CoverageMarks get(String apkDigest) {
+        File cacheFile = new File(mCacheDir, apkDigest + FILE_SUFFIX);
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != VERSION || in.readInt() != DexScanner.VERSION
+                    || !mApiDigest.equals(in.readUTF())) {
+                return null;
+            }
+            return CoverageMarks.read(mApiCoverage, in);
+        } catch (IOException e) {
+            System.err.println("warning: ignoring invalid coverage cache " + cacheFile + ": "
+                    + e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores the marks of the APK with given digest. Safe to call from multiple threads.
+     */
+    void put(String apkDigest, CoverageMarks marks) throws IOException {
+        File cacheFile = new File(mCacheDir, apkDigest + FILE_SUFFIX);
+        // written aside and renamed, so concurrent and interrupted runs never see a partial file
+        File tmpFile = File.createTempFile(apkDigest, ".tmp", mCacheDir);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(VERSION);
+            out.writeInt(DexScanner.VERSION);
+            out.writeUTF(mApiDigest);
+            marks.write(out);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(cacheFile)) {
+                cacheFile.delete();
+                if (!tmpFile.renameTo(cacheFile)) {
+                    throw new IOException("Could not write coverage cache " + cacheFile);
+                }
+            }
+        } finally {
+            closeQuietly(out);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * @return the hex SHA-1 digest of the content of the given file
+     */
+    static String digest(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.apicoverage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The constructors and methods of the API referenced by one APK, as coverage bits per class.
+ * <p/>
+ * Each scanner fills its own marks, only reading the {@link ApiCoverage}, so APKs can be scanned
+ * in parallel without locks. The marks are then added with
+ * {@link ApiCoverage#addCoverage(CoverageMarks)}.
+ */
+class CoverageMarks {
+
+    private final ApiCoverage mApiCoverage;
+
+    private final Map<ApiClass, ClassMarks> mClassMarks = new HashMap<ApiClass, ClassMarks>();
+
+    /** The coverage bits of one class */
+    static class ClassMarks {
+        final String mPackageName;
+        final ApiClass mApiClass;
+        final BitSet mCoverageBits = new BitSet();
+
+        ClassMarks(String packageName, ApiClass apiClass) {
+            mPackageName = packageName;
+            mApiClass = apiClass;
+        }
+    }
+
+    CoverageMarks(ApiCoverage apiCoverage) {
+        mApiCoverage = apiCoverage;
+    }
+
+    /** Marks the given constructor as covered, if it is part of the API. */
+    public void addConstructor(String packageName, String className,
+            List<String> parameterTypes) {
+        ApiClass apiClass = getClass(packageName, className);
+        if (apiClass != null) {
+            mark(packageName, apiClass, apiClass.getConstructorBit(parameterTypes));
+        }
+    }
+
+    /** Marks the given method as covered, if it is part of the API. */
+    public void addMethod(String packageName, String className, String methodName,
+            List<String> parameterTypes, String returnType) {
+        ApiClass apiClass = getClass(packageName, className);
+        if (apiClass != null) {
+            mark(packageName, apiClass,
+                    apiClass.getMethodBit(methodName, parameterTypes, returnType));
+        }
+    }
+
+    Collection<ClassMarks> getClassMarks() {
+        return mClassMarks.values();
+    }
+
+    /**
+     * Writes the marks by package and class name. The bits are only valid for the same API.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(mClassMarks.size());
+        for (ClassMarks marks : mClassMarks.values()) {
+            out.writeUTF(marks.mPackageName);
+            out.writeUTF(marks.mApiClass.getName());
+            long[] words = marks.mCoverageBits.toLongArray();
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    /**
+     * Reads marks written by {@link #write(DataOutputStream)} for the given API.
+     *
+     * @throws IOException if the marks are invalid or name a class not in the API
+     */
+    static CoverageMarks read(ApiCoverage apiCoverage, DataInputStream in) throws IOException {
+        CoverageMarks coverageMarks = new CoverageMarks(apiCoverage);
+        int classCount = in.readInt();
+        for (int i = 0; i < classCount; i++) {
+            String packageName = in.readUTF();
+            String className = in.readUTF();
+            ApiClass apiClass = coverageMarks.getClass(packageName, className);
+            int wordCount = in.readInt();
+            if (apiClass == null || wordCount < 0) {
+                throw new IOException("Unknown class " + packageName + "." + className);
+            }
+            long[] words = new long[wordCount];
+            for (int j = 0; j < wordCount; j++) {
+                words[j] = in.readLong();
+            }
+            BitSet bits = BitSet.valueOf(words);
+            if (bits.length() > apiClass.getTotalMethods() * 2) {
+                throw new IOException("Unknown member of " + packageName + "." + className);
+            }
+            ClassMarks marks = new ClassMarks(packageName, apiClass);
+            marks.mCoverageBits.or(bits);
+            coverageMarks.mClassMarks.put(apiClass, marks);
+        }
+        return coverageMarks;
+    }
+
+    private ApiClass getClass(String packageName, String className) {
+        ApiPackage apiPackage = mApiCoverage.getPackage(packageName);
+        return apiPackage != null ? apiPackage.getClass(className) : null;
+    }
+
+    private void mark(String packageName, ApiClass apiClass, int bit) {
+        if (bit < 0) {
+            return;
+        }
+        ClassMarks marks = mClassMarks.get(apiClass);
+        if (marks == null) {
+            marks = new ClassMarks(packageName, apiClass);
+            mClassMarks.put(apiClass, marks);
+        }
+        marks.mCoverageBits.set(bit);
+    }
+}
@@ -28,8 +28,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
-
-import javax.xml.transform.TransformerException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Tool that generates a report of what Android framework methods are being called from a given
@@ -52,12 +55,16 @@ public class CtsApiCoverage {
         System.out.println("Use the Makefiles rules in CtsTestCoverage.mk to generate the report ");
         System.out.println("rather than executing this directly. If you still want to run this ");
         System.out.println("directly, then this must be used from the $ANDROID_BUILD_TOP ");
-        System.out.println("directory and dexdeps must be built via \"make dexdeps\".");
+        System.out.println("directory.");
         System.out.println();
         System.out.println("Options:");
         System.out.println("  -o FILE                output file or standard out if not given");
         System.out.println("  -f [txt|xml|html]      format of output");
-        System.out.println("  -d PATH                path to dexdeps or expected to be in $PATH");
+        System.out.println("  -s DIR                 write the HTML report as one page per package in DIR");
+        System.out.println("  -d PATH                scan APKs with the dexdeps at PATH instead of in process");
+        System.out.println("  -j THREADS             number of APKs to scan or pages to write in parallel");
+        System.out.println("  -c DIR                 cache the coverage of each APK in DIR, to only");
+        System.out.println("                         scan the APKs that changed on the next run");
         System.out.println("  -a PATH                path to the API XML file");
         System.out.println("  -p PACKAGENAMEPREFIX   report coverage only for package that start with");
         System.out.println("  -t TITLE               report title");
@@ -69,7 +76,10 @@ public class CtsApiCoverage {
         List<File> testApks = new ArrayList<File>();
         File outputFile = null;
         int format = FORMAT_TXT;
-        String dexDeps = "dexDeps";
+        String dexDeps = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File cacheDir = null;
+        File pagesDir = null;
         String apiXmlPath = "";
         // By default only care about packages starting with "android"
         String packageFilter = "android";
@@ -90,8 +100,21 @@ public class CtsApiCoverage {
                     } else {
                         printUsage();
                     }
+                } else if ("-s".equals(args[i])) {
+                    pagesDir = new File(getExpectedArg(args, ++i));
                 } else if ("-d".equals(args[i])) {
                     dexDeps = getExpectedArg(args, ++i);
+                } else if ("-j".equals(args[i])) {
+                    try {
+                        threads = Integer.parseInt(getExpectedArg(args, ++i));
+                    } catch (NumberFormatException e) {
+                        printUsage();
+                    }
+                    if (threads < 1) {
+                        printUsage();
+                    }
+                } else if ("-c".equals(args[i])) {
+                    cacheDir = new File(getExpectedArg(args, ++i));
                 } else if ("-a".equals(args[i])) {
                     apiXmlPath = getExpectedArg(args, ++i);
                 } else if ("-p".equals(args[i])) {
@@ -111,18 +134,33 @@ public class CtsApiCoverage {
          *    in current.xml. The object will have no information about the coverage for each
          *    constructor or method yet.
          *
-         * 2. For each provided APK, scan it using dexdeps, parse the output of dexdeps, and
-         *    call methods on the ApiCoverage object to cumulatively add coverage stats.
+         * 2. For each provided APK, scan the references of its classes.dex, in parallel, and
+         *    call methods on the ApiCoverage object to cumulatively add coverage stats. With -d,
+         *    scan it using dexdeps and parse the output of dexdeps instead. With -c, reuse the
+         *    coverage of APKs that did not change since they were last scanned for this API.
          *
-         * 3. Output a report based on the coverage stats in the ApiCoverage object.
+         * 3. Output a report based on the coverage stats in the ApiCoverage object. With -s,
+         *    output an HTML index and one page per package, writing the pages in parallel.
          */
 
         ApiCoverage apiCoverage = getEmptyApiCoverage(apiXmlPath);
         apiCoverage.removeEmptyAbstractClasses();
-        for (File testApk : testApks) {
-            addApiCoverage(apiCoverage, testApk, dexDeps);
+        if (dexDeps != null) {
+            for (File testApk : testApks) {
+                addApiCoverage(apiCoverage, testApk, dexDeps);
+            }
+        } else {
+            CoverageCache cache = cacheDir != null
+                    ? new CoverageCache(cacheDir, new File(apiXmlPath), apiCoverage) : null;
+            addApiCoverage(apiCoverage, testApks, threads, cache);
+        }
+        if (pagesDir != null) {
+            HtmlReport.printHtmlPages(testApks, apiCoverage, packageFilter, reportTitle, pagesDir,
+                    threads);
+        } else {
+            outputCoverageReport(apiCoverage, testApks, outputFile, format, packageFilter,
+                    reportTitle);
         }
-        outputCoverageReport(apiCoverage, testApks, outputFile, format, packageFilter, reportTitle);
     }
 
     /** Get the argument or print out the usage and exit. */
@@ -143,7 +181,7 @@ public class CtsApiCoverage {
      * @return an {@link ApiCoverage} object representing the API in current.xml without any
      *     coverage statistics yet
      */
-    private static ApiCoverage getEmptyApiCoverage(String apiXmlPath)
+    static ApiCoverage getEmptyApiCoverage(String apiXmlPath)
             throws SAXException, IOException {
         XMLReader xmlReader = XMLReaderFactory.createXMLReader();
         CurrentXmlHandler currentXmlHandler = new CurrentXmlHandler();
@@ -173,7 +211,8 @@ public class CtsApiCoverage {
     private static void addApiCoverage(ApiCoverage apiCoverage, File testApk, String dexdeps)
             throws SAXException, IOException {
         XMLReader xmlReader = XMLReaderFactory.createXMLReader();
-        DexDepsXmlHandler dexDepsXmlHandler = new DexDepsXmlHandler(apiCoverage);
+        CoverageMarks coverageMarks = new CoverageMarks(apiCoverage);
+        DexDepsXmlHandler dexDepsXmlHandler = new DexDepsXmlHandler(coverageMarks);
         xmlReader.setContentHandler(dexDepsXmlHandler);
 
         String apkPath = testApk.getPath();
@@ -185,11 +224,72 @@ public class CtsApiCoverage {
           // where the apk does not contain a classes.dex and therefore parsing won't work.
           System.err.println("warning: dexdeps failed for: " + apkPath);
         }
+        apiCoverage.addCoverage(coverageMarks);
+    }
+
+    /**
+     * Adds coverage information gleamed from the classes.dex of the APKs to the
+     * {@link ApiCoverage} object, scanning the given number of APKs in parallel.
+     *
+     * @param apiCoverage object to which the coverage statistics will be added to
+     * @param testApks containing the tests that will be scanned
+     * @param cache the coverage of APKs scanned before, or <code>null</code> to scan all APKs
+     */
+    static void addApiCoverage(ApiCoverage apiCoverage, List<File> testApks,
+            int threads, final CoverageCache cache) throws IOException, InterruptedException {
+        final DexScanner scanner = new DexScanner(apiCoverage);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<CoverageMarks>> results =
+                    new ArrayList<Future<CoverageMarks>>(testApks.size());
+            for (final File testApk : testApks) {
+                results.add(executor.submit(new Callable<CoverageMarks>() {
+                    @Override
+                    public CoverageMarks call() throws IOException {
+                        if (cache == null) {
+                            return scanner.scan(testApk);
+                        }
+                        String apkDigest = CoverageCache.digest(testApk);
+                        CoverageMarks marks = cache.get(apkDigest);
+                        if (marks == null) {
+                            marks = scanner.scan(testApk);
+                            if (marks != null) {
+                                try {
+                                    cache.put(apkDigest, marks);
+                                } catch (IOException e) {
+                                    // the coverage is still right, only the next run is slower
+                                    System.err.println("warning: could not cache coverage of: "
+                                            + testApk + ": " + e);
+                                }
+                            }
+                        }
+                        return marks;
+                    }
+                }));
+            }
+            // The scanners only read apiCoverage, their marks are added here one at a time.
+            for (int i = 0; i < testApks.size(); i++) {
+                try {
+                    CoverageMarks marks = results.get(i).get();
+                    if (marks != null) {
+                        apiCoverage.addCoverage(marks);
+                    } else {
+                        System.err.println("warning: no classes.dex in: " + testApks.get(i));
+                    }
+                } catch (ExecutionException e) {
+                    // Continue like with dexdeps, the other APKs still count.
+                    System.err.println("warning: scanning failed for: " + testApks.get(i)
+                            + ": " + e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
     private static void outputCoverageReport(ApiCoverage apiCoverage, List<File> testApks,
             File outputFile, int format, String packageFilter, String reportTitle)
-                throws IOException, TransformerException, InterruptedException {
+                throws IOException {
 
         OutputStream out = outputFile != null
                 ? new FileOutputStream(outputFile)
@@ -25,11 +25,11 @@ import java.util.List;
 
 /**
  * {@link DefaultHander} that parses the output of dexdeps and adds the coverage information to
- * an {@link ApiCoverage} object.
+ * a {@link CoverageMarks} object.
  */
 class DexDepsXmlHandler extends DefaultHandler {
 
-    private final ApiCoverage mPackageMap;
+    private final CoverageMarks mCoverageMarks;
 
     private String mCurrentPackageName;
 
@@ -41,8 +41,8 @@ class DexDepsXmlHandler extends DefaultHandler {
 
     private List<String> mCurrentParameterTypes = new ArrayList<String>();
 
-    DexDepsXmlHandler(ApiCoverage packageMap) {
-        this.mPackageMap = packageMap;
+    DexDepsXmlHandler(CoverageMarks coverageMarks) {
+        this.mCoverageMarks = coverageMarks;
     }
 
     @Override
@@ -69,28 +69,11 @@ class DexDepsXmlHandler extends DefaultHandler {
     public void endElement(String uri, String localName, String name) throws SAXException {
         super.endElement(uri, localName, name);
         if ("constructor".equalsIgnoreCase(localName)) {
-            ApiPackage apiPackage = mPackageMap.getPackage(mCurrentPackageName);
-            if (apiPackage != null) {
-                ApiClass apiClass = apiPackage.getClass(mCurrentClassName);
-                if (apiClass != null) {
-                    ApiConstructor apiConstructor = apiClass.getConstructor(mCurrentParameterTypes);
-                    if (apiConstructor != null) {
-                        apiConstructor.setCovered(true);
-                    }
-                }
-            }
+            mCoverageMarks.addConstructor(mCurrentPackageName, mCurrentClassName,
+                    mCurrentParameterTypes);
         }  else if ("method".equalsIgnoreCase(localName)) {
-            ApiPackage apiPackage = mPackageMap.getPackage(mCurrentPackageName);
-            if (apiPackage != null) {
-                ApiClass apiClass = apiPackage.getClass(mCurrentClassName);
-                if (apiClass != null) {
-                    ApiMethod apiMethod = apiClass.getMethod(mCurrentMethodName,
-                            mCurrentParameterTypes, mCurrentMethodReturnType);
-                    if (apiMethod != null) {
-                        apiMethod.setCovered(true);
-                    }
-                }
-            }
+            mCoverageMarks.addMethod(mCurrentPackageName, mCurrentClassName,
+                    mCurrentMethodName, mCurrentParameterTypes, mCurrentMethodReturnType);
         }
     }
 }
\ No newline at end of file
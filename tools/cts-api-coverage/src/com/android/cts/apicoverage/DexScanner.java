@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.apicoverage;
+
+import dex.reader.DexBuffer;
+import dex.reader.DexFileReader;
+import dex.structure.DexFile;
+import dex.structure.DexMethodReference;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the methods an APK references from its classes.dex in process, and collects the coverage
+ * information in a {@link CoverageMarks} object.
+ * <p/>
+ * References are named like dexdeps names them, so the coverage is the same as parsing the output
+ * of "dexdeps --format=xml". Field references are not read, since the coverage only counts
+ * constructors and methods.
+ */
+class DexScanner {
+
+    /**
+     * The version of the coverage found by the scanner, to increase when a change to the scanner
+     * or the dex reader can change the coverage of an APK, so cached coverage is scanned again.
+     * Version 2 decodes the strings of the dex file as modified UTF-8.
+     */
+    static final int VERSION = 2;
+
+    private static final String DEX_ENTRY_NAME = "classes.dex";
+
+    private final ApiCoverage mApiCoverage;
+
+    DexScanner(ApiCoverage apiCoverage) {
+        mApiCoverage = apiCoverage;
+    }
+
+    /**
+     * Collects the coverage of the given APK. Safe to call from multiple threads.
+     *
+     * @param testApk the APK to scan
+     * @return the coverage of the APK, or <code>null</code> if the APK has no classes.dex
+     */
+    CoverageMarks scan(File testApk) throws IOException {
+        byte[] dex = readDex(testApk);
+        if (dex == null) {
+            return null;
+        }
+        CoverageMarks marks = new CoverageMarks(mApiCoverage);
+        DexFile dexFile = new DexFileReader().read(new DexBuffer(dex));
+        List<String> parameterTypes = new ArrayList<String>();
+        for (DexMethodReference method : dexFile.getExternalMethodReferences()) {
+            String declaringClass = method.getDeclaringClassName();
+            String packageName = packageNameOnly(declaringClass);
+            String className = classNameOnly(declaringClass);
+            parameterTypes.clear();
+            for (String parameterType : method.getParameterTypes()) {
+                parameterTypes.add(descriptorToDot(parameterType));
+            }
+            if ("<init>".equals(method.getName())) {
+                marks.addConstructor(packageName, className, parameterTypes);
+            } else {
+                marks.addMethod(packageName, className, method.getName(), parameterTypes,
+                        descriptorToDot(method.getReturnType()));
+            }
+        }
+        return marks;
+    }
+
+    /**
+     * @return the content of the classes.dex of the given APK, or <code>null</code> if it has
+     * none
+     */
+    private static byte[] readDex(File testApk) throws IOException {
+        ZipFile zip = new ZipFile(testApk);
+        try {
+            ZipEntry entry = zip.getEntry(DEX_ENTRY_NAME);
+            if (entry == null) {
+                return null;
+            }
+            InputStream in = zip.getInputStream(entry);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(
+                        entry.getSize() > 0 ? (int) entry.getSize() : 64 * 1024);
+                byte[] buffer = new byte[64 * 1024];
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, length);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Converts a type descriptor to the dotted form of dexdeps. For example,
+     * "Ljava/lang/String;" becomes "java.lang.String", "[I" becomes "int[]", and
+     * "Landroid/os/Build$VERSION;" becomes "android.os.Build.VERSION".
+     */
+    static String descriptorToDot(String descriptor) {
+        int arrayDepth = 0;
+        while (descriptor.length() - arrayDepth > 1 && descriptor.charAt(arrayDepth) == '[') {
+            arrayDepth++;
+        }
+        String name = descriptor.substring(arrayDepth);
+        if (name.length() == 1) {
+            name = primitiveTypeLabel(name.charAt(0));
+        } else if (name.length() >= 2 && name.charAt(0) == 'L'
+                && name.charAt(name.length() - 1) == ';') {
+            name = name.substring(1, name.length() - 1);
+        }
+        StringBuilder dotted = new StringBuilder(name.length() + arrayDepth * 2);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            dotted.append(c == '/' || c == '$' ? '.' : c);
+        }
+        for (int i = 0; i < arrayDepth; i++) {
+            dotted.append("[]");
+        }
+        return dotted.toString();
+    }
+
+    /** @return the class name of a type descriptor, like dexdeps names classes */
+    static String classNameOnly(String descriptor) {
+        String dotted = descriptorToDot(descriptor);
+        return dotted.substring(dotted.lastIndexOf('.') + 1);
+    }
+
+    /** @return the package name of a type descriptor, like dexdeps names packages */
+    static String packageNameOnly(String descriptor) {
+        String dotted = descriptorToDot(descriptor);
+        int end = dotted.lastIndexOf('.');
+        return end < 0 ? "" : dotted.substring(0, end);
+    }
+
+    private static String primitiveTypeLabel(char typeChar) {
+        switch (typeChar) {
+            case 'B': return "byte";
+            case 'C': return "char";
+            case 'D': return "double";
+            case 'F': return "float";
+            case 'I': return "int";
+            case 'J': return "long";
+            case 'S': return "short";
+            case 'V': return "void";
+            case 'Z': return "boolean";
+            default:
+                System.err.println("Unexpected type char " + typeChar);
+                return "UNKNOWN";
+        }
+    }
+}
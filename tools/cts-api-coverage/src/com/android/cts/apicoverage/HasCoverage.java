@@ -20,6 +20,8 @@ import java.util.Comparator;
 
 interface HasCoverage {
     float getCoveragePercentage();
+    int getNumCoveredMethods();
+    int getTotalMethods();
     String getName();
 }
 
@@ -16,54 +16,391 @@
 
 package com.android.cts.apicoverage;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
-
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Class that outputs an HTML report of the {@link ApiCoverage} collected. It is the XML report
- * transformed into HTML.
+ * Class that outputs an HTML report of the {@link ApiCoverage} collected. The HTML is written
+ * directly while walking the {@link ApiCoverage}, so the memory used does not grow with the size
+ * of the API. It shows the same information as the XML report transformed with api-coverage.xsl.
  */
 class HtmlReport {
 
-    public static void printHtmlReport(final List<File> testApks, final ApiCoverage apiCoverage,
-            final String packageFilter, final String reportTitle, final OutputStream out)
-                throws IOException, TransformerException {
-        final PipedOutputStream xmlOut = new PipedOutputStream();
-        final PipedInputStream xmlIn = new PipedInputStream(xmlOut);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String INDEX_PAGE = "index.html";
+
+    private static final String HEAD = "<head>\n"
+            + "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n"
+            + "<script type=\"text/javascript\">\n"
+            + "    function toggleVisibility(id) {\n"
+            + "        element = document.getElementById(id);\n"
+            + "        if (element.style.display == \"none\") {\n"
+            + "            element.style.display = \"\";\n"
+            + "        } else {\n"
+            + "            element.style.display = \"none\";\n"
+            + "        }\n"
+            + "    }\n"
+            + "</script>\n"
+            + "<style type=\"text/css\">\n"
+            + "    body {\n"
+            + "        background-color: #CCCCCC;\n"
+            + "        font-family: sans-serif;\n"
+            + "        margin: 10px;\n"
+            + "    }\n"
+            + "\n"
+            + "    .info {\n"
+            + "        margin-bottom: 10px;\n"
+            + "    }\n"
+            + "\n"
+            + "    .apks, .package, .class {\n"
+            + "        cursor: pointer;\n"
+            + "        text-decoration: underline;\n"
+            + "    }\n"
+            + "\n"
+            + "    .packageDetails {\n"
+            + "        padding-left: 20px;\n"
+            + "    }\n"
+            + "\n"
+            + "    .classDetails {\n"
+            + "        padding-left: 40px;\n"
+            + "    }\n"
+            + "\n"
+            + "    .method {\n"
+            + "        font-family: courier;\n"
+            + "        white-space: nowrap;\n"
+            + "    }\n"
+            + "\n"
+            + "    .red {\n"
+            + "        background-color: #FF6666;\n"
+            + "    }\n"
+            + "\n"
+            + "    .yellow {\n"
+            + "        background-color: #FFFF66;\n"
+            + "    }\n"
+            + "\n"
+            + "    .green {\n"
+            + "        background-color: #66FF66;\n"
+            + "    }\n"
+            + "\n"
+            + "    .deprecated {\n"
+            + "        text-decoration: line-through;\n"
+            + "    }\n"
+            + "</style>\n"
+            + "</head>\n";
+
+    public static void printHtmlReport(List<File> testApks, ApiCoverage apiCoverage,
+            String packageFilter, String reportTitle, OutputStream outputStream)
+                throws IOException {
+        List<ApiPackage> packages = getReportedPackages(apiCoverage, packageFilter);
+        Writer out = new BufferedWriter(new OutputStreamWriter(outputStream, UTF_8));
+        printHeader(testApks, packages, reportTitle, out);
+        out.write("<ul>\n");
+        for (ApiPackage apiPackage : packages) {
+            printListItem("package", apiPackage.getName(), apiPackage, false, out);
+            out.write("<div class=\"packageDetails\" id=\"");
+            out.write(escape(apiPackage.getName()));
+            out.write("\" style=\"display: none\">\n");
+            printClasses(apiPackage, out);
+            out.write("</div>\n");
+        }
+        out.write("</ul>\n");
+        out.write("</body>\n</html>\n");
+        out.flush();
+    }
+
+    /**
+     * Writes the HTML report as an index page and one page per package in the given directory,
+     * writing the package pages in parallel.
+     */
+    public static void printHtmlPages(List<File> testApks, ApiCoverage apiCoverage,
+            String packageFilter, final String reportTitle, final File outputDir, int threads)
+                throws IOException, InterruptedException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Could not create report directory " + outputDir);
+        }
+        List<ApiPackage> packages = getReportedPackages(apiCoverage, packageFilter);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>(packages.size());
+            for (final ApiPackage apiPackage : packages) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        printPackagePage(apiPackage, reportTitle,
+                                new File(outputDir, getPageName(apiPackage)));
+                        return null;
+                    }
+                }));
+            }
 
-        Thread t = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                XmlReport.printXmlReport(testApks, apiCoverage, packageFilter, reportTitle, xmlOut);
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(outputDir, INDEX_PAGE)), UTF_8));
+            try {
+                printHeader(testApks, packages, reportTitle, out);
+                out.write("<ul>\n");
+                for (ApiPackage apiPackage : packages) {
+                    printListItem("package", apiPackage.getName(), apiPackage, false, out,
+                            getPageName(apiPackage));
+                }
+                out.write("</ul>\n");
+                out.write("</body>\n</html>\n");
+            } finally {
+                out.close();
+            }
 
-                // Close the output stream to avoid "Write dead end" errors.
+            for (Future<Void> result : results) {
                 try {
-                    xmlOut.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the packages to report, in the order of the report
+     */
+    private static List<ApiPackage> getReportedPackages(ApiCoverage apiCoverage,
+            String packageFilter) {
+        List<ApiPackage> packages = new ArrayList<ApiPackage>();
+        for (ApiPackage apiPackage : apiCoverage.getPackages()) {
+            if (apiPackage.getName().startsWith(packageFilter)
+                    && apiPackage.getTotalMethods() > 0) {
+                packages.add(apiPackage);
+            }
+        }
+        Collections.sort(packages, new CoverageComparator());
+        return packages;
+    }
+
+    private static void printPackagePage(ApiPackage apiPackage, String reportTitle,
+            File outputFile) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(outputFile), UTF_8));
+        try {
+            out.write("<html>\n");
+            out.write(HEAD);
+            out.write("<body>\n");
+            out.write("<h1>");
+            out.write(escape(reportTitle));
+            out.write("</h1>\n");
+            out.write("<div class=\"info\"><a href=\"" + INDEX_PAGE + "\">All packages</a></div>\n");
+            out.write("<ul>\n");
+            printListItem("package", apiPackage.getName(), apiPackage, false, out);
+            out.write("<div class=\"packageDetails\">\n");
+            printClasses(apiPackage, out);
+            out.write("</div>\n");
+            out.write("</ul>\n");
+            out.write("</body>\n</html>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Prints the start of the report up to the list of packages: the title, the total coverage
+     * and the source APKs.
+     */
+    private static void printHeader(List<File> testApks, List<ApiPackage> packages,
+            String reportTitle, Writer out) throws IOException {
+        // Deprecated constructors and methods do not count in the total, like in the XML report.
+        int totalMethods = 0;
+        int totalCoveredMethods = 0;
+        for (ApiPackage apiPackage : packages) {
+            totalMethods += apiPackage.getTotalMethods();
+            totalCoveredMethods += apiPackage.getNumCoveredMethods();
+            for (ApiClass apiClass : apiPackage.getClasses()) {
+                for (ApiConstructor constructor : apiClass.getConstructors()) {
+                    if (constructor.isDeprecated()) {
+                        totalMethods--;
+                        if (constructor.isCovered()) {
+                            totalCoveredMethods--;
+                        }
+                    }
+                }
+                for (ApiMethod method : apiClass.getMethods()) {
+                    if (method.isDeprecated()) {
+                        totalMethods--;
+                        if (method.isCovered()) {
+                            totalCoveredMethods--;
+                        }
+                    }
                 }
             }
-        });
-        t.start();
+        }
 
-        InputStream xsl = CtsApiCoverage.class.getResourceAsStream("/api-coverage.xsl");
-        StreamSource xslSource = new StreamSource(xsl);
-        TransformerFactory factory = TransformerFactory.newInstance();
-        Transformer transformer = factory.newTransformer(xslSource);
+        SimpleDateFormat format = new SimpleDateFormat("EEE, MMM d, yyyy h:mm a z");
+        String date = format.format(new Date(System.currentTimeMillis()));
 
-        StreamSource xmlSource = new StreamSource(xmlIn);
-        StreamResult result = new StreamResult(out);
-        transformer.transform(xmlSource, result);
+        out.write("<html>\n");
+        out.write(HEAD);
+        out.write("<body>\n");
+        out.write("<h1>");
+        out.write(escape(reportTitle));
+        out.write("</h1>\n");
+        out.write("<div class=\"info\">Generated: ");
+        out.write(escape(date));
+        out.write("</div>\n");
+        out.write("<div class=\"total\">Total:&nbsp;"
+                + Math.round((float) totalCoveredMethods / totalMethods * 100.0f)
+                + "%&nbsp;(" + totalCoveredMethods + "/" + totalMethods + ")</div>\n");
+        out.write("<div class=\"apks\" onclick=\"toggleVisibility('sourceApks')\">"
+                + "Source APKs (" + testApks.size() + ")</div>\n");
+        out.write("<div id=\"sourceApks\" style=\"display: none\">\n<ul>\n");
+        for (File testApk : testApks) {
+            out.write("<li>");
+            out.write(escape(testApk.getPath()));
+            out.write("</li>\n");
+        }
+        out.write("</ul>\n</div>\n");
+    }
+
+    private static void printClasses(ApiPackage apiPackage, Writer out) throws IOException {
+        List<ApiClass> classes = new ArrayList<ApiClass>(apiPackage.getClasses());
+        Collections.sort(classes, new CoverageComparator());
+        out.write("<ul>\n");
+        for (ApiClass apiClass : classes) {
+            if (apiClass.getTotalMethods() > 0) {
+                printListItem("class", apiClass.getName(), apiClass, apiClass.isDeprecated(),
+                        out);
+                out.write("<div class=\"classDetails\" id=\"");
+                out.write(escape(apiClass.getName()));
+                out.write("\" style=\"display: none\">\n");
+                for (ApiConstructor constructor : apiClass.getConstructors()) {
+                    printMember(constructor.getName(), null, constructor.getParameterTypes(),
+                            constructor.isDeprecated(), constructor.isCovered(), out);
+                }
+                for (ApiMethod method : apiClass.getMethods()) {
+                    printMember(method.getName(), method.getReturnType(),
+                            method.getParameterTypes(), method.isDeprecated(),
+                            method.isCovered(), out);
+                }
+                out.write("</div>\n");
+            }
+        }
+        out.write("</ul>\n");
+    }
+
+    private static void printListItem(String bulletClass, String name, HasCoverage coverage,
+            boolean deprecated, Writer out) throws IOException {
+        printListItem(bulletClass, name, coverage, deprecated, out, null);
+    }
+
+    /**
+     * Prints the list item of a package or class, which toggles its details when clicked, or
+     * links to the given page if not <code>null</code>.
+     */
+    private static void printListItem(String bulletClass, String name, HasCoverage coverage,
+            boolean deprecated, Writer out, String page) throws IOException {
+        long percentage = Math.round(coverage.getCoveragePercentage());
+        String colorClass = percentage <= 50 ? "red" : percentage <= 80 ? "yellow" : "green";
+        String escapedName = escape(name);
+        out.write("<li class=\"");
+        out.write(bulletClass);
+        if (page == null) {
+            out.write("\" onclick=\"toggleVisibility('");
+            out.write(escapedName);
+            out.write("')\">");
+        } else {
+            out.write("\">");
+        }
+        out.write("<span class=\"");
+        out.write(colorClass);
+        out.write(deprecated ? " deprecated\">" : " \">");
+        if (page != null) {
+            out.write("<a href=\"");
+            out.write(escape(page));
+            out.write("\">");
+        }
+        out.write("<b>");
+        out.write(escapedName);
+        out.write("</b>");
+        if (page != null) {
+            out.write("</a>");
+        }
+        out.write("&nbsp;" + percentage + "%&nbsp;(" + coverage.getNumCoveredMethods() + "/"
+                + coverage.getTotalMethods() + ")</span></li>\n");
+    }
+
+    /**
+     * Prints a constructor, with a <code>null</code> return type, or a method.
+     */
+    private static void printMember(String name, String returnType, List<String> parameterTypes,
+            boolean deprecated, boolean covered, Writer out) throws IOException {
+        out.write(deprecated ? "<span class=\"method deprecated\">" : "<span class=\"method \">");
+        out.write(covered ? "[X]" : "[ ]");
+        if (returnType != null && !returnType.isEmpty()) {
+            out.write("&nbsp;");
+            out.write(escape(returnType));
+        }
+        out.write("<b>&nbsp;");
+        out.write(escape(name));
+        out.write("</b>(");
+        for (int i = 0; i < parameterTypes.size(); i++) {
+            if (i > 0) {
+                out.write(",&nbsp;");
+            }
+            out.write(escape(parameterTypes.get(i)));
+        }
+        out.write(")</span>\n<br>\n");
+    }
+
+    /**
+     * @return the name of the page of the given package
+     */
+    private static String getPageName(ApiPackage apiPackage) {
+        return apiPackage.getName() + ".html";
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement;
+            switch (c) {
+                case '&': replacement = "&amp;"; break;
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\'': replacement = "&#39;"; break;
+                default: replacement = null; break;
+            }
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(text.length() + 16);
+                escaped.append(text, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped != null ? escaped.toString() : text;
     }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.apicoverage;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link CoverageCache}.
+ */
+public class CoverageCacheTest extends TestCase {
+
+    private static final String APK_DIGEST = "0123456789abcdef";
+
+    private static final String API_XML = "<api>\n"
+            + "<package name=\"android.app\">\n"
+            + "<class name=\"Activity\" abstract=\"false\" deprecated=\"not deprecated\">\n"
+            + "<constructor name=\"Activity\" deprecated=\"not deprecated\"/>\n"
+            + "<method name=\"finish\" return=\"void\" abstract=\"false\""
+            + " deprecated=\"not deprecated\"/>\n"
+            + "<method name=\"setTitle\" return=\"void\" abstract=\"false\""
+            + " deprecated=\"not deprecated\">"
+            + "<parameter name=\"a\" type=\"java.lang.CharSequence\"/></method>\n"
+            + "</class>\n"
+            + "</package>\n"
+            + "<package name=\"android.view\">\n"
+            + "<class name=\"View\" abstract=\"false\" deprecated=\"not deprecated\">\n"
+            + "<constructor name=\"View\" deprecated=\"not deprecated\">"
+            + "<parameter name=\"a\" type=\"android.content.Context\"/></constructor>\n"
+            + "<method name=\"invalidate\" return=\"void\" abstract=\"false\""
+            + " deprecated=\"not deprecated\"/>\n"
+            + "<method name=\"setAlpha\" return=\"void\" abstract=\"false\""
+            + " deprecated=\"not deprecated\">"
+            + "<parameter name=\"a\" type=\"float\"/></method>\n"
+            + "</class>\n"
+            + "</package>\n"
+            + "</api>\n";
+
+    private File mTmpDir;
+    private File mCacheDir;
+    private File mApiXml;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = File.createTempFile("coverage-cache", "");
+        mTmpDir.delete();
+        mTmpDir.mkdirs();
+        mCacheDir = new File(mTmpDir, "cache");
+        mApiXml = new File(mTmpDir, "api.xml");
+        writeFile(mApiXml, API_XML);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursive(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that the reports of a run with cached coverage are the same as those of a run that
+     * scans the APK.
+     */
+    public void testGet_sameReports() throws Exception {
+        ApiCoverage scannedCoverage = createApiCoverage();
+        CoverageMarks marks = createMarks(scannedCoverage);
+        new CoverageCache(mCacheDir, mApiXml, scannedCoverage).put(APK_DIGEST, marks);
+        scannedCoverage.addCoverage(marks);
+
+        ApiCoverage cachedCoverage = createApiCoverage();
+        CoverageMarks cachedMarks =
+                new CoverageCache(mCacheDir, mApiXml, cachedCoverage).get(APK_DIGEST);
+        assertNotNull(cachedMarks);
+        cachedCoverage.addCoverage(cachedMarks);
+
+        assertEquals(getTextReport(scannedCoverage), getTextReport(cachedCoverage));
+        assertEquals(getXmlReport(scannedCoverage), getXmlReport(cachedCoverage));
+    }
+
+    /**
+     * Test that coverage cached for another API is not used.
+     */
+    public void testGet_otherApi() throws Exception {
+        ApiCoverage apiCoverage = createApiCoverage();
+        new CoverageCache(mCacheDir, mApiXml, apiCoverage).put(APK_DIGEST,
+                createMarks(apiCoverage));
+        writeFile(mApiXml, API_XML.replace("setAlpha", "setBeta"));
+        assertNull(new CoverageCache(mCacheDir, mApiXml, createApiCoverage()).get(APK_DIGEST));
+    }
+
+    /**
+     * Test that coverage cached by another version of the scanner is not used.
+     */
+    public void testGet_otherScanner() throws Exception {
+        ApiCoverage apiCoverage = createApiCoverage();
+        CoverageCache cache = new CoverageCache(mCacheDir, mApiXml, apiCoverage);
+        cache.put(APK_DIGEST, createMarks(apiCoverage));
+        // the scanner version follows the version of the file format
+        RandomAccessFile cacheFile =
+                new RandomAccessFile(new File(mCacheDir, APK_DIGEST + ".coverage"), "rw");
+        try {
+            cacheFile.seek(4);
+            assertEquals(DexScanner.VERSION, cacheFile.readInt());
+            cacheFile.seek(4);
+            cacheFile.writeInt(DexScanner.VERSION - 1);
+        } finally {
+            cacheFile.close();
+        }
+        assertNull(cache.get(APK_DIGEST));
+    }
+
+    private ApiCoverage createApiCoverage() throws Exception {
+        ApiCoverage apiCoverage = CtsApiCoverage.getEmptyApiCoverage(mApiXml.getPath());
+        apiCoverage.removeEmptyAbstractClasses();
+        return apiCoverage;
+    }
+
+    /**
+     * @return the marks a scan of an APK calling some of the API, and some methods outside it,
+     * would make
+     */
+    private static CoverageMarks createMarks(ApiCoverage apiCoverage) {
+        List<String> noParameters = Collections.emptyList();
+        CoverageMarks marks = new CoverageMarks(apiCoverage);
+        marks.addConstructor("android.app", "Activity", noParameters);
+        marks.addMethod("android.app", "Activity", "setTitle",
+                Arrays.asList("java.lang.CharSequence"), "void");
+        marks.addMethod("android.view", "View", "setAlpha", Arrays.asList("float"), "void");
+        marks.addMethod("android.view", "View", "setBeta", Arrays.asList("float"), "void");
+        marks.addMethod("java.lang", "Object", "toString", noParameters, "java.lang.String");
+        return marks;
+    }
+
+    private static String getTextReport(ApiCoverage apiCoverage) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TextReport.printTextReport(apiCoverage, "android", out);
+        return out.toString();
+    }
+
+    /**
+     * @return the XML report, without the time it was generated
+     */
+    private static String getXmlReport(ApiCoverage apiCoverage) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlReport.printXmlReport(Collections.<File>emptyList(), apiCoverage, "android", "Test",
+                out);
+        return out.toString().replaceAll("generatedTime=\"[^\"]*\"", "");
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+}
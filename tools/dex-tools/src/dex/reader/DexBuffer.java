@@ -16,33 +16,28 @@
 
 package dex.reader;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 public final class DexBuffer {
 
     private ByteBuffer b;
 
+    /**
+     * Maps the given file into memory, so only the parts of it that are
+     * read are loaded. The mapping stays valid after the file is closed.
+     */
     public DexBuffer(String fileName) throws IOException {
-
-        // FIXME channel? allocate fix size?
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(fileName);
-
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = bis.read(buf)) > 0) {
-                bos.write(buf, 0, len);
-            }
-            byte[] bytes = bos.toByteArray();
-            initialize(ByteBuffer.wrap(bytes));
+            FileChannel channel = fis.getChannel();
+            initialize(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
         } finally {
             if (fis != null) {
                 fis.close();
@@ -176,6 +171,38 @@ public final class DexBuffer {
         return Double.longBitsToDouble(bits);
     }
 
+    /**
+     * Decodes a string in the modified UTF-8 encoding of dex files, with the
+     * given number of UTF-16 code units, from the current position.
+     */
+    public String readMutf8(int utf16Length) throws UTFDataFormatException {
+        char[] chars = new char[utf16Length];
+        for (int i = 0; i < utf16Length; i++) {
+            int a = b.get() & 0xFF;
+            if (a < 0x80) {
+                chars[i] = (char) a;
+            } else if ((a & 0xE0) == 0xC0) {
+                int c = b.get() & 0xFF;
+                if ((c & 0xC0) != 0x80) {
+                    throw new UTFDataFormatException("bad second byte");
+                }
+                chars[i] = (char) (((a & 0x1F) << 6) | (c & 0x3F));
+            } else if ((a & 0xF0) == 0xE0) {
+                int c = b.get() & 0xFF;
+                int d = b.get() & 0xFF;
+                if (((c & 0xC0) != 0x80) || ((d & 0xC0) != 0x80)) {
+                    throw new UTFDataFormatException(
+                            "bad second or third byte");
+                }
+                chars[i] = (char) (((a & 0x0F) << 12) | ((c & 0x3F) << 6)
+                        | (d & 0x3F));
+            } else {
+                throw new UTFDataFormatException("bad byte");
+            }
+        }
+        return new String(chars);
+    }
+
     public void skip(int nBytes) {
         b.position(b.position() + nBytes);
     }
@@ -42,7 +42,7 @@ import dex.structure.DexMethod;
     // allready parsed
     private final ClassDefItem classDefItem;
     private final int[] typeIds;
-    private final String[] stringPool;
+    private final StringPool stringPool;
     private ProtIdItem[] protoIdItems;
     private FieldIdItem[] fieldIdItems;
     private MethodsIdItem[] methodIdItems;
@@ -67,7 +67,7 @@ import dex.structure.DexMethod;
 
 
     public DexClassImpl(DexBuffer buffer, ClassDefItem classDefItem,
-            String[] stringPool, int[] typeIds, ProtIdItem[] protoIdItems,
+            StringPool stringPool, int[] typeIds, ProtIdItem[] protoIdItems,
             FieldIdItem[] fieldIdItems, MethodsIdItem[] methodIdItems) {
         this.buffer = buffer;
         this.classDefItem = classDefItem;
@@ -314,7 +314,8 @@ import dex.structure.DexMethod;
                 buffer.setPosition(classDefItem.interfaces_off);
                 int size = buffer.readUInt();
                 for (int i = 0; i < size; i++) {
-                    interfaces.add(stringPool[typeIds[buffer.readUShort()]]);
+                    interfaces.add(stringPool.get(
+                            typeIds[buffer.readUShort()]));
                 }
             }
         }
@@ -324,7 +325,7 @@ import dex.structure.DexMethod;
     // returns null if no super class is present
     public String getSuperClass() {
         return classDefItem.superclass_idx == NO_INDEX ? null
-                : stringPool[typeIds[classDefItem.superclass_idx]];
+                : stringPool.get(typeIds[classDefItem.superclass_idx]);
     }
 
     public Set<DexAnnotation> getAnnotations() {
@@ -332,7 +333,7 @@ import dex.structure.DexMethod;
     }
 
     public String getName() {
-        return stringPool[typeIds[classDefItem.class_idx]];
+        return stringPool.get(typeIds[classDefItem.class_idx]);
     }
 
     public int getModifiers() {
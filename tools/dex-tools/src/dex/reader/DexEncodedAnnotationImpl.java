@@ -31,13 +31,13 @@ import java.util.List;
     private List<DexAnnotationAttribute> values;
     private final DexBuffer buffer;
     private final int[] typeIds;
-    private final String[] stringPool;
+    private final StringPool stringPool;
     private int typeIdx;
     private final FieldIdItem[] fieldIdItems;
     private final DexAnnotation annotation;
 
     public DexEncodedAnnotationImpl(DexBuffer buffer, DexAnnotation annotation,
-            int[] typeIds, String[] stringPool, FieldIdItem[] fieldIdItems) {
+            int[] typeIds, StringPool stringPool, FieldIdItem[] fieldIdItems) {
         this.buffer = buffer;
         this.annotation = annotation;
         this.typeIds = typeIds;
@@ -65,7 +65,7 @@ import java.util.List;
     }
 
     public String getTypeName() {
-        return stringPool[typeIds[typeIdx]];
+        return stringPool.get(typeIds[typeIdx]);
     }
 
     @Override
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dex.reader;
+
+import dex.reader.DexFileReader.FieldIdItem;
+import dex.structure.DexFieldReference;
+
+/* package */final class DexFieldReferenceImpl implements DexFieldReference {
+
+    private final String name;
+    private final String declaringClassName;
+    private final String type;
+
+    public DexFieldReferenceImpl(FieldIdItem fieldIdItem, StringPool stringPool,
+            int[] typeIds) {
+        name = stringPool.get(fieldIdItem.name_idx);
+        declaringClassName = stringPool.get(typeIds[fieldIdItem.class_idx]);
+        type = stringPool.get(typeIds[fieldIdItem.type_idx]);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDeclaringClassName() {
+        return declaringClassName;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return declaringClassName + "." + name + ":" + type;
+    }
+}
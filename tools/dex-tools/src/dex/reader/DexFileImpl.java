@@ -21,15 +21,18 @@ import dex.reader.DexFileReader.FieldIdItem;
 import dex.reader.DexFileReader.MethodsIdItem;
 import dex.reader.DexFileReader.ProtIdItem;
 import dex.structure.DexClass;
+import dex.structure.DexFieldReference;
 import dex.structure.DexFile;
+import dex.structure.DexMethodReference;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 /* package */final class DexFileImpl implements DexFile {
 
-    private final String[] stringPool;
+    private final StringPool stringPool;
     private final int[] typeIds;
     private ProtIdItem[] protoIdItems;
     private FieldIdItem[] fieldIdItems;
@@ -37,9 +40,21 @@ import java.util.List;
     private ClassDefItem[] classDefItems;
     private final DexBuffer buffer;
 
-    private List<DexClass> classes = null;
+    private final DexClass[] classes;
+    private final List<DexClass> definedClasses = new AbstractList<DexClass>() {
+        @Override
+        public DexClass get(int index) {
+            return getDefinedClass(index);
+        }
+
+        @Override
+        public int size() {
+            return classes.length;
+        }
+    };
+    private boolean[] externalTypes = null;
 
-    public DexFileImpl(DexBuffer buffer, String[] stringPool, int[] typeIds,
+    public DexFileImpl(DexBuffer buffer, StringPool stringPool, int[] typeIds,
             ProtIdItem[] protoIds, FieldIdItem[] fieldIdItems,
             MethodsIdItem[] methodIdItems, ClassDefItem[] classDefItems) {
         this.buffer = buffer;
@@ -49,6 +64,7 @@ import java.util.List;
         this.fieldIdItems = fieldIdItems;
         this.methodIdItems = methodIdItems;
         this.classDefItems = classDefItems;
+        this.classes = new DexClass[classDefItems.length];
     }
 
     /*
@@ -56,25 +72,83 @@ import java.util.List;
      * 
      * @see dex.reader.DexFile#getDefinedClasses()
      */
-    public synchronized List<DexClass> getDefinedClasses() {
-        if (classes == null) {
-            classes = new ArrayList<DexClass>(classDefItems.length);
-            for (int i = 0; i < classDefItems.length; i++) {
-                classes.add(new DexClassImpl(buffer.createCopy(),
-                        classDefItems[i], stringPool, typeIds, protoIdItems,
-                        fieldIdItems, methodIdItems));
+    public List<DexClass> getDefinedClasses() {
+        return definedClasses;
+    }
+
+    public DexClass getDefinedClass(String name) {
+        for (int i = 0; i < classDefItems.length; i++) {
+            int typeIdx = classDefItems[i].class_idx;
+            if (name.equals(stringPool.get(typeIds[typeIdx]))) {
+                return getDefinedClass(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the class of the given class def, parsing it on first use.
+     */
+    private synchronized DexClass getDefinedClass(int index) {
+        if (classes[index] == null) {
+            classes[index] = new DexClassImpl(buffer.createCopy(),
+                    classDefItems[index], stringPool, typeIds, protoIdItems,
+                    fieldIdItems, methodIdItems);
+        }
+        return classes[index];
+    }
+
+    public List<DexMethodReference> getExternalMethodReferences() {
+        boolean[] external = getExternalTypes();
+        DexBuffer b = buffer.createCopy();
+        List<DexMethodReference> references = new ArrayList<DexMethodReference>();
+        for (MethodsIdItem item : methodIdItems) {
+            if (external[item.class_idx]) {
+                references.add(new DexMethodReferenceImpl(b, item,
+                        protoIdItems[item.proto_idx], stringPool, typeIds));
+            }
+        }
+        return references;
+    }
+
+    public List<DexFieldReference> getExternalFieldReferences() {
+        boolean[] external = getExternalTypes();
+        List<DexFieldReference> references = new ArrayList<DexFieldReference>();
+        for (FieldIdItem item : fieldIdItems) {
+            if (external[item.class_idx]) {
+                references.add(new DexFieldReferenceImpl(item, stringPool,
+                        typeIds));
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Returns for each type id whether it is a class defined elsewhere.
+     * Primitive and array types are not external.
+     */
+    private synchronized boolean[] getExternalTypes() {
+        if (externalTypes == null) {
+            externalTypes = new boolean[typeIds.length];
+            for (int i = 0; i < typeIds.length; i++) {
+                String descriptor = stringPool.get(typeIds[i]);
+                externalTypes[i] = descriptor.length() > 1
+                        && descriptor.charAt(0) != '[';
+            }
+            for (ClassDefItem item : classDefItems) {
+                externalTypes[item.class_idx] = false;
             }
         }
-        return classes;
+        return externalTypes;
     }
 
     @Override
     public String toString() {
         StringBuilder b = new StringBuilder();
-        b.append("StringPool:\n").append(Arrays.toString(stringPool));
+        b.append("StringPool:\n").append(stringPool);
         b.append("\nTypes:\n");
         for (int i = 0; i < typeIds.length; i++) {
-            b.append(stringPool[typeIds[i]] + "\n");
+            b.append(stringPool.get(typeIds[i]) + "\n");
         }
         b.append("\nProtos:\n").append(Arrays.toString(protoIdItems));
         b.append("\nFields:\n").append(Arrays.toString(fieldIdItems));
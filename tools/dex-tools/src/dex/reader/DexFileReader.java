@@ -57,7 +57,7 @@ public final class DexFileReader {
 
 
     //
-    private String[] stringPool;
+    private StringPool stringPool;
     private int[] typeIds; // values are index of stringPool
     private ProtIdItem[] protoIdItems;
     private FieldIdItem[] fieldIdItems;
@@ -144,25 +144,10 @@ public final class DexFileReader {
         off[attribute] = b.readUInt();
     }
 
-    // reads the string pool
+    // the strings are only decoded when used
     private void readStrings() {
-        int nStrings = size[STRING_IDS];
-        b.setPosition(off[STRING_IDS]); // the first string offset is here
-        int[] stringDataOffsets = new int[nStrings];
-
-        for (int i = 0; i < stringDataOffsets.length; i++) {
-            stringDataOffsets[i] = b.readUInt();
-        }
-
-        stringPool = new String[nStrings];
-        for (int i = 0; i < stringDataOffsets.length; i++) {
-            b.setPosition(stringDataOffsets[i]); // set buffer to offset
-            // Position
-            int lenght = b.readUleb128(); // read uleb128
-            byte[] values = new byte[lenght];
-            b.readBytes(values);
-            stringPool[i] = new String(values);
-        }
+        stringPool = new StringPool(b.createCopy(), off[STRING_IDS],
+                size[STRING_IDS]);
     }
 
     private void readTypeIds() {
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dex.reader;
+
+import dex.reader.DexFileReader.MethodsIdItem;
+import dex.reader.DexFileReader.ProtIdItem;
+import dex.structure.DexMethodReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/* package */final class DexMethodReferenceImpl implements DexMethodReference {
+
+    private final String name;
+    private final String declaringClassName;
+    private final String returnType;
+    private final List<String> parameterTypes;
+
+    public DexMethodReferenceImpl(DexBuffer buffer, MethodsIdItem methodsIdItem,
+            ProtIdItem protoIdItem, StringPool stringPool, int[] typeIds) {
+        name = stringPool.get(methodsIdItem.name_idx);
+        declaringClassName = stringPool.get(typeIds[methodsIdItem.class_idx]);
+        returnType = stringPool.get(typeIds[protoIdItem.return_type_idx]);
+        if (protoIdItem.parameter_off != 0) {
+            buffer.setPosition(protoIdItem.parameter_off);
+            int size = buffer.readUInt();
+            List<String> types = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                types.add(stringPool.get(typeIds[buffer.readUShort()]));
+            }
+            parameterTypes = Collections.unmodifiableList(types);
+        } else {
+            parameterTypes = Collections.emptyList();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDeclaringClassName() {
+        return declaringClassName;
+    }
+
+    public List<String> getParameterTypes() {
+        return parameterTypes;
+    }
+
+    public String getReturnType() {
+        return returnType;
+    }
+
+    @Override
+    public String toString() {
+        return declaringClassName + "." + name + parameterTypes + returnType;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dex.reader;
+
+import java.io.UTFDataFormatException;
+
+/**
+ * The string ids of a dex file. Strings are decoded from their modified UTF-8
+ * encoding when first requested, and cached.
+ */
+/* package */final class StringPool {
+
+    private final DexBuffer buffer;
+    private final int stringIdsOffset;
+    private final String[] strings;
+
+    public StringPool(DexBuffer buffer, int stringIdsOffset, int size) {
+        this.buffer = buffer;
+        this.stringIdsOffset = stringIdsOffset;
+        this.strings = new String[size];
+    }
+
+    public synchronized String get(int index) {
+        String string = strings[index];
+        if (string == null) {
+            buffer.setPosition(stringIdsOffset + index * 4);
+            buffer.setPosition(buffer.readUInt());
+            try {
+                string = buffer.readMutf8(buffer.readUleb128());
+            } catch (UTFDataFormatException e) {
+                throw new IllegalStateException("Invalid string " + index, e);
+            }
+            strings[index] = string;
+        }
+        return string;
+    }
+
+    public int size() {
+        return strings.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder("[");
+        for (int i = 0; i < strings.length; i++) {
+            if (i > 0) {
+                b.append(", ");
+            }
+            b.append(get(i));
+        }
+        return b.append("]").toString();
+    }
+}
@@ -33,4 +33,36 @@ public interface DexFile extends NamedElement {
      */
     public List<DexClass> getDefinedClasses();
 
+    /**
+     * Returns the {@code DexClass} with the given name that is part of this
+     * {@code DexFile}. Unlike {@link #getDefinedClasses()}, only this class is
+     * parsed.
+     * 
+     * @param name
+     *            the name of the class, as returned by
+     *            {@link DexClass#getName()}
+     * @return the {@code DexClass} with the given name, or {@code null} if it
+     *         is not part of this {@code DexFile}
+     */
+    public DexClass getDefinedClass(String name);
+
+    /**
+     * Returns a list of the methods referenced by this {@code DexFile} whose
+     * declaring class is not defined in it, in the order of the method ids.
+     * Methods of array types are not included.
+     * 
+     * @return a list of the methods referenced by this {@code DexFile} and
+     *         declared elsewhere
+     */
+    public List<DexMethodReference> getExternalMethodReferences();
+
+    /**
+     * Returns a list of the fields referenced by this {@code DexFile} whose
+     * declaring class is not defined in it, in the order of the field ids.
+     * 
+     * @return a list of the fields referenced by this {@code DexFile} and
+     *         declared elsewhere
+     */
+    public List<DexFieldReference> getExternalFieldReferences();
+
 }
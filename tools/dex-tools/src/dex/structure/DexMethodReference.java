@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dex.structure;
+
+import java.util.List;
+
+/**
+ * {@code DexMethodReference} represents a method referenced by a dex file,
+ * which is not necessarily defined in it.
+ */
+public interface DexMethodReference extends NamedElement {
+
+    /**
+     * Returns the type descriptor of the class declaring the referenced
+     * method, e.g. "Ljava/lang/Object;".
+     * 
+     * @return the type descriptor of the declaring class
+     */
+    String getDeclaringClassName();
+
+    /**
+     * Returns the type descriptors of the parameters of the referenced method.
+     * 
+     * @return the type descriptors of the parameters
+     */
+    List<String> getParameterTypes();
+
+    /**
+     * Returns the type descriptor of the return type of the referenced method.
+     * 
+     * @return the type descriptor of the return type
+     */
+    String getReturnType();
+}
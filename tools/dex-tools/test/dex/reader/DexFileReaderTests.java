@@ -17,7 +17,10 @@
 package dex.reader;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.FileWriter;
@@ -36,8 +39,10 @@ import dex.structure.DexAnnotationAttribute;
 import dex.structure.DexClass;
 import dex.structure.DexEncodedValue;
 import dex.structure.DexField;
+import dex.structure.DexFieldReference;
 import dex.structure.DexFile;
 import dex.structure.DexMethod;
+import dex.structure.DexMethodReference;
 import dex.structure.DexParameter;
 
 
@@ -311,6 +316,64 @@ public class DexFileReaderTests extends DexTestsCommon {
         assertTrue(innerTypeNames.contains(staticInner.getName()));
     }
     
+    static final JavaSource references = new JavaSource("R",
+            "public class R {" + 
+            "  int i;" + 
+            "  String m(StringBuilder b, int[] a) {" + 
+            "    b.append(a.clone().length).append(i);" + 
+            "    return b.toString() + System.out;" + 
+            "  }" + 
+            "}");
+
+    /**
+     * Tests listing the methods and fields referenced from other classes.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testExternalReferences() throws IOException {
+        DexFile dexFile = javaToDexUtil.getFrom(references);
+        Set<String> methods = new HashSet<String>();
+        for (DexMethodReference method : dexFile.getExternalMethodReferences()) {
+            assertFalse("LR;".equals(method.getDeclaringClassName()));
+            assertFalse(method.getDeclaringClassName().startsWith("["));
+            methods.add(method.getDeclaringClassName() + method.getName()
+                    + method.getParameterTypes() + method.getReturnType());
+        }
+        assertTrue(methods.contains("Ljava/lang/StringBuilder;append[I]Ljava/lang/StringBuilder;"));
+        assertTrue(methods.contains("Ljava/lang/Object;<init>[]V"));
+
+        Set<String> fields = new HashSet<String>();
+        for (DexFieldReference field : dexFile.getExternalFieldReferences()) {
+            fields.add(field.getDeclaringClassName() + field.getName() + field.getType());
+        }
+        assertEquals(toStringSet("Ljava/lang/System;outLjava/io/PrintStream;"), fields);
+    }
+
+    static final JavaSource unicode = new JavaSource("U",
+            "public class U {" +
+            "  public int caf\u00e9;" +
+            "  public void \u4e2d\u6587() {}" +
+            "}");
+
+    /**
+     * Tests looking up a defined class by name and decoding non ASCII names.
+     */
+    @Test
+    public void testDefinedClassAndUnicode() throws IOException {
+        DexFile dexFile = javaToDexUtil.getFrom(unicode);
+        assertNull(dexFile.getDefinedClass("LMissing;"));
+        DexClass U = dexFile.getDefinedClass("LU;");
+        assertNotNull(U);
+        assertSame(U, dexFile.getDefinedClasses().get(0));
+        assertEquals("caf\u00e9", U.getFields().get(0).getName());
+        Set<String> methods = new HashSet<String>();
+        for (DexMethod method : U.getMethods()) {
+            methods.add(method.getName());
+        }
+        assertTrue(methods.contains("\u4e2d\u6587"));
+    }
+
     static final JavaSource parameterAnnotation = new JavaSource("A",
             "public class A {" + 
             "  void m(@Deprecated int a) {}" + 
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.FolderBuildInfo;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the time {@link CtsXmlResultReporter} spends handling the test events of a large
+ * deqp package, as reported on the listener thread, and the part of it spent in
+ * {@link TestPackageResult#findTest(TestIdentifier)}.
+ * <p/>
+ * Each test reports a testStarted and a testEnded event, and one in fifty tests also reports a
+ * testFailed event. The checkpoint and journal are disabled so only the handling of the events
+ * is measured.
+ * <p/>
+ * Usage: CtsXmlResultReporterBenchmark [events] [iterations]
+ */
+public class CtsXmlResultReporterBenchmark {
+
+    private static final String PACKAGE_ID = AbiUtils.createId("armeabi-v7a",
+            "com.drawelements.deqp.gles3");
+    private static final String[] GROUPS = {"shaders", "texture", "fbo", "rasterization"};
+    private static final String[] TYPES = {"float", "vec2", "vec3", "vec4", "int", "ivec2",
+            "ivec3", "ivec4", "bool", "mat2"};
+    private static final String[] PRECISIONS = {"lowp", "mediump", "highp"};
+    private static final String[] SHADERS = {"vertex", "fragment"};
+    private static final int CASE_SIZE = TYPES.length * PRECISIONS.length * SHADERS.length;
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        List<TestIdentifier> tests = createTests(events / 2);
+        File buildDir = FileUtil.createTempDir("reporter-benchmark");
+        try {
+            File repoDir = new File(new File(buildDir, "android-cts"), "repository");
+            new File(repoDir, "testcases").mkdirs();
+            new File(repoDir, "plans").mkdirs();
+            FolderBuildInfo build = new FolderBuildInfo("0", "cts", "cts");
+            build.setRootDir(buildDir);
+
+            // the first iterations warm up the JIT
+            int warmup = Math.max(1, iterations / 2);
+            long total = 0;
+            long lookups = 0;
+            for (int i = 0; i < warmup + iterations; i++) {
+                long time = replayEvents(build, tests);
+                long lookupTime = lookupTests(tests);
+                if (i >= warmup) {
+                    total += time;
+                    lookups += lookupTime;
+                }
+            }
+            System.out.println(String.format("%,d events of %,d tests: %,.1f ms per run",
+                    events, tests.size(), total / 1000000.0 / iterations));
+            System.out.println(String.format("%,d findTest calls: %,.1f ms per run",
+                    events, lookups / 1000000.0 / iterations));
+        } finally {
+            FileUtil.recursiveDelete(buildDir);
+        }
+    }
+
+    /**
+     * Create deqp style test identifiers, with a class name of several package segments.
+     */
+    private static List<TestIdentifier> createTests(int count) {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>(count);
+        for (int i = 0; i < count; i++) {
+            String className = String.format("dEQP-GLES3.functional.%s.group%d.case%d",
+                    GROUPS[i % GROUPS.length], i / 1000, i / CASE_SIZE);
+            int variant = i % CASE_SIZE;
+            String testName = String.format("%s_%s_%s", TYPES[variant % TYPES.length],
+                    PRECISIONS[variant / TYPES.length % PRECISIONS.length],
+                    SHADERS[variant / (TYPES.length * PRECISIONS.length)]);
+            tests.add(new TestIdentifier(className, testName));
+        }
+        return tests;
+    }
+
+    /**
+     * @return the time in ns to look up each of the given tests twice, as done for the
+     * testStarted and testEnded events, excluding the time to insert them
+     */
+    private static long lookupTests(List<TestIdentifier> tests) {
+        TestPackageResult pkg = new TestPackageResult();
+        for (TestIdentifier test : tests) {
+            pkg.insertTest(test);
+        }
+        long start = System.nanoTime();
+        for (TestIdentifier test : tests) {
+            if (pkg.findTest(test) == null || pkg.findTest(test) == null) {
+                throw new IllegalStateException("test not found: " + test);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return the time in ns to handle the events of the given tests
+     */
+    private static long replayEvents(FolderBuildInfo build, List<TestIdentifier> tests)
+            throws Exception {
+        CtsXmlResultReporter reporter = new CtsXmlResultReporter();
+        OptionSetter setter = new OptionSetter(reporter);
+        setter.setOptionValue("checkpoint-results", "false");
+        setter.setOptionValue("stream-results", "false");
+        reporter.invocationStarted(build);
+        Map<String, String> emptyMap = Collections.emptyMap();
+
+        long start = System.nanoTime();
+        reporter.testRunStarted(PACKAGE_ID, tests.size());
+        for (int i = 0; i < tests.size(); i++) {
+            TestIdentifier test = tests.get(i);
+            reporter.testStarted(test);
+            if (i % 50 == 0) {
+                reporter.testFailed(test, "java.lang.AssertionError: Fail");
+            }
+            reporter.testEnded(test, emptyMap);
+        }
+        reporter.testRunEnded(0, emptyMap);
+        return System.nanoTime() - start;
+    }
+}
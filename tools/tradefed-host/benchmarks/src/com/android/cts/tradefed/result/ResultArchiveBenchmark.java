@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import org.kxml2.io.KXmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Measures {@link TestResultRepo#getResult(int)} and {@link TestResultRepo#getSummaries()} over
+ * sessions read from their result XML and from their {@link ResultArchive}, as used by derived
+ * plans, continued sessions and 'list results'.
+ * <p/>
+ * Usage: ResultArchiveBenchmark [sessions] [packages per session] [tests per package]
+ */
+public class ResultArchiveBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int packages = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int tests = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        File resultsDir = FileUtil.createTempDir("archive-benchmark");
+        try {
+            System.out.println(String.format("Creating %,d sessions of %,d tests", sessions,
+                    packages * tests));
+            for (int i = 0; i < sessions; i++) {
+                createSession(new File(resultsDir, String.format("session_%05d", i)), packages,
+                        tests);
+            }
+            long xmlBytes = 0;
+            long xml = System.currentTimeMillis();
+            for (File sessionDir : resultsDir.listFiles()) {
+                // parsed directly, since the repo would also write the archive
+                File resultFile = new File(sessionDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
+                xmlBytes += resultFile.length();
+                new TestResults().parse(new BufferedReader(new FileReader(resultFile)));
+            }
+            xml = System.currentTimeMillis() - xml;
+            long convert = timeArchiveResults(resultsDir);
+            long archiveBytes = 0;
+            for (File sessionDir : resultsDir.listFiles()) {
+                archiveBytes += new File(sessionDir, ResultArchive.ARCHIVE_FILE_NAME).length();
+            }
+            long archive = timeGetResults(resultsDir, sessions);
+
+            for (File sessionDir : resultsDir.listFiles()) {
+                new File(sessionDir, TestSummaryFile.TEST_SUMMARY_FILE_NAME).delete();
+            }
+            long summaries = System.currentTimeMillis();
+            new TestResultRepo(resultsDir).getSummaries();
+            summaries = System.currentTimeMillis() - summaries;
+
+            System.out.println(String.format("Size:    XML %,d kB, archive %,d kB",
+                    xmlBytes / 1024, archiveBytes / 1024));
+            System.out.println(String.format("Reading %,d sessions:", sessions));
+            System.out.println(String.format("  XML:       %,d ms", xml));
+            System.out.println(String.format("  archive:   %,d ms", archive));
+            System.out.println(String.format("Converting: %,d ms", convert));
+            System.out.println(String.format("Summaries from archive: %,d ms", summaries));
+        } finally {
+            FileUtil.recursiveDelete(resultsDir);
+        }
+    }
+
+    private static long timeArchiveResults(File resultsDir) {
+        long start = System.currentTimeMillis();
+        new TestResultRepo(resultsDir).archiveResults();
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * @return the time in ms to read all sessions
+     */
+    private static long timeGetResults(File resultsDir, int sessions) {
+        long start = System.currentTimeMillis();
+        TestResultRepo repo = new TestResultRepo(resultsDir);
+        int passed = 0;
+        for (int i = 0; i < sessions; i++) {
+            passed += repo.getResult(i).countTests(CtsTestStatus.PASS);
+        }
+        if (passed == 0) {
+            throw new IllegalStateException("no results read");
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static void createSession(File sessionDir, int packageCount, int testCount)
+            throws IOException {
+        sessionDir.mkdirs();
+        TestResults results = new TestResults();
+        Map<String, String> emptyMap = Collections.emptyMap();
+        for (int p = 0; p < packageCount; p++) {
+            TestPackageResult pkg = results.getOrCreatePackage(
+                    AbiUtils.createId("armeabi-v7a", String.format("android.pkg%d", p)));
+            for (int t = 0; t < testCount; t++) {
+                TestIdentifier test = new TestIdentifier(
+                        String.format("android.pkg%d.cts.Test%d", p, t / 10),
+                        String.format("testCase%d", t));
+                pkg.insertTest(test);
+                if (t % 20 == 0) {
+                    pkg.reportTestFailure(test, CtsTestStatus.FAIL, String.format(
+                            "java.lang.AssertionError: expected %d\n\tat %s.%s", t,
+                            test.getClassName(), test.getTestName()));
+                }
+                pkg.reportTestEnded(test, emptyMap);
+            }
+        }
+
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(
+                new File(sessionDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME)));
+        try {
+            KXmlSerializer serializer = new KXmlSerializer();
+            serializer.setOutput(stream, "UTF-8");
+            serializer.startDocument("UTF-8", false);
+            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            serializer.startTag(CtsXmlResultReporter.ns, CtsXmlResultReporter.RESULT_TAG);
+            serializer.attribute(CtsXmlResultReporter.ns, CtsXmlResultReporter.PLAN_ATTR, "CTS");
+            results.serialize(serializer);
+            serializer.endDocument();
+        } finally {
+            stream.close();
+        }
+    }
+}
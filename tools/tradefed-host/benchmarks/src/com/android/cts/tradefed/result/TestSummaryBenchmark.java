@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import org.kxml2.io.KXmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures {@link TestResultRepo#getSummaries()} over a results directory of synthetic
+ * sessions, as used by 'list results'.
+ * <p/>
+ * Four cases are measured:
+ * <ul>
+ * <li>parse: sessions without a stored summary, parsed from their result XML and backfilled</li>
+ * <li>stored: the same sessions, read from their stored summaries</li>
+ * <li>replay: interrupted sessions, which only have a checkpoint, replayed and backfilled</li>
+ * <li>replay stored: the same interrupted sessions, read from their stored summaries</li>
+ * </ul>
+ * <p/>
+ * Usage: TestSummaryBenchmark [sessions] [packages per session] [tests per package]
+ */
+public class TestSummaryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int packages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int tests = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        File resultsDir = FileUtil.createTempDir("summary-benchmark");
+        try {
+            System.out.println(String.format("Creating %,d sessions of %,d tests", sessions,
+                    packages * tests));
+            for (int i = 0; i < sessions; i++) {
+                createSession(new File(resultsDir, String.format("session_%05d", i)), packages,
+                        tests);
+            }
+            long parse = listResults(resultsDir);
+            long stored = listResults(resultsDir);
+            System.out.println(String.format("'list results' of %,d sessions:", sessions));
+            System.out.println(String.format("  parse:         %,d ms", parse));
+            System.out.println(String.format("  stored:        %,d ms", stored));
+
+            for (File sessionDir : resultsDir.listFiles()) {
+                new File(sessionDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME).delete();
+                new File(sessionDir, TestSummaryFile.TEST_SUMMARY_FILE_NAME).delete();
+            }
+            long replay = listResults(resultsDir);
+            long replayStored = listResults(resultsDir);
+            System.out.println(String.format("  replay:        %,d ms", replay));
+            System.out.println(String.format("  replay stored: %,d ms", replayStored));
+        } finally {
+            FileUtil.recursiveDelete(resultsDir);
+        }
+    }
+
+    /**
+     * @return the time in ms to read the summaries of all sessions
+     */
+    private static long listResults(File resultsDir) {
+        long start = System.currentTimeMillis();
+        int passed = 0;
+        for (ITestSummary summary : new TestResultRepo(resultsDir).getSummaries()) {
+            passed += summary.getNumPassed();
+        }
+        if (passed == 0) {
+            throw new IllegalStateException("no results read");
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static void createSession(File sessionDir, int packageCount, int testCount)
+            throws IOException {
+        sessionDir.mkdirs();
+        TestResults results = new TestResults();
+        Map<String, String> deviceInfo = new HashMap<String, String>();
+        StringBuilder features = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            features.append(String.format("android.hardware.feature%d:sdk:true;", i));
+        }
+        deviceInfo.put("features", features.toString());
+        results.populateDeviceInfoMetrics(deviceInfo);
+        ResultCheckpoint checkpoint = ResultCheckpoint.open(sessionDir, Integer.MAX_VALUE,
+                Long.MAX_VALUE);
+        checkpoint.startSession("CTS", "start", "serial");
+        Map<String, String> emptyMap = Collections.emptyMap();
+        for (int p = 0; p < packageCount; p++) {
+            TestPackageResult pkg = results.getOrCreatePackage(
+                    AbiUtils.createId("armeabi-v7a", String.format("android.pkg%d", p)));
+            for (int t = 0; t < testCount; t++) {
+                TestIdentifier test = new TestIdentifier(
+                        String.format("android.pkg%d.cts.Test%d", p, t / 10),
+                        String.format("testCase%d", t));
+                pkg.insertTest(test);
+                if (t % 20 == 0) {
+                    pkg.reportTestFailure(test, CtsTestStatus.FAIL, "java.lang.AssertionError");
+                }
+                pkg.reportTestEnded(test, emptyMap);
+                checkpoint.testEnded(pkg.getId(), test, pkg.findTest(test));
+            }
+        }
+        checkpoint.endSession();
+        checkpoint.close();
+
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(
+                new File(sessionDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME)));
+        try {
+            KXmlSerializer serializer = new KXmlSerializer();
+            serializer.setOutput(stream, "UTF-8");
+            serializer.startDocument("UTF-8", false);
+            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            serializer.startTag(CtsXmlResultReporter.ns, CtsXmlResultReporter.RESULT_TAG);
+            serializer.attribute(CtsXmlResultReporter.ns, CtsXmlResultReporter.PLAN_ATTR, "CTS");
+            results.serialize(serializer);
+            serializer.endDocument();
+        } finally {
+            stream.close();
+        }
+    }
+}
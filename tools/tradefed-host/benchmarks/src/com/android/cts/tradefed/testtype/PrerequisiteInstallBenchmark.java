@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the time to set up and tear down the prerequisite APKs of a run on a
+ * {@link FakeTestDevice}.
+ * <p/>
+ * Runs {@link PrerequisiteApkInstaller} with a single thread and uninstalls the APKs one call at
+ * a time, as was done before it, then with concurrent installs and one uninstall call, and then
+ * resumes a run that left the APKs installed, which only checks their sha1sum on the device. The
+ * numbers only reflect the timing model of the fake device, not a real one.
+ * <p/>
+ * Usage: PrerequisiteInstallBenchmark [apks] [round trip ms] [transfer ms] [package manager ms]
+ */
+public class PrerequisiteInstallBenchmark {
+
+    private static final String ABI = "armeabi-v7a";
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int numApks = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        long roundTripMs = args.length > 1 ? Long.parseLong(args[1]) : 100;
+        long transferMs = args.length > 2 ? Long.parseLong(args[2]) : 300;
+        long packageManagerMs = args.length > 3 ? Long.parseLong(args[3]) : 200;
+        File testCasesDir = FileUtil.createTempDir("testcases");
+        try {
+            Map<String, String> apks = new LinkedHashMap<>();
+            for (int i = 0; i < numApks; i++) {
+                String packageName = "android.prerequisite" + i;
+                FileUtil.writeToFile(packageName, new File(testCasesDir, packageName + ".apk"));
+                apks.put(packageName + ".apk", packageName);
+            }
+            System.out.println(String.format("%d apks, %d ms round trip, %d ms transfer, " +
+                    "%d ms package manager", numApks, roundTripMs, transferMs,
+                    packageManagerMs));
+
+            FakeTestDevice fakeDevice = new FakeTestDevice();
+            fakeDevice.setTiming(roundTripMs, transferMs, packageManagerMs);
+            ITestDevice device = fakeDevice.getDevice();
+            PrerequisiteApkInstaller serialInstaller =
+                    new PrerequisiteApkInstaller(device, testCasesDir, 1);
+            long start = System.currentTimeMillis();
+            serialInstaller.install(apks, ABI);
+            long installTime = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            for (String packageName : apks.values()) {
+                device.uninstallPackage(packageName);
+            }
+            long uninstallTime = System.currentTimeMillis() - start;
+            print("serial install, uninstall each", installTime, uninstallTime);
+
+            PrerequisiteApkInstaller installer =
+                    new PrerequisiteApkInstaller(device, testCasesDir, THREADS);
+            start = System.currentTimeMillis();
+            installer.install(apks, ABI);
+            installTime = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            installer.uninstall(apks.values());
+            uninstallTime = System.currentTimeMillis() - start;
+            print(String.format("%d threads, batched uninstall", THREADS), installTime,
+                    uninstallTime);
+
+            installer.install(apks, ABI);
+            start = System.currentTimeMillis();
+            installer.install(apks, ABI);
+            installTime = System.currentTimeMillis() - start;
+            print("resumed, sha1sum matches", installTime, 0);
+        } finally {
+            DigestCache.clearInstances();
+            FileUtil.recursiveDelete(testCasesDir);
+        }
+    }
+
+    private static void print(String name, long installTime, long uninstallTime) {
+        System.out.println(String.format("%-32s install %,6d ms, uninstall %,6d ms, total %,6d ms",
+                name, installTime, uninstallTime, installTime + uninstallTime));
+    }
+}
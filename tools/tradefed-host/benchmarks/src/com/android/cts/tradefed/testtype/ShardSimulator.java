@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.result.PackageDurationHistory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays recorded package timings to compare the makespan of the sharding strategies.
+ * <p/>
+ * The newest session in the results directory provides the actual package durations. The
+ * sessions before it provide the estimates the balanced strategy would have used.
+ * <p/>
+ * Usage: ShardSimulator &lt;results dir&gt; &lt;shards&gt; [history sessions]
+ */
+public class ShardSimulator {
+
+    private final Map<String, Long> mActualDurations;
+    private final Map<String, Long> mEstimatedCosts;
+
+    /**
+     * @param actual the recorded durations to replay
+     * @param history the history used to estimate package costs
+     */
+    public ShardSimulator(PackageDurationHistory actual, PackageDurationHistory history) {
+        List<String> ids = new ArrayList<String>(actual.getPackageIds());
+        Collections.sort(ids);
+        mActualDurations = new LinkedHashMap<String, Long>();
+        Map<String, Integer> testCounts = new LinkedHashMap<String, Integer>();
+        for (String id : ids) {
+            mActualDurations.put(id, actual.getDuration(id));
+            testCounts.put(id, actual.getTestCount(id));
+        }
+        mEstimatedCosts = ShardBalancer.estimateCosts(testCounts, history);
+    }
+
+    /**
+     * @return the makespan in ms of the legacy round robin assignment
+     */
+    public long getRoundRobinMakespan(int totalShards) {
+        List<String> ids = new ArrayList<String>(mActualDurations.keySet());
+        return ShardBalancer.getMakespan(ShardBalancer.assignRoundRobin(ids, totalShards),
+                mActualDurations);
+    }
+
+    /**
+     * @return the makespan in ms of the static cost-balanced assignment, without work stealing
+     */
+    public long getBalancedMakespan(int totalShards) {
+        return ShardBalancer.getMakespan(ShardBalancer.assign(mEstimatedCosts, totalShards),
+                mActualDurations);
+    }
+
+    /**
+     * @return the makespan in ms of the cost-balanced assignment when idle shards steal packages
+     * through a {@link TestPackageQueue}
+     */
+    public long getWorkStealingMakespan(int totalShards) {
+        TestPackageQueue queue = new TestPackageQueue(totalShards);
+        queue.addPackages(0, mEstimatedCosts);
+        long[] shardTimes = new long[totalShards];
+        boolean[] drained = new boolean[totalShards];
+        int activeShards = totalShards;
+        while (activeShards > 0) {
+            // the shard which becomes idle first asks for the next package
+            int next = -1;
+            for (int i = 0; i < totalShards; i++) {
+                if (!drained[i] && (next < 0 || shardTimes[i] < shardTimes[next])) {
+                    next = i;
+                }
+            }
+            String id = queue.poll(next, mEstimatedCosts.keySet());
+            if (id == null) {
+                drained[next] = true;
+                activeShards--;
+            } else {
+                shardTimes[next] += mActualDurations.get(id);
+            }
+        }
+        long makespan = 0;
+        for (long time : shardTimes) {
+            makespan = Math.max(makespan, time);
+        }
+        return makespan;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: ShardSimulator <results dir> <shards> [history sessions]");
+            System.exit(1);
+        }
+        File resultsDir = new File(args[0]);
+        int totalShards = Integer.parseInt(args[1]);
+        int historySessions = args.length > 2 ? Integer.parseInt(args[2]) :
+                CtsTest.DEFAULT_SHARD_HISTORY_SESSIONS;
+        PackageDurationHistory actual = PackageDurationHistory.load(resultsDir, 0, 1);
+        if (actual.isEmpty()) {
+            System.err.println("No recorded timings found in " + resultsDir);
+            System.exit(1);
+        }
+        PackageDurationHistory history =
+                PackageDurationHistory.load(resultsDir, 1, historySessions);
+        ShardSimulator simulator = new ShardSimulator(actual, history);
+        long roundRobin = simulator.getRoundRobinMakespan(totalShards);
+        long balanced = simulator.getBalancedMakespan(totalShards);
+        long stealing = simulator.getWorkStealingMakespan(totalShards);
+        System.out.println(String.format("Makespan over %d shards:", totalShards));
+        System.out.println(String.format("  round robin:          %,d s", roundRobin / 1000));
+        System.out.println(String.format("  balanced:             %,d s (%.1f%%)",
+                balanced / 1000, getImprovement(roundRobin, balanced)));
+        System.out.println(String.format("  balanced + stealing:  %,d s (%.1f%%)",
+                stealing / 1000, getImprovement(roundRobin, stealing)));
+    }
+
+    private static double getImprovement(long baseline, long value) {
+        return baseline == 0 ? 0 : 100.0 * (baseline - value) / baseline;
+    }
+}
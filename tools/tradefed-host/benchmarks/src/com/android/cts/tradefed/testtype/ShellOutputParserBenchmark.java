@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Measures the throughput of the gtest and wrapped gtest parsers replaying shell output, fed in
+ * chunks like the device connection delivers it. The throughput of
+ * {@link MultiLineReceiver} only splitting and decoding the same output is given for comparison.
+ * <p/>
+ * Usage: ShellOutputParserBenchmark [tests | captured gtest output file] [iterations]
+ */
+public class ShellOutputParserBenchmark {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /** A listener that ignores all events */
+    private static class NullListener implements ITestRunListener {
+        int mFailures = 0;
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {}
+        @Override
+        public void testStarted(TestIdentifier test) {}
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+            mFailures++;
+        }
+        @Override
+        public void testAssumptionFailure(TestIdentifier test, String trace) {}
+        @Override
+        public void testIgnored(TestIdentifier test) {}
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {}
+        @Override
+        public void testRunFailed(String errorMessage) {}
+        @Override
+        public void testRunStopped(long elapsedTime) {}
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {}
+    }
+
+    public static void main(String[] args) throws Exception {
+        String gtest;
+        if (args.length > 0 && new File(args[0]).isFile()) {
+            gtest = FileUtil.readStringFromFile(new File(args[0]));
+        } else {
+            gtest = createGTestOutput(args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+        }
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        byte[] gtestOutput = gtest.getBytes(ByteLineReceiver.UTF_8);
+        byte[] wrappedOutput = wrap(gtest).getBytes(ByteLineReceiver.UTF_8);
+
+        System.out.println(String.format("gtest output %,d kB, wrapped %,d kB",
+                gtestOutput.length / 1024, wrappedOutput.length / 1024));
+        for (int i = 0; i < iterations; i++) {
+            NullListener listener = new NullListener();
+            report("MultiLineReceiver", gtestOutput, createLineSplitter());
+            report("GeeTestResultParser", gtestOutput,
+                    new GeeTestResultParser("benchmark", listener));
+            report("WrappedGTestResultParser", wrappedOutput,
+                    new WrappedGTestResultParser("benchmark", listener));
+        }
+    }
+
+    private static void report(String name, byte[] output, IShellOutputReceiver receiver) {
+        long start = System.nanoTime();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        for (int i = 0; i < output.length; i += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, output.length - i);
+            System.arraycopy(output, i, chunk, 0, length);
+            receiver.addOutput(chunk, 0, length);
+        }
+        receiver.flush();
+        long elapsedNs = Math.max(1, System.nanoTime() - start);
+        System.out.println(String.format("%-26s %,8d ms %,10.1f MB/s", name,
+                elapsedNs / 1000000, output.length * 1000.0 / elapsedNs));
+    }
+
+    /**
+     * @return a receiver that only splits and decodes the lines of output
+     */
+    private static IShellOutputReceiver createLineSplitter() {
+        return new MultiLineReceiver() {
+            private int mLines = 0;
+
+            @Override
+            public void processNewLines(String[] lines) {
+                mLines += lines.length;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the output of a gtest executable running the given number of tests, one in
+     * a hundred of which fails
+     */
+    private static String createGTestOutput(int tests) {
+        StringBuilder output = new StringBuilder();
+        output.append(String.format("[==========] Running %d tests from 1 test case.\r\n",
+                tests));
+        output.append(String.format("[----------] %d tests from Suite\r\n", tests));
+        for (int i = 0; i < tests; i++) {
+            output.append(String.format("[ RUN      ] Suite.test%d\r\n", i));
+            if (i % 100 == 0) {
+                output.append("frameworks/native/tests/suite_test.cpp:42: Failure\r\n");
+                output.append("Value of: actual\r\n  Actual: 1\r\nExpected: 2\r\n");
+                output.append(String.format("[  FAILED  ] Suite.test%d (%d ms)\r\n", i, i % 7));
+            } else {
+                output.append(String.format("[       OK ] Suite.test%d (%d ms)\r\n", i, i % 7));
+            }
+        }
+        output.append(String.format("[----------] %d tests from Suite (1000 ms total)\r\n",
+                tests));
+        output.append("[==========] 1 test case ran. (1000 ms total)\r\n");
+        return output.toString();
+    }
+
+    /**
+     * @return the given gtest output as reported through instrumentation status
+     */
+    private static String wrap(String gtest) {
+        StringBuilder output = new StringBuilder();
+        for (String line : gtest.split("\r\n")) {
+            output.append("INSTRUMENTATION_STATUS: gtest=").append(line).append("\r\n");
+            output.append("INSTRUMENTATION_STATUS_CODE: 1\r\n");
+        }
+        output.append("INSTRUMENTATION_CODE: -1\r\n");
+        return output.toString();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.build.CtsBuildHelper;
+
+import java.io.File;
+
+/**
+ * Measures the work done by the package setup of {@link CtsTest}: loading the test case
+ * repository, creating the test of each package and waiting for the package digests.
+ * <p/>
+ * Three cases are measured:
+ * <ul>
+ * <li>cold: nothing cached, as on the first run of a new CTS install</li>
+ * <li>warm: a new process with the persisted digest index</li>
+ * <li>hot: another shard in the same process</li>
+ * </ul>
+ * Note the cold case still benefits from the OS file cache after the first iteration.
+ * <p/>
+ * Usage: TestPackageSetupBenchmark &lt;cts root dir&gt; [iterations]
+ */
+public class TestPackageSetupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TestPackageSetupBenchmark <cts root dir> [iterations]");
+            System.exit(1);
+        }
+        CtsBuildHelper ctsBuild = new CtsBuildHelper(new File(args[0]));
+        ctsBuild.validateStructure();
+        File testCaseDir = ctsBuild.getTestCasesDir();
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        long cold = 0;
+        long warm = 0;
+        long hot = 0;
+        for (int i = 0; i < iterations; i++) {
+            new File(testCaseDir, DigestCache.INDEX_FILE_NAME).delete();
+            DigestCache.clearInstances();
+            TestPackageRepo.clearCache();
+            cold += setupAll(testCaseDir);
+
+            DigestCache.clearInstances();
+            TestPackageRepo.clearCache();
+            warm += setupAll(testCaseDir);
+
+            hot += setupAll(testCaseDir);
+        }
+        System.out.println(String.format("Package setup over %d iterations:", iterations));
+        System.out.println(String.format("  cold: %,d ms", cold / iterations));
+        System.out.println(String.format("  warm: %,d ms", warm / iterations));
+        System.out.println(String.format("  hot:  %,d ms", hot / iterations));
+    }
+
+    /**
+     * @return the time in ms to set up all packages in the repository
+     */
+    private static long setupAll(File testCaseDir) {
+        long start = System.currentTimeMillis();
+        ITestPackageRepo repo = new TestPackageRepo(testCaseDir, false);
+        // like CtsTest, create all tests before the first digest is needed
+        for (String id : repo.getPackageIds()) {
+            repo.getTestPackage(id).createTest(testCaseDir);
+        }
+        int digests = 0;
+        for (String id : repo.getPackageIds()) {
+            if (repo.getTestPackage(id).getDigest() != null) {
+                digests++;
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println(String.format("  %,d packages, %,d digests in %,d ms",
+                repo.getPackageIds().size(), digests, elapsed));
+        return elapsed;
+    }
+}
@@ -123,6 +123,22 @@ public class CtsBuildHelper {
         return new File(getRepositoryDir(), "results");
     }
 
+    /**
+     * @return a {@link File} representing the directory to store the results of packages that
+     * passed in incremental sessions.
+     */
+    public File getResultCacheDir() {
+        return new File(getRepositoryDir(), "result-cache");
+    }
+
+    /**
+     * @return a {@link File} representing the file that records which test packages leave the
+     * device degraded.
+     */
+    public File getRebootHistoryFile() {
+        return new File(getRepositoryDir(), "reboot-history.properties");
+    }
+
     /**
      * @return a {@link File} representing the directory to store result logs.
      */
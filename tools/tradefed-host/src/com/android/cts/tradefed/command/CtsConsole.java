@@ -17,9 +17,12 @@ package com.android.cts.tradefed.command;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.tradefed.build.CtsBuildProvider;
+import com.android.cts.tradefed.result.HistoryQuery;
 import com.android.cts.tradefed.result.ITestResultRepo;
 import com.android.cts.tradefed.result.ITestSummary;
 import com.android.cts.tradefed.result.PlanCreator;
+import com.android.cts.tradefed.result.ResultHistory;
+import com.android.cts.tradefed.result.TestHistory;
 import com.android.cts.tradefed.result.TestResultRepo;
 import com.android.cts.tradefed.testtype.ITestPackageRepo;
 import com.android.cts.tradefed.testtype.TestPackageRepo;
@@ -47,6 +50,8 @@ import java.util.Set;
 public class CtsConsole extends Console {
 
     protected static final String ADD_PATTERN = "a(?:dd)?";
+    protected static final String ARCHIVE_PATTERN = "archive";
+    protected static final String HISTORY_PATTERN = "history";
 
     private CtsBuildHelper mCtsBuild = null;
 
@@ -126,6 +131,41 @@ public class CtsConsole extends Console {
                 "%s help:" + LINE_SEPARATOR +
                 "\tderivedplan      Add a derived plan" + LINE_SEPARATOR,
                 ADD_PATTERN));
+
+        trie.put(new Runnable() {
+            @Override
+            public void run() {
+                CtsBuildHelper ctsBuild = getCtsBuild();
+                if (ctsBuild != null) {
+                    archiveResults(ctsBuild);
+                }
+            }
+        }, ARCHIVE_PATTERN, "r(?:esults)?");
+        commandHelp.put(ARCHIVE_PATTERN, String.format(
+                "%s help:" + LINE_SEPARATOR +
+                "\tr[esults]\tArchive CTS results in the compact binary format" +
+                LINE_SEPARATOR, ARCHIVE_PATTERN));
+
+        ArgRunnable<CaptureList> historyCommand = new ArgRunnable<CaptureList>() {
+            @Override
+            public void run(CaptureList args) {
+                // Skip 1 token to get past historyPattern
+                String[] flatArgs = new String[args.size() - 1];
+                for (int i = 1; i < args.size(); i++) {
+                    flatArgs[i - 1] = args.get(i).get(0);
+                }
+                CtsBuildHelper ctsBuild = getCtsBuild();
+                if (ctsBuild != null) {
+                    showHistory(ctsBuild, flatArgs);
+                }
+            }
+        };
+        trie.put(historyCommand, HISTORY_PATTERN, null);
+        commandHelp.put(HISTORY_PATTERN, String.format(
+                "%s help:" + LINE_SEPARATOR +
+                "\t--query flaky|flakier|slower|slowest|regressed [--since-build build]" +
+                LINE_SEPARATOR + "\t\t\tList tests by their results across sessions" +
+                LINE_SEPARATOR, HISTORY_PATTERN));
     }
 
     @Override
@@ -174,6 +214,17 @@ public class CtsConsole extends Console {
         helpBuilder.append("  add derivedplan --plan plane_name --session/-s session_id -r ");
         helpBuilder.append("[pass/fail/notExecuted/timeout]: derive a plan from the given ");
         helpBuilder.append("session\n");
+        helpBuilder.append("  add derivedplan --plan plan_name --query ");
+        helpBuilder.append("[flaky/flakier/slower/slowest/regressed] [--since-build build]: ");
+        helpBuilder.append("derive a plan from the tests selected across all archived sessions\n");
+        helpBuilder.append("Archive:\n");
+        helpBuilder.append("  archive r/results: store all completed CTS results in the compact ");
+        helpBuilder.append("binary format, which is faster to read than the XML\n");
+        helpBuilder.append("History:\n");
+        helpBuilder.append("  history --query [flaky/flakier/slower/slowest/regressed] ");
+        helpBuilder.append("[--since-build build] [--top n]: list the tests that are flaky, ");
+        helpBuilder.append("flakier or slower since a build, slowest or regressed, across all ");
+        helpBuilder.append("archived sessions\n");
         helpBuilder.append("Dump:\n");
         helpBuilder.append("  d/dump l/logs: dump the tradefed logs for all running invocations\n");
         helpBuilder.append("Options:\n");
@@ -218,15 +269,64 @@ public class CtsConsole extends Console {
         tableFormatter.displayTable(table, new PrintWriter(System.out, true));
     }
 
+    private void archiveResults(CtsBuildHelper ctsBuild) {
+        TestResultRepo testResultRepo = new TestResultRepo(ctsBuild.getResultsDir());
+        printLine(String.format("Archived %d results", testResultRepo.archiveResults()));
+    }
+
+    private void showHistory(CtsBuildHelper ctsBuild, String[] flatArgs) {
+        HistoryQuery query = new HistoryQuery();
+        ResultHistory history;
+        List<TestHistory> tests;
+        try {
+            ArgsOptionParser optionParser = new ArgsOptionParser(query);
+            optionParser.parse(Arrays.asList(flatArgs));
+            query.checkFields();
+            history = ResultHistory.load(ctsBuild.getResultsDir(), query.getSinceBuild(),
+                    query.getThreads());
+            tests = query.select(history);
+        } catch (ConfigurationException e) {
+            printLine("Error: " + e.getMessage());
+            printLine(ArgsOptionParser.getOptionHelp(false, query));
+            return;
+        }
+        TableFormatter tableFormatter = new TableFormatter();
+        List<List<String>> table = new ArrayList<List<String>>();
+        table.add(Arrays.asList("Package", "Test", "Runs", "Pass rate", "Flips", "Mean ms",
+                "Trend ms", "Failing since"));
+        for (TestHistory test : tests) {
+            TestHistory.Stats stats = test.getRecent();
+            table.add(Arrays.asList(test.getPackageId(), test.getTest().toString(),
+                    Integer.toString(stats.getRuns()),
+                    String.format("%.2f", stats.getPassRate()),
+                    Integer.toString(stats.getFlips()),
+                    Long.toString(stats.getMeanDurationMs()),
+                    String.format("%+.0f", test.getDurationTrendMs()),
+                    test.getFailingSinceBuild() != null ? test.getFailingSinceBuild() : ""));
+        }
+        tableFormatter.displayTable(table, new PrintWriter(System.out, true));
+        printLine(String.format("%d tests from %d sessions", tests.size(),
+                history.getSessionCount()));
+        if (history.getSkippedSessionCount() > 0) {
+            printLine(String.format("Skipped %d sessions without a result archive. Run " +
+                    "'archive results' to include them", history.getSkippedSessionCount()));
+        }
+    }
+
     private void addDerivedPlan(CtsBuildHelper ctsBuild, Set<String> abis, String[] flatArgs) {
         PlanCreator creator = new PlanCreator();
+        HistoryQuery query = new HistoryQuery();
         try {
-            ArgsOptionParser optionParser = new ArgsOptionParser(creator);
+            ArgsOptionParser optionParser = new ArgsOptionParser(creator, query);
             optionParser.parse(Arrays.asList(flatArgs));
+            if (query.isSet()) {
+                creator.setHistoryQuery(query);
+            }
             creator.createAndSerializeDerivedPlan(ctsBuild, abis);
         } catch (ConfigurationException e) {
             printLine("Error: " + e.getMessage());
             printLine(ArgsOptionParser.getOptionHelp(false, creator));
+            printLine(ArgsOptionParser.getOptionHelp(false, query));
         }
     }
 
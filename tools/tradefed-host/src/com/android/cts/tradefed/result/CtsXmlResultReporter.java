@@ -38,22 +38,39 @@ import com.android.tradefed.result.LogFileSaver;
 import com.android.tradefed.result.TestSummary;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import org.kxml2.io.KXmlSerializer;
 
+import android.tests.getinfo.DeviceInfoConstants;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Writes results to an XML files in the CTS format.
  * <p/>
- * Collects all test info in memory, then dumps to file when invocation is complete.
+ * Collects test info in memory, then dumps to file when invocation is complete. Unless disabled,
+ * the results of each package are moved to a {@link ResultJournal} in the report directory once
+ * the next package starts, so memory use is bounded by the largest package rather than the
+ * whole session.
  * <p/>
  * Outputs xml in format governed by the cts_result.xsd
  */
@@ -62,6 +79,11 @@ public class CtsXmlResultReporter
 
     private static final String LOG_TAG = "CtsXmlResultReporter";
 
+    /** files of the result directory that are only used by the host, and are not published */
+    private static final Set<String> ZIP_EXCLUDED_FILES = new HashSet<String>(Arrays.asList(
+            LiveMetricsExporter.METRICS_FILE_NAME, ResultCheckpoint.CHECKPOINT_FILE_NAME,
+            ResultArchive.ARCHIVE_FILE_NAME, TestSummaryFile.TEST_SUMMARY_FILE_NAME));
+
     static final String TEST_RESULT_FILE_NAME = "testResult.xml";
     static final String CTS_RESULT_FILE_VERSION = "4.4";
     private static final String[] CTS_RESULT_RESOURCES = {"cts_result.xsl", "cts_result.css",
@@ -74,6 +96,9 @@ public class CtsXmlResultReporter
     static final String PLAN_ATTR = "testPlan";
     static final String STARTTIME_ATTR = "starttime";
 
+    /** the name of the directory in the report dir that holds the journaled package results */
+    static final String JOURNAL_DIR_NAME = "journal";
+
     @Option(name = "quiet-output", description = "Mute display of test results.")
     private boolean mQuietOutput = false;
 
@@ -91,19 +116,70 @@ public class CtsXmlResultReporter
     @Option(name = CtsTest.CONTINUE_OPTION, description = "the test result session to continue.")
     private Integer mContinueSessionId = null;
 
+    // listen in on the incremental option provided to CtsTest
+    @Option(name = CtsTest.INCREMENTAL_OPTION, description = "Store the results of packages " +
+            "that passed completely, so later incremental sessions can skip them.")
+    private boolean mIncremental = false;
+
     @Option(name = "result-server", description = "Server to publish test results.")
     private String mResultServer;
 
     @Option(name = "include-test-log-tags", description = "Include test log tags in XML report.")
     private boolean mIncludeTestLogTags = false;
 
+    @Option(name = "stream-results", description = "Write the results of each package to disk " +
+            "once it completes, instead of keeping the whole session in memory.")
+    private boolean mStreamResults = true;
+
+    @Option(name = "checkpoint-results", description = "Append each test result to a " +
+            "checkpoint in the result directory, so the session can be continued even if the " +
+            "host dies before the result XML is written.")
+    private boolean mCheckpointResults = true;
+
+    @Option(name = "checkpoint-sync-tests", description = "The maximum number of test " +
+            "results written to the checkpoint between syncs to disk.")
+    private int mCheckpointSyncTests = 100;
+
+    @Option(name = "checkpoint-sync-interval-ms", description = "The maximum time in ms " +
+            "between syncs of the checkpoint to disk.")
+    private long mCheckpointSyncIntervalMs = 5 * 1000;
+
+    @Option(name = "live-metrics", description = "Export test throughput and latency metrics " +
+            "to the result directory while the session runs. The exported file is not " +
+            "included in the result zip.")
+    private boolean mLiveMetrics = false;
+
+    @Option(name = "metrics-export-interval-ms", description = "The time in ms between " +
+            "exports of the live metrics.")
+    private long mMetricsExportIntervalMs = 10 * 1000;
+
+    @Option(name = "live-metrics-port", description = "The local port to serve the live " +
+            "metrics on over HTTP. 0 to not serve them.")
+    private int mLiveMetricsPort = 0;
+
     protected IBuildInfo mBuildInfo;
     private String mStartTime;
     private String mDeviceSerial;
     private TestResults mResults = new TestResults();
     private TestPackageResult mCurrentPkgResult = null;
-    private Test mCurrentTest = null;
+    private ResultJournal mJournal = null;
+    private ResultCheckpoint mCheckpoint = null;
+    /** the tests started in the current run, recorded in the checkpoint when the run ends */
+    private Set<TestIdentifier> mCurrentRunTests = new LinkedHashSet<TestIdentifier>();
+    private TestIdentifier mCurrentTest = null;
+    // failed tests of the current package by the "<class>_<method>" suffix of the names their
+    // failure logs are saved with, since the logs may only be captured after later tests started
+    private Map<String, TestIdentifier> mFailedTests = new HashMap<String, TestIdentifier>();
     private boolean mIsDeviceInfoRun = false;
+    private PassingResultCache mResultCache = null;
+    private String mBuildFingerprint = null;
+    /** map of package id to the key its results are cached with in incremental sessions */
+    private Map<String, String> mResultCacheKeys = new HashMap<String, String>();
+    /** the reboot count and time last reported by this invocation */
+    private int mInvocationRebootCount = 0;
+    private long mInvocationRebootTimeMs = 0;
+    private LiveMetrics mMetrics = null;
+    private LiveMetricsExporter mMetricsExporter = null;
     private ResultReporter mReporter;
     private File mLogDir;
     private String mSuiteName;
@@ -113,6 +189,21 @@ public class CtsXmlResultReporter
         mReportDir = reportDir;
     }
 
+    /** Set whether to move finished package results out of memory. */
+    public void setStreamResults(boolean streamResults) {
+        mStreamResults = streamResults;
+    }
+
+    /** Set whether to store the results of passing packages for incremental sessions. */
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
+    /** Set whether to export live metrics to the result directory. */
+    public void setLiveMetrics(boolean liveMetrics) {
+        mLiveMetrics = liveMetrics;
+    }
+
     /** Set whether to include TestLog tags in the XML reports. */
     public void setIncludeTestLogTags(boolean include) {
         mIncludeTestLogTags = include;
@@ -143,6 +234,8 @@ public class CtsXmlResultReporter
             mPlanName = resultRepo.getSummaries().get(mContinueSessionId).getTestPlan();
             mStartTime = resultRepo.getSummaries().get(mContinueSessionId).getStartTime();
             mReportDir = resultRepo.getReportDir(mContinueSessionId);
+            // the archive is written again once the continued session completes
+            ResultArchive.delete(mReportDir);
         } else {
             if (mReportDir == null) {
                 mReportDir = ctsBuildHelper.getResultsDir();
@@ -152,6 +245,22 @@ public class CtsXmlResultReporter
             mStartTime = getTimestamp();
             logResult("Created result dir %s", mReportDir.getName());
         }
+        // the checkpoint must be created first, since it may need to write out all results
+        if (mCheckpointResults) {
+            createCheckpoint();
+        }
+        if (mStreamResults) {
+            createJournal();
+        }
+        if (mIncremental) {
+            mResultCache = new PassingResultCache(ctsBuildHelper.getResultCacheDir());
+        }
+        // the metrics also record the timing profiles of the packages, so they are always kept
+        mMetrics = new LiveMetrics(System.currentTimeMillis());
+        if (mLiveMetrics) {
+            mMetricsExporter = new LiveMetricsExporter(mMetrics, mReportDir);
+            mMetricsExporter.start(mMetricsExportIntervalMs, mLiveMetricsPort);
+        }
         mSuiteName = ctsBuildHelper.getSuiteName();
         mReporter = new ResultReporter(mResultServer, mSuiteName);
 
@@ -162,6 +271,47 @@ public class CtsXmlResultReporter
         mLogDir.mkdirs();
     }
 
+    /**
+     * Open the {@link ResultCheckpoint} of this session and record the start of the invocation.
+     * Logs an error and continues without checkpointing if it cannot be opened.
+     */
+    private void createCheckpoint() {
+        try {
+            if (mContinueSessionId != null && !ResultCheckpoint.exists(mReportDir)) {
+                // session predates checkpointing, start from the results read from its XML
+                ResultCheckpoint.writeSnapshot(mReportDir, mResults, mPlanName, mStartTime,
+                        mDeviceSerial);
+            }
+            mCheckpoint = ResultCheckpoint.open(mReportDir, mCheckpointSyncTests,
+                    mCheckpointSyncIntervalMs);
+            mCheckpoint.startSession(mPlanName, mStartTime, mDeviceSerial);
+        } catch (IOException e) {
+            CLog.e("Failed to create result checkpoint in %s", mReportDir.getAbsolutePath());
+            CLog.e(e);
+            mCheckpoint = null;
+        }
+    }
+
+    /**
+     * Create the {@link ResultJournal} for this session, and move all results loaded from a
+     * previous session into it. Logs an error and keeps everything in memory if the journal
+     * cannot be created.
+     */
+    private void createJournal() {
+        File journalDir = new File(mReportDir, JOURNAL_DIR_NAME);
+        // leftover from an invocation which did not complete
+        FileUtil.recursiveDelete(journalDir);
+        try {
+            mJournal = new ResultJournal(journalDir);
+            mResults.setJournal(mJournal);
+            mResults.finishAllPackages();
+        } catch (IOException e) {
+            CLog.e("Failed to create result journal, keeping all results in memory");
+            CLog.e(e);
+            mJournal = null;
+        }
+    }
+
     /**
      * Create a unique directory for saving results.
      * <p/>
@@ -230,10 +380,19 @@ public class CtsXmlResultReporter
     @Override
     public void testLogSaved(String dataName, LogDataType dataType, InputStreamSource dataStream,
             LogFile logFile) {
-        if (mIncludeTestLogTags && mCurrentTest != null) {
+        if (mIncludeTestLogTags) {
             TestLog log = TestLog.fromDataName(dataName, logFile.getUrl());
-            if (log != null) {
-                mCurrentTest.addTestLog(log);
+            TestIdentifier testId = mFailedTests.get(
+                    dataName.substring(dataName.indexOf('-') + 1));
+            if (testId == null) {
+                testId = mCurrentTest;
+            }
+            Test test = testId == null ? null : mCurrentPkgResult.findTest(testId);
+            if (log != null && test != null) {
+                test.addTestLog(log);
+                if (mCheckpoint != null) {
+                    mCheckpoint.testLogSaved(mCurrentPkgResult.getId(), testId, log);
+                }
             }
         }
     }
@@ -256,8 +415,22 @@ public class CtsXmlResultReporter
     public void testRunStarted(String id, int numTests) {
         mIsDeviceInfoRun = DeviceInfoCollector.IDS.contains(id);
         if (!mIsDeviceInfoRun) {
+            if (mCurrentPkgResult != null && !mCurrentPkgResult.getId().equals(id)) {
+                // the previous package is complete, unless another slice of it runs later, in
+                // which case it is read back from the journal. Its failure logs have all been
+                // forwarded by now, and a journaled test could not take them anyway.
+                mFailedTests.clear();
+                mResults.finishPackage(mCurrentPkgResult.getId());
+            }
+            // a package split over several shards reports one run per slice, which all merge
+            // into the same package result
             mCurrentPkgResult = mResults.getOrCreatePackage(id);
             mCurrentPkgResult.setDeviceSerial(mDeviceSerial);
+            mCurrentRunTests.clear();
+            if (mMetrics != null) {
+                mMetrics.runStarted(id, mCurrentPkgResult.getTimingProfile(),
+                        System.currentTimeMillis());
+            }
         }
     }
 
@@ -267,7 +440,12 @@ public class CtsXmlResultReporter
     @Override
     public void testStarted(TestIdentifier test) {
         if (!mIsDeviceInfoRun) {
-            mCurrentTest = mCurrentPkgResult.insertTest(test);
+            mCurrentPkgResult.insertTest(test);
+            mCurrentTest = test;
+            mCurrentRunTests.add(test);
+            if (mMetrics != null) {
+                mMetrics.testStarted(test, System.currentTimeMillis());
+            }
         }
     }
 
@@ -278,6 +456,13 @@ public class CtsXmlResultReporter
     public void testFailed(TestIdentifier test, String trace) {
         if (!mIsDeviceInfoRun) {
             mCurrentPkgResult.reportTestFailure(test, CtsTestStatus.FAIL, trace);
+            if (mMetrics != null) {
+                mMetrics.testFailed();
+            }
+            if (mIncludeTestLogTags) {
+                mFailedTests.put(String.format("%s_%s", test.getClassName(),
+                        test.getTestName()), test);
+            }
         }
     }
 
@@ -307,6 +492,13 @@ public class CtsXmlResultReporter
     public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
         if (!mIsDeviceInfoRun) {
             mCurrentPkgResult.reportTestEnded(test, testMetrics);
+            if (mMetrics != null) {
+                mMetrics.testEnded(test, System.currentTimeMillis());
+            }
+            if (mCheckpoint != null) {
+                mCheckpoint.testEnded(mCurrentPkgResult.getId(), test,
+                        mCurrentPkgResult.findTest(test));
+            }
         }
     }
 
@@ -317,8 +509,83 @@ public class CtsXmlResultReporter
     public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
         if (mIsDeviceInfoRun) {
             mResults.populateDeviceInfoMetrics(runMetrics);
+            if (mCheckpoint != null) {
+                mCheckpoint.deviceInfoCollected(runMetrics);
+            }
+            if (runMetrics.containsKey(DeviceInfoConstants.BUILD_FINGERPRINT)) {
+                mBuildFingerprint = runMetrics.get(DeviceInfoConstants.BUILD_FINGERPRINT);
+            }
         } else {
             mCurrentPkgResult.populateMetrics(runMetrics);
+            updateReboots(runMetrics);
+            if (mCheckpoint != null) {
+                mCheckpoint.packageEnded(mCurrentPkgResult, mCurrentRunTests);
+            }
+            if (mResultCache != null) {
+                updateResultCache(runMetrics);
+            }
+            if (mMetrics != null) {
+                mMetrics.runEnded();
+            }
+            mCurrentRunTests.clear();
+        }
+    }
+
+    /**
+     * Add the reboots reported since the last run to the reboots of the session. The metrics
+     * count the reboots of this invocation, while the session may have been continued.
+     */
+    private void updateReboots(Map<String, String> runMetrics) {
+        String count = runMetrics.get(CtsTest.REBOOT_COUNT_METRIC);
+        String timeMs = runMetrics.get(CtsTest.REBOOT_TIME_METRIC);
+        if (count == null || timeMs == null) {
+            return;
+        }
+        try {
+            int newCount = Integer.parseInt(count);
+            long newTimeMs = Long.parseLong(timeMs);
+            if (newCount <= mInvocationRebootCount) {
+                return;
+            }
+            mResults.setReboots(
+                    mResults.getRebootCount() + newCount - mInvocationRebootCount,
+                    mResults.getRebootTimeMs() + newTimeMs - mInvocationRebootTimeMs);
+            mInvocationRebootCount = newCount;
+            mInvocationRebootTimeMs = newTimeMs;
+            if (mCheckpoint != null) {
+                mCheckpoint.rebooted(mResults.getRebootCount(), mResults.getRebootTimeMs());
+            }
+        } catch (NumberFormatException e) {
+            CLog.w("Ignoring corrupt reboot count %s and time %s", count, timeMs);
+        }
+    }
+
+    /**
+     * Store the results of the current package in the {@link PassingResultCache} if all its
+     * tests passed so far, or remove them if any did not.
+     */
+    private void updateResultCache(Map<String, String> runMetrics) {
+        String pkgId = mCurrentPkgResult.getId();
+        String filterHash = runMetrics.get(CtsTest.PACKAGE_FILTER_HASH_METRIC);
+        if (filterHash != null) {
+            // the package details reported before the package runs
+            String key = PassingResultCache.getKey(
+                    runMetrics.get(CtsTest.PACKAGE_DIGEST_METRIC),
+                    runMetrics.get(CtsTest.PACKAGE_ABI_METRIC), mBuildFingerprint, filterHash);
+            if (key != null) {
+                mResultCacheKeys.put(pkgId, key);
+            }
+            return;
+        }
+        String key = mResultCacheKeys.get(pkgId);
+        if (key == null || runMetrics.containsKey(CtsTest.PACKAGE_CACHED_METRIC)) {
+            return;
+        }
+        if (mCurrentPkgResult.countTests(CtsTestStatus.FAIL) == 0 &&
+                mCurrentPkgResult.countTests(CtsTestStatus.NOT_EXECUTED) == 0) {
+            mResultCache.put(key, mCurrentPkgResult.getTestsWithStatus(CtsTestStatus.PASS));
+        } else {
+            mResultCache.remove(key);
         }
     }
 
@@ -332,10 +599,26 @@ public class CtsXmlResultReporter
             CLog.w("Unable to create XML report");
             return;
         }
+        if (mMetricsExporter != null) {
+            mMetricsExporter.stop();
+        }
 
         File reportFile = getResultFile(mReportDir);
-        createXmlResult(reportFile, mStartTime, elapsedTime);
+        boolean created = createXmlResult(reportFile, mStartTime, elapsedTime);
+        if (mCheckpoint != null) {
+            if (created) {
+                mCheckpoint.endSession();
+            }
+            mCheckpoint.close();
+        }
+        if (created) {
+            createSummaryFile(reportFile);
+            createArchive();
+        }
         copyFormattingFiles(mReportDir);
+        if (mJournal != null) {
+            mJournal.delete();
+        }
         zipResults(mReportDir);
 
         try {
@@ -353,10 +636,25 @@ public class CtsXmlResultReporter
         }
     }
 
+    /**
+     * Write the {@link ResultArchive} of the session. Logs and carries on if it fails, since the
+     * results can still be read from the result XML.
+     */
+    private void createArchive() {
+        try {
+            ResultArchive.write(mReportDir, mResults, mPlanName, mStartTime, mDeviceSerial);
+        } catch (IOException e) {
+            CLog.e("Failed to write result archive in %s", mReportDir.getAbsolutePath());
+            CLog.e(e);
+        }
+    }
+
     /**
      * Creates a report file and populates it with the report data from the completed tests.
+     *
+     * @return <code>true</code> if the report was written
      */
-    private void createXmlResult(File reportFile, String startTimestamp, long elapsedTime) {
+    private boolean createXmlResult(File reportFile, String startTimestamp, long elapsedTime) {
         String endTime = getTimestamp();
         OutputStream stream = null;
         try {
@@ -368,7 +666,7 @@ public class CtsXmlResultReporter
                     "http://xmlpull.org/v1/doc/features.html#indent-output", true);
             serializer.processingInstruction("xml-stylesheet type=\"text/xsl\"  " +
                     "href=\"cts_result.xsl\"");
-            serializeResultsDoc(serializer, startTimestamp, endTime);
+            serializeResultsDoc(serializer, stream, startTimestamp, endTime);
             serializer.endDocument();
             String msg = String.format("XML test result file generated at %s. Passed %d, " +
                     "Failed %d, Not Executed %d", mReportDir.getName(),
@@ -377,30 +675,52 @@ public class CtsXmlResultReporter
                     mResults.countTests(CtsTestStatus.NOT_EXECUTED));
             logResult(msg);
             logResult("Time: %s", TimeUtil.formatElapsedTime(elapsedTime));
+            return true;
         } catch (IOException e) {
             Log.e(LOG_TAG, "Failed to generate report data");
+            return false;
         } finally {
             StreamUtil.close(stream);
         }
     }
 
+    /**
+     * Store the summary of the session, so listing results does not need to parse the report.
+     */
+    private void createSummaryFile(File reportFile) {
+        TestSummaryXml summary = new TestSummaryXml(0, mReportDir.getName());
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(reportFile));
+            summary.parse(reader);
+            TestSummaryFile.write(mReportDir, summary);
+        } catch (ParseException e) {
+            CLog.w("Failed to read summary of %s", reportFile.getAbsolutePath());
+        } catch (IOException e) {
+            CLog.w("Failed to write summary of %s", reportFile.getAbsolutePath());
+        } finally {
+            StreamUtil.close(reader);
+        }
+    }
+
     /**
      * Output the results XML.
      *
      * @param serializer the {@link KXmlSerializer} to use
+     * @param stream the {@link OutputStream} the serializer writes to
      * @param startTime the user-friendly starting time of the test invocation
      * @param endTime the user-friendly ending time of the test invocation
      * @throws IOException
      */
-    private void serializeResultsDoc(KXmlSerializer serializer, String startTime, String endTime)
-            throws IOException {
+    private void serializeResultsDoc(KXmlSerializer serializer, OutputStream stream,
+            String startTime, String endTime) throws IOException {
         serializer.startTag(ns, RESULT_TAG);
         serializer.attribute(ns, PLAN_ATTR, mPlanName);
         serializer.attribute(ns, STARTTIME_ATTR, startTime);
         serializer.attribute(ns, "endtime", endTime);
         serializer.attribute(ns, "version", CTS_RESULT_FILE_VERSION);
         serializer.attribute(ns, "suite", mSuiteName);
-        mResults.serialize(serializer);
+        mResults.serialize(serializer, stream);
         // TODO: not sure why, but the serializer doesn't like this statement
         //serializer.endTag(ns, RESULT_TAG);
     }
@@ -440,19 +760,54 @@ public class CtsXmlResultReporter
     }
 
     /**
-     * Zip the contents of the given results directory.
+     * Zip the contents of the given results directory, leaving out the files only used by the
+     * host.
      *
      * @param resultsDir
      */
     private void zipResults(File resultsDir) {
+        ZipOutputStream out = null;
         try {
             // create a file in parent directory, with same name as resultsDir
             File zipResultFile = new File(resultsDir.getParent(), String.format("%s.zip",
                     resultsDir.getName()));
-            FileUtil.createZip(resultsDir, zipResultFile);
+            out = new ZipOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(zipResultFile)));
+            String dirPath = resultsDir.getName() + "/";
+            out.putNextEntry(new ZipEntry(dirPath));
+            out.closeEntry();
+            for (File file : resultsDir.listFiles()) {
+                if (!ZIP_EXCLUDED_FILES.contains(file.getName())) {
+                    addToZip(out, file, dirPath);
+                }
+            }
         } catch (IOException e) {
             Log.w(LOG_TAG, String.format("Failed to create zip for %s", resultsDir.getName()));
+        } finally {
+            StreamUtil.close(out);
+        }
+    }
+
+    private static void addToZip(ZipOutputStream out, File file, String parentPath)
+            throws IOException {
+        if (file.isDirectory()) {
+            String dirPath = parentPath + file.getName() + "/";
+            out.putNextEntry(new ZipEntry(dirPath));
+            out.closeEntry();
+            for (File child : file.listFiles()) {
+                addToZip(out, child, dirPath);
+            }
+            return;
+        }
+        out.putNextEntry(new ZipEntry(parentPath + file.getName()));
+        InputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            StreamUtil.copyStreams(input, out);
+        } finally {
+            StreamUtil.close(input);
         }
+        out.closeEntry();
     }
 
     /**
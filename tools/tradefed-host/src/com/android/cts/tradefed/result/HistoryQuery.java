@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.Option.Importance;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * A query over the {@link ResultHistory} of a results directory, selecting tests by how they
+ * behaved across sessions.
+ */
+public class HistoryQuery {
+
+    static final String FLAKY = "flaky";
+    static final String FLAKIER = "flakier";
+    static final String SLOWER = "slower";
+    static final String SLOWEST = "slowest";
+    static final String REGRESSED = "regressed";
+
+    @Option(name = "query", description = "the tests to select. One of flaky, flakier, " +
+            "slower, slowest, regressed. flakier and slower compare against the runs before " +
+            "--since-build.", importance = Importance.IF_UNSET)
+    private String mQuery = null;
+
+    @Option(name = "since-build", description = "the build fingerprint, or part of it, of the " +
+            "first session counted as recent. Earlier sessions form the baseline.")
+    private String mSinceBuild = null;
+
+    @Option(name = "top", description = "the maximum number of tests to select.")
+    private int mTop = 50;
+
+    @Option(name = "min-slowdown", description = "the minimum ratio of the recent to the " +
+            "baseline mean duration of slower tests.")
+    private double mMinSlowdown = 1.5;
+
+    @Option(name = "min-slowdown-ms", description = "the minimum increase in ms of the mean " +
+            "duration of slower tests. Durations are only known to the second.")
+    private long mMinSlowdownMs = 1000;
+
+    @Option(name = "history-threads", description = "the number of sessions to read in " +
+            "parallel.")
+    private int mThreads = 4;
+
+    /**
+     * Create an empty {@link HistoryQuery}.
+     * <p/>
+     * All {@link Option} fields must be populated via
+     * {@link com.android.tradefed.config.ArgsOptionParser}
+     */
+    public HistoryQuery() {
+    }
+
+    /**
+     * Create a {@link HistoryQuery} using the specified option values.
+     */
+    public HistoryQuery(String query, String sinceBuild, int top) {
+        mQuery = query;
+        mSinceBuild = sinceBuild;
+        mTop = top;
+    }
+
+    /**
+     * @return <code>true</code> if a query was given
+     */
+    public boolean isSet() {
+        return mQuery != null;
+    }
+
+    /**
+     * Check that all {@link Option}s have been populated with valid values.
+     *
+     * @throws ConfigurationException if any option has an invalid value
+     */
+    public void checkFields() throws ConfigurationException {
+        if (mQuery == null) {
+            throw new ConfigurationException("Missing --query argument");
+        }
+        if (!FLAKY.equals(mQuery) && !FLAKIER.equals(mQuery) && !SLOWER.equals(mQuery) &&
+                !SLOWEST.equals(mQuery) && !REGRESSED.equals(mQuery)) {
+            throw new ConfigurationException("Invalid query argument. Expected one of " +
+                    "flaky,flakier,slower,slowest,regressed");
+        }
+        if ((FLAKIER.equals(mQuery) || SLOWER.equals(mQuery)) && mSinceBuild == null) {
+            throw new ConfigurationException(String.format("Missing --since-build argument " +
+                    "for %s query", mQuery));
+        }
+        if (mTop <= 0) {
+            throw new ConfigurationException("--top must be positive");
+        }
+    }
+
+    /**
+     * Load the history of the given results directory and select the tests of the query.
+     *
+     * @param resultsDir the parent directory of session results
+     * @return the selected tests, at most --top
+     * @throws ConfigurationException if any option has an invalid value
+     */
+    public List<TestHistory> run(File resultsDir) throws ConfigurationException {
+        checkFields();
+        return select(ResultHistory.load(resultsDir, mSinceBuild, mThreads));
+    }
+
+    /**
+     * Select the tests of the query from the given history.
+     */
+    public List<TestHistory> select(ResultHistory history) {
+        List<TestHistory> tests;
+        if (FLAKY.equals(mQuery)) {
+            tests = history.getFlakyTests();
+        } else if (FLAKIER.equals(mQuery)) {
+            tests = history.getFlakierTests();
+        } else if (SLOWER.equals(mQuery)) {
+            tests = history.getSlowerTests(mMinSlowdown, mMinSlowdownMs);
+        } else if (SLOWEST.equals(mQuery)) {
+            tests = history.getSlowestTests(mTop);
+        } else {
+            tests = history.getRegressedTests();
+        }
+        return tests.size() > mTop ? tests.subList(0, mTop) : tests;
+    }
+
+    public String getSinceBuild() {
+        return mSinceBuild;
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+}
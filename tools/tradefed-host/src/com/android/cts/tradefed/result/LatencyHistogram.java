@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+/**
+ * A histogram of latencies in ms, in fixed memory.
+ * <p/>
+ * Values below {@link #SUB_BUCKETS} have a bucket each. Above that, every power of two range is
+ * split into {@link #SUB_BUCKETS} buckets of equal width, so a value read back from the
+ * histogram is within 1/{@value #SUB_BUCKETS} of the recorded one, whatever its magnitude.
+ */
+class LatencyHistogram {
+
+    static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount = 0;
+    private long mTotalValue = 0;
+    private long mMax = 0;
+
+    /**
+     * Record a latency.
+     *
+     * @param valueMs the latency in ms. Negative values are recorded as 0.
+     */
+    void record(long valueMs) {
+        recordCount(Math.max(0, valueMs), 1);
+    }
+
+    private void recordCount(long valueMs, long count) {
+        mCounts[getIndex(valueMs)] += count;
+        mTotalCount += count;
+        mTotalValue += valueMs * count;
+        mMax = Math.max(mMax, valueMs);
+    }
+
+    /**
+     * Add all the latencies recorded in another histogram.
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mTotalValue += other.mTotalValue;
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    long getCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * @return the sum of the recorded latencies in ms
+     */
+    long getTotal() {
+        return mTotalValue;
+    }
+
+    /**
+     * @return the max recorded latency in ms
+     */
+    long getMax() {
+        return mMax;
+    }
+
+    /**
+     * @return the mean recorded latency in ms, or 0 if nothing was recorded
+     */
+    long getMean() {
+        return mTotalCount == 0 ? 0 : mTotalValue / mTotalCount;
+    }
+
+    /**
+     * Get the latency at the given percentile.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the highest latency in the bucket holding the percentile, capped at the max
+     * recorded latency, or 0 if nothing was recorded
+     */
+    long getPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts[i];
+            if (count >= rank) {
+                return Math.min(mMax, getHighestValue(i));
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Encode the non-empty buckets, as space separated pairs of the lowest value in the bucket
+     * and its count.
+     */
+    String encode() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mCounts[i] > 0) {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append(getLowestValue(i)).append(':').append(mCounts[i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decode buckets encoded with {@link #encode()}.
+     *
+     * @param encoded the encoded buckets
+     * @param max the max recorded latency, which is not encoded
+     * @param total the sum of the recorded latencies, which is not encoded
+     * @throws NumberFormatException if the buckets are malformed
+     */
+    static LatencyHistogram decode(String encoded, long max, long total) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (String bucket : encoded.split(" ")) {
+            if (bucket.isEmpty()) {
+                continue;
+            }
+            int separator = bucket.indexOf(':');
+            if (separator < 0) {
+                throw new NumberFormatException(bucket);
+            }
+            histogram.recordCount(Long.parseLong(bucket.substring(0, separator)),
+                    Long.parseLong(bucket.substring(separator + 1)));
+        }
+        histogram.mMax = max;
+        histogram.mTotalValue = total;
+        return histogram;
+    }
+
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+    }
+
+    private static long getLowestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << shift;
+    }
+
+    private static long getHighestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        return getLowestValue(index) + (1L << shift) - 1;
+    }
+}
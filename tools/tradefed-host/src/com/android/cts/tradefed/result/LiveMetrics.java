@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Throughput and latency metrics of a running session, updated as results are reported and
+ * read concurrently by a {@link LiveMetricsExporter}.
+ * <p/>
+ * Keeps session wide histograms of test durations and of the time runs take to start their
+ * first test, counters of completed and failed tests, the rate of completed tests over the last
+ * minute, and the test currently running. The durations of each package go to the
+ * {@link TimingProfile} of its result, of which only a summary is kept here once the package
+ * is done, so memory stays bounded by the number of packages.
+ * <p/>
+ * Metrics are written in the Prometheus text format, with all durations in ms.
+ */
+class LiveMetrics {
+
+    static final int RATE_WINDOW_SECONDS = 60;
+
+    private static final String PREFIX = "cts_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final LatencyHistogram mTestDurations = new LatencyHistogram();
+    private final LatencyHistogram mStartupDurations = new LatencyHistogram();
+    /** map of package id to the summary of its test durations, for packages that were run */
+    private final Map<String, long[]> mPackageSummaries = new LinkedHashMap<>();
+    /** tests completed in each of the last seconds, indexed by second modulo the window */
+    private final long[] mRateCounts = new long[RATE_WINDOW_SECONDS];
+    private final long[] mRateSeconds = new long[RATE_WINDOW_SECONDS];
+    private final long mStartTime;
+    private long mFailedCount = 0;
+    private String mCurrentPackage = null;
+    private TimingProfile mCurrentProfile = null;
+    private long mRunStartTime = -1;
+    /** map of the tests running, which overlap for sharded native tests, to their start time */
+    private final Map<TestIdentifier, Long> mRunningTests = new LinkedHashMap<>();
+
+    /**
+     * @param startTime the time the session started in ms
+     */
+    LiveMetrics(long startTime) {
+        mStartTime = startTime;
+    }
+
+    /**
+     * Record the start of a run of the given package.
+     *
+     * @param profile the {@link TimingProfile} of the package, to record its durations to
+     */
+    synchronized void runStarted(String packageId, TimingProfile profile, long timeMs) {
+        mCurrentPackage = packageId;
+        mCurrentProfile = profile;
+        mRunStartTime = timeMs;
+    }
+
+    synchronized void testStarted(TestIdentifier test, long timeMs) {
+        if (mRunStartTime >= 0 && mCurrentProfile != null) {
+            mStartupDurations.record(timeMs - mRunStartTime);
+            mCurrentProfile.recordStartup(timeMs - mRunStartTime);
+            mRunStartTime = -1;
+        }
+        mRunningTests.put(test, timeMs);
+    }
+
+    synchronized void testFailed() {
+        mFailedCount++;
+    }
+
+    synchronized void testEnded(TestIdentifier test, long timeMs) {
+        Long startTime = mRunningTests.remove(test);
+        if (startTime != null) {
+            long duration = timeMs - startTime;
+            mTestDurations.record(duration);
+            if (mCurrentProfile != null) {
+                mCurrentProfile.recordTest(test.toString(), duration);
+            }
+        }
+        long second = timeMs / 1000;
+        int slot = (int) (second % RATE_WINDOW_SECONDS);
+        if (mRateSeconds[slot] != second) {
+            mRateSeconds[slot] = second;
+            mRateCounts[slot] = 0;
+        }
+        mRateCounts[slot]++;
+    }
+
+    synchronized void runEnded() {
+        if (mCurrentPackage != null && mCurrentProfile != null) {
+            LatencyHistogram durations = mCurrentProfile.getTestDurations();
+            mPackageSummaries.put(mCurrentPackage, summarize(durations));
+        }
+        mCurrentPackage = null;
+        mCurrentProfile = null;
+        mRunningTests.clear();
+        mRunStartTime = -1;
+    }
+
+    /**
+     * @return the number of tests completed per second over the last
+     * {@link #RATE_WINDOW_SECONDS}, or since the start of the session if it is shorter
+     */
+    synchronized double getTestRate(long timeMs) {
+        long second = timeMs / 1000;
+        long count = 0;
+        for (int i = 0; i < RATE_WINDOW_SECONDS; i++) {
+            if (second - mRateSeconds[i] < RATE_WINDOW_SECONDS && mRateSeconds[i] <= second) {
+                count += mRateCounts[i];
+            }
+        }
+        long window = Math.min(RATE_WINDOW_SECONDS, Math.max(1, second - mStartTime / 1000 + 1));
+        return (double) count / window;
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format.
+     *
+     * @param timeMs the current time in ms
+     */
+    synchronized void write(Writer writer, long timeMs) throws IOException {
+        writeHeader(writer, "tests_completed_total", "counter", "tests completed");
+        writeSample(writer, "tests_completed_total", null, mTestDurations.getCount());
+        writeHeader(writer, "tests_failed_total", "counter", "tests failed");
+        writeSample(writer, "tests_failed_total", null, mFailedCount);
+        writeHeader(writer, "tests_per_second", "gauge", String.format(Locale.US,
+                "tests completed per second over the last %d s", RATE_WINDOW_SECONDS));
+        writer.write(String.format(Locale.US, "%stests_per_second %.3f\n", PREFIX,
+                getTestRate(timeMs)));
+
+        writeHeader(writer, "test_duration_ms", "summary", "durations of tests");
+        writeSummary(writer, "test_duration_ms", null, summarize(mTestDurations));
+        writeHeader(writer, "run_startup_ms", "summary",
+                "time from the start of a run to its first test");
+        writeSummary(writer, "run_startup_ms", null, summarize(mStartupDurations));
+
+        writeHeader(writer, "package_test_duration_ms", "summary",
+                "durations of tests per package");
+        for (Map.Entry<String, long[]> entry : mPackageSummaries.entrySet()) {
+            if (!entry.getKey().equals(mCurrentPackage)) {
+                writeSummary(writer, "package_test_duration_ms", packageLabel(entry.getKey()),
+                        entry.getValue());
+            }
+        }
+        if (mCurrentPackage != null && mCurrentProfile != null) {
+            writeSummary(writer, "package_test_duration_ms", packageLabel(mCurrentPackage),
+                    summarize(mCurrentProfile.getTestDurations()));
+        }
+
+        writeHeader(writer, "current_test_elapsed_ms", "gauge",
+                "time each running test has been running");
+        for (Map.Entry<TestIdentifier, Long> test : mRunningTests.entrySet()) {
+            writeSample(writer, "current_test_elapsed_ms", String.format(Locale.US,
+                    "%s,test=\"%s\"", packageLabel(mCurrentPackage),
+                    escape(test.getKey().toString())), timeMs - test.getValue());
+        }
+        if (mRunningTests.isEmpty() && mRunStartTime >= 0) {
+            // a run that has not started its first test yet is stuck in startup
+            writeSample(writer, "current_test_elapsed_ms", String.format(Locale.US, "%s,test=\"\"",
+                    packageLabel(mCurrentPackage)), timeMs - mRunStartTime);
+        }
+    }
+
+    /**
+     * @return the count, sum, quantiles and max of the given histogram
+     */
+    private static long[] summarize(LatencyHistogram histogram) {
+        long[] summary = new long[QUANTILES.length + 3];
+        summary[0] = histogram.getCount();
+        summary[1] = histogram.getTotal();
+        for (int i = 0; i < QUANTILES.length; i++) {
+            summary[i + 2] = histogram.getPercentile(QUANTILES[i] * 100);
+        }
+        summary[QUANTILES.length + 2] = histogram.getMax();
+        return summary;
+    }
+
+    private static void writeHeader(Writer writer, String name, String type, String help)
+            throws IOException {
+        writer.write(String.format(Locale.US, "# HELP %s%s %s\n# TYPE %s%s %s\n", PREFIX, name,
+                help, PREFIX, name, type));
+    }
+
+    private static void writeSummary(Writer writer, String name, String labels, long[] summary)
+            throws IOException {
+        String prefix = labels == null ? "" : labels + ",";
+        for (int i = 0; i < QUANTILES.length; i++) {
+            writeSample(writer, name, String.format(Locale.US, "%squantile=\"%s\"", prefix,
+                    QUANTILES[i]), summary[i + 2]);
+        }
+        writeSample(writer, name + "_count", labels, summary[0]);
+        writeSample(writer, name + "_sum", labels, summary[1]);
+        writeSample(writer, name + "_max", labels, summary[QUANTILES.length + 2]);
+    }
+
+    private static void writeSample(Writer writer, String name, String labels, long value)
+            throws IOException {
+        writer.write(PREFIX);
+        writer.write(name);
+        if (labels != null) {
+            writer.write('{');
+            writer.write(labels);
+            writer.write('}');
+        }
+        writer.write(' ');
+        writer.write(Long.toString(value));
+        writer.write('\n');
+    }
+
+    private static String packageLabel(String packageId) {
+        return String.format(Locale.US, "package=\"%s\"", escape(packageId));
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports {@link LiveMetrics} while the session runs, so it can be watched or scraped without
+ * waiting for the result XML.
+ * <p/>
+ * The metrics are periodically written to a file in the result directory, replaced atomically
+ * so readers never see a partial file, and can also be served over HTTP on the loopback
+ * interface.
+ */
+class LiveMetricsExporter {
+
+    static final String METRICS_FILE_NAME = "live_metrics.prom";
+    static final String METRICS_PATH = "/metrics";
+
+    private final LiveMetrics mMetrics;
+    private final File mMetricsFile;
+    private ScheduledExecutorService mExportService = null;
+    private HttpServer mServer = null;
+
+    /**
+     * @param metrics the {@link LiveMetrics} to export
+     * @param reportDir the result directory to write the metrics file to
+     */
+    LiveMetricsExporter(LiveMetrics metrics, File reportDir) {
+        mMetrics = metrics;
+        mMetricsFile = new File(reportDir, METRICS_FILE_NAME);
+    }
+
+    /**
+     * Start exporting the metrics.
+     *
+     * @param intervalMs the time in ms between writes of the metrics file
+     * @param port the port to serve the metrics on, or 0 to not serve them
+     */
+    void start(long intervalMs, int port) {
+        mExportService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LiveMetricsExporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExportService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                writeMetricsFile();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        if (port > 0) {
+            startServer(port);
+        }
+    }
+
+    private void startServer(int port) {
+        try {
+            mServer = HttpServer.create(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            CLog.w("Failed to serve live metrics on port %d: %s", port, e.getMessage());
+            return;
+        }
+        mServer.createContext(METRICS_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = getMetricsText().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type",
+                        "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream output = exchange.getResponseBody();
+                try {
+                    output.write(body);
+                } finally {
+                    StreamUtil.close(output);
+                }
+            }
+        });
+        mServer.setExecutor(mExportService);
+        mServer.start();
+        CLog.i("Serving live metrics on http://localhost:%d%s", port, METRICS_PATH);
+    }
+
+    /**
+     * Stop exporting, and write the final metrics.
+     */
+    void stop() {
+        if (mServer != null) {
+            mServer.stop(0);
+            mServer = null;
+        }
+        if (mExportService != null) {
+            mExportService.shutdownNow();
+            mExportService = null;
+        }
+        writeMetricsFile();
+    }
+
+    private String getMetricsText() throws IOException {
+        StringWriter writer = new StringWriter();
+        mMetrics.write(writer, System.currentTimeMillis());
+        return writer.toString();
+    }
+
+    /**
+     * Write the metrics to a temp file which then replaces the metrics file. Logs and carries on
+     * if it fails, the metrics are only informative.
+     */
+    void writeMetricsFile() {
+        File tmpFile = new File(mMetricsFile.getParentFile(), mMetricsFile.getName() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+            writer.write(getMetricsText());
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(mMetricsFile)) {
+                // rename does not replace existing files on all platforms
+                mMetricsFile.delete();
+                if (!tmpFile.renameTo(mMetricsFile)) {
+                    throw new IOException("failed to rename " + tmpFile.getName());
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to write live metrics to %s: %s", mMetricsFile.getAbsolutePath(),
+                    e.getMessage());
+            FileUtil.deleteFile(tmpFile);
+        } finally {
+            StreamUtil.close(writer);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.util.AbiUtils;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Recorded execution times of test packages, collected from previous session results.
+ * <p/>
+ * The duration of a package is the span between the earliest start time and the latest end time
+ * of its executed tests. When a package appears in several sessions, the most recent session
+ * wins.
+ */
+public class PackageDurationHistory extends AbstractXmlPullParser {
+
+    private static final String APP_PACKAGE_NAME_ATTR = "appPackageName";
+    private static final String ABI_ATTR = "abi";
+    private static final String RESULT_ATTR = "result";
+    private static final String STARTTIME_ATTR = "starttime";
+    private static final String ENDTIME_ATTR = "endtime";
+
+    /** map of package id to its recorded duration in ms */
+    private final Map<String, Long> mDurations = new HashMap<String, Long>();
+    /** map of package id to the number of executed tests the duration was measured over */
+    private final Map<String, Integer> mTestCounts = new HashMap<String, Integer>();
+
+    /**
+     * Load the package durations from the most recent sessions in the given results directory.
+     *
+     * @param resultsDir the parent directory of session results
+     * @param maxSessions the maximum number of sessions to read, newest first
+     * @return the {@link PackageDurationHistory}. Empty if no results could be read.
+     */
+    public static PackageDurationHistory load(File resultsDir, int maxSessions) {
+        return load(resultsDir, 0, maxSessions);
+    }
+
+    /**
+     * Load the package durations from the given results directory, ignoring the newest
+     * <var>skipSessions</var> sessions.
+     *
+     * @param resultsDir the parent directory of session results
+     * @param skipSessions the number of newest sessions to skip
+     * @param maxSessions the maximum number of sessions to read after the skipped ones
+     * @return the {@link PackageDurationHistory}. Empty if no results could be read.
+     */
+    public static PackageDurationHistory load(File resultsDir, int skipSessions,
+            int maxSessions) {
+        PackageDurationHistory history = new PackageDurationHistory();
+        File[] sessionDirs = resultsDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && new File(file,
+                        CtsXmlResultReporter.TEST_RESULT_FILE_NAME).exists();
+            }
+        });
+        if (sessionDirs == null) {
+            return history;
+        }
+        List<File> sessionList = new ArrayList<File>();
+        Collections.addAll(sessionList, sessionDirs);
+        // result directory names are timestamps, so reverse name order is newest first
+        Collections.sort(sessionList);
+        Collections.reverse(sessionList);
+        int lastSession = Math.min(sessionList.size(), skipSessions + maxSessions);
+        for (int i = skipSessions; i < lastSession; i++) {
+            File resultFile = new File(sessionList.get(i),
+                    CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
+            PackageDurationHistory sessionHistory = new PackageDurationHistory();
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(resultFile));
+                sessionHistory.parse(reader);
+                history.addOlder(sessionHistory);
+            } catch (ParseException e) {
+                CLog.w("Failed to parse timings from %s", resultFile.getAbsolutePath());
+            } catch (FileNotFoundException e) {
+                CLog.w("Could not find result file %s", resultFile.getAbsolutePath());
+            } finally {
+                StreamUtil.close(reader);
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Add the durations from an older session, for packages not already known.
+     */
+    private void addOlder(PackageDurationHistory older) {
+        for (Map.Entry<String, Long> entry : older.mDurations.entrySet()) {
+            if (!mDurations.containsKey(entry.getKey())) {
+                mDurations.put(entry.getKey(), entry.getValue());
+                mTestCounts.put(entry.getKey(), older.mTestCounts.get(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Record a duration for given package.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void putDuration(String packageId, long durationMs, int testCount) {
+        mDurations.put(packageId, durationMs);
+        mTestCounts.put(packageId, testCount);
+    }
+
+    /**
+     * @return the recorded duration in ms of the package with given id, or <code>null</code> if
+     * the package has no history
+     */
+    public Long getDuration(String packageId) {
+        return mDurations.get(packageId);
+    }
+
+    /**
+     * @return the number of executed tests the duration of given package was measured over, or
+     * <code>null</code> if the package has no history
+     */
+    public Integer getTestCount(String packageId) {
+        return mTestCounts.get(packageId);
+    }
+
+    /**
+     * @return the ids of all packages with a recorded duration
+     */
+    public Set<String> getPackageIds() {
+        return mDurations.keySet();
+    }
+
+    /**
+     * @return <code>true</code> if no durations have been recorded
+     */
+    public boolean isEmpty() {
+        return mDurations.isEmpty();
+    }
+
+    /**
+     * @return the average recorded time per executed test in ms, over all packages, or 0 if
+     * nothing has been recorded
+     */
+    public long getAverageTestDuration() {
+        long totalTime = 0;
+        long totalTests = 0;
+        for (Map.Entry<String, Long> entry : mDurations.entrySet()) {
+            totalTime += entry.getValue();
+            totalTests += mTestCounts.get(entry.getKey());
+        }
+        return totalTests == 0 ? 0 : totalTime / totalTests;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+        String currentId = null;
+        long startTime = Long.MAX_VALUE;
+        long endTime = Long.MIN_VALUE;
+        int testCount = 0;
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG &&
+                    parser.getName().equals(TestPackageResult.TAG)) {
+                currentId = AbiUtils.createId(getAttribute(parser, ABI_ATTR),
+                        getAttribute(parser, APP_PACKAGE_NAME_ATTR));
+                startTime = Long.MAX_VALUE;
+                endTime = Long.MIN_VALUE;
+                testCount = 0;
+            } else if (eventType == XmlPullParser.START_TAG && currentId != null &&
+                    parser.getName().equals(Test.TAG)) {
+                // tests that never ran only carry the time they were reported as unexecuted
+                if (!CtsTestStatus.NOT_EXECUTED.getValue().equals(
+                        getAttribute(parser, RESULT_ATTR))) {
+                    long testStart = TimeUtil.parseTimestamp(getAttribute(parser, STARTTIME_ATTR));
+                    long testEnd = TimeUtil.parseTimestamp(getAttribute(parser, ENDTIME_ATTR));
+                    if (testStart >= 0 && testEnd >= testStart) {
+                        startTime = Math.min(startTime, testStart);
+                        endTime = Math.max(endTime, testEnd);
+                        testCount++;
+                    }
+                }
+            } else if (eventType == XmlPullParser.END_TAG &&
+                    parser.getName().equals(TestPackageResult.TAG)) {
+                if (testCount > 0) {
+                    putDuration(currentId, endTime - startTime, testCount);
+                }
+                currentId = null;
+            }
+            eventType = parser.next();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A local store of the test packages that passed completely in earlier sessions, so an
+ * incremental run can skip packages that would run unchanged against the same device build.
+ * <p/>
+ * Entries are keyed by the digest of the package, its ABI, the fingerprint of the device build
+ * and a hash of the tests selected to run. Each entry is a file in the cache directory named by
+ * its key, holding the passed tests one per line, with the class and method separated by a tab.
+ * Entries are written to a temporary file first and renamed, so concurrent sessions never see a
+ * partial entry.
+ */
+public class PassingResultCache {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ALGORITHM = "SHA-1";
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File mCacheDir;
+
+    /**
+     * @param cacheDir the directory holding the cache entries. Created when the first entry is
+     * stored.
+     */
+    public PassingResultCache(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * Get the key of the results of a package.
+     *
+     * @param digest the digest of the package
+     * @param abi the name of the ABI the package runs on
+     * @param fingerprint the fingerprint of the device build
+     * @param filterHash the hash of the tests selected to run, from {@link #getFilterHash}
+     * @return the key, or <code>null</code> if any part is unknown
+     */
+    public static String getKey(String digest, String abi, String fingerprint,
+            String filterHash) {
+        if (digest == null || abi == null || fingerprint == null || filterHash == null ||
+                fingerprint.isEmpty()) {
+            return null;
+        }
+        return hash(Arrays.asList(digest, abi, fingerprint, filterHash));
+    }
+
+    /**
+     * @return the hash of the given set of tests, independent of their order
+     */
+    public static String getFilterHash(Collection<TestIdentifier> tests) {
+        List<String> testNames = new ArrayList<String>(tests.size());
+        for (TestIdentifier test : tests) {
+            testNames.add(test.toString());
+        }
+        Collections.sort(testNames);
+        return hash(testNames);
+    }
+
+    /**
+     * Get the tests that passed for the given key.
+     *
+     * @return the passed tests, or <code>null</code> if there is no entry for the key or it
+     * cannot be read
+     */
+    public Set<TestIdentifier> get(String key) {
+        File entryFile = new File(mCacheDir, key);
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(entryFile),
+                    UTF_8));
+            Set<TestIdentifier> tests = new LinkedHashSet<TestIdentifier>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(FIELD_SEPARATOR);
+                if (separator < 0) {
+                    CLog.w("Ignoring corrupt result cache entry %s", entryFile.getAbsolutePath());
+                    return null;
+                }
+                tests.add(new TestIdentifier(line.substring(0, separator),
+                        line.substring(separator + 1)));
+            }
+            return tests;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            CLog.w("Failed to read result cache entry %s", entryFile.getAbsolutePath());
+            return null;
+        } finally {
+            StreamUtil.close(reader);
+        }
+    }
+
+    /**
+     * Store the tests that passed for the given key, replacing any earlier entry. Logs a warning
+     * if the entry cannot be written.
+     */
+    public void put(String key, Collection<TestIdentifier> tests) {
+        StringBuilder contents = new StringBuilder();
+        for (TestIdentifier test : tests) {
+            if (!isStorable(test.getClassName()) || !isStorable(test.getTestName())) {
+                remove(key);
+                return;
+            }
+            contents.append(test.getClassName()).append(FIELD_SEPARATOR)
+                    .append(test.getTestName()).append('\n');
+        }
+        File tmpFile = null;
+        Writer writer = null;
+        try {
+            mCacheDir.mkdirs();
+            tmpFile = FileUtil.createTempFile(key, ".tmp", mCacheDir);
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile),
+                    UTF_8));
+            writer.write(contents.toString());
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(new File(mCacheDir, key))) {
+                throw new IOException("rename failed");
+            }
+            tmpFile = null;
+        } catch (IOException e) {
+            CLog.w("Failed to write result cache entry %s in %s", key,
+                    mCacheDir.getAbsolutePath());
+        } finally {
+            StreamUtil.close(writer);
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    /**
+     * Remove the entry for the given key, if any.
+     */
+    public void remove(String key) {
+        FileUtil.deleteFile(new File(mCacheDir, key));
+    }
+
+    private static boolean isStorable(String name) {
+        return name.indexOf(FIELD_SEPARATOR) < 0 && name.indexOf('\n') < 0 &&
+                name.indexOf('\r') < 0;
+    }
+
+    private static String hash(List<String> values) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        for (String value : values) {
+            md.update(value.getBytes(UTF_8));
+            md.update((byte) '\n');
+        }
+        byte[] digest = md.digest();
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
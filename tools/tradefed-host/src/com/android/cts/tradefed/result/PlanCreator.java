@@ -21,6 +21,7 @@ import com.android.cts.tradefed.testtype.ITestPackageDef;
 import com.android.cts.tradefed.testtype.ITestPackageRepo;
 import com.android.cts.tradefed.testtype.ITestPlan;
 import com.android.cts.tradefed.testtype.TestPackageRepo;
+import com.android.cts.tradefed.testtype.TestFilter;
 import com.android.cts.tradefed.testtype.TestPlan;
 import com.android.cts.util.AbiUtils;
 import com.android.ddmlib.Log;
@@ -30,18 +31,27 @@ import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
- * Class for creating test plans from CTS result XML.
+ * Class for creating test plans from CTS result XML, or from a {@link HistoryQuery} over all
+ * sessions.
  */
 public class PlanCreator {
 
@@ -63,6 +73,7 @@ public class PlanCreator {
 
     private CtsTestStatus mResultFilter = null;
     private TestResults mResult = null;
+    private HistoryQuery mHistoryQuery = null;
 
     private File mPlanFile;
 
@@ -84,6 +95,14 @@ public class PlanCreator {
         mResultFilterString = result.getValue();
     }
 
+    /**
+     * Derive the plan from the tests selected by the given {@link HistoryQuery} instead of from
+     * the results of one session. The session and result options are then not used.
+     */
+    public void setHistoryQuery(HistoryQuery query) {
+        mHistoryQuery = query;
+    }
+
     /**
      * Create and serialize a test plan derived from a result.
      * <p/>
@@ -119,6 +138,15 @@ public class PlanCreator {
         ITestPackageRepo pkgDefRepo =
                 new TestPackageRepo(build.getTestCasesDir(), mIncludeKnownFailures);
         ITestPlan derivedPlan = new TestPlan(mPlanName, abis);
+        if (mHistoryQuery != null) {
+            addHistoryTests(build, pkgDefRepo, derivedPlan);
+            return derivedPlan;
+        }
+        // an interrupted session only has results for tests which were started, so the tests
+        // which remain have to be worked out from the plan it was running
+        boolean addUnstartedTests = !mResult.isComplete() &&
+                CtsTestStatus.NOT_EXECUTED.equals(mResultFilter);
+        ITestPlan sessionPlan = addUnstartedTests ? loadSessionPlan(build, abis) : null;
         for (TestPackageResult pkg : mResult.getPackages()) {
             Collection<TestIdentifier> filteredTests = pkg.getTestsWithStatus(mResultFilter);
             String pkgId = pkg.getId();
@@ -126,22 +154,148 @@ public class PlanCreator {
             if (pkgDef != null) {
                 Collection<TestIdentifier> excludedTests =
                         new LinkedHashSet<TestIdentifier>(pkgDef.getTests());
-                excludedTests.removeAll(filteredTests);
+                if (addUnstartedTests) {
+                    excludedTests = getExcludedTests(pkgDef, sessionPlan);
+                    excludedTests.addAll(pkg.getTestsWithStatus(CtsTestStatus.PASS));
+                    excludedTests.addAll(pkg.getTestsWithStatus(CtsTestStatus.FAIL));
+                } else {
+                    excludedTests.removeAll(new HashSet<TestIdentifier>(filteredTests));
+                }
                 derivedPlan.addPackage(pkgId);
                 derivedPlan.addExcludedTests(pkgId, excludedTests);
             } else {
                 CLog.e("Could not find package %s in repository", pkgId);
             }
         }
+        if (sessionPlan != null) {
+            for (String pkgId : sessionPlan.getTestIds()) {
+                if (derivedPlan.getTestFilter(pkgId) != null) {
+                    continue;
+                }
+                ITestPackageDef pkgDef = pkgDefRepo.getTestPackage(pkgId);
+                if (pkgDef != null) {
+                    derivedPlan.addPackage(pkgId);
+                    derivedPlan.addExcludedTests(pkgId, getExcludedTests(pkgDef, sessionPlan));
+                }
+            }
+        }
         return derivedPlan;
     }
 
+    /**
+     * Add the tests selected by the history query to the plan, excluding all other tests of
+     * their packages.
+     */
+    private void addHistoryTests(CtsBuildHelper build, ITestPackageRepo pkgDefRepo,
+            ITestPlan derivedPlan) throws ConfigurationException {
+        Map<String, Set<TestIdentifier>> selectedTests =
+                new LinkedHashMap<String, Set<TestIdentifier>>();
+        for (TestHistory history : mHistoryQuery.run(build.getResultsDir())) {
+            Set<TestIdentifier> pkgTests = selectedTests.get(history.getPackageId());
+            if (pkgTests == null) {
+                pkgTests = new HashSet<TestIdentifier>();
+                selectedTests.put(history.getPackageId(), pkgTests);
+            }
+            pkgTests.add(history.getTest());
+        }
+        for (Map.Entry<String, Set<TestIdentifier>> entry : selectedTests.entrySet()) {
+            ITestPackageDef pkgDef = pkgDefRepo.getTestPackage(entry.getKey());
+            if (pkgDef != null) {
+                Collection<TestIdentifier> excludedTests =
+                        new LinkedHashSet<TestIdentifier>(pkgDef.getTests());
+                excludedTests.removeAll(entry.getValue());
+                derivedPlan.addPackage(entry.getKey());
+                derivedPlan.addExcludedTests(entry.getKey(), excludedTests);
+            } else {
+                CLog.e("Could not find package %s in repository", entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Load the plan the session being derived from was running.
+     *
+     * @return the {@link ITestPlan} or <code>null</code> if it is not known or cannot be loaded
+     */
+    private ITestPlan loadSessionPlan(CtsBuildHelper build, Set<String> abis) {
+        String planName = mResult.getPlanName();
+        if (planName == null) {
+            CLog.w("Session %d was interrupted and its plan is unknown. Only packages it " +
+                    "started will be included", mSessionId);
+            return null;
+        }
+        try {
+            File planFile = build.getTestPlanFile(planName);
+            if (!planFile.exists()) {
+                CLog.w("Could not find plan %s of interrupted session %d. Only packages it " +
+                        "started will be included", planName, mSessionId);
+                return null;
+            }
+            ITestPlan plan = new TestPlan(planName, abis);
+            InputStream planStream = new BufferedInputStream(new FileInputStream(planFile));
+            try {
+                plan.parse(planStream);
+            } finally {
+                StreamUtil.close(planStream);
+            }
+            return plan;
+        } catch (IOException e) {
+            CLog.e("Failed to read plan %s", planName);
+            CLog.e(e);
+        } catch (ParseException e) {
+            CLog.e("Failed to parse plan %s", planName);
+            CLog.e(e);
+        }
+        return null;
+    }
+
+    /**
+     * @return the tests of the given package that are excluded by given plan, or none if the
+     * plan is <code>null</code>
+     */
+    private static Collection<TestIdentifier> getExcludedTests(ITestPackageDef pkgDef,
+            ITestPlan plan) {
+        Collection<TestIdentifier> excludedTests = new LinkedHashSet<TestIdentifier>();
+        TestFilter filter = plan != null ? plan.getTestFilter(pkgDef.getId()) : null;
+        if (filter != null) {
+            excludedTests.addAll(pkgDef.getTests());
+            excludedTests.removeAll(new HashSet<TestIdentifier>(
+                    filter.filter(pkgDef.getTests())));
+        }
+        return excludedTests;
+    }
+
     /**
      * Check that all {@Option}s have been populated with valid values.
      * @param build
      * @throws ConfigurationException if any option has an invalid value
      */
     private void checkFields(CtsBuildHelper build) throws ConfigurationException {
+        if (mHistoryQuery != null) {
+            mHistoryQuery.checkFields();
+        } else {
+            checkResultFields(build);
+        }
+        if (mPlanName == null) {
+            throw new ConfigurationException("Missing --plan argument");
+        }
+        try {
+            mPlanFile = build.getTestPlanFile(mPlanName);
+            if (mPlanFile.exists()) {
+                throw new ConfigurationException(String.format("Test plan %s already exists",
+                        mPlanName));
+            }
+        } catch (FileNotFoundException e) {
+            throw new ConfigurationException("Could not find plans directory");
+        }
+    }
+
+    /**
+     * Check that the session and result {@Option}s have been populated with valid values.
+     *
+     * @throws ConfigurationException if any option has an invalid value
+     */
+    private void checkResultFields(CtsBuildHelper build) throws ConfigurationException {
         if (mSessionId == null) {
             throw new ConfigurationException("Missing --session argument");
         }
@@ -159,17 +313,5 @@ public class PlanCreator {
             throw new ConfigurationException(
                     "Invalid result argument. Expected one of pass,fail,notExecuted");
         }
-        if (mPlanName == null) {
-            throw new ConfigurationException("Missing --plan argument");
-        }
-        try {
-            mPlanFile = build.getTestPlanFile(mPlanName);
-            if (mPlanFile.exists()) {
-                throw new ConfigurationException(String.format("Test plan %s already exists",
-                        mPlanName));
-            }
-        } catch (FileNotFoundException e) {
-            throw new ConfigurationException("Could not find plans directory");
-        }
     }
 }
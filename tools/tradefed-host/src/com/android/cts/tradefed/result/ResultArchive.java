@@ -0,0 +1,802 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * A compact binary copy of the results of a completed session, stored next to its result XML.
+ * Reading it is much faster than parsing the XML, and the summary of the session can be read
+ * without decoding any test.
+ * <p/>
+ * The archive is laid out in sections, located by offsets in a fixed size header, so it can be
+ * read in place once memory mapped:
+ * <ul>
+ * <li>header: magic, version, test and package counts, and section offsets</li>
+ * <li>session: plan name, start time, device serials, time zone of the timestamps, build
+ * fingerprint, number and time of reboots, and device info</li>
+ * <li>strings: every distinct string of the session, such as class and method names, once</li>
+ * <li>packages: id, name, digest, flags and number of tests of each package, in order</li>
+ * <li>status: a bitset over all tests for each status</li>
+ * <li>columns: for each test field, the values of all tests in package order</li>
+ * </ul>
+ * Strings are referred to by their index in the string section, with 0 for <code>null</code>.
+ * Integers in the session, package and column sections are variable length. Timestamps are
+ * stored as the number of seconds since the previous timestamp of the same column, which takes
+ * one or two bytes for most tests.
+ */
+class ResultArchive {
+
+    static final String ARCHIVE_FILE_NAME = "testResult.bin";
+
+    private static final int MAGIC = 0x43545341;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 * 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int NULL_ID = 0;
+
+    /** package flag set if the results of the package were replayed from the result cache */
+    private static final int CACHED_FLAG = 1;
+
+    /** a null timestamp */
+    private static final int NULL_TIME = 0;
+    /** a timestamp that is not in the usual format, stored as a string */
+    private static final int LITERAL_TIME = 1;
+    /** the code of a timestamp stored as a delta, which is added to the zig-zag encoded delta */
+    private static final int DELTA_TIME = 2;
+
+    private static final int CLASS_COLUMN = 0;
+    private static final int METHOD_COLUMN = 1;
+    private static final int START_TIME_COLUMN = 2;
+    private static final int END_TIME_COLUMN = 3;
+    private static final int MESSAGE_COLUMN = 4;
+    private static final int STACK_TRACE_COLUMN = 5;
+    private static final int SUMMARY_COLUMN = 6;
+    private static final int DETAILS_COLUMN = 7;
+    /** the number of test logs of the test, followed by the type and url of each */
+    private static final int LOGS_COLUMN = 8;
+    private static final int COLUMN_COUNT = 9;
+
+    private ResultArchive() {
+    }
+
+    /**
+     * Receives the tests of an archive from {@link ResultArchive#scan(File, TestVisitor)}.
+     */
+    interface TestVisitor {
+        /**
+         * @param pkgId the id of the package of the test
+         * @param test the test
+         * @param status the status of the test
+         * @param durationMs the duration of the test in ms, at the one second resolution of the
+         * result timestamps, or -1 if it is not known
+         */
+        void visitTest(String pkgId, TestIdentifier test, CtsTestStatus status, long durationMs);
+    }
+
+    /**
+     * The summary of a session read from its archive.
+     */
+    static class Summary implements ITestSummary {
+        private final int mId;
+        private final String mTimestamp;
+        private final String mPlanName;
+        private final String mStartTime;
+        private final String mDeviceSerials;
+        private final int[] mCounts = new int[CtsTestStatus.values().length];
+
+        private Summary(int id, String timestamp, String planName, String startTime,
+                String deviceSerials) {
+            mId = id;
+            mTimestamp = timestamp;
+            mPlanName = planName;
+            mStartTime = startTime;
+            mDeviceSerials = deviceSerials;
+        }
+
+        @Override
+        public int getId() {
+            return mId;
+        }
+
+        @Override
+        public String getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public int getNumIncomplete() {
+            return mCounts[CtsTestStatus.NOT_EXECUTED.ordinal()];
+        }
+
+        @Override
+        public int getNumFailed() {
+            return mCounts[CtsTestStatus.FAIL.ordinal()];
+        }
+
+        @Override
+        public int getNumPassed() {
+            return mCounts[CtsTestStatus.PASS.ordinal()];
+        }
+
+        @Override
+        public String getTestPlan() {
+            return mPlanName == null ? "NA" : mPlanName;
+        }
+
+        @Override
+        public String getStartTime() {
+            return mStartTime == null ? "unknown" : mStartTime;
+        }
+
+        @Override
+        public String getDeviceSerials() {
+            return mDeviceSerials == null ? "unknown" : mDeviceSerials;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the given result directory contains an archive
+     */
+    static boolean exists(File reportDir) {
+        return new File(reportDir, ARCHIVE_FILE_NAME).isFile();
+    }
+
+    /**
+     * Check whether the given result directory contains an archive of its latest results. An
+     * archive is stale if the result XML changed after it was written, or if an invocation
+     * continuing the session was interrupted.
+     */
+    static boolean isCurrent(File reportDir) {
+        File archiveFile = new File(reportDir, ARCHIVE_FILE_NAME);
+        if (!archiveFile.isFile()) {
+            return false;
+        }
+        if (ResultCheckpoint.exists(reportDir) && !ResultCheckpoint.isComplete(reportDir)) {
+            return false;
+        }
+        File resultFile = new File(reportDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
+        return !resultFile.exists() || archiveFile.lastModified() >= resultFile.lastModified();
+    }
+
+    /**
+     * Delete the archive of the given result directory, if any.
+     */
+    static void delete(File reportDir) {
+        new File(reportDir, ARCHIVE_FILE_NAME).delete();
+    }
+
+    /**
+     * Write the archive of the given results, replacing any previous archive.
+     *
+     * @param reportDir the result directory
+     * @param results the {@link TestResults} to archive, including journaled packages
+     * @param planName the plan name of the session
+     * @param startTime the user-friendly start time of the session
+     * @param deviceSerials the serials of the devices the session ran on
+     * @throws IOException if the archive could not be written
+     */
+    static void write(File reportDir, TestResults results, String planName, String startTime,
+            String deviceSerials) throws IOException {
+        Builder builder = new Builder();
+        builder.setSession(planName, startTime, deviceSerials, results.getBuildFingerprint());
+        builder.setReboots(results.getRebootCount(), results.getRebootTimeMs());
+        builder.setDeviceInfo(results.getDeviceInfoMetrics());
+        for (String id : results.getPackageIds()) {
+            TestPackageResult pkg = results.readPackage(id);
+            if (pkg == null) {
+                throw new IOException(String.format("Could not read results of %s", id));
+            }
+            builder.addPackage(pkg);
+        }
+        File tmpFile = new File(reportDir, ARCHIVE_FILE_NAME + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmpFile)));
+            builder.write(output);
+            output.close();
+            output = null;
+            File archiveFile = new File(reportDir, ARCHIVE_FILE_NAME);
+            if (!tmpFile.renameTo(archiveFile)) {
+                // rename does not replace existing files on all platforms
+                archiveFile.delete();
+                if (!tmpFile.renameTo(archiveFile)) {
+                    throw new IOException(String.format("Could not rename %s",
+                            tmpFile.getPath()));
+                }
+            }
+        } finally {
+            StreamUtil.close(output);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Read all results from the archive of the given result directory.
+     *
+     * @throws IOException if the archive could not be read or is corrupt
+     */
+    static TestResults read(File reportDir) throws IOException {
+        Reader reader = new Reader(map(reportDir));
+        try {
+            return reader.readResults();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new IOException(String.format("Corrupt result archive in %s",
+                    reportDir.getPath()), e);
+        }
+    }
+
+    /**
+     * Read the summary of the session from the archive of the given result directory, without
+     * decoding its tests.
+     *
+     * @param id the session id
+     * @throws IOException if the archive could not be read or is corrupt
+     */
+    static Summary readSummary(int id, File reportDir) throws IOException {
+        Reader reader = new Reader(map(reportDir));
+        try {
+            return reader.readSummary(id, reportDir.getName());
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new IOException(String.format("Corrupt result archive in %s",
+                    reportDir.getPath()), e);
+        }
+    }
+
+    /**
+     * Stream the tests of the archive of the given result directory to a {@link TestVisitor},
+     * without building the {@link TestResults}. Only the columns needed are decoded.
+     *
+     * @return the build fingerprint of the session, or <code>null</code> if it is not known
+     * @throws IOException if the archive could not be read or is corrupt
+     */
+    static String scan(File reportDir, TestVisitor visitor) throws IOException {
+        Reader reader = new Reader(map(reportDir));
+        try {
+            return reader.scan(visitor);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new IOException(String.format("Corrupt result archive in %s",
+                    reportDir.getPath()), e);
+        }
+    }
+
+    private static ByteBuffer map(File reportDir) throws IOException {
+        File archiveFile = new File(reportDir, ARCHIVE_FILE_NAME);
+        RandomAccessFile file = new RandomAccessFile(archiveFile, "r");
+        try {
+            // the mapping stays valid once the file is closed
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Builds the sections of an archive in memory, one package at a time.
+     */
+    private static class Builder {
+        private final Map<String, Integer> mStringIds = new HashMap<String, Integer>();
+        private final ByteArrayOutputStream mStrings = new ByteArrayOutputStream();
+        private final List<Integer> mStringEnds = new ArrayList<Integer>();
+        private final ByteArrayOutputStream mSession = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream mPackages = new ByteArrayOutputStream();
+        private final BitSet[] mStatus = new BitSet[CtsTestStatus.values().length];
+        private final ByteArrayOutputStream[] mColumns = new ByteArrayOutputStream[COLUMN_COUNT];
+        private final long[] mPrevSeconds = new long[COLUMN_COUNT];
+        private final SimpleDateFormat mTimestampFormat =
+                TimeUtil.createTimestampFormat(TimeZone.getDefault());
+        /** map of timestamp to its seconds, or -1 if it cannot be stored as a delta */
+        private final Map<String, Long> mTimestampSeconds = new HashMap<String, Long>();
+        private int mTestCount = 0;
+        private int mPackageCount = 0;
+
+        Builder() {
+            for (int i = 0; i < mStatus.length; i++) {
+                mStatus[i] = new BitSet();
+            }
+            for (int i = 0; i < COLUMN_COUNT; i++) {
+                mColumns[i] = new ByteArrayOutputStream();
+            }
+            // the status section refers to the names of the statuses
+            for (CtsTestStatus status : CtsTestStatus.values()) {
+                getStringId(status.getValue());
+            }
+        }
+
+        void setSession(String planName, String startTime, String deviceSerials,
+                String buildFingerprint) {
+            writeVarint(mSession, getStringId(planName));
+            writeVarint(mSession, getStringId(startTime));
+            writeVarint(mSession, getStringId(deviceSerials));
+            writeVarint(mSession, getStringId(mTimestampFormat.getTimeZone().getID()));
+            writeVarint(mSession, getStringId(buildFingerprint));
+        }
+
+        void setReboots(int count, long timeMs) {
+            writeVarint(mSession, count);
+            writeVarint(mSession, timeMs);
+        }
+
+        void setDeviceInfo(Map<String, String> metrics) {
+            writeVarint(mSession, metrics.size());
+            for (Map.Entry<String, String> metric : metrics.entrySet()) {
+                writeVarint(mSession, getStringId(metric.getKey()));
+                writeVarint(mSession, getStringId(metric.getValue()));
+            }
+        }
+
+        void addPackage(TestPackageResult pkg) {
+            List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+            for (CtsTestStatus status : CtsTestStatus.values()) {
+                tests.addAll(pkg.getTestsWithStatus(status));
+            }
+            // keeps the tests of a class together, which is also how they ran
+            Collections.sort(tests, new Comparator<TestIdentifier>() {
+                @Override
+                public int compare(TestIdentifier test1, TestIdentifier test2) {
+                    int result = test1.getClassName().compareTo(test2.getClassName());
+                    return result != 0 ? result :
+                            test1.getTestName().compareTo(test2.getTestName());
+                }
+            });
+            writeVarint(mPackages, getStringId(pkg.getId()));
+            writeVarint(mPackages, getStringId(pkg.getName()));
+            writeVarint(mPackages, getStringId(pkg.getDigest()));
+            writeVarint(mPackages, pkg.isCached() ? CACHED_FLAG : 0);
+            writeVarint(mPackages, tests.size());
+            for (TestIdentifier testId : tests) {
+                Test test = pkg.findTest(testId);
+                mStatus[test.getResult().ordinal()].set(mTestCount);
+                writeString(CLASS_COLUMN, testId.getClassName());
+                writeString(METHOD_COLUMN, testId.getTestName());
+                writeTimestamp(START_TIME_COLUMN, test.getStartTime());
+                writeTimestamp(END_TIME_COLUMN, test.getEndTime());
+                writeString(MESSAGE_COLUMN, test.getMessage());
+                writeString(STACK_TRACE_COLUMN, test.getStackTrace());
+                writeString(SUMMARY_COLUMN, test.getSummary());
+                writeString(DETAILS_COLUMN, test.getDetails());
+                List<TestLog> logs = test.getTestLogs();
+                writeVarint(mColumns[LOGS_COLUMN], logs.size());
+                for (TestLog log : logs) {
+                    writeString(LOGS_COLUMN, log.getTypeAttribute());
+                    writeString(LOGS_COLUMN, log.getUrl());
+                }
+                mTestCount++;
+            }
+            mPackageCount++;
+        }
+
+        private void writeString(int column, String value) {
+            writeVarint(mColumns[column], getStringId(value));
+        }
+
+        private void writeTimestamp(int column, String timestamp) {
+            if (timestamp == null) {
+                writeVarint(mColumns[column], NULL_TIME);
+                return;
+            }
+            long seconds = getSeconds(timestamp);
+            if (seconds < 0) {
+                writeVarint(mColumns[column], LITERAL_TIME);
+                writeVarint(mColumns[column], getStringId(timestamp));
+                return;
+            }
+            long delta = seconds - mPrevSeconds[column];
+            mPrevSeconds[column] = seconds;
+            writeVarint(mColumns[column], ((delta << 1) ^ (delta >> 63)) + DELTA_TIME);
+        }
+
+        /**
+         * @return the epoch seconds of the given timestamp, or -1 if it would not be the same
+         * when formatted back
+         */
+        private long getSeconds(String timestamp) {
+            Long seconds = mTimestampSeconds.get(timestamp);
+            if (seconds == null) {
+                seconds = -1L;
+                try {
+                    long time = mTimestampFormat.parse(timestamp).getTime();
+                    if (time >= 0 && time % 1000 == 0 && timestamp.equals(
+                            mTimestampFormat.format(new Date(time)))) {
+                        seconds = time / 1000;
+                    }
+                } catch (ParseException e) {
+                    // stored as a string
+                }
+                mTimestampSeconds.put(timestamp, seconds);
+            }
+            return seconds;
+        }
+
+        private int getStringId(String value) {
+            if (value == null) {
+                return NULL_ID;
+            }
+            Integer id = mStringIds.get(value);
+            if (id == null) {
+                byte[] bytes = value.getBytes(UTF_8);
+                mStrings.write(bytes, 0, bytes.length);
+                mStringEnds.add(mStrings.size());
+                id = mStringEnds.size();
+                mStringIds.put(value, id);
+            }
+            return id;
+        }
+
+        void write(DataOutputStream output) throws IOException {
+            int stringsOffset = HEADER_SIZE + mSession.size();
+            int packagesOffset = stringsOffset + 4 + 4 * (mStringEnds.size() + 1) +
+                    mStrings.size();
+            int statusOffset = packagesOffset + mPackages.size();
+            int wordCount = (mTestCount + 63) / 64;
+            int columnsOffset = statusOffset + 4 + mStatus.length * (8 + 8 * wordCount);
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(mTestCount);
+            output.writeInt(mPackageCount);
+            output.writeInt(stringsOffset);
+            output.writeInt(packagesOffset);
+            output.writeInt(statusOffset);
+            output.writeInt(columnsOffset);
+            mSession.writeTo(output);
+
+            output.writeInt(mStringEnds.size());
+            output.writeInt(0);
+            for (int end : mStringEnds) {
+                output.writeInt(end);
+            }
+            mStrings.writeTo(output);
+
+            mPackages.writeTo(output);
+
+            output.writeInt(mStatus.length);
+            for (CtsTestStatus status : CtsTestStatus.values()) {
+                output.writeInt(getStringId(status.getValue()));
+                output.writeInt(wordCount);
+                long[] words = mStatus[status.ordinal()].toLongArray();
+                for (int i = 0; i < wordCount; i++) {
+                    output.writeLong(i < words.length ? words[i] : 0);
+                }
+            }
+
+            int columnOffset = columnsOffset + 4 * COLUMN_COUNT;
+            for (ByteArrayOutputStream column : mColumns) {
+                output.writeInt(columnOffset);
+                columnOffset += column.size();
+            }
+            for (ByteArrayOutputStream column : mColumns) {
+                column.writeTo(output);
+            }
+        }
+    }
+
+    /**
+     * Reads the sections of a mapped archive.
+     */
+    private static class Reader {
+        private final ByteBuffer mBuffer;
+        private final int mTestCount;
+        private final int mPackageCount;
+        private final int mStringsOffset;
+        private final int mPackagesOffset;
+        private final int mStatusOffset;
+        private final int mColumnsOffset;
+        private final int mStringCount;
+        private final String[] mStrings;
+
+        Reader(ByteBuffer buffer) throws IOException {
+            mBuffer = buffer;
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a result archive");
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException(String.format("Unsupported result archive version %d",
+                        buffer.getInt(4)));
+            }
+            mTestCount = buffer.getInt(8);
+            mPackageCount = buffer.getInt(12);
+            mStringsOffset = buffer.getInt(16);
+            mPackagesOffset = buffer.getInt(20);
+            mStatusOffset = buffer.getInt(24);
+            mColumnsOffset = buffer.getInt(28);
+            mStringCount = buffer.getInt(mStringsOffset);
+            mStrings = new String[mStringCount];
+        }
+
+        /**
+         * @return the string with given id, decoded on first use
+         */
+        String getString(int id) {
+            if (id == NULL_ID) {
+                return null;
+            }
+            String value = mStrings[id - 1];
+            if (value == null) {
+                int start = mBuffer.getInt(mStringsOffset + 4 + 4 * (id - 1));
+                int end = mBuffer.getInt(mStringsOffset + 4 + 4 * id);
+                byte[] bytes = new byte[end - start];
+                ByteBuffer data = mBuffer.duplicate();
+                data.position(mStringsOffset + 4 + 4 * (mStringCount + 1) + start);
+                data.get(bytes);
+                value = new String(bytes, UTF_8);
+                mStrings[id - 1] = value;
+            }
+            return value;
+        }
+
+        Summary readSummary(int id, String timestamp) {
+            ByteBuffer session = getSection(HEADER_SIZE);
+            Summary summary = new Summary(id, timestamp, getString(readVarint(session)),
+                    getString(readVarint(session)), getString(readVarint(session)));
+            BitSet[] status = readStatus();
+            for (int i = 0; i < status.length; i++) {
+                summary.mCounts[i] = status[i].cardinality();
+            }
+            return summary;
+        }
+
+        TestResults readResults() {
+            ByteBuffer session = getSection(HEADER_SIZE);
+            String planName = getString(readVarint(session));
+            readVarint(session);
+            readVarint(session);
+            SimpleDateFormat timestampFormat = TimeUtil.createTimestampFormat(
+                    TimeZone.getTimeZone(getString(readVarint(session))));
+            readVarint(session);
+            int rebootCount = readVarint(session);
+            long rebootTimeMs = readVarLong(session);
+            Map<Long, String> timestamps = new HashMap<Long, String>();
+
+            BitSet[] status = readStatus();
+            ByteBuffer[] columns = getColumns();
+            long[] prevSeconds = new long[COLUMN_COUNT];
+
+            TestResults results = new TestResults();
+            results.setPlanName(planName);
+            results.setReboots(rebootCount, rebootTimeMs);
+            Map<String, String> deviceInfo = new HashMap<String, String>();
+            int deviceInfoCount = readVarint(session);
+            for (int i = 0; i < deviceInfoCount; i++) {
+                deviceInfo.put(getString(readVarint(session)), getString(readVarint(session)));
+            }
+            results.populateDeviceInfoMetrics(deviceInfo);
+            ByteBuffer packages = getSection(mPackagesOffset);
+            int testIndex = 0;
+            for (int p = 0; p < mPackageCount; p++) {
+                TestPackageResult pkg = results.getOrCreatePackage(
+                        getString(readVarint(packages)));
+                pkg.setName(getString(readVarint(packages)));
+                pkg.setDigest(getString(readVarint(packages)));
+                pkg.setCached((readVarint(packages) & CACHED_FLAG) != 0);
+                int testCount = readVarint(packages);
+                for (int t = 0; t < testCount; t++, testIndex++) {
+                    Test test = pkg.insertTest(new TestIdentifier(
+                            readString(columns, CLASS_COLUMN),
+                            readString(columns, METHOD_COLUMN)));
+                    test.setResultStatus(getStatus(status, testIndex));
+                    test.setStartTime(readTimestamp(columns, START_TIME_COLUMN, prevSeconds,
+                            timestampFormat, timestamps));
+                    test.setEndTime(readTimestamp(columns, END_TIME_COLUMN, prevSeconds,
+                            timestampFormat, timestamps));
+                    String message = readString(columns, MESSAGE_COLUMN);
+                    String stackTrace = readString(columns, STACK_TRACE_COLUMN);
+                    if (stackTrace != null) {
+                        test.setStackTrace(stackTrace);
+                    }
+                    test.setMessage(message);
+                    test.setSummary(readString(columns, SUMMARY_COLUMN));
+                    test.setDetails(readString(columns, DETAILS_COLUMN));
+                    int logCount = readVarint(columns[LOGS_COLUMN]);
+                    for (int i = 0; i < logCount; i++) {
+                        TestLog log = TestLog.fromAttributes(readString(columns, LOGS_COLUMN),
+                                readString(columns, LOGS_COLUMN));
+                        if (log != null) {
+                            test.addTestLog(log);
+                        }
+                    }
+                }
+            }
+            if (testIndex != mTestCount) {
+                throw new IllegalArgumentException(String.format(
+                        "archive has %d tests, but its packages have %d", mTestCount, testIndex));
+            }
+            return results;
+        }
+
+        String scan(TestVisitor visitor) {
+            ByteBuffer session = getSection(HEADER_SIZE);
+            for (int i = 0; i < 4; i++) {
+                readVarint(session);
+            }
+            String buildFingerprint = getString(readVarint(session));
+
+            BitSet[] status = readStatus();
+            ByteBuffer[] columns = getColumns();
+            long[] prevSeconds = new long[COLUMN_COUNT];
+            ByteBuffer packages = getSection(mPackagesOffset);
+            int testIndex = 0;
+            for (int p = 0; p < mPackageCount; p++) {
+                String pkgId = getString(readVarint(packages));
+                for (int i = 0; i < 3; i++) {
+                    readVarint(packages);
+                }
+                int testCount = readVarint(packages);
+                for (int t = 0; t < testCount; t++, testIndex++) {
+                    TestIdentifier test = new TestIdentifier(readString(columns, CLASS_COLUMN),
+                            readString(columns, METHOD_COLUMN));
+                    long start = readSeconds(columns, START_TIME_COLUMN, prevSeconds);
+                    long end = readSeconds(columns, END_TIME_COLUMN, prevSeconds);
+                    long durationMs = start >= 0 && end >= start ? (end - start) * 1000 : -1;
+                    visitor.visitTest(pkgId, test, getStatus(status, testIndex), durationMs);
+                }
+            }
+            if (testIndex != mTestCount) {
+                throw new IllegalArgumentException(String.format(
+                        "archive has %d tests, but its packages have %d", mTestCount, testIndex));
+            }
+            return buildFingerprint;
+        }
+
+        private ByteBuffer[] getColumns() {
+            ByteBuffer[] columns = new ByteBuffer[COLUMN_COUNT];
+            for (int i = 0; i < COLUMN_COUNT; i++) {
+                columns[i] = getSection(mBuffer.getInt(mColumnsOffset + 4 * i));
+            }
+            return columns;
+        }
+
+        /**
+         * @return the status bitsets, indexed by {@link CtsTestStatus} ordinal
+         */
+        private BitSet[] readStatus() {
+            BitSet[] status = new BitSet[CtsTestStatus.values().length];
+            for (int i = 0; i < status.length; i++) {
+                status[i] = new BitSet();
+            }
+            ByteBuffer section = getSection(mStatusOffset);
+            int statusCount = section.getInt();
+            for (int i = 0; i < statusCount; i++) {
+                String name = getString(section.getInt());
+                long[] words = new long[section.getInt()];
+                section.asLongBuffer().get(words);
+                section.position(section.position() + 8 * words.length);
+                CtsTestStatus value = CtsTestStatus.getStatus(name);
+                if (value == null) {
+                    CLog.w("Ignoring unknown status %s in result archive", name);
+                } else {
+                    status[value.ordinal()] = BitSet.valueOf(words);
+                }
+            }
+            return status;
+        }
+
+        private static CtsTestStatus getStatus(BitSet[] status, int testIndex) {
+            for (CtsTestStatus value : CtsTestStatus.values()) {
+                if (status[value.ordinal()].get(testIndex)) {
+                    return value;
+                }
+            }
+            return CtsTestStatus.NOT_EXECUTED;
+        }
+
+        private String readString(ByteBuffer[] columns, int column) {
+            return getString(readVarint(columns[column]));
+        }
+
+        private String readTimestamp(ByteBuffer[] columns, int column, long[] prevSeconds,
+                SimpleDateFormat format, Map<Long, String> timestamps) {
+            long code = readVarLong(columns[column]);
+            if (code == NULL_TIME) {
+                return null;
+            } else if (code == LITERAL_TIME) {
+                return readString(columns, column);
+            }
+            long seconds = applyDelta(code, column, prevSeconds);
+            String timestamp = timestamps.get(seconds);
+            if (timestamp == null) {
+                timestamp = format.format(new Date(seconds * 1000));
+                timestamps.put(seconds, timestamp);
+            }
+            return timestamp;
+        }
+
+        /**
+         * @return the epoch seconds of the next timestamp of the given column, or -1 if it is
+         * <code>null</code> or stored as a string
+         */
+        private long readSeconds(ByteBuffer[] columns, int column, long[] prevSeconds) {
+            long code = readVarLong(columns[column]);
+            if (code == NULL_TIME) {
+                return -1;
+            } else if (code == LITERAL_TIME) {
+                readVarint(columns[column]);
+                return -1;
+            }
+            return applyDelta(code, column, prevSeconds);
+        }
+
+        private static long applyDelta(long code, int column, long[] prevSeconds) {
+            long zigzag = code - DELTA_TIME;
+            long seconds = prevSeconds[column] + ((zigzag >>> 1) ^ -(zigzag & 1));
+            prevSeconds[column] = seconds;
+            return seconds;
+        }
+
+        private ByteBuffer getSection(int offset) {
+            ByteBuffer section = mBuffer.duplicate();
+            section.position(offset);
+            return section;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream output, long value) {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        long value = readVarLong(buffer);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("varint out of range");
+        }
+        return (int) value;
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+}
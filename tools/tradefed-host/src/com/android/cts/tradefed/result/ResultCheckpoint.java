@@ -0,0 +1,723 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of test outcomes, written while a session runs so the session can be
+ * continued even if the host dies before the result XML is written.
+ * <p/>
+ * Every record is a single line: the CRC32 of the payload in hex, a space, then the payload
+ * fields separated by tabs. Each record is handed to the OS as soon as it is written, so killing
+ * the process loses nothing. Syncs to disk are batched. When reading, a record with a bad
+ * checksum or without a trailing newline ends the log, so a record torn by a crash is dropped
+ * rather than misread.
+ * <p/>
+ * A log holds one <code>session</code> record per invocation, followed by the results of that
+ * invocation, and an <code>end</code> record once the result XML has been written. A log that
+ * does not finish with an <code>end</code> record belongs to an interrupted invocation.
+ * <p/>
+ * The device info collected by each invocation is recorded as it was reported, so replaying it
+ * combines the device info of the invocations the same way the result XML does.
+ */
+class ResultCheckpoint {
+
+    static final String CHECKPOINT_FILE_NAME = "checkpoint.log";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SESSION_RECORD = "session";
+    private static final String PACKAGE_RECORD = "package";
+    private static final String TEST_RECORD = "test";
+    private static final String PERF_RECORD = "perf";
+    private static final String REBOOT_RECORD = "reboot";
+    private static final String LOG_RECORD = "log";
+    private static final String DEVICE_INFO_RECORD = "deviceinfo";
+    private static final String END_RECORD = "end";
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final String NULL_FIELD = "\\0";
+    private static final int CRC_LENGTH = 8;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private final int mSyncRecords;
+    private final long mSyncIntervalMs;
+    private FileOutputStream mStream;
+    private int mUnsyncedRecords = 0;
+    private long mLastSyncTime;
+
+    /**
+     * The contents of a checkpoint log.
+     */
+    static class Replay {
+        private final TestResults mResults = new TestResults();
+        private String mPlanName = null;
+        private String mStartTime = null;
+        private String mDeviceSerial = null;
+        private boolean mComplete = false;
+
+        /**
+         * @return the replayed {@link TestResults}
+         */
+        TestResults getResults() {
+            return mResults;
+        }
+
+        /**
+         * @return the plan name of the session, or <code>null</code> if it was not recorded
+         */
+        String getPlanName() {
+            return mPlanName;
+        }
+
+        /**
+         * @return the user-friendly start time of the session
+         */
+        String getStartTime() {
+            return mStartTime;
+        }
+
+        /**
+         * @return the serial of the device the last invocation of the session ran on
+         */
+        String getDeviceSerial() {
+            return mDeviceSerial;
+        }
+
+        /**
+         * @return <code>true</code> if the last invocation of the session completed
+         */
+        boolean isComplete() {
+            return mComplete;
+        }
+
+        private void handleRecord(List<String> fields) {
+            String type = fields.get(0);
+            if (fields.size() < getFieldCount(type)) {
+                CLog.w("Ignoring checkpoint record %s with %d fields", type, fields.size());
+            } else if (SESSION_RECORD.equals(type)) {
+                mPlanName = fields.get(1);
+                mStartTime = fields.get(2);
+                mDeviceSerial = fields.get(3);
+                mComplete = false;
+            } else if (PACKAGE_RECORD.equals(type)) {
+                TestPackageResult pkg = mResults.getOrCreatePackage(fields.get(1));
+                pkg.setName(fields.get(2));
+                pkg.setDigest(fields.get(3));
+                // logs written before the cached field was added have 4 fields
+                pkg.setCached(fields.size() > 4 && Boolean.parseBoolean(fields.get(4)));
+            } else if (TEST_RECORD.equals(type)) {
+                CtsTestStatus status = CtsTestStatus.getStatus(fields.get(4));
+                if (status == null) {
+                    CLog.w("Ignoring checkpoint record with unknown result %s", fields.get(4));
+                    return;
+                }
+                Test test = mResults.getOrCreatePackage(fields.get(1)).insertTest(
+                        new TestIdentifier(fields.get(2), fields.get(3)));
+                test.setResultStatus(status);
+                test.setStartTime(fields.get(5));
+                test.setEndTime(fields.get(6));
+                if (fields.get(8) != null) {
+                    test.setStackTrace(fields.get(8));
+                }
+                test.setMessage(fields.get(7));
+            } else if (PERF_RECORD.equals(type)) {
+                Test test = mResults.getOrCreatePackage(fields.get(1)).insertTest(
+                        new TestIdentifier(fields.get(2), fields.get(3)));
+                test.setSummary(fields.get(4));
+                test.setDetails(fields.get(5));
+            } else if (LOG_RECORD.equals(type)) {
+                TestLog log = TestLog.fromAttributes(fields.get(4), fields.get(5));
+                if (log == null) {
+                    CLog.w("Ignoring checkpoint log record of unknown type %s", fields.get(4));
+                    return;
+                }
+                mResults.getOrCreatePackage(fields.get(1)).insertTest(
+                        new TestIdentifier(fields.get(2), fields.get(3))).addTestLog(log);
+            } else if (DEVICE_INFO_RECORD.equals(type)) {
+                Map<String, String> metrics = new HashMap<String, String>();
+                for (int i = 1; i + 1 < fields.size(); i += 2) {
+                    metrics.put(fields.get(i), fields.get(i + 1));
+                }
+                mResults.populateDeviceInfoMetrics(metrics);
+            } else if (REBOOT_RECORD.equals(type)) {
+                try {
+                    mResults.setReboots(Integer.parseInt(fields.get(1)),
+                            Long.parseLong(fields.get(2)));
+                } catch (NumberFormatException e) {
+                    CLog.w("Ignoring corrupt checkpoint reboot record");
+                }
+            } else if (END_RECORD.equals(type)) {
+                mComplete = true;
+            } else {
+                CLog.w("Ignoring unknown checkpoint record %s", type);
+            }
+        }
+    }
+
+    /**
+     * @return the number of fields, including the type, of records of given type
+     */
+    private static int getFieldCount(String type) {
+        if (SESSION_RECORD.equals(type)) {
+            return 4;
+        } else if (PACKAGE_RECORD.equals(type)) {
+            return 4;
+        } else if (TEST_RECORD.equals(type)) {
+            return 9;
+        } else if (PERF_RECORD.equals(type)) {
+            return 6;
+        } else if (REBOOT_RECORD.equals(type)) {
+            return 3;
+        } else if (LOG_RECORD.equals(type)) {
+            return 6;
+        }
+        return 1;
+    }
+
+    /**
+     * An {@link ITestSummary} of a session read from its checkpoint log.
+     */
+    static class Summary implements ITestSummary {
+        private final int mId;
+        private final String mTimestamp;
+        private final Replay mReplay;
+
+        Summary(int id, String timestamp, Replay replay) {
+            mId = id;
+            mTimestamp = timestamp;
+            mReplay = replay;
+        }
+
+        @Override
+        public int getId() {
+            return mId;
+        }
+
+        @Override
+        public String getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public int getNumIncomplete() {
+            return mReplay.getResults().countTests(CtsTestStatus.NOT_EXECUTED);
+        }
+
+        @Override
+        public int getNumFailed() {
+            return mReplay.getResults().countTests(CtsTestStatus.FAIL);
+        }
+
+        @Override
+        public int getNumPassed() {
+            return mReplay.getResults().countTests(CtsTestStatus.PASS);
+        }
+
+        @Override
+        public String getTestPlan() {
+            return mReplay.getPlanName() == null ? "NA" : mReplay.getPlanName();
+        }
+
+        @Override
+        public String getStartTime() {
+            return mReplay.getStartTime() == null ? "unknown" : mReplay.getStartTime();
+        }
+
+        @Override
+        public String getDeviceSerials() {
+            return mReplay.getDeviceSerial() == null ? "unknown" : mReplay.getDeviceSerial();
+        }
+    }
+
+    private ResultCheckpoint(File file, int syncRecords, long syncIntervalMs) {
+        mFile = file;
+        mSyncRecords = syncRecords;
+        mSyncIntervalMs = syncIntervalMs;
+    }
+
+    /**
+     * @return <code>true</code> if the given result directory contains a checkpoint log
+     */
+    static boolean exists(File reportDir) {
+        return new File(reportDir, CHECKPOINT_FILE_NAME).isFile();
+    }
+
+    /**
+     * Open the checkpoint log of the given result directory for appending, creating it if
+     * necessary. A record torn by an earlier crash is removed first.
+     *
+     * @param reportDir the result directory
+     * @param syncRecords the maximum number of records to write between syncs to disk
+     * @param syncIntervalMs the maximum time in ms between syncs to disk
+     * @throws IOException if the log could not be opened
+     */
+    static ResultCheckpoint open(File reportDir, int syncRecords, long syncIntervalMs)
+            throws IOException {
+        ResultCheckpoint checkpoint = new ResultCheckpoint(
+                new File(reportDir, CHECKPOINT_FILE_NAME), syncRecords, syncIntervalMs);
+        if (checkpoint.mFile.exists()) {
+            long validLength = readRecords(checkpoint.mFile, null);
+            if (validLength < checkpoint.mFile.length()) {
+                CLog.w("Dropping %d bytes of incomplete records from %s",
+                        checkpoint.mFile.length() - validLength, checkpoint.mFile.getPath());
+                RandomAccessFile file = new RandomAccessFile(checkpoint.mFile, "rw");
+                try {
+                    file.setLength(validLength);
+                } finally {
+                    file.close();
+                }
+            }
+        }
+        checkpoint.mStream = new FileOutputStream(checkpoint.mFile, true);
+        checkpoint.mLastSyncTime = System.currentTimeMillis();
+        return checkpoint;
+    }
+
+    /**
+     * Write a complete checkpoint log for the given results to the given result directory,
+     * replacing any existing one. Used to start checkpointing a session whose results were
+     * read from XML.
+     *
+     * @throws IOException if the log could not be written
+     */
+    static void writeSnapshot(File reportDir, TestResults results, String planName,
+            String startTime, String deviceSerial) throws IOException {
+        File tmpFile = new File(reportDir, CHECKPOINT_FILE_NAME + ".tmp");
+        tmpFile.delete();
+        ResultCheckpoint snapshot = new ResultCheckpoint(tmpFile, Integer.MAX_VALUE,
+                Long.MAX_VALUE);
+        snapshot.mStream = new FileOutputStream(tmpFile);
+        try {
+            snapshot.startSession(planName, startTime, deviceSerial);
+            if (!results.getDeviceInfoMetrics().isEmpty()) {
+                snapshot.deviceInfoCollected(results.getDeviceInfoMetrics());
+            }
+            for (TestPackageResult pkg : results.getPackages()) {
+                List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+                for (CtsTestStatus status : CtsTestStatus.values()) {
+                    tests.addAll(pkg.getTestsWithStatus(status));
+                }
+                for (TestIdentifier test : tests) {
+                    Test result = pkg.findTest(test);
+                    if (!CtsTestStatus.NOT_EXECUTED.equals(result.getResult())) {
+                        snapshot.testEnded(pkg.getId(), test, result);
+                    }
+                    for (TestLog log : result.getTestLogs()) {
+                        snapshot.testLogSaved(pkg.getId(), test, log);
+                    }
+                }
+                snapshot.packageEnded(pkg, tests);
+            }
+            if (results.getRebootCount() > 0) {
+                snapshot.rebooted(results.getRebootCount(), results.getRebootTimeMs());
+            }
+            snapshot.endSession();
+            if (snapshot.mStream == null) {
+                throw new IOException("Failed to write checkpoint snapshot");
+            }
+        } finally {
+            snapshot.close();
+        }
+        if (!tmpFile.renameTo(new File(reportDir, CHECKPOINT_FILE_NAME))) {
+            tmpFile.delete();
+            throw new IOException(String.format("Could not rename %s", tmpFile.getPath()));
+        }
+    }
+
+    /**
+     * Read the checkpoint log of the given result directory.
+     *
+     * @param reportDir the result directory
+     * @return the {@link Replay} of the log
+     * @throws IOException if the log could not be read
+     */
+    static Replay replay(File reportDir) throws IOException {
+        File file = new File(reportDir, CHECKPOINT_FILE_NAME);
+        Replay replay = new Replay();
+        long validLength = readRecords(file, replay);
+        if (validLength < file.length()) {
+            CLog.w("Ignoring %d bytes of incomplete records at end of %s",
+                    file.length() - validLength, file.getPath());
+        }
+        replay.getResults().setComplete(replay.isComplete());
+        replay.getResults().setPlanName(replay.getPlanName());
+        return replay;
+    }
+
+    /**
+     * Check whether the last invocation recorded in the checkpoint log of the given result
+     * directory completed, by only looking at the last record.
+     */
+    static boolean isComplete(File reportDir) {
+        File file = new File(reportDir, CHECKPOINT_FILE_NAME);
+        byte[] expected = formatRecord(END_RECORD);
+        if (file.length() < expected.length) {
+            return false;
+        }
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            byte[] tail = new byte[expected.length];
+            input.seek(file.length() - expected.length);
+            input.readFully(tail);
+            if (!Arrays.equals(expected, tail)) {
+                return false;
+            }
+            // make sure the match is a whole record
+            if (file.length() == expected.length) {
+                return true;
+            }
+            input.seek(file.length() - expected.length - 1);
+            return input.read() == '\n';
+        } catch (IOException e) {
+            return false;
+        } finally {
+            StreamUtil.close(input);
+        }
+    }
+
+    /**
+     * Record the start of an invocation.
+     */
+    void startSession(String planName, String startTime, String deviceSerial) {
+        append(SESSION_RECORD, planName, startTime, deviceSerial);
+        sync();
+    }
+
+    /**
+     * Record the outcome of a test.
+     *
+     * @param pkgId the id of the package the test belongs to
+     * @param testId the {@link TestIdentifier} of the test
+     * @param test the {@link Test} result
+     */
+    void testEnded(String pkgId, TestIdentifier testId, Test test) {
+        append(TEST_RECORD, pkgId, testId.getClassName(), testId.getTestName(),
+                test.getResult().getValue(), test.getStartTime(), test.getEndTime(),
+                test.getMessage(), test.getStackTrace());
+        if (++mUnsyncedRecords >= mSyncRecords ||
+                System.currentTimeMillis() - mLastSyncTime >= mSyncIntervalMs) {
+            sync();
+        }
+    }
+
+    /**
+     * Record the end of a test run. Writes the package details, the performance results
+     * collected from the run metrics, and the tests of the run that did not complete.
+     *
+     * @param pkg the {@link TestPackageResult}
+     * @param tests the tests started in the run
+     */
+    void packageEnded(TestPackageResult pkg, Collection<TestIdentifier> tests) {
+        append(PACKAGE_RECORD, pkg.getId(), pkg.getName(), pkg.getDigest(),
+                Boolean.toString(pkg.isCached()));
+        for (TestIdentifier testId : tests) {
+            Test test = pkg.findTest(testId);
+            if (test == null) {
+                continue;
+            }
+            if (CtsTestStatus.NOT_EXECUTED.equals(test.getResult())) {
+                testEnded(pkg.getId(), testId, test);
+            }
+            if (test.getSummary() != null) {
+                append(PERF_RECORD, pkg.getId(), testId.getClassName(), testId.getTestName(),
+                        test.getSummary(), test.getDetails());
+            }
+        }
+        sync();
+    }
+
+    /**
+     * Record a log of a test.
+     *
+     * @param pkgId the id of the package the test belongs to
+     * @param testId the {@link TestIdentifier} of the test
+     * @param log the {@link TestLog}
+     */
+    void testLogSaved(String pkgId, TestIdentifier testId, TestLog log) {
+        append(LOG_RECORD, pkgId, testId.getClassName(), testId.getTestName(),
+                log.getTypeAttribute(), log.getUrl());
+    }
+
+    /**
+     * Record the device info collected by the invocation.
+     *
+     * @param metrics the device info metrics, as reported
+     */
+    void deviceInfoCollected(Map<String, String> metrics) {
+        List<String> fields = new ArrayList<String>(1 + 2 * metrics.size());
+        fields.add(DEVICE_INFO_RECORD);
+        for (Map.Entry<String, String> metric : metrics.entrySet()) {
+            fields.add(metric.getKey());
+            fields.add(metric.getValue());
+        }
+        append(fields.toArray(new String[fields.size()]));
+        sync();
+    }
+
+    /**
+     * Record the reboots of the session so far.
+     *
+     * @param count the number of reboots of the session
+     * @param timeMs the time the reboots of the session took in ms
+     */
+    void rebooted(int count, long timeMs) {
+        append(REBOOT_RECORD, Integer.toString(count), Long.toString(timeMs));
+    }
+
+    /**
+     * Record that the result XML of the invocation has been written.
+     */
+    void endSession() {
+        append(END_RECORD);
+        sync();
+    }
+
+    /**
+     * Sync and close the log.
+     */
+    void close() {
+        if (mStream != null) {
+            sync();
+            StreamUtil.close(mStream);
+            mStream = null;
+        }
+    }
+
+    private void append(String... fields) {
+        if (mStream == null) {
+            return;
+        }
+        try {
+            mStream.write(formatRecord(fields));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void sync() {
+        if (mStream == null) {
+            return;
+        }
+        try {
+            mStream.getFD().sync();
+            mUnsyncedRecords = 0;
+            mLastSyncTime = System.currentTimeMillis();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        CLog.e("Failed to write checkpoint %s, checkpointing stopped", mFile.getPath());
+        CLog.e(e);
+        StreamUtil.close(mStream);
+        mStream = null;
+    }
+
+    /**
+     * Format a record, including its checksum and trailing newline.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static byte[] formatRecord(String... fields) {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                payload.append(FIELD_SEPARATOR);
+            }
+            escape(payload, fields[i]);
+        }
+        byte[] payloadBytes = payload.toString().getBytes(UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes);
+        byte[] record = new byte[CRC_LENGTH + 1 + payloadBytes.length + 1];
+        String crcString = String.format("%08x", crc.getValue());
+        for (int i = 0; i < CRC_LENGTH; i++) {
+            record[i] = (byte)crcString.charAt(i);
+        }
+        record[CRC_LENGTH] = ' ';
+        System.arraycopy(payloadBytes, 0, record, CRC_LENGTH + 1, payloadBytes.length);
+        record[record.length - 1] = '\n';
+        return record;
+    }
+
+    /**
+     * Read the valid records of the given log.
+     *
+     * @param file the log file
+     * @param replay the {@link Replay} to apply the records to, or <code>null</code> to only
+     *            validate them
+     * @return the length in bytes of the valid records
+     */
+    private static long readRecords(File file, Replay replay) throws IOException {
+        InputStream input = new FileInputStream(file);
+        long validLength = 0;
+        try {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            // bytes of a record which started in an earlier read
+            ByteArrayOutputStream partial = new ByteArrayOutputStream();
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                int start = 0;
+                for (int i = 0; i < count; i++) {
+                    if (buffer[i] != '\n') {
+                        continue;
+                    }
+                    byte[] record;
+                    int offset;
+                    int length;
+                    if (partial.size() > 0) {
+                        partial.write(buffer, start, i - start);
+                        record = partial.toByteArray();
+                        offset = 0;
+                        length = record.length;
+                        partial.reset();
+                    } else {
+                        record = buffer;
+                        offset = start;
+                        length = i - start;
+                    }
+                    start = i + 1;
+                    List<String> fields = parseRecord(record, offset, length);
+                    if (fields == null) {
+                        CLog.w("Corrupt record at offset %d of %s", validLength, file.getPath());
+                        return validLength;
+                    }
+                    if (replay != null) {
+                        replay.handleRecord(fields);
+                    }
+                    validLength += length + 1;
+                }
+                partial.write(buffer, start, count - start);
+            }
+        } finally {
+            StreamUtil.close(input);
+        }
+        return validLength;
+    }
+
+    /**
+     * Verify and split a record, given without its trailing newline.
+     *
+     * @return the fields, or <code>null</code> if the record is corrupt
+     */
+    private static List<String> parseRecord(byte[] record, int offset, int length) {
+        if (length <= CRC_LENGTH + 1 || record[offset + CRC_LENGTH] != ' ') {
+            return null;
+        }
+        long expectedCrc;
+        try {
+            expectedCrc = Long.parseLong(new String(record, offset, CRC_LENGTH, UTF_8), 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        int payloadOffset = offset + CRC_LENGTH + 1;
+        int payloadLength = length - CRC_LENGTH - 1;
+        CRC32 crc = new CRC32();
+        crc.update(record, payloadOffset, payloadLength);
+        if (crc.getValue() != expectedCrc) {
+            return null;
+        }
+        String payload = new String(record, payloadOffset, payloadLength, UTF_8);
+        List<String> fields = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i <= payload.length(); i++) {
+            if (i == payload.length() || payload.charAt(i) == FIELD_SEPARATOR) {
+                fields.add(unescape(payload.substring(start, i)));
+                start = i + 1;
+            }
+        }
+        return fields;
+    }
+
+    private static void escape(StringBuilder builder, String field) {
+        if (field == null) {
+            builder.append(NULL_FIELD);
+            return;
+        }
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String field) {
+        if (NULL_FIELD.equals(field)) {
+            return null;
+        }
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder builder = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char next = field.charAt(++i);
+                switch (next) {
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    default:
+                        builder.append(next);
+                }
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The {@link TestHistory} of every test across the sessions of a results directory, for
+ * finding flaky, regressed and slower tests.
+ * <p/>
+ * Sessions are read from their {@link ResultArchive}, several at a time, and merged in
+ * chronological order. Only a few sessions are held in memory at once, and the history of each
+ * test is kept as running totals, so memory does not grow with the number of sessions. Sessions
+ * without a current archive are skipped; 'archive results' creates the missing archives.
+ */
+public class ResultHistory {
+
+    private static final Comparator<TestHistory> TEST_ORDER = new Comparator<TestHistory>() {
+        @Override
+        public int compare(TestHistory h1, TestHistory h2) {
+            int result = h1.getPackageId().compareTo(h2.getPackageId());
+            if (result == 0) {
+                result = h1.getTest().toString().compareTo(h2.getTest().toString());
+            }
+            return result;
+        }
+    };
+
+    /** map of package id to the histories of its tests */
+    private final Map<String, Map<TestIdentifier, TestHistory>> mHistories =
+            new TreeMap<String, Map<TestIdentifier, TestHistory>>();
+    private final String mSinceBuild;
+    private boolean mRecent;
+    private int mSessionCount = 0;
+    private int mSkippedCount = 0;
+
+    /**
+     * Create an empty {@link ResultHistory}.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param sinceBuild the build fingerprint, or part of it, from which on runs are counted as
+     * recent. If <code>null</code>, all runs are recent.
+     */
+    ResultHistory(String sinceBuild) {
+        mSinceBuild = sinceBuild;
+        mRecent = sinceBuild == null;
+    }
+
+    /**
+     * Load the history of all archived sessions in the given results directory.
+     *
+     * @param resultsDir the parent directory of session results
+     * @param sinceBuild the build fingerprint, or part of it, from which on runs are counted as
+     * recent. If <code>null</code>, all runs are recent.
+     * @param threads the number of sessions to read in parallel
+     * @return the {@link ResultHistory}. Empty if no sessions could be read.
+     */
+    public static ResultHistory load(File resultsDir, String sinceBuild, int threads) {
+        ResultHistory history = new ResultHistory(sinceBuild);
+        File[] sessionDirs = resultsDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        });
+        if (sessionDirs == null) {
+            return history;
+        }
+        // result directory names are timestamps, so name order is chronological
+        Arrays.sort(sessionDirs);
+        List<File> archived = new ArrayList<File>(sessionDirs.length);
+        for (File sessionDir : sessionDirs) {
+            if (ResultArchive.isCurrent(sessionDir)) {
+                archived.add(sessionDir);
+            } else if (ResultArchive.exists(sessionDir) || ResultCheckpoint.exists(sessionDir) ||
+                    new File(sessionDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME).exists()) {
+                history.mSkippedCount++;
+            }
+        }
+        history.scanSessions(archived, Math.max(1, threads));
+        return history;
+    }
+
+    private void scanSessions(List<File> sessionDirs, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ResultHistory");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            // keep one session ahead of the workers, so they never wait for the merge
+            Deque<Future<SessionScan>> pending = new ArrayDeque<Future<SessionScan>>();
+            int next = 0;
+            while (next < sessionDirs.size() || !pending.isEmpty()) {
+                while (next < sessionDirs.size() && pending.size() <= threads) {
+                    pending.add(executor.submit(new SessionScan(sessionDirs.get(next++))));
+                }
+                Future<SessionScan> scan = pending.remove();
+                try {
+                    addSession(scan.get());
+                } catch (ExecutionException e) {
+                    CLog.w("Failed to read session history: %s", e.getCause().getMessage());
+                    mSkippedCount++;
+                }
+            }
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while reading session history");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void addSession(SessionScan scan) {
+        addSession(scan.mBuild);
+        for (int i = 0; i < scan.mCount; i++) {
+            addRun(scan.mPkgIds[i], scan.mTests[i], scan.mBuild,
+                    CtsTestStatus.values()[scan.mStatus[i]], scan.mDurations[i]);
+        }
+    }
+
+    /**
+     * Start the next session. Sessions must be added in chronological order.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void addSession(String build) {
+        mSessionCount++;
+        if (!mRecent && build != null && build.contains(mSinceBuild)) {
+            mRecent = true;
+        }
+    }
+
+    /**
+     * Add a run of a test to the current session.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void addRun(String pkgId, TestIdentifier test, String build, CtsTestStatus status,
+            long durationMs) {
+        Map<TestIdentifier, TestHistory> pkgHistories = mHistories.get(pkgId);
+        if (pkgHistories == null) {
+            pkgHistories = new HashMap<TestIdentifier, TestHistory>();
+            mHistories.put(pkgId, pkgHistories);
+        }
+        TestHistory history = pkgHistories.get(test);
+        if (history == null) {
+            history = new TestHistory(pkgId, test);
+            pkgHistories.put(test, history);
+        }
+        history.addRun(mSessionCount, build, mRecent, status, durationMs);
+    }
+
+    /**
+     * @return the number of sessions read
+     */
+    public int getSessionCount() {
+        return mSessionCount;
+    }
+
+    /**
+     * @return the number of sessions skipped, because they had no current archive or it could
+     * not be read
+     */
+    public int getSkippedSessionCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * @return the {@link TestHistory} of the given test, or <code>null</code> if it never ran
+     */
+    public TestHistory getHistory(String pkgId, TestIdentifier test) {
+        Map<TestIdentifier, TestHistory> pkgHistories = mHistories.get(pkgId);
+        return pkgHistories == null ? null : pkgHistories.get(test);
+    }
+
+    /**
+     * @return the tests which both passed and failed and changed status at least once, most
+     * frequently flipping first
+     */
+    public List<TestHistory> getFlakyTests() {
+        List<TestHistory> flaky = new ArrayList<TestHistory>();
+        for (TestHistory history : getAll()) {
+            if (history.isFlaky()) {
+                flaky.add(history);
+            }
+        }
+        Collections.sort(flaky, new Comparator<TestHistory>() {
+            @Override
+            public int compare(TestHistory h1, TestHistory h2) {
+                return Double.compare(h2.getTotal().getFlipRate(),
+                        h1.getTotal().getFlipRate());
+            }
+        });
+        return flaky;
+    }
+
+    /**
+     * @return the tests which flip status more often in the recent runs than in the baseline,
+     * largest increase first
+     */
+    public List<TestHistory> getFlakierTests() {
+        List<TestHistory> flakier = new ArrayList<TestHistory>();
+        for (TestHistory history : getAll()) {
+            if (getFlipRateIncrease(history) > 0) {
+                flakier.add(history);
+            }
+        }
+        Collections.sort(flakier, new Comparator<TestHistory>() {
+            @Override
+            public int compare(TestHistory h1, TestHistory h2) {
+                return Double.compare(getFlipRateIncrease(h2), getFlipRateIncrease(h1));
+            }
+        });
+        return flakier;
+    }
+
+    private static double getFlipRateIncrease(TestHistory history) {
+        return history.getRecent().getFlipRate() - history.getBaseline().getFlipRate();
+    }
+
+    /**
+     * @param minRatio the minimum ratio of the recent to the baseline mean duration
+     * @param minDeltaMs the minimum increase of the mean duration in ms
+     * @return the tests whose recent mean duration grew by both the given ratio and delta over
+     * their baseline, largest increase first
+     */
+    public List<TestHistory> getSlowerTests(double minRatio, long minDeltaMs) {
+        List<TestHistory> slower = new ArrayList<TestHistory>();
+        for (TestHistory history : getAll()) {
+            long baselineMs = history.getBaseline().getMeanDurationMs();
+            long recentMs = history.getRecent().getMeanDurationMs();
+            if (baselineMs >= 0 && recentMs >= 0 && recentMs >= baselineMs * minRatio &&
+                    recentMs - baselineMs >= minDeltaMs) {
+                slower.add(history);
+            }
+        }
+        Collections.sort(slower, new Comparator<TestHistory>() {
+            @Override
+            public int compare(TestHistory h1, TestHistory h2) {
+                return Long.compare(getSlowdownMs(h2), getSlowdownMs(h1));
+            }
+        });
+        return slower;
+    }
+
+    private static long getSlowdownMs(TestHistory history) {
+        return history.getRecent().getMeanDurationMs() -
+                history.getBaseline().getMeanDurationMs();
+    }
+
+    /**
+     * @return at most <var>count</var> tests with the longest recent mean duration, slowest
+     * first
+     */
+    public List<TestHistory> getSlowestTests(int count) {
+        List<TestHistory> slowest = new ArrayList<TestHistory>();
+        for (TestHistory history : getAll()) {
+            if (history.getRecent().getMeanDurationMs() >= 0) {
+                slowest.add(history);
+            }
+        }
+        Collections.sort(slowest, new Comparator<TestHistory>() {
+            @Override
+            public int compare(TestHistory h1, TestHistory h2) {
+                return Long.compare(h2.getRecent().getMeanDurationMs(),
+                        h1.getRecent().getMeanDurationMs());
+            }
+        });
+        return slowest.size() > count ? slowest.subList(0, count) : slowest;
+    }
+
+    /**
+     * @return the tests which failed in their last run after having passed before
+     */
+    public List<TestHistory> getRegressedTests() {
+        List<TestHistory> regressed = new ArrayList<TestHistory>();
+        for (TestHistory history : getAll()) {
+            if (history.isRegressed()) {
+                regressed.add(history);
+            }
+        }
+        return regressed;
+    }
+
+    /**
+     * @return all histories, ordered by package and test
+     */
+    private List<TestHistory> getAll() {
+        List<TestHistory> all = new ArrayList<TestHistory>();
+        for (Map<TestIdentifier, TestHistory> pkgHistories : mHistories.values()) {
+            List<TestHistory> pkgList = new ArrayList<TestHistory>(pkgHistories.values());
+            Collections.sort(pkgList, TEST_ORDER);
+            all.addAll(pkgList);
+        }
+        return all;
+    }
+
+    /**
+     * Reads the tests of one session from its archive into compact arrays, to be merged in
+     * session order.
+     */
+    private static class SessionScan implements Callable<SessionScan>,
+            ResultArchive.TestVisitor {
+        private final File mSessionDir;
+        private String mBuild = null;
+        private int mCount = 0;
+        private String[] mPkgIds = new String[256];
+        private TestIdentifier[] mTests = new TestIdentifier[256];
+        private byte[] mStatus = new byte[256];
+        private long[] mDurations = new long[256];
+
+        SessionScan(File sessionDir) {
+            mSessionDir = sessionDir;
+        }
+
+        @Override
+        public SessionScan call() throws IOException {
+            mBuild = ResultArchive.scan(mSessionDir, this);
+            return this;
+        }
+
+        @Override
+        public void visitTest(String pkgId, TestIdentifier test, CtsTestStatus status,
+                long durationMs) {
+            if (mCount == mTests.length) {
+                int size = mCount * 2;
+                mPkgIds = Arrays.copyOf(mPkgIds, size);
+                mTests = Arrays.copyOf(mTests, size);
+                mStatus = Arrays.copyOf(mStatus, size);
+                mDurations = Arrays.copyOf(mDurations, size);
+            }
+            mPkgIds[mCount] = pkgId;
+            mTests[mCount] = test;
+            mStatus[mCount] = (byte)status.ordinal();
+            mDurations[mCount] = durationMs;
+            mCount++;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import org.kxml2.io.KXmlSerializer;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Holds finished {@link TestPackageResult}s on disk, so the result of a session does not have to
+ * be kept in memory until the end of the invocation.
+ * <p/>
+ * Each package is written to its own fragment file, as a complete result document containing
+ * only that package. The byte range of the package XML within the fragment is recorded, so the
+ * final report can copy it verbatim instead of parsing it back. Only the test counts of a
+ * journaled package stay in memory.
+ * <p/>
+ * Fragments are serialized at the same depth and with the same settings as the final report, so
+ * a journaled package produces exactly the same bytes as an in-memory one.
+ */
+class ResultJournal {
+
+    private static final String ns = CtsXmlResultReporter.ns;
+    private static final String ENCODING = "UTF-8";
+    private static final String FRAGMENT_PREFIX = "package-";
+    private static final String FRAGMENT_SUFFIX = ".xml";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final File mDir;
+    /** map of package id to its fragment, sorted by id like the final report */
+    private final Map<String, Fragment> mFragments = new TreeMap<String, Fragment>();
+    /** the test counts of all fragments, indexed by {@link CtsTestStatus} ordinal */
+    private final int[] mCounts = new int[CtsTestStatus.values().length];
+    private int mNextFragment = 0;
+
+    /**
+     * The location of a journaled package.
+     */
+    private static class Fragment {
+        final File mFile;
+        final long mStart;
+        final long mEnd;
+        final int[] mCounts;
+
+        Fragment(File file, long start, long end, int[] counts) {
+            mFile = file;
+            mStart = start;
+            mEnd = end;
+            mCounts = counts;
+        }
+    }
+
+    /**
+     * Create a {@link ResultJournal} that stores its fragments in given directory.
+     *
+     * @param dir the directory to use. Will be created if it does not exist.
+     * @throws IOException if the directory could not be created
+     */
+    ResultJournal(File dir) throws IOException {
+        mDir = dir;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException(String.format("Could not create journal directory %s",
+                    mDir.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * @return the directory the fragments are stored in
+     */
+    File getDir() {
+        return mDir;
+    }
+
+    /**
+     * Write the given package to the journal. Replaces any previous fragment of the same package.
+     *
+     * @param pkg the {@link TestPackageResult} to write
+     * @throws IOException if the package could not be written
+     */
+    void write(TestPackageResult pkg) throws IOException {
+        File fragmentFile = new File(mDir, String.format("%s%d%s", FRAGMENT_PREFIX,
+                mNextFragment++, FRAGMENT_SUFFIX));
+        File tmpFile = new File(mDir, fragmentFile.getName() + TMP_SUFFIX);
+        FileOutputStream stream = null;
+        long start;
+        long end;
+        try {
+            stream = new FileOutputStream(tmpFile);
+            KXmlSerializer serializer = new KXmlSerializer();
+            serializer.setOutput(stream, ENCODING);
+            serializer.startDocument(ENCODING, false);
+            serializer.setFeature(
+                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            serializer.startTag(ns, CtsXmlResultReporter.RESULT_TAG);
+            serializer.flush();
+            start = stream.getChannel().position();
+            pkg.serialize(serializer);
+            serializer.flush();
+            end = stream.getChannel().position();
+            serializer.endTag(ns, CtsXmlResultReporter.RESULT_TAG);
+            serializer.endDocument();
+        } finally {
+            StreamUtil.close(stream);
+        }
+        if (!tmpFile.renameTo(fragmentFile)) {
+            tmpFile.delete();
+            throw new IOException(String.format("Could not rename %s", tmpFile.getName()));
+        }
+        int[] counts = new int[CtsTestStatus.values().length];
+        for (CtsTestStatus status : CtsTestStatus.values()) {
+            counts[status.ordinal()] = pkg.countTests(status);
+        }
+        Fragment previous = mFragments.put(pkg.getId(),
+                new Fragment(fragmentFile, start, end, counts));
+        addCounts(counts, 1);
+        if (previous != null) {
+            addCounts(previous.mCounts, -1);
+            previous.mFile.delete();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the package with given id is in the journal
+     */
+    boolean contains(String id) {
+        return mFragments.containsKey(id);
+    }
+
+    /**
+     * @return the ids of the journaled packages, in sorted order
+     */
+    Set<String> getPackageIds() {
+        return mFragments.keySet();
+    }
+
+    /**
+     * Remove the package with given id from the journal, and parse it back into memory.
+     *
+     * @param id the package id
+     * @return the {@link TestPackageResult}, or <code>null</code> if the package was not
+     * journaled or could not be read
+     */
+    TestPackageResult remove(String id) {
+        Fragment fragment = mFragments.remove(id);
+        if (fragment == null) {
+            return null;
+        }
+        addCounts(fragment.mCounts, -1);
+        try {
+            return parseFragment(fragment);
+        } finally {
+            fragment.mFile.delete();
+        }
+    }
+
+    /**
+     * Parse the package with given id from the journal, leaving it journaled.
+     *
+     * @param id the package id
+     * @return the {@link TestPackageResult}, or <code>null</code> if the package was not
+     * journaled or could not be read
+     */
+    TestPackageResult read(String id) {
+        Fragment fragment = mFragments.get(id);
+        return fragment == null ? null : parseFragment(fragment);
+    }
+
+    private TestPackageResult parseFragment(Fragment fragment) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(fragment.mFile), ENCODING));
+            XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+            parser.setInput(reader);
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG &&
+                        parser.getName().equals(TestPackageResult.TAG)) {
+                    TestPackageResult pkg = new TestPackageResult();
+                    pkg.parse(parser);
+                    return pkg;
+                }
+                eventType = parser.next();
+            }
+            CLog.e("No package found in journal fragment %s", fragment.mFile.getName());
+        } catch (XmlPullParserException e) {
+            CLog.e("Failed to parse journal fragment %s", fragment.mFile.getName());
+            CLog.e(e);
+        } catch (IOException e) {
+            CLog.e("Failed to read journal fragment %s", fragment.mFile.getName());
+            CLog.e(e);
+        } finally {
+            StreamUtil.close(reader);
+        }
+        return null;
+    }
+
+    /**
+     * Count the number of journaled tests with given status.
+     */
+    int countTests(CtsTestStatus status) {
+        return mCounts[status.ordinal()];
+    }
+
+    private void addCounts(int[] counts, int sign) {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] += sign * counts[i];
+        }
+    }
+
+    /**
+     * Copy the serialized XML of the package with given id to the given stream.
+     *
+     * @param id the package id
+     * @param output the {@link OutputStream} to write to
+     * @throws IOException if the fragment could not be copied
+     */
+    void copyPackage(String id, OutputStream output) throws IOException {
+        Fragment fragment = mFragments.get(id);
+        if (fragment == null) {
+            throw new IOException(String.format("Package %s is not journaled", id));
+        }
+        InputStream input = null;
+        try {
+            input = new FileInputStream(fragment.mFile);
+            long skipped = 0;
+            while (skipped < fragment.mStart) {
+                long count = input.skip(fragment.mStart - skipped);
+                if (count <= 0) {
+                    throw new IOException(String.format("Journal fragment %s is truncated",
+                            fragment.mFile.getName()));
+                }
+                skipped += count;
+            }
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long remaining = fragment.mEnd - fragment.mStart;
+            while (remaining > 0) {
+                int count = input.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (count < 0) {
+                    throw new IOException(String.format("Journal fragment %s is truncated",
+                            fragment.mFile.getName()));
+                }
+                output.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            StreamUtil.close(input);
+        }
+    }
+
+    /**
+     * Delete the journal and all its fragments.
+     */
+    void delete() {
+        mFragments.clear();
+        Arrays.fill(mCounts, 0);
+        FileUtil.recursiveDelete(mDir);
+    }
+}
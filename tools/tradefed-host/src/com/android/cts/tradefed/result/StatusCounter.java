@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+/**
+ * Per-status counts of the tests below a node of the result tree.
+ * <p/>
+ * Counters are linked to the counter of their parent node, and every change is applied to all
+ * the ancestors too. Counting tests is then O(1) at every level, at the cost of a walk up the
+ * tree on each status change.
+ */
+class StatusCounter {
+
+    private final int[] mCounts = new int[CtsTestStatus.values().length];
+    private StatusCounter mParent = null;
+
+    /**
+     * Link this counter to the given parent, adding its counts to the parent and its ancestors.
+     * A counter that was already linked is unlinked from its previous parent first.
+     */
+    void attach(StatusCounter parent) {
+        detach();
+        mParent = parent;
+        for (CtsTestStatus status : CtsTestStatus.values()) {
+            parent.add(status, mCounts[status.ordinal()]);
+        }
+    }
+
+    /**
+     * Unlink this counter from its parent, removing its counts from the parent and its
+     * ancestors.
+     */
+    void detach() {
+        if (mParent != null) {
+            for (CtsTestStatus status : CtsTestStatus.values()) {
+                mParent.add(status, -mCounts[status.ordinal()]);
+            }
+            mParent = null;
+        }
+    }
+
+    /**
+     * Add <var>delta</var> tests with given status. A <code>null</code> status is not counted.
+     */
+    void add(CtsTestStatus status, int delta) {
+        if (status == null || delta == 0) {
+            return;
+        }
+        for (StatusCounter counter = this; counter != null; counter = counter.mParent) {
+            counter.mCounts[status.ordinal()] += delta;
+        }
+    }
+
+    /**
+     * Move a test from one status to another.
+     */
+    void update(CtsTestStatus from, CtsTestStatus to) {
+        if (from != to) {
+            add(from, -1);
+            add(to, 1);
+        }
+    }
+
+    /**
+     * @return the number of tests with given status
+     */
+    int get(CtsTestStatus status) {
+        return mCounts[status.ordinal()];
+    }
+}
@@ -24,6 +24,7 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -49,6 +50,9 @@ class Test extends AbstractXmlPullParser {
     // separators for the message
     private static final String LOG_SEPARATOR = "\\+\\+\\+";
     private static final String LOG_ELEM_SEPARATOR = "\\|";
+    // the same separators, used to rebuild the message from parsed XML
+    private static final String LOG_SEPARATOR_TEXT = "+++";
+    private static final String LOG_ELEM_SEPARATOR_TEXT = "|";
 
     private String mName;
     private CtsTestStatus mResult;
@@ -66,6 +70,9 @@ class Test extends AbstractXmlPullParser {
      */
     private List<TestLog> mTestLogs;
 
+    // the counter of the test case this test belongs to, which is kept up to date with mResult
+    private StatusCounter mCounter = null;
+
     /**
      * Create an empty {@link Test}
      */
@@ -91,6 +98,13 @@ class Test extends AbstractXmlPullParser {
         addTestLogLocked(testLog);
     }
 
+    /**
+     * @return a copy of the test logs of this Test
+     */
+    public List<TestLog> getTestLogs() {
+        return getTestLogsLocked();
+    }
+
     /**
      * Set the name of this {@link Test}
      */
@@ -125,6 +139,14 @@ class Test extends AbstractXmlPullParser {
         return mEndTime;
     }
 
+    public void setStartTime(String startTime) {
+        mStartTime = startTime;
+    }
+
+    public void setEndTime(String endTime) {
+        mEndTime = endTime;
+    }
+
     public String getStackTrace() {
         return mStackTrace;
     }
@@ -156,9 +178,26 @@ class Test extends AbstractXmlPullParser {
     }
 
     public void setResultStatus(CtsTestStatus status) {
+        if (mCounter != null) {
+            mCounter.update(mResult, status);
+        }
         mResult = status;
     }
 
+    /**
+     * Set the {@link StatusCounter} of the test case this test was added to, or
+     * <code>null</code> if it was removed from it.
+     */
+    void setCounter(StatusCounter counter) {
+        if (mCounter != null) {
+            mCounter.add(mResult, -1);
+        }
+        mCounter = counter;
+        if (mCounter != null) {
+            mCounter.add(mResult, 1);
+        }
+    }
+
     /**
      * Serialize this object and all its contents to XML.
      *
@@ -340,6 +379,7 @@ class Test extends AbstractXmlPullParser {
         mStartTime = getAttribute(parser, STARTTIME_ATTR);
         mEndTime = getAttribute(parser, ENDTIME_ATTR);
 
+        StringBuilder details = new StringBuilder();
         int eventType = parser.next();
         while (eventType != XmlPullParser.END_DOCUMENT) {
             if (eventType == XmlPullParser.START_TAG && parser.getName().equals(SCENE_TAG)) {
@@ -348,13 +388,67 @@ class Test extends AbstractXmlPullParser {
                 mStackTrace = parser.nextText();
             } else if (eventType == XmlPullParser.START_TAG && TestLog.isTag(parser.getName())) {
                 parseTestLog(parser);
+            } else if (eventType == XmlPullParser.START_TAG &&
+                    parser.getName().equals(SUMMARY_TAG)) {
+                mSummary = joinElems(getAttribute(parser, MESSAGE_ATTR),
+                        getAttribute(parser, TARGET_ATTR), getAttribute(parser, SCORETYPE_ATTR),
+                        getAttribute(parser, UNIT_ATTR), parser.nextText());
+            } else if (eventType == XmlPullParser.START_TAG &&
+                    parser.getName().equals(VALUEARRAY_TAG)) {
+                if (details.length() > 0) {
+                    details.append(LOG_SEPARATOR_TEXT);
+                }
+                details.append(parseValueArray(parser));
             } else if (eventType == XmlPullParser.END_TAG && parser.getName().equals(TAG)) {
+                if (details.length() > 0) {
+                    mDetails = details.toString();
+                }
                 return;
             }
             eventType = parser.next();
         }
     }
 
+    /**
+     * Rebuild a performance detail in the format passed from cts from a ValueArray tag, so the
+     * result can be serialized again.
+     *
+     * @param parser the {@link XmlPullParser}, pointing at the start of a ValueArray tag
+     */
+    private String parseValueArray(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        String source = getAttribute(parser, SOURCE_ATTR);
+        String message = getAttribute(parser, MESSAGE_ATTR);
+        String scoreType = getAttribute(parser, SCORETYPE_ATTR);
+        String unit = getAttribute(parser, UNIT_ATTR);
+        StringBuilder values = new StringBuilder();
+        int eventType = parser.next();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG && parser.getName().equals(VALUE_TAG)) {
+                if (values.length() > 0) {
+                    values.append(' ');
+                }
+                values.append(parser.nextText());
+            } else if (eventType == XmlPullParser.END_TAG &&
+                    parser.getName().equals(VALUEARRAY_TAG)) {
+                break;
+            }
+            eventType = parser.next();
+        }
+        return joinElems(source, message, scoreType, unit, values.toString());
+    }
+
+    private static String joinElems(String... elems) {
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < elems.length; i++) {
+            if (i > 0) {
+                joined.append(LOG_ELEM_SEPARATOR_TEXT);
+            }
+            joined.append(elems[i] == null ? "" : elems[i]);
+        }
+        return joined.toString();
+    }
+
     /** Parse a TestLog entry from the parser positioned at a TestLog tag. */
     private void parseTestLog(XmlPullParser parser) throws XmlPullParserException{
         TestLog log = TestLog.fromXml(parser);
@@ -372,6 +466,14 @@ class Test extends AbstractXmlPullParser {
         mTestLogs.add(testLog);
     }
 
+    /** Copy the TestLogs of this test in a thread safe manner. */
+    private synchronized List<TestLog> getTestLogsLocked() {
+        if (mTestLogs == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(mTestLogs);
+    }
+
     /** Serialize the TestLogs of this test in a thread safe manner. */
     private synchronized void serializeTestLogsLocked(KXmlSerializer serializer) throws IOException {
         if (mTestLogs != null) {
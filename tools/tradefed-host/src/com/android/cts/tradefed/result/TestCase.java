@@ -38,6 +38,7 @@ class TestCase extends AbstractXmlPullParser {
     private String mName;
 
     Map<String, Test> mChildTestMap = new LinkedHashMap<String, Test>();
+    private final StatusCounter mCounter = new StatusCounter();
 
     /**
      * Create a {@link TestCase}
@@ -74,11 +75,29 @@ class TestCase extends AbstractXmlPullParser {
         Test t = mChildTestMap.get(testName);
         if (t == null && insertIfMissing) {
             t = new Test(testName);
-            mChildTestMap.put(t.getName(), t);
+            insertTest(t);
         }
         return t;
     }
 
+    /**
+     * Adds a child {@link Test}, replacing any with the same name.
+     */
+    private void insertTest(Test test) {
+        Test previous = mChildTestMap.put(test.getName(), test);
+        if (previous != null && previous != test) {
+            previous.setCounter(null);
+        }
+        test.setCounter(mCounter);
+    }
+
+    /**
+     * @return the {@link StatusCounter} of the tests in this {@link TestCase}
+     */
+    StatusCounter getCounter() {
+        return mCounter;
+    }
+
     /**
      * Serialize this object and all its contents to XML.
      *
@@ -114,7 +133,7 @@ class TestCase extends AbstractXmlPullParser {
             if (eventType == XmlPullParser.START_TAG && parser.getName().equals(Test.TAG)) {
                 Test test = new Test();
                 test.parse(parser);
-                mChildTestMap.put(test.getName(), test);
+                insertTest(test);
             } else if (eventType == XmlPullParser.END_TAG && parser.getName().equals(TAG)) {
                 return;
             }
@@ -153,12 +172,6 @@ class TestCase extends AbstractXmlPullParser {
      * @return the test count
      */
     public int countTests(CtsTestStatus status) {
-        int total = 0;
-        for (Test test : mChildTestMap.values()) {
-            if (test.getResult().equals(status)) {
-                total++;
-            }
-        }
-        return total;
+        return mCounter.get(status);
     }
 }
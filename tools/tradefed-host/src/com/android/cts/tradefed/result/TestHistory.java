@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+/**
+ * The history of one test across sessions, as collected by {@link ResultHistory}.
+ * <p/>
+ * Only executed runs, ie passes and failures, are counted. The history is kept as running
+ * totals, so its size does not depend on the number of sessions. Runs are split into a baseline
+ * and a recent window, so a test can be compared against itself before a given build.
+ */
+public class TestHistory {
+
+    /**
+     * Running totals of the runs of a test within one window.
+     */
+    public static class Stats {
+        private int mRuns = 0;
+        private int mPasses = 0;
+        private int mFlips = 0;
+        private int mDurationCount = 0;
+        private long mDurationTotalMs = 0;
+
+        void addRun(boolean passed, boolean flipped, long durationMs) {
+            mRuns++;
+            if (passed) {
+                mPasses++;
+            }
+            if (flipped) {
+                mFlips++;
+            }
+            if (durationMs >= 0) {
+                mDurationCount++;
+                mDurationTotalMs += durationMs;
+            }
+        }
+
+        public int getRuns() {
+            return mRuns;
+        }
+
+        public int getPasses() {
+            return mPasses;
+        }
+
+        public int getFailures() {
+            return mRuns - mPasses;
+        }
+
+        /**
+         * @return the number of runs whose status differs from the run before it
+         */
+        public int getFlips() {
+            return mFlips;
+        }
+
+        /**
+         * @return the fraction of runs which passed, or 0 if there were no runs
+         */
+        public double getPassRate() {
+            return mRuns == 0 ? 0 : (double)mPasses / mRuns;
+        }
+
+        /**
+         * @return the fraction of runs whose status flipped, or 0 if there were no runs
+         */
+        public double getFlipRate() {
+            return mRuns == 0 ? 0 : (double)mFlips / mRuns;
+        }
+
+        /**
+         * @return the mean duration in ms, or -1 if no duration is known
+         */
+        public long getMeanDurationMs() {
+            return mDurationCount == 0 ? -1 : mDurationTotalMs / mDurationCount;
+        }
+    }
+
+    private final String mPkgId;
+    private final TestIdentifier mTest;
+    private final Stats mBaseline = new Stats();
+    private final Stats mRecent = new Stats();
+    private final Stats mTotal = new Stats();
+    private CtsTestStatus mLastStatus = null;
+    private String mLastPassedBuild = null;
+    private String mFailingSinceBuild = null;
+    private String mFirstFailedBuild = null;
+
+    // least squares fit of the duration against the session index
+    private int mTrendCount = 0;
+    private double mSumX = 0;
+    private double mSumY = 0;
+    private double mSumXY = 0;
+    private double mSumXX = 0;
+
+    TestHistory(String pkgId, TestIdentifier test) {
+        mPkgId = pkgId;
+        mTest = test;
+    }
+
+    /**
+     * Add a run of the test. Runs must be added in session order.
+     *
+     * @param sessionIndex the index of the session, increasing with time
+     * @param build the build fingerprint of the session, or <code>null</code> if unknown
+     * @param recent <code>true</code> if the run belongs to the recent window
+     * @param status the status of the test in the session
+     * @param durationMs the duration of the test in ms, or -1 if unknown
+     */
+    void addRun(int sessionIndex, String build, boolean recent, CtsTestStatus status,
+            long durationMs) {
+        if (CtsTestStatus.NOT_EXECUTED.equals(status)) {
+            return;
+        }
+        boolean passed = CtsTestStatus.PASS.equals(status);
+        boolean flipped = mLastStatus != null && !mLastStatus.equals(status);
+        (recent ? mRecent : mBaseline).addRun(passed, flipped, durationMs);
+        mTotal.addRun(passed, flipped, durationMs);
+        if (passed) {
+            mLastPassedBuild = build;
+            mFailingSinceBuild = null;
+        } else {
+            if (mFailingSinceBuild == null) {
+                mFailingSinceBuild = build;
+            }
+            if (mFirstFailedBuild == null) {
+                mFirstFailedBuild = build;
+            }
+        }
+        mLastStatus = status;
+        if (durationMs >= 0) {
+            mTrendCount++;
+            mSumX += sessionIndex;
+            mSumY += durationMs;
+            mSumXY += (double)sessionIndex * durationMs;
+            mSumXX += (double)sessionIndex * sessionIndex;
+        }
+    }
+
+    public String getPackageId() {
+        return mPkgId;
+    }
+
+    public TestIdentifier getTest() {
+        return mTest;
+    }
+
+    /**
+     * @return the {@link Stats} of the runs before the build the history was split at
+     */
+    public Stats getBaseline() {
+        return mBaseline;
+    }
+
+    /**
+     * @return the {@link Stats} of the runs from the build the history was split at, or of all
+     * runs if it was not split
+     */
+    public Stats getRecent() {
+        return mRecent;
+    }
+
+    /**
+     * @return the {@link Stats} of all runs
+     */
+    public Stats getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @return the status of the last executed run, or <code>null</code> if it never ran
+     */
+    public CtsTestStatus getLastStatus() {
+        return mLastStatus;
+    }
+
+    /**
+     * @return <code>true</code> if the test has both passed and failed, and changed status
+     * at least once
+     */
+    public boolean isFlaky() {
+        return mTotal.getFlips() > 0 && mTotal.getPasses() > 0 && mTotal.getFailures() > 0;
+    }
+
+    /**
+     * @return <code>true</code> if the test currently fails after having passed before
+     */
+    public boolean isRegressed() {
+        return CtsTestStatus.FAIL.equals(mLastStatus) && mLastPassedBuild != null;
+    }
+
+    /**
+     * @return the build of the first run of the current streak of failures, or
+     * <code>null</code> if the test passed last or the build is unknown
+     */
+    public String getFailingSinceBuild() {
+        return mFailingSinceBuild;
+    }
+
+    /**
+     * @return the build of the first failed run, or <code>null</code> if the test never failed
+     * or the build is unknown
+     */
+    public String getFirstFailedBuild() {
+        return mFirstFailedBuild;
+    }
+
+    /**
+     * @return the change of the duration in ms per session, fitted over all runs with a known
+     * duration, or 0 if there are fewer than two
+     */
+    public double getDurationTrendMs() {
+        double denominator = mTrendCount * mSumXX - mSumX * mSumX;
+        if (mTrendCount < 2 || denominator == 0) {
+            return 0;
+        }
+        return (mTrendCount * mSumXY - mSumX * mSumY) / denominator;
+    }
+}
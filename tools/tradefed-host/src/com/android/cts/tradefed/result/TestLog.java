@@ -95,12 +95,17 @@ class TestLog {
     /** Create a TestLog from XML given a XmlPullParser positioned at the TestLog tag. */
     @Nullable
     static TestLog fromXml(XmlPullParser parser) {
-        String type = parser.getAttributeValue(null, TYPE_ATTR);
+        return fromAttributes(parser.getAttributeValue(null, TYPE_ATTR),
+                parser.getAttributeValue(null, URL_ATTR));
+    }
+
+    /** Create a TestLog from the values of its type and url attributes. */
+    @Nullable
+    static TestLog fromAttributes(String type, String url) {
         if (type == null) {
             return null;
         }
 
-        String url = parser.getAttributeValue(null, URL_ATTR);
         if (url == null) {
             return null;
         }
@@ -128,6 +133,11 @@ class TestLog {
         return mLogType;
     }
 
+    /** Returns the value of the type attribute of this TestLog. */
+    String getTypeAttribute() {
+        return mLogType.getAttrValue();
+    }
+
     /** Returns this TestLog's URL. */
     String getUrl() {
         return mUrl;
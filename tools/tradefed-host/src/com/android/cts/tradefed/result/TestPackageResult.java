@@ -27,12 +27,12 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -51,6 +51,7 @@ class TestPackageResult extends AbstractXmlPullParser {
     private static final String APP_PACKAGE_NAME_ATTR = "appPackageName";
     private static final String NAME_ATTR = "name";
     private static final String ABI_ATTR = "abi";
+    private static final String CACHED_ATTR = "cached";
     private static final String ns = CtsXmlResultReporter.ns;
     private static final String SIGNATURE_TEST_PKG = "android.tests.sigtest";
 
@@ -61,11 +62,19 @@ class TestPackageResult extends AbstractXmlPullParser {
     private String mName;
     private String mAbi;
     private String mDigest;
+    private boolean mCached = false;
 
     private Map<String, String> mMetrics = new HashMap<String, String>();
     private Map<TestIdentifier, Map<String, String>> mTestMetrics = new HashMap<TestIdentifier, Map<String, String>>();
+    // tests ended since the last call to populateMetrics. A package split over several shards
+    // reports one run per slice, and each run should only process its own tests.
+    private Set<TestIdentifier> mUnprocessedTests = new LinkedHashSet<TestIdentifier>();
 
     private TestSuite mSuiteRoot = new TestSuite(null);
+    // index of the tests in mSuiteRoot that have been looked up. Every test event looks up its
+    // test, so this avoids walking the suite tree by package segment each time.
+    private Map<TestIdentifier, Test> mTestIndex = new HashMap<TestIdentifier, Test>();
+    private TimingProfile mTimingProfile = new TimingProfile();
 
     public void setDeviceSerial(String deviceSerial) {
         mDeviceSerial = deviceSerial;
@@ -111,6 +120,18 @@ class TestPackageResult extends AbstractXmlPullParser {
         return mDigest;
     }
 
+    /**
+     * @param cached <code>true</code> if the results of the package were replayed from the
+     * result cache instead of being run
+     */
+    public void setCached(boolean cached) {
+        mCached = cached;
+    }
+
+    public boolean isCached() {
+        return mCached;
+    }
+
     /**
      * Return the {@link TestSuite}s
      */
@@ -128,19 +149,17 @@ class TestPackageResult extends AbstractXmlPullParser {
     }
 
     private Test findTest(TestIdentifier testId, boolean insertIfMissing) {
-        List<String> classNameSegments = new LinkedList<String>();
-        Collections.addAll(classNameSegments, testId.getClassName().split("\\."));
-        if (classNameSegments.size() <= 0) {
-            CLog.e("Unrecognized package name format for test class '%s'",
-                    testId.getClassName());
-            // should never happen
-            classNameSegments.add("UnknownTestClass");
+        Test test = mTestIndex.get(testId);
+        if (test == null) {
+            test = mSuiteRoot.findTest(testId.getClassName(), 0, testId.getTestName(),
+                    insertIfMissing);
+            if (test != null) {
+                mTestIndex.put(testId, test);
+            }
         }
-        String testCaseName = classNameSegments.remove(classNameSegments.size() - 1);
-        return mSuiteRoot.findTest(classNameSegments, testCaseName, testId.getTestName(), insertIfMissing);
+        return test;
     }
 
-
     /**
      * Find the test result for given {@link TestIdentifier}.
      * @param testId
@@ -162,9 +181,15 @@ class TestPackageResult extends AbstractXmlPullParser {
         serializeAttribute(serializer, APP_PACKAGE_NAME_ATTR, mAppPackageName);
         serializeAttribute(serializer, ABI_ATTR, mAbi);
         serializeAttribute(serializer, DIGEST_ATTR, getDigest());
+        if (mCached) {
+            serializer.attribute(ns, CACHED_ATTR, Boolean.TRUE.toString());
+        }
         if (SIGNATURE_TEST_PKG.equals(mName)) {
             serializer.attribute(ns, "signatureCheck", "true");
         }
+        if (!mTimingProfile.isEmpty()) {
+            mTimingProfile.serialize(serializer);
+        }
         mSuiteRoot.serialize(serializer);
         serializer.endTag(ns, TAG);
     }
@@ -200,12 +225,19 @@ class TestPackageResult extends AbstractXmlPullParser {
         setName(getAttribute(parser, NAME_ATTR));
         setAbi(getAttribute(parser, ABI_ATTR));
         setDigest(getAttribute(parser, DIGEST_ATTR));
+        setCached(Boolean.parseBoolean(getAttribute(parser, CACHED_ATTR)));
         int eventType = parser.getEventType();
         while (eventType != XmlPullParser.END_DOCUMENT) {
             if (eventType == XmlPullParser.START_TAG && parser.getName().equals(TestSuite.TAG)) {
                 TestSuite suite = new TestSuite();
                 suite.parse(parser);
                 mSuiteRoot.insertSuite(suite);
+                // the suite may replace one with indexed tests
+                mTestIndex.clear();
+            } else if (eventType == XmlPullParser.START_TAG &&
+                    parser.getName().equals(TimingProfile.TAG)) {
+                mTimingProfile = new TimingProfile();
+                mTimingProfile.parse(parser);
             }
             if (eventType == XmlPullParser.END_TAG && parser.getName().equals(TAG)) {
                 return;
@@ -242,12 +274,17 @@ class TestPackageResult extends AbstractXmlPullParser {
         }
         String digest = metrics.get(CtsTest.PACKAGE_DIGEST_METRIC);
         if (digest != null) {
+            if (mDigest != null && !mDigest.equals(digest)) {
+                CLog.w("Package %s reported digest %s, but earlier runs reported %s", getId(),
+                        digest, mDigest);
+            }
             setDigest(digest);
         }
+        setCached(metrics.containsKey(CtsTest.PACKAGE_CACHED_METRIC));
         mMetrics.putAll(metrics);
 
         // Collect performance results
-        for (TestIdentifier test : mTestMetrics.keySet()) {
+        for (TestIdentifier test : mUnprocessedTests) {
             // device test can have performance results in test metrics
             String perfResult = mTestMetrics.get(test).get(CTS_RESULT_KEY);
             // host test should be checked in CtsHostStore.
@@ -268,6 +305,7 @@ class TestPackageResult extends AbstractXmlPullParser {
                 }
             }
         }
+        mUnprocessedTests.clear();
     }
 
     /**
@@ -299,6 +337,7 @@ class TestPackageResult extends AbstractXmlPullParser {
             CLog.e("Test metrics already contains key: " + test);
         }
         mTestMetrics.put(test, testMetrics);
+        mUnprocessedTests.add(test);
         CLog.i("Test metrics:" + testMetrics);
     }
 
@@ -312,6 +351,13 @@ class TestPackageResult extends AbstractXmlPullParser {
         return mSuiteRoot.countTests(status);
     }
 
+    /**
+     * @return the {@link StatusCounter} of all tests in this package
+     */
+    StatusCounter getCounter() {
+        return mSuiteRoot.getCounter();
+    }
+
     /**
      * @return A map holding the metrics from the test run.
      */
@@ -319,4 +365,11 @@ class TestPackageResult extends AbstractXmlPullParser {
         return mMetrics;
     }
 
+    /**
+     * @return the {@link TimingProfile} of this package's tests
+     */
+    TimingProfile getTimingProfile() {
+        return mTimingProfile;
+    }
+
 }
@@ -16,6 +16,7 @@
 package com.android.cts.tradefed.result;
 
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import java.io.BufferedReader;
@@ -23,6 +24,7 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -30,6 +32,12 @@ import java.util.List;
 
 /**
  * An implementation of {@link ITestResultsRepo}.
+ * <p/>
+ * A completed session is read from its {@link ResultArchive}, which is created on first use for
+ * sessions which do not have one yet. Otherwise a session is read from its
+ * {@link ResultCheckpoint} when it has one, which is much faster than parsing its result XML and
+ * also covers sessions whose invocation was interrupted before the XML was written. Session
+ * summaries are read from their {@link TestSummaryFile}, which is also created on first use.
  */
 public class TestResultRepo implements ITestResultRepo {
 
@@ -53,7 +61,8 @@ public class TestResultRepo implements ITestResultRepo {
             for (int i=0; i < resultList.size(); i++) {
                 File resultFile = new File(resultList.get(i),
                         CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
-                if (resultFile.exists()) {
+                if (resultFile.exists() || ResultCheckpoint.exists(resultList.get(i)) ||
+                        ResultArchive.exists(resultList.get(i))) {
                     mResultDirs.add(resultList.get(i));
                 }
             }
@@ -66,18 +75,63 @@ public class TestResultRepo implements ITestResultRepo {
     }
 
     private ITestSummary parseSummary(int id, File resultDir) {
+        ITestSummary summary = TestSummaryFile.load(id, resultDir);
+        if (summary != null) {
+            return summary;
+        }
+        summary = readSummary(id, resultDir);
+        if (summary == null) {
+            return new TestSummaryXml(id, resultDir.getName());
+        }
+        // store the summary, so older sessions are only read once
+        try {
+            TestSummaryFile.write(resultDir, summary);
+        } catch (IOException e) {
+            CLog.d("Could not store summary of session %d: %s", id, e.getMessage());
+        }
+        return summary;
+    }
+
+    /**
+     * Read the summary of a session from its checkpoint or result XML.
+     *
+     * @return the {@link ITestSummary} or <code>null</code> if it could not be read
+     */
+    private ITestSummary readSummary(int id, File resultDir) {
+        File resultFile = new File(resultDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
+        // the XML is only up to date if the last invocation of the session completed
+        if (ResultCheckpoint.exists(resultDir) &&
+                (!resultFile.exists() || !ResultCheckpoint.isComplete(resultDir))) {
+            try {
+                return new ResultCheckpoint.Summary(id, resultDir.getName(),
+                        ResultCheckpoint.replay(resultDir));
+            } catch (IOException e) {
+                CLog.e("Failed to read checkpoint of session %d", id);
+                CLog.e(e);
+            }
+        }
+        if (ResultArchive.isCurrent(resultDir)) {
+            try {
+                return ResultArchive.readSummary(id, resultDir);
+            } catch (IOException e) {
+                CLog.e("Failed to read result archive of session %d", id);
+                CLog.e(e);
+            }
+        }
         TestSummaryXml result = new TestSummaryXml(id, resultDir.getName());
+        BufferedReader reader = null;
         try {
-            result.parse(new BufferedReader(new FileReader(new File(resultDir,
-                    CtsXmlResultReporter.TEST_RESULT_FILE_NAME))));
+            reader = new BufferedReader(new FileReader(resultFile));
+            result.parse(reader);
             return result;
         } catch (ParseException e) {
             CLog.e(e);
         } catch (FileNotFoundException e) {
-            // should never happen, since we check for file existence above. Barf the stack trace
             CLog.e(e);
+        } finally {
+            StreamUtil.close(reader);
         }
-        return result;
+        return null;
     }
 
     /**
@@ -85,8 +139,7 @@ public class TestResultRepo implements ITestResultRepo {
      */
     @Override
     public List<ITestSummary> getSummaries() {
-        // parsing the summary data should be relatively quick, so just parse it every time
-        // rather than caching it
+        // sessions normally have a stored summary, and only need parsing the first time
         List<ITestSummary> summaries = new ArrayList<ITestSummary>(mResultDirs.size());
         for (int i = 0; i < mResultDirs.size(); i++) {
             summaries.add(parseSummary(i, mResultDirs.get(i)));
@@ -104,11 +157,33 @@ public class TestResultRepo implements ITestResultRepo {
             CLog.e("Session id %d does not exist", sessionId);
             return null;
         }
+        File resultDir = mResultDirs.get(sessionId);
+        if (ResultArchive.isCurrent(resultDir)) {
+            try {
+                return ResultArchive.read(resultDir);
+            } catch (IOException e) {
+                CLog.e("Failed to read result archive of session %d", sessionId);
+                CLog.e(e);
+            }
+        }
+        if (ResultCheckpoint.exists(resultDir)) {
+            try {
+                TestResults results = ResultCheckpoint.replay(resultDir).getResults();
+                if (results.isComplete()) {
+                    writeArchive(sessionId, resultDir, results);
+                }
+                return results;
+            } catch (IOException e) {
+                CLog.e("Failed to read checkpoint of session %d, falling back to result XML",
+                        sessionId);
+                CLog.e(e);
+            }
+        }
         try {
             TestResults results = new TestResults();
-            File resultFile = new File(mResultDirs.get(sessionId),
-                    CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
+            File resultFile = new File(resultDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
             results.parse(new BufferedReader(new FileReader(resultFile)));
+            writeArchive(sessionId, resultDir, results);
             return results;
         } catch (FileNotFoundException e) {
             CLog.e("Could not find result file for session %d", sessionId);
@@ -118,6 +193,37 @@ public class TestResultRepo implements ITestResultRepo {
         return null;
     }
 
+    /**
+     * Write the {@link ResultArchive} of a completed session, so later reads are faster.
+     */
+    private void writeArchive(int sessionId, File resultDir, TestResults results) {
+        ITestSummary summary = parseSummary(sessionId, resultDir);
+        try {
+            ResultArchive.write(resultDir, results, summary.getTestPlan(),
+                    summary.getStartTime(), summary.getDeviceSerials());
+        } catch (IOException e) {
+            CLog.d("Could not archive results of session %d: %s", sessionId, e.getMessage());
+        }
+    }
+
+    /**
+     * Archive the results of all completed sessions which do not have a current
+     * {@link ResultArchive} yet.
+     *
+     * @return the number of sessions archived
+     */
+    public int archiveResults() {
+        int archived = 0;
+        for (int i = 0; i < mResultDirs.size(); i++) {
+            File resultDir = mResultDirs.get(i);
+            if (!ResultArchive.isCurrent(resultDir) && getResult(i) != null &&
+                    ResultArchive.isCurrent(resultDir)) {
+                archived++;
+            }
+        }
+        return archived;
+    }
+
     private class ResultDirFilter implements FileFilter {
 
         /**
@@ -23,21 +23,26 @@ import org.kxml2.io.KXmlSerializer;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import android.tests.getinfo.DeviceInfoConstants;
+
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 /**
  * Data structure for the detailed CTS test results.
  * <p/>
  * Can deserialize results for test packages from XML
+ * <p/>
+ * When a {@link ResultJournal} is set, finished packages can be moved out of memory with
+ * {@link #finishPackage(String)}. They are still counted and serialized as before.
  */
 class TestResults extends AbstractXmlPullParser {
 
@@ -49,10 +54,19 @@ class TestResults extends AbstractXmlPullParser {
     static final String TIMEOUT_ATTR = "timeout";
     static final String NOT_EXECUTED_ATTR = "notExecuted";
     static final String FAILED_ATTR = "failed";
+    static final String REBOOTS_ATTR = "reboots";
+    static final String REBOOT_TIME_ATTR = "rebootTimeMs";
 
     private Map<String, TestPackageResult> mPackageResults =
             new LinkedHashMap<String, TestPackageResult>();
+    // counts of the tests of the packages in mPackageResults
+    private final StatusCounter mCounter = new StatusCounter();
     private DeviceInfoResult mDeviceInfo = new DeviceInfoResult();
+    private ResultJournal mJournal = null;
+    private boolean mComplete = true;
+    private String mPlanName = null;
+    private int mRebootCount = 0;
+    private long mRebootTimeMs = 0;
 
     /**
      * {@inheritDoc}
@@ -65,12 +79,15 @@ class TestResults extends AbstractXmlPullParser {
                     DeviceInfoResult.TAG)) {
                 mDeviceInfo.parse(parser);
             }
+            if (eventType == XmlPullParser.START_TAG && parser.getName().equals(SUMMARY_TAG)) {
+                parseReboots(parser);
+            }
             if (eventType == XmlPullParser.START_TAG && parser.getName().equals(
                     TestPackageResult.TAG)) {
                 TestPackageResult pkg = new TestPackageResult();
                 pkg.parse(parser);
                 if (pkg.getId() != null) {
-                    mPackageResults.put(pkg.getId(), pkg);
+                    putPackage(pkg.getId(), pkg);
                 } else {
                     CLog.w("Found package with no id");
                 }
@@ -79,21 +96,159 @@ class TestResults extends AbstractXmlPullParser {
         }
     }
 
+    private void parseReboots(XmlPullParser parser) {
+        String count = getAttribute(parser, REBOOTS_ATTR);
+        String timeMs = getAttribute(parser, REBOOT_TIME_ATTR);
+        try {
+            setReboots(count == null ? 0 : Integer.parseInt(count),
+                    timeMs == null ? 0 : Long.parseLong(timeMs));
+        } catch (NumberFormatException e) {
+            CLog.w("Ignoring corrupt reboot count %s and time %s", count, timeMs);
+        }
+    }
+
+    /**
+     * Set the number of times the device was rebooted between packages in the session, and the
+     * time the reboots took.
+     */
+    void setReboots(int count, long timeMs) {
+        mRebootCount = count;
+        mRebootTimeMs = timeMs;
+    }
+
+    /**
+     * @return the number of times the device was rebooted between packages in the session
+     */
+    public int getRebootCount() {
+        return mRebootCount;
+    }
+
+    /**
+     * @return the time the reboots of the session took in ms
+     */
+    public long getRebootTimeMs() {
+        return mRebootTimeMs;
+    }
+
+    /**
+     * Mark whether these results are from an invocation that ran to completion.
+     */
+    void setComplete(boolean complete) {
+        mComplete = complete;
+    }
+
     /**
-     * @return the list of {@link TestPackageResult}.
+     * @return <code>false</code> if these results were recovered from an interrupted invocation.
+     * In that case, tests that never started are missing from the results rather than reported
+     * as not executed.
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * Set the name of the plan the results were produced by.
+     */
+    void setPlanName(String planName) {
+        mPlanName = planName;
+    }
+
+    /**
+     * @return the name of the plan the results were produced by, or <code>null</code> if unknown
+     */
+    public String getPlanName() {
+        return mPlanName;
+    }
+
+    /**
+     * @return the fingerprint of the build the results were produced on, or <code>null</code>
+     * if it is not known
+     */
+    public String getBuildFingerprint() {
+        return mDeviceInfo.getMetrics().get(DeviceInfoConstants.BUILD_FINGERPRINT);
+    }
+
+    /**
+     * Set the {@link ResultJournal} that finished packages are moved to.
+     */
+    void setJournal(ResultJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Move the package with given id out of memory and into the journal. Does nothing if no
+     * journal is set. If the package cannot be written it stays in memory.
+     *
+     * @param id the package id
+     */
+    public void finishPackage(String id) {
+        TestPackageResult pkg = mPackageResults.get(id);
+        if (mJournal == null || pkg == null) {
+            return;
+        }
+        try {
+            mJournal.write(pkg);
+            mPackageResults.remove(id);
+            pkg.getCounter().detach();
+        } catch (IOException e) {
+            CLog.e("Failed to journal results of %s, keeping them in memory", id);
+            CLog.e(e);
+        }
+    }
+
+    /**
+     * Move all packages out of memory and into the journal.
+     *
+     * @see #finishPackage(String)
+     */
+    public void finishAllPackages() {
+        for (String id : new ArrayList<String>(mPackageResults.keySet())) {
+            finishPackage(id);
+        }
+    }
+
+    /**
+     * @return the list of {@link TestPackageResult} held in memory. Packages moved to the journal
+     * by {@link #finishPackage(String)} are not included.
      */
     public Collection<TestPackageResult> getPackages() {
         return mPackageResults.values();
     }
 
+    /**
+     * @return the sorted ids of all packages, including those moved to the journal
+     */
+    SortedSet<String> getPackageIds() {
+        SortedSet<String> ids = new TreeSet<String>(mPackageResults.keySet());
+        if (mJournal != null) {
+            ids.addAll(mJournal.getPackageIds());
+        }
+        return ids;
+    }
+
+    /**
+     * Get the package with given id, reading it from the journal if it was moved there. Unlike
+     * {@link #getOrCreatePackage(String)}, a journaled package is not moved back into memory.
+     *
+     * @return the {@link TestPackageResult}, or <code>null</code> if there is no such package or
+     * it could not be read
+     */
+    TestPackageResult readPackage(String id) {
+        TestPackageResult pkg = mPackageResults.get(id);
+        if (pkg == null && mJournal != null) {
+            pkg = mJournal.read(id);
+        }
+        return pkg;
+    }
+
     /**
      * Count the number of tests with given status
      * @param status
      */
     public int countTests(CtsTestStatus status) {
-        int total = 0;
-        for (TestPackageResult result : mPackageResults.values()) {
-            total += result.countTests(status);
+        int total = mCounter.get(status);
+        if (mJournal != null) {
+            total += mJournal.countTests(status);
         }
         return total;
     }
@@ -105,14 +260,35 @@ class TestResults extends AbstractXmlPullParser {
      * @throws IOException
      */
     public void serialize(KXmlSerializer serializer) throws IOException {
+        serialize(serializer, null);
+    }
+
+    /**
+     * Serialize the test results to XML, copying the journaled packages directly to the
+     * underlying stream of the serializer.
+     *
+     * @param serializer
+     * @param stream the {@link OutputStream} <var>serializer</var> writes to. Only needed if a
+     *            journal is set.
+     * @throws IOException
+     */
+    public void serialize(KXmlSerializer serializer, OutputStream stream) throws IOException {
         mDeviceInfo.serialize(serializer);
         serializeHostInfo(serializer);
         serializeTestSummary(serializer);
         // sort before serializing
-        List<TestPackageResult> pkgs = new ArrayList<TestPackageResult>(mPackageResults.values());
-        Collections.sort(pkgs, new PkgComparator());
-        for (TestPackageResult r : pkgs) {
-            r.serialize(serializer);
+        if (mJournal != null && stream == null) {
+            throw new IllegalArgumentException("journaled results need an output stream");
+        }
+        for (String id : getPackageIds()) {
+            TestPackageResult r = mPackageResults.get(id);
+            if (r != null) {
+                r.serialize(serializer);
+            } else {
+                // write out everything pending in the serializer before appending to the stream
+                serializer.flush();
+                mJournal.copyPackage(id, stream);
+            }
         }
     }
 
@@ -169,34 +345,48 @@ class TestResults extends AbstractXmlPullParser {
         // ignore timeouts - these are reported as errors
         serializer.attribute(ns, TIMEOUT_ATTR, "0");
         serializer.attribute(ns, PASS_ATTR, Integer.toString(countTests(CtsTestStatus.PASS)));
-        serializer.endTag(ns, SUMMARY_TAG);
-    }
-
-    private static class PkgComparator implements Comparator<TestPackageResult> {
-
-        @Override
-        public int compare(TestPackageResult lhs, TestPackageResult rhs) {
-            return lhs.getId().compareTo(rhs.getId());
+        if (mRebootCount > 0) {
+            serializer.attribute(ns, REBOOTS_ATTR, Integer.toString(mRebootCount));
+            serializer.attribute(ns, REBOOT_TIME_ATTR, Long.toString(mRebootTimeMs));
         }
+        serializer.endTag(ns, SUMMARY_TAG);
     }
 
     /**
-     * Return existing package with given id. If not found, create a new one.
+     * Return existing package with given id, reading it back from the journal if necessary. If
+     * not found, create a new one.
      * @param id
      * @return
      */
     public TestPackageResult getOrCreatePackage(String id) {
         TestPackageResult pkgResult = mPackageResults.get(id);
+        if (pkgResult == null && mJournal != null && mJournal.contains(id)) {
+            pkgResult = mJournal.remove(id);
+            if (pkgResult != null) {
+                putPackage(id, pkgResult);
+            }
+        }
         if (pkgResult == null) {
             pkgResult = new TestPackageResult();
             String[] abiAndName = AbiUtils.parseId(id);
             pkgResult.setAbi(abiAndName[0]);
             pkgResult.setAppPackageName(abiAndName[1]);
-            mPackageResults.put(id, pkgResult);
+            putPackage(id, pkgResult);
         }
         return pkgResult;
     }
 
+    /**
+     * Add a package, linking its test counts to the totals of the session.
+     */
+    private void putPackage(String id, TestPackageResult pkg) {
+        TestPackageResult previous = mPackageResults.put(id, pkg);
+        if (previous != null && previous != pkg) {
+            previous.getCounter().detach();
+        }
+        pkg.getCounter().attach(mCounter);
+    }
+
     /**
      * Populate the results with collected device info metrics.
      * @param runMetrics
@@ -204,4 +394,11 @@ class TestResults extends AbstractXmlPullParser {
     public void populateDeviceInfoMetrics(Map<String, String> runMetrics) {
         mDeviceInfo.populateMetrics(runMetrics);
     }
+
+    /**
+     * @return the device info metrics collected so far
+     */
+    public Map<String, String> getDeviceInfoMetrics() {
+        return mDeviceInfo.getMetrics();
+    }
 }
@@ -25,7 +25,6 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -40,6 +39,7 @@ class TestSuite extends AbstractXmlPullParser {
     // use linked hash map for predictable iteration order
     Map<String, TestSuite> mChildSuiteMap = new LinkedHashMap<String, TestSuite>();
     Map<String, TestCase> mChildTestCaseMap = new LinkedHashMap<String, TestCase>();
+    private final StatusCounter mCounter = new StatusCounter();
 
     /**
      * @param testSuite
@@ -66,23 +66,32 @@ class TestSuite extends AbstractXmlPullParser {
     }
 
     /**
-     * Insert the given test result into this suite.
+     * Find the test result with given name in this suite.
+     * <p/>
+     * The package segments of the class name are walked from given offset without splitting the
+     * name up front, so a lookup only allocates the segment names.
      *
-     * @param suiteNames list of remaining suite names for this test
-     * @param testClassName the test class name
+     * @param className the fully qualified test class name
+     * @param offset the offset of the first package segment of className that is below this suite
      * @param testName the test method name
-     * @param testResult the {@link TestResult}
+     * @param insertIfMissing whether to create the test and its parents if not found
+     * @return the {@link Test}, or <code>null</code> if not found and insertIfMissing is false
      */
-    public Test findTest(List<String> suiteNames, String testClassName, String testName,
+    public Test findTest(String className, int offset, String testName,
             boolean insertIfMissing) {
-        if (suiteNames.size() <= 0) {
+        int end = className.indexOf('.', offset);
+        if (end < 0) {
             // no more package segments
-            TestCase testCase = getTestCase(testClassName);
-            return testCase.findTest(testName, insertIfMissing);
+            String testCaseName = className.substring(offset);
+            TestCase testCase = insertIfMissing ? getTestCase(testCaseName) :
+                    mChildTestCaseMap.get(testCaseName);
+            return testCase == null ? null : testCase.findTest(testName, insertIfMissing);
         } else {
-            String rootName = suiteNames.remove(0);
-            TestSuite suite = getTestSuite(rootName);
-            return suite.findTest(suiteNames, testClassName, testName, insertIfMissing);
+            String suiteName = className.substring(offset, end);
+            TestSuite suite = insertIfMissing ? getTestSuite(suiteName) :
+                    mChildSuiteMap.get(suiteName);
+            return suite == null ? null : suite.findTest(className, end + 1, testName,
+                    insertIfMissing);
         }
     }
 
@@ -110,7 +119,7 @@ class TestSuite extends AbstractXmlPullParser {
         TestSuite testSuite = mChildSuiteMap.get(suiteName);
         if (testSuite == null) {
             testSuite = new TestSuite(suiteName);
-            mChildSuiteMap.put(suiteName, testSuite);
+            insertSuite(testSuite);
         }
         return testSuite;
     }
@@ -124,7 +133,7 @@ class TestSuite extends AbstractXmlPullParser {
         TestCase testCase = mChildTestCaseMap.get(testCaseName);
         if (testCase == null) {
             testCase = new TestCase(testCaseName);
-            mChildTestCaseMap.put(testCaseName, testCase);
+            insertTestCase(testCase);
         }
         return testCase;
     }
@@ -186,14 +195,29 @@ class TestSuite extends AbstractXmlPullParser {
      * Adds a child {@link TestCase}.
      */
     public void insertTestCase(TestCase testCase) {
-        mChildTestCaseMap.put(testCase.getName(), testCase);
+        TestCase previous = mChildTestCaseMap.put(testCase.getName(), testCase);
+        if (previous != null && previous != testCase) {
+            previous.getCounter().detach();
+        }
+        testCase.getCounter().attach(mCounter);
     }
 
     /**
      * Adds a child {@link TestSuite}.
      */
     public void insertSuite(TestSuite suite) {
-        mChildSuiteMap.put(suite.getName(), suite);
+        TestSuite previous = mChildSuiteMap.put(suite.getName(), suite);
+        if (previous != null && previous != suite) {
+            previous.getCounter().detach();
+        }
+        suite.getCounter().attach(mCounter);
+    }
+
+    /**
+     * @return the {@link StatusCounter} of all tests below this {@link TestSuite}
+     */
+    StatusCounter getCounter() {
+        return mCounter;
     }
 
 
@@ -222,19 +246,13 @@ class TestSuite extends AbstractXmlPullParser {
     }
 
     /**
-     * Count the number of tests in this {@link TestSuite} with given status.
+     * Count the number of tests in this {@link TestSuite} with given status. The counts are kept
+     * up to date as tests are added and change status, so this does not walk the suite.
      *
      * @param status
      * @return the test count
      */
     public int countTests(CtsTestStatus status) {
-        int total = 0;
-        for (TestSuite suite : mChildSuiteMap.values()) {
-            total += suite.countTests(status);
-        }
-        for (TestCase testCase : mChildTestCaseMap.values()) {
-            total += testCase.countTests(status);
-        }
-        return total;
+        return mCounter.get(status);
     }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * A {@link ITestSummary} stored in a small file next to the results of a session, so listing
+ * results does not need to read each result XML or checkpoint.
+ * <p/>
+ * The file records the size and modification time of the result XML and checkpoint it was
+ * created from. It is ignored as stale if either of them changed since.
+ */
+class TestSummaryFile implements ITestSummary {
+
+    static final String TEST_SUMMARY_FILE_NAME = "testSummary.properties";
+
+    private static final String VERSION = "1";
+    private static final String VERSION_KEY = "version";
+    private static final String RESULT_KEY = "result";
+    private static final String CHECKPOINT_KEY = "checkpoint";
+    private static final String PLAN_KEY = "plan";
+    private static final String STARTTIME_KEY = "starttime";
+    private static final String DEVICES_KEY = "devices";
+    private static final String PASS_KEY = "pass";
+    private static final String FAILED_KEY = "failed";
+    private static final String NOT_EXECUTED_KEY = "notExecuted";
+
+    private final int mId;
+    private final String mTimestamp;
+    private final Properties mProperties;
+
+    private TestSummaryFile(int id, String timestamp, Properties properties) {
+        mId = id;
+        mTimestamp = timestamp;
+        mProperties = properties;
+    }
+
+    /**
+     * Load the stored summary of given session.
+     *
+     * @param id the session id
+     * @param resultDir the result directory of the session
+     * @return the {@link TestSummaryFile}, or <code>null</code> if there is no summary file, or
+     * it is stale or unreadable
+     */
+    static TestSummaryFile load(int id, File resultDir) {
+        File summaryFile = new File(resultDir, TEST_SUMMARY_FILE_NAME);
+        if (!summaryFile.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream stream = null;
+        try {
+            stream = new BufferedInputStream(new FileInputStream(summaryFile));
+            properties.load(stream);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            StreamUtil.close(stream);
+        }
+        if (!VERSION.equals(properties.getProperty(VERSION_KEY)) ||
+                !getFileKey(resultDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME).equals(
+                        properties.getProperty(RESULT_KEY)) ||
+                !getFileKey(resultDir, ResultCheckpoint.CHECKPOINT_FILE_NAME).equals(
+                        properties.getProperty(CHECKPOINT_KEY))) {
+            return null;
+        }
+        return new TestSummaryFile(id, resultDir.getName(), properties);
+    }
+
+    /**
+     * Store the given summary for the session in given result directory. Must be called after
+     * the result XML and checkpoint of the session have been written.
+     *
+     * @param resultDir the result directory of the session
+     * @param summary the {@link ITestSummary} to store
+     * @throws IOException if the summary could not be written
+     */
+    static void write(File resultDir, ITestSummary summary) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(VERSION_KEY, VERSION);
+        properties.setProperty(RESULT_KEY,
+                getFileKey(resultDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME));
+        properties.setProperty(CHECKPOINT_KEY,
+                getFileKey(resultDir, ResultCheckpoint.CHECKPOINT_FILE_NAME));
+        setProperty(properties, PLAN_KEY, summary.getTestPlan());
+        setProperty(properties, STARTTIME_KEY, summary.getStartTime());
+        setProperty(properties, DEVICES_KEY, summary.getDeviceSerials());
+        properties.setProperty(PASS_KEY, Integer.toString(summary.getNumPassed()));
+        properties.setProperty(FAILED_KEY, Integer.toString(summary.getNumFailed()));
+        properties.setProperty(NOT_EXECUTED_KEY, Integer.toString(summary.getNumIncomplete()));
+
+        File tmpFile = new File(resultDir, TEST_SUMMARY_FILE_NAME + ".tmp");
+        OutputStream stream = null;
+        try {
+            stream = new BufferedOutputStream(new FileOutputStream(tmpFile));
+            properties.store(stream, null);
+        } finally {
+            StreamUtil.close(stream);
+        }
+        if (!tmpFile.renameTo(new File(resultDir, TEST_SUMMARY_FILE_NAME))) {
+            tmpFile.delete();
+            throw new IOException(String.format("Could not rename %s", tmpFile.getPath()));
+        }
+    }
+
+    private static void setProperty(Properties properties, String key, String value) {
+        if (value != null) {
+            properties.setProperty(key, value);
+        }
+    }
+
+    /**
+     * @return a key identifying the current version of given file, or an empty string if it
+     * does not exist
+     */
+    private static String getFileKey(File dir, String fileName) {
+        File file = new File(dir, fileName);
+        if (!file.isFile()) {
+            return "";
+        }
+        return String.format("%d:%d", file.length(), file.lastModified());
+    }
+
+    private int getIntProperty(String key) {
+        try {
+            return Integer.parseInt(mProperties.getProperty(key, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumIncomplete() {
+        return getIntProperty(NOT_EXECUTED_KEY);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumFailed() {
+        return getIntProperty(FAILED_KEY);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumPassed() {
+        return getIntProperty(PASS_KEY);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getTestPlan() {
+        return mProperties.getProperty(PLAN_KEY, "NA");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getStartTime() {
+        return mProperties.getProperty(STARTTIME_KEY, "unknown");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDeviceSerials() {
+        return mProperties.getProperty(DEVICES_KEY, "unknown");
+    }
+}
@@ -15,8 +15,10 @@
  */
 package com.android.cts.tradefed.result;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -24,6 +26,37 @@ import java.util.concurrent.TimeUnit;
  */
 class TimeUtil {
 
+    private static final String TIMESTAMP_FORMAT = "EEE MMM dd HH:mm:ss zzz yyyy";
+
+    /**
+     * The format of {@link #getTimestamp(long)}, with the last timestamp it produced. A new result
+     * has two timestamps per test, and tests usually take well under the one second resolution of
+     * the format, so the last timestamp is reused rather than formatting each time. The format is
+     * not thread safe, so there is one per thread.
+     */
+    private static final ThreadLocal<TimestampFormat> sTimestampFormat =
+            new ThreadLocal<TimestampFormat>() {
+        @Override
+        protected TimestampFormat initialValue() {
+            return new TimestampFormat();
+        }
+    };
+
+    private static class TimestampFormat {
+        final SimpleDateFormat mFormat = new SimpleDateFormat(TIMESTAMP_FORMAT);
+        long mLastSecond = Long.MIN_VALUE;
+        String mLastTimestamp;
+
+        String format(long time) {
+            long second = time / 1000;
+            if (second != mLastSecond) {
+                mLastTimestamp = mFormat.format(new Date(time));
+                mLastSecond = second;
+            }
+            return mLastTimestamp;
+        }
+    }
+
     /**
      * Return a prettified version of the given elapsed time
      * @return
@@ -64,8 +97,34 @@ class TimeUtil {
      * @param time the epoch time in ms since midnight Jan 1, 1970
      */
     static String getTimestamp(long time) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy");
-        return dateFormat.format(new Date(time));
+        return sTimestampFormat.get().format(time);
+    }
+
+    /**
+     * Parse a timestamp produced by {@link #getTimestamp(long)}.
+     *
+     * @param timestamp the {@link String} to parse
+     * @return the epoch time in ms, or -1 if <var>timestamp</var> could not be parsed
+     */
+    static long parseTimestamp(String timestamp) {
+        if (timestamp == null) {
+            return -1;
+        }
+        try {
+            return sTimestampFormat.get().mFormat.parse(timestamp).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Create a format for timestamps as produced by {@link #getTimestamp(long)}, but in the given
+     * time zone rather than the default one.
+     */
+    static SimpleDateFormat createTimestampFormat(TimeZone zone) {
+        SimpleDateFormat format = new SimpleDateFormat(TIMESTAMP_FORMAT);
+        format.setTimeZone(zone);
+        return format;
     }
 
     /**
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import org.kxml2.io.KXmlSerializer;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+
+/**
+ * The timing profile of a test package: the distribution of its test durations, and the time
+ * its runs spent starting up before their first test.
+ * <p/>
+ * Serialized as a single tag in the package result, including the histogram buckets, so a
+ * profile read back from a journal or continued session keeps accumulating.
+ */
+class TimingProfile extends AbstractXmlPullParser {
+
+    static final String TAG = "TimingProfile";
+
+    private static final String TESTS_ATTR = "tests";
+    private static final String TOTAL_ATTR = "totalMs";
+    private static final String P50_ATTR = "p50Ms";
+    private static final String P90_ATTR = "p90Ms";
+    private static final String P99_ATTR = "p99Ms";
+    private static final String MAX_ATTR = "maxMs";
+    private static final String SLOWEST_ATTR = "slowest";
+    private static final String RUNS_ATTR = "runs";
+    private static final String STARTUP_ATTR = "startupMs";
+    private static final String HISTOGRAM_ATTR = "histogram";
+    private static final String ns = CtsXmlResultReporter.ns;
+
+    private LatencyHistogram mTestDurations = new LatencyHistogram();
+    private String mSlowestTest = null;
+    private long mSlowestTestMs = -1;
+    private int mRunCount = 0;
+    private long mStartupMs = 0;
+
+    /**
+     * Record the duration of a test.
+     */
+    void recordTest(String testName, long durationMs) {
+        mTestDurations.record(durationMs);
+        if (durationMs > mSlowestTestMs) {
+            mSlowestTestMs = durationMs;
+            mSlowestTest = testName;
+        }
+    }
+
+    /**
+     * Record the time a run took to start its first test.
+     */
+    void recordStartup(long startupMs) {
+        mRunCount++;
+        mStartupMs += Math.max(0, startupMs);
+    }
+
+    /**
+     * @return the {@link LatencyHistogram} of test durations
+     */
+    LatencyHistogram getTestDurations() {
+        return mTestDurations;
+    }
+
+    /**
+     * @return the name of the slowest test, or <code>null</code> if no test was recorded
+     */
+    String getSlowestTest() {
+        return mSlowestTest;
+    }
+
+    /**
+     * @return the number of runs whose startup was recorded
+     */
+    int getRunCount() {
+        return mRunCount;
+    }
+
+    /**
+     * @return the total time in ms runs took to start their first test
+     */
+    long getStartupMs() {
+        return mStartupMs;
+    }
+
+    /**
+     * @return <code>true</code> if nothing was recorded
+     */
+    boolean isEmpty() {
+        return mTestDurations.getCount() == 0 && mRunCount == 0;
+    }
+
+    /**
+     * Serialize this profile to XML.
+     */
+    void serialize(KXmlSerializer serializer) throws IOException {
+        serializer.startTag(ns, TAG);
+        serializer.attribute(ns, TESTS_ATTR, Long.toString(mTestDurations.getCount()));
+        serializer.attribute(ns, TOTAL_ATTR, Long.toString(mTestDurations.getTotal()));
+        serializer.attribute(ns, P50_ATTR, Long.toString(mTestDurations.getPercentile(50)));
+        serializer.attribute(ns, P90_ATTR, Long.toString(mTestDurations.getPercentile(90)));
+        serializer.attribute(ns, P99_ATTR, Long.toString(mTestDurations.getPercentile(99)));
+        serializer.attribute(ns, MAX_ATTR, Long.toString(mTestDurations.getMax()));
+        if (mSlowestTest != null) {
+            serializer.attribute(ns, SLOWEST_ATTR, mSlowestTest);
+        }
+        serializer.attribute(ns, RUNS_ATTR, Integer.toString(mRunCount));
+        serializer.attribute(ns, STARTUP_ATTR, Long.toString(mStartupMs));
+        serializer.attribute(ns, HISTOGRAM_ATTR, mTestDurations.encode());
+        serializer.endTag(ns, TAG);
+    }
+
+    /**
+     * Populates this profile from XML.
+     *
+     * @param parser the {@link XmlPullParser}. Expected to be pointing at start of the
+     * TimingProfile tag
+     */
+    @Override
+    void parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+        if (!parser.getName().equals(TAG)) {
+            throw new XmlPullParserException(String.format(
+                    "invalid XML: Expected %s tag but received %s", TAG, parser.getName()));
+        }
+        try {
+            long max = Long.parseLong(getAttribute(parser, MAX_ATTR));
+            String histogram = getAttribute(parser, HISTOGRAM_ATTR);
+            mTestDurations = LatencyHistogram.decode(histogram == null ? "" : histogram, max,
+                    Long.parseLong(getAttribute(parser, TOTAL_ATTR)));
+            mSlowestTest = getAttribute(parser, SLOWEST_ATTR);
+            mSlowestTestMs = mSlowestTest == null ? -1 : max;
+            mRunCount = Integer.parseInt(getAttribute(parser, RUNS_ATTR));
+            mStartupMs = Long.parseLong(getAttribute(parser, STARTUP_ATTR));
+        } catch (NumberFormatException e) {
+            throw new XmlPullParserException(String.format("invalid %s: %s", TAG,
+                    e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.MultiLineReceiver;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A {@link IShellOutputReceiver} that splits shell output into lines without decoding it.
+ * <p/>
+ * Lines are split like {@link MultiLineReceiver} splits them: on '\n', dropping a preceding '\r',
+ * and trimmed of leading and trailing whitespace. Unlike {@link MultiLineReceiver}, each line is
+ * handed to {@link #processLine(byte[], int, int)} as a range of the received bytes, so parsers
+ * can match markers and only decode the parts they keep. A line is only copied when it spans
+ * two chunks of output, into a buffer that is reused.
+ * <p/>
+ * The static helpers match and parse ASCII within a byte range.
+ */
+public abstract class ByteLineReceiver implements IShellOutputReceiver {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** the start of a line that continues in the next chunk */
+    private byte[] mPartialLine = new byte[256];
+    private int mPartialLength = 0;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+        int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (mPartialLength > 0) {
+                appendPartial(data, lineStart, i);
+                processUntrimmedLine(mPartialLine, 0, mPartialLength);
+                mPartialLength = 0;
+            } else {
+                processUntrimmedLine(data, lineStart, i);
+            }
+            lineStart = i + 1;
+        }
+        if (lineStart < end) {
+            appendPartial(data, lineStart, end);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void flush() {
+        if (mPartialLength > 0) {
+            processUntrimmedLine(mPartialLine, 0, mPartialLength);
+            mPartialLength = 0;
+        }
+        done();
+    }
+
+    /**
+     * Process one line of output. The bytes are only valid during the call.
+     *
+     * @param line the buffer holding the line
+     * @param start the offset of the first byte of the line
+     * @param end the offset after the last byte of the line
+     */
+    protected abstract void processLine(byte[] line, int start, int end);
+
+    /**
+     * Called at the end of the output, after the last line was processed.
+     */
+    protected void done() {
+        // empty on purpose
+    }
+
+    /**
+     * Process a line of text that was already split and decoded, for callers of the
+     * {@link MultiLineReceiver} interface.
+     */
+    protected void processDecodedLine(String line) {
+        byte[] bytes = line.getBytes(UTF_8);
+        processUntrimmedLine(bytes, 0, bytes.length);
+    }
+
+    private void processUntrimmedLine(byte[] line, int start, int end) {
+        // a '\r' before the '\n' is whitespace, and trimmed along with it
+        start = skipWhitespace(line, start, end);
+        processLine(line, start, trimEnd(line, start, end));
+    }
+
+    private void appendPartial(byte[] data, int start, int end) {
+        int length = end - start;
+        if (mPartialLength + length > mPartialLine.length) {
+            mPartialLine = Arrays.copyOf(mPartialLine,
+                    Math.max(mPartialLine.length * 2, mPartialLength + length));
+        }
+        System.arraycopy(data, start, mPartialLine, mPartialLength, length);
+        mPartialLength += length;
+    }
+
+    /**
+     * @return the bytes of the given ASCII text, for matching with the helpers below
+     */
+    static byte[] ascii(String text) {
+        return text.getBytes(UTF_8);
+    }
+
+    /**
+     * @return the given range decoded as UTF-8
+     */
+    static String decode(byte[] line, int start, int end) {
+        return new String(line, start, end - start, UTF_8);
+    }
+
+    /**
+     * @return <code>true</code> if the given range starts with <var>prefix</var>
+     */
+    static boolean startsWith(byte[] line, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the offset of the first <var>b</var> in the given range, or -1 if not found
+     */
+    static int indexOf(byte[] line, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset of the last occurrence of <var>text</var> in the given range, or -1 if
+     * not found
+     */
+    static int lastIndexOf(byte[] line, int start, int end, byte[] text) {
+        for (int i = end - text.length; i >= start; i--) {
+            if (startsWith(line, i, end, text)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return <code>true</code> if the given range holds exactly the given text
+     */
+    static boolean regionEquals(byte[] line, int start, int end, String text) {
+        if (end - start != text.length()) {
+            // also covers non-ASCII text, which is longer in UTF-8
+            return end - start > text.length() && text.equals(decode(line, start, end));
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (line[start + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the offset after the leading whitespace of the given range
+     */
+    static int skipWhitespace(byte[] line, int start, int end) {
+        while (start < end && (line[start] & 0xff) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return the offset after the last non whitespace byte of the given range
+     */
+    static int trimEnd(byte[] line, int start, int end) {
+        while (end > start && (line[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Parse the decimal number in the given range.
+     *
+     * @return the number, or -1 if the range is empty, holds anything but digits or overflows
+     */
+    static long parseNumber(byte[] line, int start, int end) {
+        if (start >= end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
@@ -19,6 +19,8 @@ package com.android.cts.tradefed.testtype;
 import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.tradefed.device.DeviceInfoCollector;
 import com.android.cts.tradefed.result.CtsTestStatus;
+import com.android.cts.tradefed.result.PackageDurationHistory;
+import com.android.cts.tradefed.result.PassingResultCache;
 import com.android.cts.tradefed.result.PlanCreator;
 import com.android.cts.util.AbiUtils;
 import com.android.ddmlib.Log;
@@ -36,7 +38,6 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
-import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.testtype.IAbi;
 import com.android.tradefed.testtype.IBuildReceiver;
 import com.android.tradefed.testtype.IDeviceTest;
@@ -44,7 +45,6 @@ import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IResumableTest;
 import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.util.AbiFormatter;
-import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import junit.framework.Test;
@@ -55,11 +55,11 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -82,10 +82,22 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     private static final String TEST_OPTION = "test";
     public static final String CONTINUE_OPTION = "continue-session";
     public static final String RUN_KNOWN_FAILURES_OPTION = "run-known-failures";
+    public static final String INCREMENTAL_OPTION = "incremental";
 
     public static final String PACKAGE_NAME_METRIC = "packageName";
     public static final String PACKAGE_ABI_METRIC = "packageAbi";
     public static final String PACKAGE_DIGEST_METRIC = "packageDigest";
+    public static final String PACKAGE_FILTER_HASH_METRIC = "packageFilterHash";
+    public static final String PACKAGE_CACHED_METRIC = "cachedResult";
+    public static final String REBOOT_COUNT_METRIC = "rebootCount";
+    public static final String REBOOT_TIME_METRIC = "rebootTimeMs";
+
+    static final String INTERVAL_REBOOT_POLICY = "interval";
+    static final String HEALTH_REBOOT_POLICY = "health";
+
+    private static final String BUILD_FINGERPRINT_PROPERTY = "ro.build.fingerprint";
+
+    static final int DEFAULT_SHARD_HISTORY_SESSIONS = 5;
 
     @Option(name = PLAN_OPTION, description = "the test plan to run.",
             importance = Importance.IF_UNSET)
@@ -131,12 +143,27 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         "concurrently.")
     private int mShards = 1;
 
+    @Option(name = "balance-shards", description =
+        "assign packages to shards using their durations in previous sessions, and let shards " +
+        "that finish early take over packages still waiting on busier shards.")
+    private boolean mBalanceShards = false;
+
+    @Option(name = "shard-history-sessions", description =
+        "the number of most recent sessions to read package durations from when " +
+        "--balance-shards is used.")
+    private int mShardHistorySessions = DEFAULT_SHARD_HISTORY_SESSIONS;
+
+    @Option(name = "shard-package-size", description =
+        "split packages with more than this many tests into slices that run on different " +
+        "shards. 0 never splits packages.")
+    private int mShardPackageSize = 0;
+
     @Option(name = "screenshot", description =
         "flag for taking a screenshot of the device when test execution is complete.")
     private boolean mScreenshot = false;
 
     @Option(name = "bugreport", shortName = 'b', description =
-        "take a bugreport after each failed test. " +
+        "take a bugreport after failed tests, at most one per --bugreport-window. " +
         "Warning: can potentially use a lot of disk space.")
     private boolean mBugreport = false;
 
@@ -156,6 +183,24 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             "Interval between each reboot in min.")
     private int mRebootIntervalMin = 30;
 
+    @Option(name = "reboot-policy", description = "When to reboot the device between " +
+            "packages. \"" + INTERVAL_REBOOT_POLICY + "\" reboots every reboot-interval and " +
+            "around packages known to need it. \"" + HEALTH_REBOOT_POLICY + "\" reboots when " +
+            "the device looks degraded, or after packages that usually degrade it.")
+    private String mRebootPolicyName = INTERVAL_REBOOT_POLICY;
+
+    @Option(name = "reboot-max-interval", description =
+            "Max interval between reboots in min, for the health reboot policy.")
+    private int mRebootMaxIntervalMin = 4 * 60;
+
+    @Option(name = "reboot-min-memory-ratio", description = "The share of the memory " +
+            "available after a reboot below which the health reboot policy reboots.")
+    private double mRebootMinMemoryRatio = 0.5;
+
+    @Option(name = "reboot-max-load", description =
+            "The load average above which the health reboot policy reboots.")
+    private double mRebootMaxLoad = 12.0;
+
     @Option(name = "screenshot-on-failure", description =
             "take a screenshot on every test failure.")
     private boolean mScreenshotOnFailures = false;
@@ -176,10 +221,45 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             "Should be an amount that can comfortably fit in memory.")
     private int mMaxLogcatBytes = 500 * 1024; // 500K
 
+    @Option(name = "bugreport-window", description =
+            "The time in ms after a bugreport during which further test failures do not get " +
+            "another bugreport when --bugreport is on. 0 takes a bugreport on each failure.")
+    private long mBugreportWindowMs = 60 * 1000;
+
+    @Option(name = "failure-capture-queue-size", description =
+            "The max number of failure captures waiting to be taken from the device. Failures " +
+            "beyond it are not captured, rather than delaying test execution.")
+    private int mFailureCaptureQueueSize = 16;
+
+    @Option(name = "failure-capture-max-bytes", description =
+            "The max number of bytes of bugreports, screenshots and logcat snapshots to " +
+            "capture on test failures, for each device. No limit by default.")
+    private long mFailureCaptureMaxBytes = Long.MAX_VALUE;
+
+    @Option(name = "prerequisite-install-threads", description =
+            "The max number of prerequisite apks to install concurrently.")
+    private int mPrerequisiteInstallThreads = 4;
+
+    @Option(name = "native-test-shards", description =
+            "The number of instances of each native test executable to run concurrently, " +
+            "each running a shard of its tests.")
+    private int mNativeTestShards = 1;
+
     @Option(name = "collect-deqp-logs", description =
             "Collect dEQP logs from the device.")
     private boolean mCollectDeqpLogs = false;
 
+    @Option(name = "deqp-pipelined-batches", description =
+            "Push the case list of the next batch of dEQP test cases while the current batch " +
+            "runs, and size the batches from the time taken per test case.")
+    private boolean mDeqpPipelinedBatches = false;
+
+    @Option(name = INCREMENTAL_OPTION, description =
+            "Skip packages whose tests all passed in an earlier incremental session with the " +
+            "same package digest, ABI, device build fingerprint and test selection, and report " +
+            "the cached passing results instead.")
+    private boolean mIncremental = false;
+
     @Option(name = "min-pre-reboot-package-count", description =
             "The minimum number of packages to require a pre test reboot")
 
@@ -189,14 +269,27 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     private ITestDevice mDevice = null;
     private CtsBuildHelper mCtsBuild = null;
     private IBuildInfo mBuildInfo = null;
-    // last reboot time
-    private long mPrevRebootTime;
+    // captures artifacts of failed tests during run, if any capture is enabled
+    private FailureArtifactCollector mFailureCollector = null;
+    // the results of earlier incremental sessions, set in run when --incremental is used
+    private PassingResultCache mResultCache = null;
+    private String mBuildFingerprint = null;
+    // decides when to reboot between packages, set in run
+    private IRebootPolicy mRebootPolicy = null;
+    // the number of reboots and the time they took in this run
+    private int mRebootCount = 0;
+    private long mRebootTimeMs = 0;
     // The list of packages to run. populated in {@code setupTestPackageList}
     // This is a member variable so that run can be called more than once
     // and the test run is resumed.
     private List<TestPackage> mTestPackageList = new ArrayList<>();
     // The index in the pacakge list of the last test to complete
     private int mLastTestPackageIndex = 0;
+    // The queue shared by all shards when --balance-shards is used, set in {@code split}.
+    // When set, mTestPackageList holds the packages this shard has taken from the queue so far.
+    private TestPackageQueue mPackageQueue = null;
+    // The packages this shard can take from mPackageQueue, keyed by id
+    private Map<String, TestPackage> mQueuedPackages = new LinkedHashMap<>();
 
     /** data structure for a {@link IRemoteTest} and its known tests */
     static class TestPackage {
@@ -237,83 +330,6 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         }
     }
 
-    /**
-     * A {@link ResultForwarder} that will forward a bugreport on each failed test.
-     */
-    private static class FailedTestBugreportGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-
-        public FailedTestBugreportGenerator(ITestInvocationListener listener, ITestDevice device) {
-            super(listener);
-            mDevice = device;
-        }
-
-        @Override
-        public void testFailed(TestIdentifier test, String trace) {
-            super.testFailed(test, trace);
-            InputStreamSource bugSource = mDevice.getBugreport();
-            super.testLog(String.format("bug-%s_%s", test.getClassName(), test.getTestName()),
-                    LogDataType.TEXT, bugSource);
-            bugSource.cancel();
-        }
-    }
-
-    /**
-     * A {@link ResultForwarder} that will forward a logcat snapshot on each failed test.
-     */
-    private static class FailedTestLogcatGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-        private int mNumLogcatBytes;
-
-        public FailedTestLogcatGenerator(ITestInvocationListener listener, ITestDevice device,
-                int maxLogcatBytes) {
-            super(listener);
-            mDevice = device;
-            mNumLogcatBytes = maxLogcatBytes;
-        }
-
-        @Override
-        public void testFailed(TestIdentifier test, String trace) {
-            super.testFailed(test, trace);
-            // sleep a small amount of time to ensure test failure stack trace makes it into logcat
-            // capture
-            RunUtil.getDefault().sleep(10);
-            InputStreamSource logSource = mDevice.getLogcat(mNumLogcatBytes);
-            super.testLog(String.format("logcat-%s_%s", test.getClassName(), test.getTestName()),
-                    LogDataType.TEXT, logSource);
-            logSource.cancel();
-        }
-    }
-
-    /**
-     * A {@link ResultForwarder} that will forward a screenshot on test failures.
-     */
-    private static class FailedTestScreenshotGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-
-        public FailedTestScreenshotGenerator(ITestInvocationListener listener,
-                ITestDevice device) {
-            super(listener);
-            mDevice = device;
-        }
-
-        @Override
-        public void testFailed(TestIdentifier test, String trace) {
-            super.testFailed(test, trace);
-
-            try {
-                InputStreamSource screenSource = mDevice.getScreenshot();
-                super.testLog(String.format("screenshot-%s_%s", test.getClassName(),
-                        test.getTestName()), LogDataType.PNG, screenSource);
-                screenSource.cancel();
-            } catch (DeviceNotAvailableException e) {
-                // TODO: rethrow this somehow
-                CLog.e("Device %s became unavailable while capturing screenshot, %s",
-                        mDevice.getSerialNumber(), e.toString());
-            }
-        }
-    }
-
     /**
      * Create a new {@link CtsTest} that will run the default list of {@link TestPackage}s.
      */
@@ -468,14 +484,27 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
 
         checkFields();
         setupTestPackageList(abiSet);
-        if (mBugreport) {
-            listener = new FailedTestBugreportGenerator(listener, getDevice());
-        }
-        if (mScreenshotOnFailures) {
-            listener = new FailedTestScreenshotGenerator(listener, getDevice());
+        mRebootPolicy = createRebootPolicy();
+        mFailureCollector = null;
+        if (mBugreport || mScreenshotOnFailures || mLogcatOnFailures) {
+            mFailureCollector = new FailureArtifactCollector(listener, getDevice(),
+                    mFailureCaptureQueueSize, mFailureCaptureMaxBytes);
+            if (mBugreport) {
+                mFailureCollector.setBugreport(mBugreportWindowMs);
+            }
+            if (mScreenshotOnFailures) {
+                mFailureCollector.setScreenshot();
+            }
+            if (mLogcatOnFailures) {
+                mFailureCollector.setLogcat(mMaxLogcatBytes);
+            }
+            listener = mFailureCollector;
         }
-        if (mLogcatOnFailures) {
-            listener = new FailedTestLogcatGenerator(listener, getDevice(), mMaxLogcatBytes);
+
+        mResultCache = null;
+        if (mIncremental) {
+            mResultCache = new PassingResultCache(mCtsBuild.getResultCacheDir());
+            mBuildFingerprint = getDevice().getProperty(BUILD_FINGERPRINT_PROPERTY);
         }
 
         // Setup the a map of Test id to ResultFilter
@@ -489,24 +518,45 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
 
         // collect and install the prerequisiteApks first, to save time when multiple test
         // packages are using the same prerequisite apk
-        Map<String, Set<String>> prerequisiteApks = getPrerequisiteApks(mTestPackageList, abiSet);
-        Collection<String> uninstallPackages = getPrerequisitePackageNames(mTestPackageList);
+        List<TestPackage> runnablePackages = getRunnableTestPackages();
+        Map<String, Map<String, String>> prerequisiteApks =
+                getPrerequisiteApks(runnablePackages, abiSet);
+        Collection<String> uninstallPackages = getPrerequisitePackageNames(runnablePackages);
 
         try {
             // always collect the device info, even for resumed runs, since test will likely be
             // running on a different device
             collectDeviceInfo(getDevice(), mCtsBuild, listener);
-            preRebootIfNecessary(mTestPackageList);
+            preRebootIfNecessary(runnablePackages);
 
-            mPrevRebootTime = System.currentTimeMillis();
-            int remainingPackageCount = mTestPackageList.size();
-            Log.logAndDisplay(LogLevel.INFO, LOG_TAG,
-                String.format("Start test run of %,d packages, containing %,d tests",
-                    remainingPackageCount, totalTestCount));
+            mRebootPolicy.deviceRebooted(sampleHealth(), System.currentTimeMillis());
+            if (mPackageQueue != null) {
+                Log.logAndDisplay(LogLevel.INFO, LOG_TAG,
+                    String.format("Start test run of shard %d, %,d packages queued on all shards",
+                        mShardAssignment, mPackageQueue.size()));
+            } else {
+                int remainingPackageCount = mTestPackageList.size();
+                Log.logAndDisplay(LogLevel.INFO, LOG_TAG,
+                    String.format("Start test run of %,d packages, containing %,d tests",
+                        remainingPackageCount, totalTestCount));
+            }
             IAbi currentAbi = null;
 
-            for (int i = mLastTestPackageIndex; i < mTestPackageList.size(); i++) {
+            for (int i = mLastTestPackageIndex; hasTestPackage(i); i++) {
                 TestPackage testPackage = mTestPackageList.get(i);
+                if (!filterMap.containsKey(testPackage.getPackageDef().getId())) {
+                    // package was taken from the shared queue during this run
+                    filterMap.put(testPackage.getPackageDef().getId(),
+                            new ResultFilter(listener, testPackage));
+                }
+                ResultFilter resultFilter = filterMap.get(testPackage.getPackageDef().getId());
+                String filterHash = mResultCache == null ? null :
+                        PassingResultCache.getFilterHash(testPackage.getKnownTests());
+                if (filterHash != null &&
+                        replayCachedResults(testPackage, filterHash, resultFilter)) {
+                    mLastTestPackageIndex = i;
+                    continue;
+                }
 
                 if (currentAbi == null ||
                     !currentAbi.getName().equals(testPackage.getAbi().getName())) {
@@ -524,11 +574,20 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
                 }
                 if (test instanceof DeqpTestRunner) {
                     ((DeqpTestRunner)test).setCollectLogs(mCollectDeqpLogs);
+                    ((DeqpTestRunner)test).setPipelined(mDeqpPipelinedBatches);
+                }
+                if (test instanceof GeeTest) {
+                    ((GeeTest) test).setNumShards(mNativeTestShards);
                 }
 
-                forwardPackageDetails(testPackage.getPackageDef(), listener);
-                test.run(filterMap.get(testPackage.getPackageDef().getId()));
-                if (i < mTestPackageList.size() - 1) {
+                forwardPackageDetails(testPackage.getPackageDef(), filterHash, listener);
+                test.run(resultFilter);
+                if (mFailureCollector != null) {
+                    // the failure logs of the package must reach its tests before the results
+                    // of the package are moved out of memory when the next package starts
+                    mFailureCollector.waitForCaptures();
+                }
+                if (hasTestPackage(i + 1)) {
                     TestPackage nextPackage = mTestPackageList.get(i + 1);
                     rebootIfNecessary(testPackage, nextPackage);
                     changeToHomeScreen();
@@ -558,6 +617,14 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             for (ResultFilter filter : filterMap.values()) {
                 filter.reportUnexecutedTests();
             }
+            if (mFailureCollector != null) {
+                mFailureCollector.finish();
+            }
+            mRebootPolicy.finish();
+            if (mRebootCount > 0) {
+                Log.logAndDisplay(LogLevel.INFO, LOG_TAG, String.format(
+                        "Rebooted %d times, taking %,d s", mRebootCount, mRebootTimeMs / 1000));
+            }
         }
     }
 
@@ -603,38 +670,54 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         rebootDevice();
     }
 
+    /**
+     * Create the {@link IRebootPolicy} selected by the reboot-policy option.
+     */
+    private IRebootPolicy createRebootPolicy() {
+        if (HEALTH_REBOOT_POLICY.equals(mRebootPolicyName)) {
+            return new HealthRebootPolicy(mCtsBuild.getRebootHistoryFile(),
+                    mRebootMaxIntervalMin * 60 * 1000L, mRebootMinMemoryRatio, mRebootMaxLoad);
+        }
+        return new IntervalRebootPolicy(mRebootIntervalMin * 60 * 1000L);
+    }
+
+    /**
+     * @return the {@link DeviceHealth} of the device, or <code>null</code> if the reboot policy
+     * does not use it
+     */
+    private DeviceHealth sampleHealth() throws DeviceNotAvailableException {
+        if (!mRebootPolicy.usesDeviceHealth()) {
+            return null;
+        }
+        DeviceHealth health = DeviceHealth.sample(getDevice());
+        CLog.d("Device health: %s", health);
+        return health;
+    }
+
     private void rebootIfNecessary(TestPackage testFinished, TestPackage testToRun)
             throws DeviceNotAvailableException {
-        // If there comes spurious failure like INJECT_EVENTS for a package,
-        // reboot it before running it.
-        // Also reboot after package which is know to leave pop-up behind
-        final List<String> rebootAfterList = Arrays.asList(
-                "CtsMediaTestCases",
-                "CtsAccessibilityTestCases");
-        final List<String> rebootBeforeList = Arrays.asList(
-                "CtsAnimationTestCases",
-                "CtsGraphicsTestCases",
-                "CtsViewTestCases",
-                "CtsWidgetTestCases" );
-        long intervalInMSec = mRebootIntervalMin * 60 * 1000;
         if (mDisableReboot || mDevice.getSerialNumber().startsWith("emulator-")) {
             return;
         }
-        long currentTime = System.currentTimeMillis();
-        if (((currentTime - mPrevRebootTime) > intervalInMSec) ||
-                rebootAfterList.contains(testFinished.getPackageDef().getName()) ||
-                rebootBeforeList.contains(testToRun.getPackageDef().getName()) ) {
+        String reason = mRebootPolicy.getRebootReason(testFinished.getPackageDef().getName(),
+                testToRun.getPackageDef().getName(), sampleHealth(), System.currentTimeMillis());
+        if (reason != null) {
             Log.i(LOG_TAG,
-                    String.format("Rebooting after running package %s, before package %s",
+                    String.format("Rebooting after running package %s, before package %s: %s",
                             testFinished.getPackageDef().getName(),
-                            testToRun.getPackageDef().getName()));
+                            testToRun.getPackageDef().getName(), reason));
             rebootDevice();
-            mPrevRebootTime = System.currentTimeMillis();
+            mRebootPolicy.deviceRebooted(sampleHealth(), System.currentTimeMillis());
         }
     }
 
     private void rebootDevice() throws DeviceNotAvailableException {
         final int TIMEOUT_MS = 10 * 60 * 1000;
+        long startTime = System.currentTimeMillis();
+        if (mFailureCollector != null) {
+            // do not capture failures while the device reboots
+            mFailureCollector.waitForCaptures();
+        }
         TestDeviceOptions options = mDevice.getOptions();
         // store default value and increase time-out for reboot
         int rebootTimeout = options.getRebootTimeout();
@@ -655,6 +738,8 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         } catch (InterruptedException e) {
             Log.i(LOG_TAG, "Boot wait interrupted");
         }
+        mRebootCount++;
+        mRebootTimeMs += System.currentTimeMillis() - startTime;
     }
 
     /**
@@ -676,7 +761,7 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
      * Set {@code mTestPackageList} to the list of test packages to run filtered by ABI.
      */
     private void setupTestPackageList(Set<String> abis) throws DeviceNotAvailableException {
-        if (!mTestPackageList.isEmpty()) {
+        if (!mTestPackageList.isEmpty() || !mQueuedPackages.isEmpty()) {
             Log.logAndDisplay(LogLevel.INFO, LOG_TAG, "Resume tests using existing package list");
             return;
         }
@@ -697,6 +782,18 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
                 }
             }
 
+            if (mPackageQueue != null) {
+                if (mShardPackageSize > 0) {
+                    CLog.w("Packages are not split into slices when shards are balanced");
+                }
+                setupTestPackageQueue(testPackageList);
+                return;
+            }
+            if (mShardPackageSize > 0 && mTotalShards > 1) {
+                mTestPackageList.addAll(createShardSlices(testPackageList));
+                return;
+            }
+
             // Filter by shard
             int numTestPackages = testPackageList.size();
             int totalShards = Math.min(mTotalShards, numTestPackages);
@@ -715,6 +812,116 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         }
     }
 
+    /**
+     * Assign packages to shards like the round robin assignment, but split packages with more
+     * than {@code mShardPackageSize} tests into slices that are assigned separately.
+     * <p/>
+     * All slices of a package are consecutive in the assignment order, and there are never more
+     * slices than shards, so each shard runs at most one slice of each package. This allows
+     * reusing the package definition of this shard for its slice.
+     *
+     * @param testPackageList the sorted list of all packages to run
+     * @return the packages and slices to run on this shard
+     */
+    private List<TestPackage> createShardSlices(List<TestPackage> testPackageList) {
+        // each unit of work is a package and the index of its slice
+        List<TestPackage> unitPackages = new ArrayList<>();
+        List<Integer> unitSlices = new ArrayList<>();
+        for (TestPackage testPackage : testPackageList) {
+            int sliceCount = 1;
+            if (testPackage.getPackageDef().isSliceable()) {
+                sliceCount = PackageSlicer.getSliceCount(testPackage.getKnownTests().size(),
+                        mShardPackageSize, mTotalShards);
+            }
+            for (int slice = 0; slice < sliceCount; slice++) {
+                unitPackages.add(testPackage);
+                unitSlices.add(sliceCount > 1 ? slice : null);
+            }
+        }
+
+        int numUnits = unitPackages.size();
+        int totalShards = Math.min(mTotalShards, numUnits);
+        List<TestPackage> shardTestPackageList = new ArrayList<>();
+        for (int i = mShardAssignment; i < numUnits; i += totalShards) {
+            TestPackage testPackage = unitPackages.get(i);
+            Integer slice = unitSlices.get(i);
+            if (slice == null) {
+                shardTestPackageList.add(testPackage);
+                continue;
+            }
+            ITestPackageDef testPackageDef = testPackage.getPackageDef();
+            int sliceCount = PackageSlicer.getSliceCount(testPackage.getKnownTests().size(),
+                    mShardPackageSize, mTotalShards);
+            testPackageDef.setTestFilter(PackageSlicer.createSliceFilter(
+                    testPackage.getKnownTests(), slice, sliceCount));
+            IRemoteTest testForSlice = testPackageDef.createTest(mCtsBuild.getTestCasesDir());
+            CLog.i("Shard %d running slice %d of %d of %s, containing %d tests",
+                    mShardAssignment, slice + 1, sliceCount, testPackageDef.getId(),
+                    testPackageDef.getTests().size());
+            shardTestPackageList.add(new TestPackage(testPackageDef, testForSlice));
+        }
+        return shardTestPackageList;
+    }
+
+    /**
+     * Register the packages this shard can run, and add those no other shard has added yet to the
+     * shared {@link TestPackageQueue}. The queue thus holds the packages of all shards, even if
+     * their devices support different ABIs.
+     *
+     * @param testPackageList the sorted list of all packages this shard can run
+     */
+    private void setupTestPackageQueue(List<TestPackage> testPackageList) {
+        Map<String, Integer> testCounts = new LinkedHashMap<>();
+        for (TestPackage testPackage : testPackageList) {
+            String id = testPackage.getPackageDef().getId();
+            mQueuedPackages.put(id, testPackage);
+            testCounts.put(id, testPackage.getKnownTests().size());
+        }
+        if (!mPackageQueue.containsAll(testCounts.keySet())) {
+            PackageDurationHistory history = PackageDurationHistory.load(
+                    mCtsBuild.getResultsDir(), mShardHistorySessions);
+            if (history.isEmpty()) {
+                CLog.i("No package durations recorded, balancing shards by test count");
+            }
+            mPackageQueue.addPackages(mShardAssignment,
+                    ShardBalancer.estimateCosts(testCounts, history));
+        }
+    }
+
+    /**
+     * Check whether there is a package to run at the given index of {@code mTestPackageList},
+     * taking the next package from the shared queue if necessary.
+     *
+     * @param index the index in {@code mTestPackageList}
+     * @return <code>true</code> if {@code mTestPackageList} has a package at <var>index</var>
+     */
+    private boolean hasTestPackage(int index) {
+        if (index < mTestPackageList.size()) {
+            return true;
+        }
+        if (mPackageQueue == null) {
+            return false;
+        }
+        // only take packages this shard can run, the others are left for the other shards
+        String id = mPackageQueue.poll(mShardAssignment, mQueuedPackages.keySet());
+        if (id == null) {
+            return false;
+        }
+        mTestPackageList.add(mQueuedPackages.get(id));
+        return true;
+    }
+
+    /**
+     * @return all the packages this shard may run. This includes packages that may still be
+     * taken from the shared queue.
+     */
+    private List<TestPackage> getRunnableTestPackages() {
+        if (mPackageQueue == null) {
+            return mTestPackageList;
+        }
+        return new ArrayList<>(mQueuedPackages.values());
+    }
+
     /**
      * Return the {@link Set} of {@link ITestPackageDef}s to run unfiltered by ABI
      *
@@ -844,10 +1051,11 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
      * Return the list (by abi) of unique prerequisite apks to install
      *
      * @param testPackages The {@link List} of {@link TestPackage} that contain prerequisite APKs
+     * @return map of ABI names to the APKs to install for them, mapped to their package names
      */
-    private Map<String, Set<String>> getPrerequisiteApks(
+    private Map<String, Map<String, String>> getPrerequisiteApks(
             List<TestPackage> testPackages, Set<String> abiSet) {
-        Map<String, Set<String>> abiToApkMap = new HashMap<>();
+        Map<String, Map<String, String>> abiToApkMap = new HashMap<>();
         for (TestPackage testPkg : testPackages) {
             if (testPkg.getKnownTests().size() == 0) {
                 // No tests, no point in installing pre-reqs
@@ -863,9 +1071,9 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             }
 
             if (!abiToApkMap.containsKey(abiName)) {
-                abiToApkMap.put(abiName, new HashSet<String>());
+                abiToApkMap.put(abiName, new HashMap<String, String>());
             }
-            abiToApkMap.get(abiName).add(apkName);
+            abiToApkMap.get(abiName).put(apkName, testPkg.mPackageDef.getTargetPackageName());
         }
         return abiToApkMap;
     }
@@ -876,26 +1084,19 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
      *
      * Install the collection of test apk file names
      *
-     * @param prerequisiteApks The APKs that must be installed
+     * @param prerequisiteApks The APKs that must be installed, mapped to their package names
      * @throws DeviceNotAvailableException
      */
-    private void installPrerequisiteApks(Collection<String> prerequisiteApks, IAbi abi)
+    private void installPrerequisiteApks(Map<String, String> prerequisiteApks, IAbi abi)
             throws DeviceNotAvailableException {
         if (prerequisiteApks == null) {
             return;
         }
         Log.logAndDisplay(LogLevel.INFO, LOG_TAG, "Installing prerequisites");
-        for (String apkName : prerequisiteApks) {
-            try {
-                File apkFile = mCtsBuild.getTestApp(apkName);
-                String[] options = {AbiUtils.createAbiFlag(abi.getName())};
-                String errorCode = getDevice().installPackage(apkFile, true, options);
-                if (errorCode != null) {
-                    CLog.e("Failed to install %s. Reason: %s", apkName, errorCode);
-                }
-            } catch (FileNotFoundException e) {
-                CLog.e("Could not find test apk %s", apkName);
-            }
+        int installed = createPrerequisiteInstaller().install(prerequisiteApks, abi.getName());
+        if (installed < prerequisiteApks.size()) {
+            CLog.i("Installed %d of %d prerequisites, the others were already installed or " +
+                    "failed to install", installed, prerequisiteApks.size());
         }
     }
 
@@ -906,9 +1107,17 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
      */
     private void uninstallPrequisiteApks(Collection<String> uninstallPackages)
             throws DeviceNotAvailableException {
-        for (String pkgName : uninstallPackages) {
-            getDevice().uninstallPackage(pkgName);
-        }
+        createPrerequisiteInstaller().uninstall(uninstallPackages);
+    }
+
+    /**
+     * Factory method for creating a {@link PrerequisiteApkInstaller}.
+     * <p/>
+     * Exposed for unit testing
+     */
+    PrerequisiteApkInstaller createPrerequisiteInstaller() {
+        return new PrerequisiteApkInstaller(getDevice(), mCtsBuild.getTestCasesDir(),
+                mPrerequisiteInstallThreads);
     }
 
     /**
@@ -921,6 +1130,8 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         }
         checkFields();
 
+        // all shards share a single queue, so shards can take packages from each other
+        TestPackageQueue packageQueue = mBalanceShards ? new TestPackageQueue(mShards) : null;
         List<IRemoteTest> shardQueue = new LinkedList<>();
         for (int shardAssignment = 0; shardAssignment < mShards; shardAssignment++) {
             CtsTest ctsTest = new CtsTest(shardAssignment, mShards /* totalShards */);
@@ -928,6 +1139,7 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             // Set the shard count because the copy option on the previous line copies
             // over the mShard value
             ctsTest.mShards = 0;
+            ctsTest.mPackageQueue = packageQueue;
             shardQueue.add(ctsTest);
         }
 
@@ -1025,6 +1237,12 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         if (mCtsBuild == null) {
             throw new IllegalArgumentException("missing CTS build");
         }
+        if (!INTERVAL_REBOOT_POLICY.equals(mRebootPolicyName) &&
+                !HEALTH_REBOOT_POLICY.equals(mRebootPolicyName)) {
+            throw new IllegalArgumentException(String.format(
+                    "Unknown reboot policy %s. Must be %s or %s", mRebootPolicyName,
+                    INTERVAL_REBOOT_POLICY, HEALTH_REBOOT_POLICY));
+        }
     }
 
     /**
@@ -1046,15 +1264,66 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     }
 
     /**
-     * Forward the digest and package name to the listener as a metric
+     * Report the tests of the given package as passed, without running them, if they all passed
+     * in an earlier incremental session against the same device build.
+     *
+     * @param filterHash the hash of the tests to run, from
+     * {@link PassingResultCache#getFilterHash(Collection)}
+     * @return <code>true</code> if cached results were reported
+     */
+    private boolean replayCachedResults(TestPackage testPackage, String filterHash,
+            ITestInvocationListener listener) {
+        ITestPackageDef def = testPackage.getPackageDef();
+        String digest = def.getDigest();
+        if (DigestCache.FAILED_DIGEST.equals(digest)) {
+            return false;
+        }
+        String key = PassingResultCache.getKey(digest, def.getAbi().getName(),
+                mBuildFingerprint, filterHash);
+        if (key == null) {
+            return false;
+        }
+        Set<TestIdentifier> passedTests = mResultCache.get(key);
+        Collection<TestIdentifier> tests = testPackage.getKnownTests();
+        // a package whose tests are not known up front must run to find out what they are
+        if (tests.isEmpty() || passedTests == null || !passedTests.containsAll(tests)) {
+            return false;
+        }
+        Log.logAndDisplay(LogLevel.INFO, LOG_TAG, String.format(
+                "Skipping %s, its %,d tests passed on this build before", def.getId(),
+                tests.size()));
+        forwardPackageDetails(def, filterHash, listener);
+        Map<String, String> emptyMetrics = Collections.emptyMap();
+        listener.testRunStarted(def.getId(), tests.size());
+        for (TestIdentifier test : tests) {
+            listener.testStarted(test);
+            listener.testEnded(test, emptyMetrics);
+        }
+        Map<String, String> runMetrics = new HashMap<>(1);
+        runMetrics.put(PACKAGE_CACHED_METRIC, Boolean.TRUE.toString());
+        listener.testRunEnded(0, runMetrics);
+        return true;
+    }
+
+    /**
+     * Forward the digest and package name to the listener as a metric, along with the number
+     * of reboots so far and the time they took
      *
+     * @param filterHash the hash of the tests to run, reported if not <code>null</code> so the
+     * results can be cached
      * @param listener Handles test results
      */
-    private static void forwardPackageDetails(ITestPackageDef def, ITestInvocationListener listener) {
-        Map<String, String> metrics = new HashMap<>(3);
+    private void forwardPackageDetails(ITestPackageDef def, String filterHash,
+            ITestInvocationListener listener) {
+        Map<String, String> metrics = new HashMap<>(6);
         metrics.put(PACKAGE_NAME_METRIC, def.getName());
         metrics.put(PACKAGE_ABI_METRIC, def.getAbi().getName());
         metrics.put(PACKAGE_DIGEST_METRIC, def.getDigest());
+        if (filterHash != null && !DigestCache.FAILED_DIGEST.equals(def.getDigest())) {
+            metrics.put(PACKAGE_FILTER_HASH_METRIC, filterHash);
+        }
+        metrics.put(REBOOT_COUNT_METRIC, Integer.toString(mRebootCount));
+        metrics.put(REBOOT_TIME_METRIC, Long.toString(mRebootTimeMs));
         listener.testRunStarted(def.getId(), 0);
         listener.testRunEnded(0, metrics);
     }
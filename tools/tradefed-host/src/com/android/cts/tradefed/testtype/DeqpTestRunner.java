@@ -2,7 +2,6 @@ package com.android.cts.tradefed.testtype;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.util.AbiUtils;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
@@ -16,14 +15,25 @@ import com.android.tradefed.testtype.IBuildReceiver;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Test runner for dEQP tests
@@ -35,10 +45,35 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
     private static final String DEQP_ONDEVICE_APK = "com.drawelements.deqp.apk";
     private static final String DEQP_ONDEVICE_PKG = "com.drawelements.deqp";
     private static final String INCOMPLETE_LOG_MESSAGE = "Crash: Incomplete test log";
+    private static final String NOT_RUN_MESSAGE = "Crash: Test case did not run";
+    private static final String CASE_LIST_FILE_NAME = "/sdcard/dEQP-TestCaseList.txt";
+    private static final String LOG_FILE_NAME = "/sdcard/TestLog.qpa";
+    private static final String INSTRUMENTATION_NAME =
+            "com.drawelements.deqp/com.drawelements.deqp.testercore.DeqpInstrumentation";
+
+    /** the case list files of the running and the next batch in pipelined mode */
+    private static final String[] PIPELINED_CASE_LIST_FILE_NAMES = {
+            "/sdcard/dEQP-TestCaseList-0.txt", "/sdcard/dEQP-TestCaseList-1.txt"};
+    /** the time a batch should take in pipelined mode, bounding the cost of a restart */
+    private static final long TARGET_BATCH_TIME_MS = 5 * 60 * 1000;
+    private static final int MIN_BATCH_SIZE = 100;
+    private static final int MAX_BATCH_SIZE = 10000;
+    private static final byte[] STATUS_CODE_PREFIX =
+            ByteLineReceiver.ascii("INSTRUMENTATION_STATUS_CODE: ");
+    private static final byte[] STATUS_PREFIX = ByteLineReceiver.ascii("INSTRUMENTATION_STATUS: ");
+    private static final byte[] DEQP_STATUS_PREFIX =
+            ByteLineReceiver.ascii("INSTRUMENTATION_STATUS: dEQP-");
 
     private final int TESTCASE_BATCH_LIMIT = 1000;
 
     private boolean mLogData;
+    private boolean mPipelined = false;
+    private int mBatchSize = TESTCASE_BATCH_LIMIT;
+    /** the time spent running batches and the number of test cases run, in pipelined mode */
+    private long mBatchTimeMs = 0;
+    private int mBatchTestCount = 0;
+    /** the test cases of the running batch that did not begin running yet, in pipelined mode */
+    private Set<TestIdentifier> mPendingBatchTests = null;
 
     private ITestDevice mDevice;
 
@@ -94,15 +129,33 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         mLogData = logData;
     }
 
+    /**
+     * Enable or disable pipelined execution, where the case list of the next batch is pushed
+     * while the current batch runs, and batch sizes are adapted to the time taken per test case.
+     */
+    public void setPipelined(boolean pipelined) {
+        mPipelined = pipelined;
+    }
+
+    /**
+     * @return the number of test cases of the next batch in pipelined mode
+     * <p/>
+     * Exposed for unit testing
+     */
+    int getBatchSize() {
+        return mBatchSize;
+    }
+
     /**
      * dEQP instrumentation parser
      */
-    class InstrumentationParser extends MultiLineReceiver {
+    class InstrumentationParser extends ByteLineReceiver {
         private DeqpTestRunner mDeqpTests;
 
         private Map<String, String> mValues;
         private String mCurrentName;
-        private String mCurrentValue;
+        /** the value of the current name, decoded once the whole value has been read */
+        private final ByteArrayOutputStream mCurrentValue = new ByteArrayOutputStream();
 
 
         public InstrumentationParser(DeqpTestRunner tests) {
@@ -113,52 +166,50 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
          * {@inheritDoc}
          */
         @Override
-        public void processNewLines(String[] lines) {
-            for (String line : lines) {
-                if (mValues == null) mValues = new HashMap<String, String>();
-
-                if (line.startsWith("INSTRUMENTATION_STATUS_CODE: ")) {
-                    if (mCurrentName != null) {
-                        mValues.put(mCurrentName, mCurrentValue);
-
-                        mCurrentName = null;
-                        mCurrentValue = null;
-                    }
-
-                    mDeqpTests.handleStatus(mValues);
-                    mValues = null;
-                } else if (line.startsWith("INSTRUMENTATION_STATUS: dEQP-")) {
-                    if (mCurrentName != null) {
-                        mValues.put(mCurrentName, mCurrentValue);
-
-                        mCurrentValue = null;
-                        mCurrentName = null;
-                    }
-
-                    String prefix = "INSTRUMENTATION_STATUS: ";
-                    int nameBegin = prefix.length();
-                    int nameEnd = line.indexOf('=');
-                    int valueBegin = nameEnd + 1;
-
-                    mCurrentName = line.substring(nameBegin, nameEnd);
-                    mCurrentValue = line.substring(valueBegin);
-                } else if (mCurrentValue != null) {
-                    mCurrentValue = mCurrentValue + line;
+        protected void processLine(byte[] line, int start, int end) {
+            if (mValues == null) mValues = new HashMap<String, String>();
+
+            if (startsWith(line, start, end, STATUS_CODE_PREFIX)) {
+                putCurrentValue();
+
+                mDeqpTests.handleStatus(mValues);
+                mValues = null;
+            } else if (startsWith(line, start, end, DEQP_STATUS_PREFIX)) {
+                putCurrentValue();
+
+                int nameBegin = start + STATUS_PREFIX.length;
+                int nameEnd = indexOf(line, nameBegin, end, (byte)'=');
+                if (nameEnd < 0) {
+                    CLog.w("Ignoring dEQP status without a value: %s", decode(line, start, end));
+                    return;
                 }
+                int valueBegin = nameEnd + 1;
+
+                mCurrentName = decode(line, nameBegin, nameEnd);
+                mCurrentValue.write(line, valueBegin, end - valueBegin);
+            } else if (mCurrentName != null) {
+                mCurrentValue.write(line, start, end - start);
             }
         }
 
         /**
-         * {@inheritDoc}
+         * Decodes the value of the current name, and adds it to the values of the status.
          */
-        @Override
-        public void done() {
+        private void putCurrentValue() {
             if (mCurrentName != null) {
-                mValues.put(mCurrentName, mCurrentValue);
+                mValues.put(mCurrentName, new String(mCurrentValue.toByteArray(), UTF_8));
 
                 mCurrentName = null;
-                mCurrentValue = null;
+                mCurrentValue.reset();
             }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void done() {
+            putCurrentValue();
 
             if (mValues != null) {
                 mDeqpTests.handleStatus(mValues);
@@ -220,6 +271,9 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
 
         mListener.testStarted(mCurrentTestId);
         mTests.remove(mCurrentTestId);
+        if (mPendingBatchTests != null) {
+            mPendingBatchTests.remove(mCurrentTestId);
+        }
     }
 
     /**
@@ -335,56 +389,65 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
     }
 
     /**
-     * Generates tescase trie from dEQP testcase paths. Used to define which testcases to execute.
+     * A node of the testcase trie, keeping its children in the order they were added.
      */
-    private String generateTestCaseTrieFromPaths(Collection<String> tests) {
-        String result = "{";
-        boolean first = true;
-
-        // Add testcases to results
-        for (Iterator<String> iter = tests.iterator(); iter.hasNext();) {
-            String test = iter.next();
-            String[] components = test.split("\\.");
+    private static class TrieNode {
+        private final Map<String, TrieNode> mChildren = new LinkedHashMap<>();
+        private boolean mIsTestCase = false;
+    }
 
-            if (components.length == 1) {
-                if (!first) {
-                    result = result + ",";
+    /**
+     * Generates tescase trie from dEQP testcase paths. Used to define which testcases to execute.
+     * <p/>
+     * Takes time linear in the total length of the paths.
+     * <p/>
+     * Exposed for unit testing
+     */
+    static String generateTestCaseTrieFromPaths(Collection<String> tests) {
+        TrieNode root = new TrieNode();
+        for (String test : tests) {
+            TrieNode node = root;
+            int begin = 0;
+            int end;
+            do {
+                end = test.indexOf('.', begin);
+                String name = test.substring(begin, end == -1 ? test.length() : end);
+                TrieNode child = node.mChildren.get(name);
+                if (child == null) {
+                    child = new TrieNode();
+                    node.mChildren.put(name, child);
                 }
-                first = false;
-
-                result += components[0];
-                iter.remove();
-            }
+                node = child;
+                begin = end + 1;
+            } while (end != -1);
+            node.mIsTestCase = true;
         }
+        StringBuilder trie = new StringBuilder();
+        appendTrie(trie, root);
+        return trie.toString();
+    }
 
-        if (!tests.isEmpty()) {
-            HashMap<String, ArrayList<String> > testGroups = new HashMap<>();
-
-            // Collect all sub testgroups
-            for (String test : tests) {
-                String[] components = test.split("\\.");
-                ArrayList<String> testGroup = testGroups.get(components[0]);
-
-                if (testGroup == null) {
-                    testGroup = new ArrayList<String>();
-                    testGroups.put(components[0], testGroup);
+    private static void appendTrie(StringBuilder trie, TrieNode node) {
+        trie.append('{');
+        boolean first = true;
+        for (Map.Entry<String, TrieNode> child : node.mChildren.entrySet()) {
+            if (child.getValue().mIsTestCase) {
+                if (!first) {
+                    trie.append(',');
                 }
-
-                testGroup.add(test.substring(components[0].length()+1));
+                first = false;
+                trie.append(child.getKey());
             }
-
-            for (String testGroup : testGroups.keySet()) {
+            if (!child.getValue().mChildren.isEmpty()) {
                 if (!first) {
-                    result = result + ",";
+                    trie.append(',');
                 }
-
                 first = false;
-                result = result + testGroup
-                        + generateTestCaseTrieFromPaths(testGroups.get(testGroup));
+                trie.append(child.getKey());
+                appendTrie(trie, child.getValue());
             }
         }
-
-        return result + "}";
+        trie.append('}');
     }
 
     /**
@@ -408,29 +471,222 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
      * Executes tests on the device.
      */
     private void executeTests(ITestInvocationListener listener) throws DeviceNotAvailableException {
-        InstrumentationParser parser = new InstrumentationParser(this);
-        String caseListFileName = "/sdcard/dEQP-TestCaseList.txt";
-        String logFileName = "/sdcard/TestLog.qpa";
         String testCases = generateTestCaseTrie(mTests);
 
-        mDevice.executeShellCommand("rm " + caseListFileName);
-        mDevice.executeShellCommand("rm " + logFileName);
-        mDevice.pushString(testCases + "\n", caseListFileName);
+        mDevice.executeShellCommand("rm " + CASE_LIST_FILE_NAME);
+        mDevice.executeShellCommand("rm " + LOG_FILE_NAME);
+        mDevice.pushString(testCases + "\n", CASE_LIST_FILE_NAME);
+
+        runInstrumentation(CASE_LIST_FILE_NAME);
+    }
 
-        String instrumentationName =
-                "com.drawelements.deqp/com.drawelements.deqp.testercore.DeqpInstrumentation";
+    /**
+     * Runs the test cases of the given case list file on the device.
+     */
+    private void runInstrumentation(String caseListFileName)
+            throws DeviceNotAvailableException {
+        InstrumentationParser parser = new InstrumentationParser(this);
 
         String command = String.format(
                 "am instrument %s -w -e deqpLogFileName \"%s\" -e deqpCmdLine \""
                     + "--deqp-caselist-file=%s --deqp-gl-config-name=rgba8888d24s8\""
                     + " -e deqpLogData \"%s\" %s",
-                AbiUtils.createAbiFlag(mAbi.getName()), logFileName, caseListFileName, mLogData,
-                instrumentationName);
+                AbiUtils.createAbiFlag(mAbi.getName()), LOG_FILE_NAME, caseListFileName,
+                mLogData, INSTRUMENTATION_NAME);
 
         mDevice.executeShellCommand(command, parser);
         parser.flush();
     }
 
+    /**
+     * Executes the tests on the device in batches, pushing the case list of the next batch
+     * while the current batch runs.
+     * <p/>
+     * The next batch is prepared assuming the current batch runs to completion. If it does not,
+     * the next batch is prepared again starting from the first test case that did not run, as
+     * only test cases that began running are removed from {@link #mTests}. A batch that does not
+     * run any test case is retried once, after which its test cases are reported as failed and
+     * the next batch is run.
+     */
+    private void executePipelinedTests() throws DeviceNotAvailableException {
+        ExecutorService pushService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("DeqpTestRunner-%s",
+                        mDevice.getSerialNumber()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            int fileIndex = 0;
+            boolean retried = false;
+            List<TestIdentifier> batch = takeBatch(mTests.iterator(), mBatchSize);
+            Future<Void> push = pushCaseList(pushService, batch,
+                    PIPELINED_CASE_LIST_FILE_NAMES[fileIndex]);
+            while (!batch.isEmpty()) {
+                waitForPush(push);
+
+                Iterator<TestIdentifier> remaining = mTests.iterator();
+                for (int i = 0; i < batch.size() && remaining.hasNext(); i++) {
+                    remaining.next();
+                }
+                int nextFileIndex = 1 - fileIndex;
+                List<TestIdentifier> nextBatch = takeBatch(remaining, mBatchSize);
+                Future<Void> nextPush = pushCaseList(pushService, nextBatch,
+                        PIPELINED_CASE_LIST_FILE_NAMES[nextFileIndex]);
+
+                int testCount = mTests.size();
+                long startTime = System.currentTimeMillis();
+                mPendingBatchTests = new HashSet<>(batch);
+                mDevice.executeShellCommand("rm " + LOG_FILE_NAME);
+                runInstrumentation(PIPELINED_CASE_LIST_FILE_NAMES[fileIndex]);
+                finishInterruptedTest();
+                int testsRun = testCount - mTests.size();
+                updateBatchSize(System.currentTimeMillis() - startTime, testsRun);
+
+                if (testsRun > 0) {
+                    retried = false;
+                }
+                if (mPendingBatchTests.isEmpty()) {
+                    batch = nextBatch;
+                    push = nextPush;
+                    fileIndex = nextFileIndex;
+                } else if (testsRun == 0 && retried) {
+                    CLog.e("dEQP batch of %d test cases on %s did not run any test case again, " +
+                            "failing it", batch.size(), mDevice.getSerialNumber());
+                    failBatch(batch);
+                    retried = false;
+                    // the next batch already starts after this one
+                    batch = nextBatch;
+                    push = nextPush;
+                    fileIndex = nextFileIndex;
+                } else if (testsRun == 0) {
+                    CLog.w("dEQP batch of %d test cases on %s did not run any test case, " +
+                            "retrying it", batch.size(), mDevice.getSerialNumber());
+                    retried = true;
+                    waitForPush(nextPush);
+                    push = pushCaseList(pushService, batch,
+                            PIPELINED_CASE_LIST_FILE_NAMES[fileIndex]);
+                } else {
+                    CLog.i("dEQP batch on %s did not complete, restarting from the first test " +
+                            "case that did not run", mDevice.getSerialNumber());
+                    waitForPush(nextPush);
+                    batch = takeBatch(mTests.iterator(), mBatchSize);
+                    push = pushCaseList(pushService, batch,
+                            PIPELINED_CASE_LIST_FILE_NAMES[fileIndex]);
+                }
+            }
+        } finally {
+            mPendingBatchTests = null;
+            pushService.shutdownNow();
+        }
+    }
+
+    /**
+     * Reports the test cases of the given batch as failed, as none of them began running.
+     */
+    private void failBatch(List<TestIdentifier> batch) {
+        Map <String, String> emptyMap = Collections.emptyMap();
+        String id = AbiUtils.createId(mAbi.getName(), mPackageName);
+        mListener.testRunStarted(id, batch.size());
+        for (TestIdentifier test : batch) {
+            mListener.testStarted(test);
+            mListener.testFailed(test, NOT_RUN_MESSAGE);
+            mListener.testEnded(test, emptyMap);
+        }
+        mTests.removeAll(mPendingBatchTests);
+        mListener.testRunEnded(0, emptyMap);
+    }
+
+    private static List<TestIdentifier> takeBatch(Iterator<TestIdentifier> tests, int size) {
+        List<TestIdentifier> batch = new ArrayList<>(size);
+        while (batch.size() < size && tests.hasNext()) {
+            batch.add(tests.next());
+        }
+        return batch;
+    }
+
+    /**
+     * Pushes the case list of the given batch to the given file in the background.
+     */
+    private Future<Void> pushCaseList(ExecutorService pushService,
+            final List<TestIdentifier> batch, final String caseListFileName) {
+        return pushService.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws DeviceNotAvailableException {
+                if (batch.isEmpty()) {
+                    return null;
+                }
+                List<String> testPaths = new ArrayList<>(batch.size());
+                for (TestIdentifier test : batch) {
+                    testPaths.add(test.getClassName() + "." + test.getTestName());
+                }
+                String testCases = generateTestCaseTrieFromPaths(testPaths);
+                mDevice.executeShellCommand("rm " + caseListFileName);
+                mDevice.pushString(testCases + "\n", caseListFileName);
+                return null;
+            }
+        });
+    }
+
+    private static void waitForPush(Future<Void> push) throws DeviceNotAvailableException {
+        try {
+            push.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Sizes the next batches so they take about {@link #TARGET_BATCH_TIME_MS}, given the time
+     * taken per test case by the batches so far.
+     */
+    private void updateBatchSize(long batchTimeMs, int testsRun) {
+        mBatchTimeMs += batchTimeMs;
+        mBatchTestCount += testsRun;
+        if (mBatchTestCount == 0) {
+            return;
+        }
+        long size = TARGET_BATCH_TIME_MS * mBatchTestCount / Math.max(1, mBatchTimeMs);
+        mBatchSize = (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, size));
+    }
+
+    /**
+     * Reports the end of the test case that was running when the instrumentation ended, if any.
+     */
+    private void finishInterruptedTest() {
+        // Set test to failed if it didn't receive test result
+        if (mCurrentTestId != null) {
+            Map <String, String> emptyMap = Collections.emptyMap();
+
+            if (mLogData && mCurrentTestLog != null && mCurrentTestLog.length() > 0) {
+                ByteArrayInputStreamSource source
+                        = new ByteArrayInputStreamSource(mCurrentTestLog.getBytes());
+
+                mListener.testLog(mCurrentTestId.getClassName() + "."
+                        + mCurrentTestId.getTestName(), LogDataType.XML, source);
+
+                source.cancel();
+            }
+            if (!mGotTestResult) {
+                mListener.testFailed(mCurrentTestId,
+                    INCOMPLETE_LOG_MESSAGE);
+            }
+
+            mListener.testEnded(mCurrentTestId, emptyMap);
+            mCurrentTestId = null;
+            mListener.testRunEnded(0, emptyMap);
+        }
+    }
+
     /**
      * Check if device supports OpenGL ES version.
      */
@@ -486,30 +742,12 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
             uninstallTestApk();
             installTestApk();
 
-            while (!mTests.isEmpty()) {
-                executeTests(listener);
-
-                // Set test to failed if it didn't receive test result
-                if (mCurrentTestId != null) {
-                    Map <String, String> emptyMap = Collections.emptyMap();
-
-                    if (mLogData && mCurrentTestLog != null && mCurrentTestLog.length() > 0) {
-                        ByteArrayInputStreamSource source
-                                = new ByteArrayInputStreamSource(mCurrentTestLog.getBytes());
-
-                        mListener.testLog(mCurrentTestId.getClassName() + "."
-                                + mCurrentTestId.getTestName(), LogDataType.XML, source);
-
-                        source.cancel();
-                    }
-                    if (!mGotTestResult) {
-                        mListener.testFailed(mCurrentTestId,
-                            INCOMPLETE_LOG_MESSAGE);
-                    }
-
-                    mListener.testEnded(mCurrentTestId, emptyMap);
-                    mCurrentTestId = null;
-                    mListener.testRunEnded(0, emptyMap);
+            if (mPipelined) {
+                executePipelinedTests();
+            } else {
+                while (!mTests.isEmpty()) {
+                    executeTests(listener);
+                    finishInterruptedTest();
                 }
             }
 
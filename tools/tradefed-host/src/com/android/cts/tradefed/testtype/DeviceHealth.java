@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A sample of cheap signals of the health of a device, taken between test packages with a single
+ * shell command.
+ * <p/>
+ * Signals that could not be read are unknown, and never indicate a degraded device.
+ */
+class DeviceHealth {
+
+    static final String SAMPLE_CMD = "cat /proc/loadavg; " +
+            "grep -E '^(MemFree|MemAvailable|Cached):' /proc/meminfo; " +
+            "dumpsys window windows | grep -E 'mCurrentFocus='";
+
+    private static final Pattern LOAD_PATTERN = Pattern.compile(
+            "^(\\d+\\.\\d+) \\d+\\.\\d+ \\d+\\.\\d+ ");
+    private static final Pattern MEMINFO_PATTERN = Pattern.compile("^(\\w+):\\s+(\\d+) kB");
+    private static final Pattern FOCUS_PATTERN = Pattern.compile("mCurrentFocus=(.*)$");
+    private static final String NO_FOCUS = "null";
+    /** the titles of the windows of dialogs shown for crashed or hung apps */
+    private static final String[] ERROR_DIALOG_TITLES = {
+        "Application Error", "Application Not Responding"};
+
+    private final double mLoadAverage;
+    private final long mAvailableMemoryKb;
+    private final String mFocusedWindow;
+
+    /**
+     * @param loadAverage the 1 minute load average, or a negative value if unknown
+     * @param availableMemoryKb the memory available to apps in kB, or a negative value if unknown
+     * @param focusedWindow the description of the focused window, "null" if no window has focus,
+     * or <code>null</code> if unknown
+     */
+    DeviceHealth(double loadAverage, long availableMemoryKb, String focusedWindow) {
+        mLoadAverage = loadAverage;
+        mAvailableMemoryKb = availableMemoryKb;
+        mFocusedWindow = focusedWindow;
+    }
+
+    /**
+     * Sample the health of the given device.
+     */
+    static DeviceHealth sample(ITestDevice device) throws DeviceNotAvailableException {
+        return parse(device.executeShellCommand(SAMPLE_CMD));
+    }
+
+    /**
+     * Parse the output of {@link #SAMPLE_CMD}.
+     */
+    static DeviceHealth parse(String output) {
+        double loadAverage = -1;
+        long memFree = -1;
+        long memAvailable = -1;
+        long cached = -1;
+        String focusedWindow = null;
+        if (output == null) {
+            output = "";
+        }
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            Matcher matcher = LOAD_PATTERN.matcher(line);
+            if (matcher.find()) {
+                loadAverage = Double.parseDouble(matcher.group(1));
+                continue;
+            }
+            matcher = MEMINFO_PATTERN.matcher(line);
+            if (matcher.find()) {
+                long value = Long.parseLong(matcher.group(2));
+                if ("MemFree".equals(matcher.group(1))) {
+                    memFree = value;
+                } else if ("MemAvailable".equals(matcher.group(1))) {
+                    memAvailable = value;
+                } else if ("Cached".equals(matcher.group(1))) {
+                    cached = value;
+                }
+                continue;
+            }
+            matcher = FOCUS_PATTERN.matcher(line);
+            if (matcher.find()) {
+                focusedWindow = matcher.group(1).trim();
+            }
+        }
+        // kernels before 3.14 do not report MemAvailable
+        if (memAvailable < 0 && memFree >= 0 && cached >= 0) {
+            memAvailable = memFree + cached;
+        }
+        return new DeviceHealth(loadAverage, memAvailable, focusedWindow);
+    }
+
+    /**
+     * @return the 1 minute load average, or a negative value if unknown
+     */
+    double getLoadAverage() {
+        return mLoadAverage;
+    }
+
+    /**
+     * @return the memory available to apps in kB, or a negative value if unknown
+     */
+    long getAvailableMemoryKb() {
+        return mAvailableMemoryKb;
+    }
+
+    /**
+     * @return <code>true</code> if it is known that no window has focus
+     */
+    boolean hasLostFocus() {
+        return NO_FOCUS.equals(mFocusedWindow);
+    }
+
+    /**
+     * @return <code>true</code> if the focused window is a crash or ANR dialog
+     */
+    boolean hasErrorDialog() {
+        if (mFocusedWindow == null) {
+            return false;
+        }
+        for (String title : ERROR_DIALOG_TITLES) {
+            if (mFocusedWindow.contains(title)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("load %.2f, available memory %d kB, focus %s", mLoadAverage,
+                mAvailableMemoryKb, mFocusedWindow);
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A persistent cache of the SHA-1 digests of the test apks and jars in a test case directory.
+ * <p/>
+ * Entries are keyed by the path, size, modification time and file key (the inode on unix) of
+ * the file, so a digest is only computed again once the file changes. Missing digests are
+ * computed in parallel on a shared pool, reading the files through memory mapped buffers. The
+ * index is stored in {@link #INDEX_FILE_NAME} inside the test case directory, and rewritten
+ * whenever all pending digests are done.
+ * <p/>
+ * All methods are thread safe.
+ */
+class DigestCache {
+
+    static final String INDEX_FILE_NAME = ".digests";
+    static final String FAILED_DIGEST = "failed to generate digest";
+
+    private static final String ALGORITHM = "SHA-1";
+    /** size of the regions mapped at once, so huge files do not exhaust the address space */
+    private static final long MAP_REGION_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_HASH_THREADS = 4;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final Map<File, DigestCache> sInstances = new HashMap<>();
+    private static ExecutorService sHashService = null;
+
+    private final File mIndexFile;
+    /** map of file path to the cache entry for it */
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    /** map of file path to the digest being computed for it */
+    private final Map<String, Future<String>> mPendingDigests = new HashMap<>();
+    private boolean mDirty = false;
+
+    /** a cached digest and the state of the file it was computed from */
+    private static class Entry {
+        final String mKey;
+        final String mDigest;
+
+        Entry(String key, String digest) {
+            mKey = key;
+            mDigest = digest;
+        }
+    }
+
+    /**
+     * Creates a {@link DigestCache} stored in the given index file.
+     * <p/>
+     * Exposed for unit testing
+     */
+    DigestCache(File indexFile) {
+        mIndexFile = indexFile;
+        load();
+    }
+
+    /**
+     * Get the process wide {@link DigestCache} of the given test case directory.
+     */
+    static DigestCache getInstance(File testCaseDir) {
+        File dir = testCaseDir.getAbsoluteFile();
+        synchronized (sInstances) {
+            DigestCache cache = sInstances.get(dir);
+            if (cache == null) {
+                cache = new DigestCache(new File(dir, INDEX_FILE_NAME));
+                sInstances.put(dir, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Forget the in-memory state of all caches, so they are loaded from disk again.
+     * <p/>
+     * Exposed for benchmarking and unit testing
+     */
+    static void clearInstances() {
+        synchronized (sInstances) {
+            sInstances.clear();
+        }
+    }
+
+    private static synchronized ExecutorService getHashService() {
+        if (sHashService == null) {
+            int numThreads = Math.min(MAX_HASH_THREADS,
+                    Runtime.getRuntime().availableProcessors());
+            sHashService = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DigestCache");
+                    // never keep the process alive just to finish hashing
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sHashService;
+    }
+
+    /**
+     * Get the digest of the given file, computing it in the background if it is not cached.
+     *
+     * @param file the file to digest
+     * @return a {@link Future} for the hex {@link String} of the digest. The digest is
+     *         {@link #FAILED_DIGEST} if the file could not be read.
+     */
+    synchronized Future<String> getDigest(final File file) {
+        final String path = file.getAbsolutePath();
+        final String key = getKey(file);
+        Entry entry = mEntries.get(path);
+        if (key != null && entry != null && entry.mKey.equals(key)) {
+            return completed(entry.mDigest);
+        }
+        Future<String> pending = mPendingDigests.get(path);
+        if (pending != null) {
+            return pending;
+        }
+        pending = getHashService().submit(new Callable<String>() {
+            @Override
+            public String call() {
+                String digest = FAILED_DIGEST;
+                try {
+                    digest = computeDigest(file);
+                } catch (IOException e) {
+                    CLog.e("Failed to generate digest of %s", path);
+                    CLog.e(e);
+                }
+                finishDigest(path, key, digest);
+                return digest;
+            }
+        });
+        mPendingDigests.put(path, pending);
+        return pending;
+    }
+
+    private static Future<String> completed(final String digest) {
+        FutureTask<String> future = new FutureTask<>(new Callable<String>() {
+            @Override
+            public String call() {
+                return digest;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    /**
+     * Store a computed digest, and write the index once nothing is pending anymore.
+     */
+    private synchronized void finishDigest(String path, String key, String digest) {
+        if (key != null && !FAILED_DIGEST.equals(digest)) {
+            mEntries.put(path, new Entry(key, digest));
+            mDirty = true;
+        }
+        mPendingDigests.remove(path);
+        if (mPendingDigests.isEmpty() && mDirty) {
+            save();
+        }
+    }
+
+    /**
+     * @return the key identifying the current state of the given file, or <code>null</code> if
+     *         the file cannot be read
+     */
+    static String getKey(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(),
+                    BasicFileAttributes.class);
+            Object fileKey = attrs.fileKey();
+            return String.format("%d:%d:%s", attrs.size(), attrs.lastModifiedTime().toMillis(),
+                    fileKey == null ? "" : fileKey.toString());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compute the SHA-1 digest of a file by mapping it into memory.
+     *
+     * @return the hex {@link String} of the digest
+     * @throws IOException if the file could not be read
+     */
+    static String computeDigest(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            return ALGORITHM + " not found";
+        }
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_REGION_SIZE) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_REGION_SIZE, size - position));
+                md.update(region);
+            }
+        } finally {
+            StreamUtil.close(stream);
+        }
+        return toHexString(md.digest());
+    }
+
+    /**
+     * Convert the given byte array into a lowercase hex string.
+     *
+     * @param arr The array to convert.
+     * @return The hex encoded string.
+     */
+    static String toHexString(byte[] arr) {
+        char[] hex = new char[arr.length * 2];
+        for (int i = 0; i < arr.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(arr[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[arr[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Read the index file. Malformed lines are ignored, so a corrupt index only costs a rehash.
+     */
+    private void load() {
+        if (!mIndexFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mIndexFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // digest, key and path. the path goes last as it may contain the separator
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 3) {
+                    mEntries.put(fields[2], new Entry(fields[1], fields[0]));
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // ignore, nothing cached yet
+        } catch (IOException e) {
+            CLog.w("Failed to read digest index %s", mIndexFile.getAbsolutePath());
+        } finally {
+            StreamUtil.close(reader);
+        }
+    }
+
+    /**
+     * Write the index file. A temporary file is renamed over the index, so concurrent readers
+     * never see a partially written index.
+     */
+    private void save() {
+        File tmpFile = new File(mIndexFile.getParentFile(), mIndexFile.getName() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmpFile));
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                writer.write(String.format("%s\t%s\t%s\n", entry.getValue().mDigest,
+                        entry.getValue().mKey, entry.getKey()));
+            }
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(mIndexFile)) {
+                CLog.w("Failed to write digest index %s", mIndexFile.getAbsolutePath());
+                tmpFile.delete();
+                return;
+            }
+            mDirty = false;
+        } catch (IOException e) {
+            // a read-only CTS install still works, it just does not persist digests
+            CLog.w("Failed to write digest index %s", mIndexFile.getAbsolutePath());
+            tmpFile.delete();
+        } finally {
+            StreamUtil.close(writer);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.FileInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.ResultForwarder;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ResultForwarder} that captures a bugreport, logcat or screenshot of the device on
+ * each failed test, without blocking the reporting of test results while capturing.
+ * <p/>
+ * Captures are queued to a single background thread, so captures of one device never run
+ * concurrently. The captured data is spooled to a temporary file, and forwarded to the listener
+ * on the thread reporting test results, on its next event, since listeners are not thread safe.
+ * <p/>
+ * The number of queued captures and the total number of bytes captured are bounded. Failures
+ * that find the queue full or the byte budget used up are not captured, rather than stalling the
+ * test run. A bugreport covers all failures within a window after the failure it was taken for.
+ */
+class FailureArtifactCollector extends ResultForwarder {
+
+    /** the max time to wait for queued captures when the run is finished or the device reboots */
+    private static final long CAPTURE_WAIT_MS = 10 * 60 * 1000;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ITestDevice mDevice;
+    private final ThreadPoolExecutor mCaptureService;
+    /** captured artifacts not yet forwarded to the listener */
+    private final Queue<Artifact> mCaptured = new ConcurrentLinkedQueue<Artifact>();
+    private final AtomicLong mRemainingBytes;
+    private final AtomicInteger mSkippedCaptures = new AtomicInteger();
+
+    private boolean mBugreport = false;
+    private long mBugreportWindowMs = 0;
+    private boolean mScreenshot = false;
+    private boolean mLogcat = false;
+    private int mMaxLogcatBytes = 0;
+
+    /** the time the last bugreport was requested, and the test it was requested for */
+    private long mLastBugreportTime = 0;
+    private TestIdentifier mLastBugreportTest = null;
+
+    /** A captured artifact of a failed test */
+    private static class Artifact {
+        final String mDataName;
+        final LogDataType mDataType;
+        final File mFile;
+
+        Artifact(String dataName, LogDataType dataType, File file) {
+            mDataName = dataName;
+            mDataType = dataType;
+            mFile = file;
+        }
+    }
+
+    /**
+     * Create a {@link FailureArtifactCollector}. No artifacts are captured until enabled with
+     * {@link #setBugreport(long)}, {@link #setScreenshot()} or {@link #setLogcat(int)}.
+     *
+     * @param listener the {@link ITestInvocationListener} to forward results and artifacts to
+     * @param device the {@link ITestDevice} to capture artifacts from
+     * @param maxQueuedCaptures the max number of captures waiting for the capture thread
+     * @param maxBytes the max number of bytes to capture during the run, or
+     * {@link Long#MAX_VALUE} for no limit
+     */
+    FailureArtifactCollector(ITestInvocationListener listener, final ITestDevice device,
+            int maxQueuedCaptures, long maxBytes) {
+        super(listener);
+        mDevice = device;
+        mRemainingBytes = new AtomicLong(maxBytes);
+        mCaptureService = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueuedCaptures)),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, String.format("FailureArtifactCollector-%s",
+                                device == null ? "" : device.getSerialNumber()));
+                        // never keep the process alive just to finish capturing
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Capture a bugreport on test failures.
+     *
+     * @param windowMs the time after a bugreport during which further failures do not get
+     * another bugreport. 0 to take a bugreport on each failure.
+     */
+    void setBugreport(long windowMs) {
+        mBugreport = true;
+        mBugreportWindowMs = windowMs;
+    }
+
+    /**
+     * Capture a screenshot on each test failure.
+     */
+    void setScreenshot() {
+        mScreenshot = true;
+    }
+
+    /**
+     * Capture a logcat snapshot on each test failure.
+     *
+     * @param maxLogcatBytes the max number of bytes of logcat to capture on each failure
+     */
+    void setLogcat(int maxLogcatBytes) {
+        mLogcat = true;
+        mMaxLogcatBytes = maxLogcatBytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        forwardArtifacts();
+        super.testRunStarted(runName, testCount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(TestIdentifier test) {
+        forwardArtifacts();
+        super.testStarted(test);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testFailed(TestIdentifier test, String trace) {
+        super.testFailed(test, trace);
+        if (mBugreport) {
+            long now = System.currentTimeMillis();
+            if (mLastBugreportTest != null && now - mLastBugreportTime < mBugreportWindowMs) {
+                CLog.i("Bugreport for %s also covers failure of %s", mLastBugreportTest, test);
+            } else if (queueCapture(test, new BugreportCapture(test))) {
+                mLastBugreportTime = now;
+                mLastBugreportTest = test;
+            }
+        }
+        if (mScreenshot) {
+            queueCapture(test, new ScreenshotCapture(test));
+        }
+        if (mLogcat) {
+            queueCapture(test, new LogcatCapture(test));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        forwardArtifacts();
+        super.testEnded(test, testMetrics);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        forwardArtifacts();
+        super.testRunEnded(elapsedTime, runMetrics);
+    }
+
+    /**
+     * Wait for all queued captures, and forward their artifacts. Must be called before the device
+     * is rebooted, so no capture runs while the device is unavailable.
+     */
+    void waitForCaptures() {
+        try {
+            mCaptureService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // all captures queued before this one are done
+                }
+            }).get(CAPTURE_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the queue is full; wait for the capture thread to go idle instead
+            waitForIdle();
+        } catch (Exception e) {
+            CLog.w("Failed to wait for failure captures of %s: %s", getSerialNumber(),
+                    e.toString());
+        }
+        forwardArtifacts();
+    }
+
+    private void waitForIdle() {
+        long deadline = System.currentTimeMillis() + CAPTURE_WAIT_MS;
+        while ((mCaptureService.getActiveCount() > 0 || !mCaptureService.getQueue().isEmpty())
+                && System.currentTimeMillis() < deadline) {
+            RunUtil.getDefault().sleep(100);
+        }
+    }
+
+    /**
+     * Wait for all queued captures, forward their artifacts and stop the capture thread. No more
+     * artifacts are captured afterwards.
+     */
+    void finish() {
+        mCaptureService.shutdown();
+        try {
+            if (!mCaptureService.awaitTermination(CAPTURE_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                CLog.w("Timed out waiting for failure captures of %s", getSerialNumber());
+                mCaptureService.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            mCaptureService.shutdownNow();
+        }
+        forwardArtifacts();
+        if (mSkippedCaptures.get() > 0) {
+            CLog.w("Skipped %d failure captures of %s", mSkippedCaptures.get(),
+                    getSerialNumber());
+        }
+    }
+
+    /**
+     * Forward the artifacts captured so far to the listener.
+     */
+    private void forwardArtifacts() {
+        Artifact artifact;
+        while ((artifact = mCaptured.poll()) != null) {
+            InputStreamSource source = new FileInputStreamSource(artifact.mFile);
+            try {
+                super.testLog(artifact.mDataName, artifact.mDataType, source);
+            } finally {
+                source.cancel();
+                FileUtil.deleteFile(artifact.mFile);
+            }
+        }
+    }
+
+    /**
+     * Queue the given capture, unless the queue is full or the byte budget is used up.
+     *
+     * @return <code>true</code> if the capture was queued
+     */
+    private boolean queueCapture(TestIdentifier test, Runnable capture) {
+        if (mRemainingBytes.get() <= 0) {
+            mSkippedCaptures.incrementAndGet();
+            CLog.d("Not capturing failure of %s: byte budget used up", test);
+            return false;
+        }
+        try {
+            mCaptureService.execute(capture);
+            return true;
+        } catch (RejectedExecutionException e) {
+            mSkippedCaptures.incrementAndGet();
+            CLog.d("Not capturing failure of %s: capture queue full", test);
+            return false;
+        }
+    }
+
+    /**
+     * Spool the given source to a temporary file as an {@link Artifact} to forward, within the
+     * byte budget. The source is cancelled afterwards.
+     */
+    private void addArtifact(String dataName, LogDataType dataType, InputStreamSource source) {
+        if (source == null) {
+            return;
+        }
+        InputStream stream = null;
+        OutputStream out = null;
+        File file = null;
+        try {
+            stream = source.createInputStream();
+            file = FileUtil.createTempFile(dataName, ".tmp");
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            long remaining = mRemainingBytes.get();
+            long size = 0;
+            int read;
+            while (remaining > 0 && (read = stream.read(buffer, 0,
+                    (int) Math.min(buffer.length, remaining))) != -1) {
+                out.write(buffer, 0, read);
+                remaining -= read;
+                size += read;
+            }
+            if (remaining <= 0) {
+                CLog.w("Failure capture byte budget used up, %s may be truncated", dataName);
+            }
+            out.close();
+            out = null;
+            mRemainingBytes.addAndGet(-size);
+            mCaptured.add(new Artifact(dataName, dataType, file));
+            file = null;
+        } catch (IOException e) {
+            CLog.e("Failed to capture %s: %s", dataName, e.toString());
+        } finally {
+            StreamUtil.close(out);
+            StreamUtil.close(stream);
+            source.cancel();
+            FileUtil.deleteFile(file);
+        }
+    }
+
+    private String getSerialNumber() {
+        return mDevice == null ? "device" : mDevice.getSerialNumber();
+    }
+
+    /**
+     * Capture a bugreport from the device.
+     * <p/>
+     * Exposed for unit testing
+     */
+    InputStreamSource captureBugreport() {
+        return mDevice.getBugreport();
+    }
+
+    /**
+     * Capture a screenshot from the device.
+     * <p/>
+     * Exposed for unit testing
+     */
+    InputStreamSource captureScreenshot() throws DeviceNotAvailableException {
+        return mDevice.getScreenshot();
+    }
+
+    /**
+     * Capture a logcat snapshot from the device.
+     * <p/>
+     * Exposed for unit testing
+     */
+    InputStreamSource captureLogcat(int maxBytes) {
+        return mDevice.getLogcat(maxBytes);
+    }
+
+    private class BugreportCapture implements Runnable {
+        private final TestIdentifier mTest;
+
+        BugreportCapture(TestIdentifier test) {
+            mTest = test;
+        }
+
+        @Override
+        public void run() {
+            addArtifact(String.format("bug-%s_%s", mTest.getClassName(), mTest.getTestName()),
+                    LogDataType.TEXT, captureBugreport());
+        }
+    }
+
+    private class ScreenshotCapture implements Runnable {
+        private final TestIdentifier mTest;
+
+        ScreenshotCapture(TestIdentifier test) {
+            mTest = test;
+        }
+
+        @Override
+        public void run() {
+            try {
+                addArtifact(String.format("screenshot-%s_%s", mTest.getClassName(),
+                        mTest.getTestName()), LogDataType.PNG, captureScreenshot());
+            } catch (DeviceNotAvailableException e) {
+                CLog.e("Device %s became unavailable while capturing screenshot, %s",
+                        getSerialNumber(), e.toString());
+            }
+        }
+    }
+
+    private class LogcatCapture implements Runnable {
+        private final TestIdentifier mTest;
+
+        LogcatCapture(TestIdentifier test) {
+            mTest = test;
+        }
+
+        @Override
+        public void run() {
+            // sleep a small amount of time to ensure test failure stack trace makes it into
+            // logcat capture
+            RunUtil.getDefault().sleep(10);
+            addArtifact(String.format("logcat-%s_%s", mTest.getClassName(),
+                    mTest.getTestName()), LogDataType.TEXT, captureLogcat(mMaxLogcatBytes));
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.android.cts.tradefed.testtype;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
@@ -29,6 +30,17 @@ import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Test runner for native gTests.
@@ -45,6 +57,7 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
     private static final String ANDROID_PATH_SEPARATOR = "/";
 
     private int mMaxTestTimeMs = 1 * 60 * 1000;
+    private int mNumShards = 1;
 
     private CtsBuildHelper mCtsBuild;
     private ITestDevice mDevice;
@@ -66,10 +79,24 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
         mExeName += mAbi.getBitness();
     }
 
+    /**
+     * Set the number of instances of the test executable to run concurrently, each running a
+     * shard of the tests selected with GTEST_SHARD_INDEX and GTEST_TOTAL_SHARDS.
+     *
+     * @param numShards the number of shards, 1 to run the tests in a single instance
+     */
+    public void setNumShards(int numShards) {
+        mNumShards = Math.max(1, numShards);
+    }
+
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
         if (installTest()) {
-            runTest(listener);
+            if (mNumShards > 1) {
+                runShardedTest(listener);
+            } else {
+                runTest(listener);
+            }
         } else {
             CLog.e("Failed to install native tests");
         }
@@ -88,6 +115,10 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
         }
 
         String devicePath = NATIVE_TESTS_DIRECTORY + ANDROID_PATH_SEPARATOR + mExeName;
+        if (isPushed(nativeExe, devicePath)) {
+            CLog.d("Native test %s is up to date on device", mExeName);
+            return true;
+        }
         if (!mDevice.pushFile(nativeExe, devicePath)) {
             CLog.e("Failed to push native test to device");
             return false;
@@ -95,6 +126,27 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
         return true;
     }
 
+    /**
+     * @return <code>true</code> if the file at the given device path has the same contents as
+     * the given local file, according to sha1sum on the device
+     */
+    private boolean isPushed(File nativeExe, String devicePath)
+            throws DeviceNotAvailableException {
+        String digest;
+        try {
+            digest = DigestCache.getInstance(mCtsBuild.getTestCasesDir()).getDigest(nativeExe)
+                    .get();
+        } catch (InterruptedException | ExecutionException e) {
+            return false;
+        }
+        if (DigestCache.FAILED_DIGEST.equals(digest)) {
+            return false;
+        }
+        // devices without sha1sum print an error, so the file just gets pushed
+        String output = mDevice.executeShellCommand(String.format("sha1sum %s", devicePath));
+        return output != null && output.startsWith(digest);
+    }
+
     private boolean createRemoteDir(String remoteFilePath) throws DeviceNotAvailableException {
         if (mDevice.doesFileExist(remoteFilePath)) {
             return true;
@@ -131,6 +183,283 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
         }
     }
 
+    /**
+     * Run the tests in {@link #mNumShards} concurrent instances of the test executable, and
+     * report them to the listener as a single test run while they run.
+     * <p/>
+     * The tests of different instances overlap, so the listener sees them interleaved, each with
+     * the times it actually started and ended.
+     */
+    void runShardedTest(ITestRunListener listener) throws DeviceNotAvailableException {
+        final String fullPath = NATIVE_TESTS_DIRECTORY + ANDROID_PATH_SEPARATOR + mExeName;
+        CLog.v("Running gtest %s in %d shards on %s", fullPath, mNumShards,
+                mDevice.getSerialNumber());
+        // force file to be executable
+        CLog.v("%s", mDevice.executeShellCommand(String.format("chmod 755 %s", fullPath)));
+
+        // the pool has a thread per shard, created as each shard is submitted in order
+        ExecutorService shardService = Executors.newFixedThreadPool(mNumShards,
+                new ThreadFactory() {
+                    private int mShardIndex = 0;
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, String.format("GeeTest-%s-shard%d",
+                                mDevice.getSerialNumber(), mShardIndex++));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        final ShardForwarder forwarder = new ShardForwarder(mPackageName, mNumShards, listener);
+        List<Future<Void>> shardRuns = new ArrayList<>(mNumShards);
+        try {
+            for (int i = 0; i < mNumShards; i++) {
+                final ShardListener shard = new ShardListener(forwarder);
+                final GeeTestResultParser resultParser =
+                        new GeeTestResultParser(mPackageName, shard);
+                resultParser.setFakePackagePrefix(mPackageName + ".");
+                final String cmd = String.format("GTEST_TOTAL_SHARDS=%d GTEST_SHARD_INDEX=%d %s",
+                        mNumShards, i, fullPath);
+                shardRuns.add(shardService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws DeviceNotAvailableException {
+                        try {
+                            mDevice.executeShellCommand(cmd, resultParser,
+                                    mMaxTestTimeMs /* maxTimeToShellOutputResponse */,
+                                    0 /* retryAttempts */);
+                        } catch (DeviceNotAvailableException | RuntimeException e) {
+                            resultParser.flush();
+                            throw e;
+                        } finally {
+                            shard.finished();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            Throwable shardError = null;
+            for (Future<Void> shardRun : shardRuns) {
+                try {
+                    shardRun.get();
+                } catch (ExecutionException e) {
+                    if (shardError == null) {
+                        shardError = e.getCause();
+                    }
+                } catch (InterruptedException e) {
+                    if (shardError == null) {
+                        shardError = e;
+                    }
+                }
+            }
+            // end the run of what the shards did run even if the device went away
+            forwarder.finish();
+            if (shardError instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) shardError;
+            } else if (shardError instanceof RuntimeException) {
+                throw (RuntimeException) shardError;
+            } else if (shardError != null) {
+                throw new RuntimeException(shardError);
+            }
+        } finally {
+            shardService.shutdownNow();
+        }
+    }
+
+    /** A test event of a shard, reported by the {@link ShardForwarder}. */
+    private interface TestEvent {
+        void report(ITestRunListener listener);
+    }
+
+    /**
+     * Forwards the test events of all shards to a listener as one test run, one event at a time.
+     * <p/>
+     * The run is started once every shard has started its own run or finished, with the total
+     * number of tests of the shards. Test events of shards that start early are held until then.
+     */
+    private static class ShardForwarder {
+        private final String mRunName;
+        private final ITestRunListener mListener;
+        private final List<TestEvent> mHeldEvents = new ArrayList<>();
+        private final StringBuilder mRunFailures = new StringBuilder();
+        private final Map<String, String> mRunMetrics = new HashMap<>();
+        /** the number of shards that have neither started their run nor finished */
+        private int mPendingShards;
+        private int mTestCount = 0;
+        private long mElapsedTime = 0;
+        private boolean mAnyRunStarted = false;
+        private boolean mRunStarted = false;
+        private boolean mFinished = false;
+
+        ShardForwarder(String runName, int shardCount, ITestRunListener listener) {
+            mRunName = runName;
+            mPendingShards = shardCount;
+            mListener = listener;
+        }
+
+        synchronized void shardRunStarted(int testCount) {
+            mAnyRunStarted = true;
+            mTestCount += testCount;
+            shardReady();
+        }
+
+        /**
+         * @param runStarted whether the shard started its run
+         */
+        synchronized void shardFinished(boolean runStarted) {
+            if (!runStarted) {
+                shardReady();
+            }
+        }
+
+        private void shardReady() {
+            mPendingShards--;
+            if (mPendingShards == 0 && mAnyRunStarted && !mFinished) {
+                mRunStarted = true;
+                mListener.testRunStarted(mRunName, mTestCount);
+                for (TestEvent event : mHeldEvents) {
+                    event.report(mListener);
+                }
+                mHeldEvents.clear();
+            }
+        }
+
+        synchronized void testEvent(TestEvent event) {
+            if (mFinished) {
+                return;
+            } else if (mRunStarted) {
+                event.report(mListener);
+            } else {
+                mHeldEvents.add(event);
+            }
+        }
+
+        synchronized void runFailed(String errorMessage) {
+            if (mRunFailures.length() > 0) {
+                mRunFailures.append("; ");
+            }
+            mRunFailures.append(errorMessage);
+        }
+
+        synchronized void runEnded(long elapsedTime, Map<String, String> runMetrics) {
+            mElapsedTime = Math.max(mElapsedTime, elapsedTime);
+            mRunMetrics.putAll(runMetrics);
+        }
+
+        /**
+         * Ends the run once all shards are done. Later events of shards are dropped.
+         */
+        synchronized void finish() {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            if (!mAnyRunStarted) {
+                return;
+            }
+            if (!mRunStarted) {
+                // a shard that did not finish never started its run
+                mListener.testRunStarted(mRunName, mTestCount);
+                for (TestEvent event : mHeldEvents) {
+                    event.report(mListener);
+                }
+                mHeldEvents.clear();
+            }
+            if (mRunFailures.length() > 0) {
+                mListener.testRunFailed(mRunFailures.toString());
+            }
+            mListener.testRunEnded(mElapsedTime, mRunMetrics);
+        }
+    }
+
+    /**
+     * Passes the events of a shard to the {@link ShardForwarder}.
+     */
+    private static class ShardListener implements ITestRunListener {
+        private final ShardForwarder mForwarder;
+        /** whether the shard started its run, only accessed by the thread of the shard */
+        private boolean mRunStarted = false;
+
+        ShardListener(ShardForwarder forwarder) {
+            mForwarder = forwarder;
+        }
+
+        void finished() {
+            mForwarder.shardFinished(mRunStarted);
+        }
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            if (!mRunStarted) {
+                mRunStarted = true;
+                mForwarder.shardRunStarted(testCount);
+            }
+        }
+
+        @Override
+        public void testStarted(final TestIdentifier test) {
+            mForwarder.testEvent(new TestEvent() {
+                @Override
+                public void report(ITestRunListener listener) {
+                    listener.testStarted(test);
+                }
+            });
+        }
+
+        @Override
+        public void testFailed(final TestIdentifier test, final String trace) {
+            mForwarder.testEvent(new TestEvent() {
+                @Override
+                public void report(ITestRunListener listener) {
+                    listener.testFailed(test, trace);
+                }
+            });
+        }
+
+        @Override
+        public void testAssumptionFailure(final TestIdentifier test, final String trace) {
+            mForwarder.testEvent(new TestEvent() {
+                @Override
+                public void report(ITestRunListener listener) {
+                    listener.testAssumptionFailure(test, trace);
+                }
+            });
+        }
+
+        @Override
+        public void testIgnored(final TestIdentifier test) {
+            mForwarder.testEvent(new TestEvent() {
+                @Override
+                public void report(ITestRunListener listener) {
+                    listener.testIgnored(test);
+                }
+            });
+        }
+
+        @Override
+        public void testEnded(final TestIdentifier test, final Map<String, String> testMetrics) {
+            mForwarder.testEvent(new TestEvent() {
+                @Override
+                public void report(ITestRunListener listener) {
+                    listener.testEnded(test, testMetrics);
+                }
+            });
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            mForwarder.runFailed(errorMessage);
+        }
+
+        @Override
+        public void testRunStopped(long elapsedTime) {
+            mForwarder.runEnded(elapsedTime, Collections.<String, String>emptyMap());
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            mForwarder.runEnded(elapsedTime, runMetrics);
+        }
+    }
 
     @Override
     public void setBuild(IBuildInfo buildInfo) {
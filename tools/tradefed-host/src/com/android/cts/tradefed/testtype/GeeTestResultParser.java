@@ -17,18 +17,16 @@ package com.android.cts.tradefed.testtype;
 
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.testtype.testdefs.XmlDefsTest;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * TODO: Merge change to add package prefix to tradefed's GTestResultParser.
@@ -88,8 +86,11 @@ import java.util.regex.Pattern;
  * </pre>
  *
  * All other lines are ignored.
+ * <p/>
+ * Output is parsed as bytes, see {@link ByteLineReceiver}. Only test names are decoded, and the
+ * output of a test is only decoded if it fails.
  */
-public class GeeTestResultParser extends MultiLineReceiver {
+public class GeeTestResultParser extends ByteLineReceiver {
     private static final String LOG_TAG = "GTestResultParser";
 
     // Variables to keep track of state
@@ -113,13 +114,19 @@ public class GeeTestResultParser extends MultiLineReceiver {
 
     private String mCoverageTarget = null;
 
+    /** The output of the current test, reused across tests. */
+    private final ByteArrayOutputStream mStackTrace = new ByteArrayOutputStream();
+
+    /** The identifier parsed from the current marker line, reused across lines. */
+    private final ParsedTestInfo mParsedInfo = new ParsedTestInfo();
+
     /**
      * Test result data
      */
-    private static class TestResult {
+    private class TestResult {
         private String mTestName = null;
         private String mTestClass = null;
-        private StringBuilder mStackTrace = null;
+        private boolean mHasStackTrace = false;
         @SuppressWarnings("unused")
         private Long mRunTime = null;
 
@@ -136,7 +143,7 @@ public class GeeTestResultParser extends MultiLineReceiver {
          * @return true if there is currently a stack trace, false otherwise
          */
         boolean hasStackTrace() {
-            return mStackTrace != null;
+            return mHasStackTrace;
         }
 
         /**
@@ -148,7 +155,7 @@ public class GeeTestResultParser extends MultiLineReceiver {
          */
         String getTrace() {
             if (hasStackTrace()) {
-                return mStackTrace.toString();
+                return new String(mStackTrace.toByteArray(), UTF_8);
             } else {
                 Log.e(LOG_TAG, "Could not find stack trace for failed test");
                 return new Throwable("Unknown failure").toString();
@@ -173,30 +180,55 @@ public class GeeTestResultParser extends MultiLineReceiver {
         }
     }
 
-    /** Internal helper struct to store parsed test info. */
+    /**
+     * Internal helper struct to store parsed test info, as offsets into the line it was parsed
+     * from.
+     */
     private static class ParsedTestInfo {
-        String mTestName = null;
-        String mTestClassName = null;
-        String mTestRunTime = null;
+        byte[] mLine;
+        int mClassStart;
+        int mClassEnd;
+        int mNameStart;
+        int mNameEnd;
+        /** the run time in ms, or -1 if there was none */
+        long mTestRunTime;
+        /** false if the class and test name could not be parsed */
+        boolean mValid;
+
+        String getTestClassName() {
+            return mValid ? decode(mLine, mClassStart, mClassEnd) : "UNKNOWN_CLASS";
+        }
+
+        String getTestName() {
+            return mValid ? decode(mLine, mNameStart, mNameEnd) : "UNKNOWN_TEST";
+        }
+
+        boolean isTestClassName(String className) {
+            return mValid ? regionEquals(mLine, mClassStart, mClassEnd, className) :
+                    "UNKNOWN_CLASS".equals(className);
+        }
 
-        public ParsedTestInfo(String testName, String testClassName, String testRunTime) {
-            mTestName = testName;
-            mTestClassName = testClassName;
-            mTestRunTime = testRunTime;
+        boolean isTestName(String testName) {
+            return mValid ? regionEquals(mLine, mNameStart, mNameEnd, testName) :
+                    "UNKNOWN_TEST".equals(testName);
         }
     }
 
     /** Prefixes used to demarcate and identify output. */
     private static class Prefixes {
         @SuppressWarnings("unused")
-        private static final String INFORMATIONAL_MARKER = "[----------]";
-        private static final String START_TEST_RUN_MARKER = "[==========] Running";
-        private static final String TEST_RUN_MARKER = "[==========]";
-        private static final String START_TEST_MARKER = "[ RUN      ]";
-        private static final String OK_TEST_MARKER = "[       OK ]";
-        private static final String FAILED_TEST_MARKER = "[  FAILED  ]";
+        private static final byte[] INFORMATIONAL_MARKER = ascii("[----------]");
+        private static final byte[] START_TEST_RUN_MARKER = ascii("[==========] Running");
+        private static final byte[] TEST_RUN_MARKER = ascii("[==========]");
+        private static final byte[] START_TEST_MARKER = ascii("[ RUN      ]");
+        private static final byte[] OK_TEST_MARKER = ascii("[       OK ]");
+        private static final byte[] FAILED_TEST_MARKER = ascii("[  FAILED  ]");
     }
 
+    private static final byte[] TIME_SUFFIX = ascii(" ms)");
+    private static final byte[] TOTAL_TIME_SUFFIX = ascii(" ms total)");
+    private static final byte[] TESTS_SUFFIX = ascii(" test");
+
     /**
      * Creates the GTestResultParser.
      *
@@ -248,60 +280,53 @@ public class GeeTestResultParser extends MultiLineReceiver {
      */
     private void clearCurrentTestResult() {
         mCurrentTestResult = null;
+        mStackTrace.reset();
     }
 
     /**
-     * {@inheritDoc}
+     * Parse output lines that were already split, like {@link com.android.ddmlib.MultiLineReceiver} does.
+     *
+     * @param lines the lines of output
      */
-    @Override
     public void processNewLines(String[] lines) {
         for (String line : lines) {
-            parse(line);
+            processDecodedLine(line);
         }
     }
 
     /**
      * Parse an individual output line.
-     *
-     * @param line  Text output line
      */
-    private void parse(String line) {
-        String message = null;
-
-        if (mTestRunInProgress || line.startsWith(Prefixes.TEST_RUN_MARKER)) {
-            if (line.startsWith(Prefixes.START_TEST_MARKER)) {
+    @Override
+    protected void processLine(byte[] line, int start, int end) {
+        if (mTestRunInProgress || startsWith(line, start, end, Prefixes.TEST_RUN_MARKER)) {
+            if (startsWith(line, start, end, Prefixes.START_TEST_MARKER)) {
                 // Individual test started
-                message = line.substring(Prefixes.START_TEST_MARKER.length()).trim();
-                processTestStartedTag(message);
+                processTestStartedTag(line, start + Prefixes.START_TEST_MARKER.length, end);
             }
-            else if (line.startsWith(Prefixes.OK_TEST_MARKER)) {
+            else if (startsWith(line, start, end, Prefixes.OK_TEST_MARKER)) {
                 // Individual test completed successfully
-                message = line.substring(Prefixes.OK_TEST_MARKER.length()).trim();
-                processOKTag(message);
+                processOKTag(line, start + Prefixes.OK_TEST_MARKER.length, end);
                 clearCurrentTestResult();
             }
-            else if (line.startsWith(Prefixes.FAILED_TEST_MARKER)) {
+            else if (startsWith(line, start, end, Prefixes.FAILED_TEST_MARKER)) {
                 // Individual test completed with failure
-                message = line.substring(Prefixes.FAILED_TEST_MARKER.length()).trim();
-                processFailedTag(message);
+                processFailedTag(line, start + Prefixes.FAILED_TEST_MARKER.length, end);
                 clearCurrentTestResult();
             }
-            else if (line.startsWith(Prefixes.START_TEST_RUN_MARKER)) {
+            else if (startsWith(line, start, end, Prefixes.START_TEST_RUN_MARKER)) {
                 // Test run started
-                // Make sure to leave the "Running" in the string
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
-                processRunStartedTag(message);
+                processRunStartedTag(line, start + Prefixes.START_TEST_RUN_MARKER.length, end);
             }
-            else if (line.startsWith(Prefixes.TEST_RUN_MARKER)) {
+            else if (startsWith(line, start, end, Prefixes.TEST_RUN_MARKER)) {
                 // Test run ended
                 // This is for the end of the test suite run, so make sure this else-if is after the
                 // check for START_TEST_SUITE_MARKER
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
-                processRunCompletedTag(message);
+                processRunCompletedTag(line, start + Prefixes.TEST_RUN_MARKER.length, end);
             }
             else if (testInProgress()) {
                 // Note this does not handle the case of an error outside an actual test run
-                appendTestOutputLine(line);
+                appendTestOutputLine(line, start, end);
             }
         }
     }
@@ -388,38 +413,53 @@ public class GeeTestResultParser extends MultiLineReceiver {
     /**
      * Parse the test identifier (class and test name), and optional time info.
      *
-     * @param identifier Raw identifier of the form classname.testname, with an optional time
-     *          element in the format of (XX ms) at the end
-     * @return A ParsedTestInfo representing the parsed info from the identifier string.
+     * @param line the line holding the identifier
+     * @param start the start of the raw identifier of the form classname.testname, with an
+     *          optional time element in the format of (XX ms) at the end
+     * @param end the end of the raw identifier
+     * @return A ParsedTestInfo representing the parsed info from the identifier. It is reused
+     *          for each line, and only valid while the line is being processed.
      *
-     *          If no time tag was detected, then the third element in the array (time_in_ms) will
-     *          be null. If the line failed to parse properly (eg: could not determine name of
-     *          test/class) then an "UNKNOWN" string value will be returned for the classname and
-     *          testname. This method guarantees a string will always be returned for the class and
-     *          test names (but not for the time value).
+     *          If no time tag was detected, then the time will be -1. If the line failed to
+     *          parse properly (eg: could not determine name of test/class) then an "UNKNOWN"
+     *          string value will be returned for the classname and testname.
      */
-    private ParsedTestInfo parseTestIdentifier(String identifier) {
-        ParsedTestInfo returnInfo = new ParsedTestInfo("UNKNOWN_CLASS", "UNKNOWN_TEST", null);
-
-        Pattern timePattern = Pattern.compile(".*(\\((\\d+) ms\\))");  // eg: (XX ms)
-        Matcher time = timePattern.matcher(identifier);
-
-        // Try to find a time
-        if (time.find()) {
-            String timeString = time.group(2);  // the "XX" in "(XX ms)"
-            String discardPortion = time.group(1);  // everything after the test class/name
-            identifier = identifier.substring(0, identifier.lastIndexOf(discardPortion)).trim();
-            returnInfo.mTestRunTime = timeString;
+    private ParsedTestInfo parseTestIdentifier(byte[] line, int start, int end) {
+        ParsedTestInfo returnInfo = mParsedInfo;
+        returnInfo.mLine = line;
+        returnInfo.mTestRunTime = -1;
+        returnInfo.mValid = false;
+        start = skipWhitespace(line, start, end);
+
+        // Try to find a time, eg: (XX ms)
+        int timeEnd = lastIndexOf(line, start, end, TIME_SUFFIX);
+        if (timeEnd > 0) {
+            int timeStart = timeEnd - 1;
+            while (timeStart >= start && line[timeStart] >= '0' && line[timeStart] <= '9') {
+                timeStart--;
+            }
+            if (timeStart >= start && line[timeStart] == '(' && timeStart + 1 < timeEnd) {
+                returnInfo.mTestRunTime = parseNumber(line, timeStart + 1, timeEnd);
+                end = trimEnd(line, start, timeStart);
+            }
         }
 
-        String[] testId = identifier.split("\\.");
-        if (testId.length < 2) {
+        // the identifier is split on '.', and the first two parts are the class and test name
+        int classEnd = indexOf(line, start, end, (byte)'.');
+        int nameEnd = classEnd < 0 ? -1 : indexOf(line, classEnd + 1, end, (byte)'.');
+        if (nameEnd < 0) {
+            nameEnd = end;
+        }
+        if (classEnd < 0 || classEnd + 1 == nameEnd) {
             Log.e(LOG_TAG, "Could not detect the test class and test name, received: " +
-                    identifier);
+                    decode(line, start, end));
         }
         else {
-            returnInfo.mTestClassName = testId[0];
-            returnInfo.mTestName = testId[1];
+            returnInfo.mClassStart = start;
+            returnInfo.mClassEnd = classEnd;
+            returnInfo.mNameStart = classEnd + 1;
+            returnInfo.mNameEnd = nameEnd;
+            returnInfo.mValid = true;
         }
         return returnInfo;
     }
@@ -427,21 +467,23 @@ public class GeeTestResultParser extends MultiLineReceiver {
     /**
      * Parses and stores the test identifier (class and test name).
      *
-     * @param identifier Raw identifier
+     * @param line the line holding the tag, after " Running", eg: (XX tests from 1 test case.)
      */
-    private void processRunStartedTag(String identifier) {
-        // eg: (Running XX tests from 1 test case.)
-        Pattern numTestsPattern = Pattern.compile("Running (\\d+) test[s]? from .*");
-        Matcher numTests = numTestsPattern.matcher(identifier);
-
+    private void processRunStartedTag(byte[] line, int start, int end) {
         // Try to find number of tests
-        if (numTests.find()) {
-            try {
-                mNumTestsExpected = Integer.parseInt(numTests.group(1));
+        start = skipWhitespace(line, start, end);
+        int numEnd = start;
+        while (numEnd < end && line[numEnd] >= '0' && line[numEnd] <= '9') {
+            numEnd++;
+        }
+        if (numEnd > start && startsWith(line, numEnd, end, TESTS_SUFFIX)) {
+            long numTests = parseNumber(line, start, numEnd);
+            if (numTests >= 0 && numTests <= Integer.MAX_VALUE) {
+                mNumTestsExpected = (int)numTests;
             }
-            catch (NumberFormatException e) {
+            else {
                 Log.e(LOG_TAG, "Unable to determine number of tests expected, received: " +
-                        numTests.group(1));
+                        decode(line, start, numEnd));
             }
         }
         if (mNumTestsExpected > 0) {
@@ -454,20 +496,25 @@ public class GeeTestResultParser extends MultiLineReceiver {
     /**
      * Processes and informs listener when we encounter a tag indicating that a test suite is done.
      *
-     * @param identifier Raw log output from the suite ended tag
+     * @param line the line holding the raw log output from the suite ended tag
      */
-    private void processRunCompletedTag(String identifier) {
-        Pattern timePattern = Pattern.compile(".*\\((\\d+) ms total\\)");  // eg: (XX ms total)
-        Matcher time = timePattern.matcher(identifier);
-
-        // Try to find the total run time
-        if (time.find()) {
-            try {
-                mTotalRunTime = Long.parseLong(time.group(1));
+    private void processRunCompletedTag(byte[] line, int start, int end) {
+        // Try to find the total run time, eg: (XX ms total)
+        int timeEnd = lastIndexOf(line, start, end, TOTAL_TIME_SUFFIX);
+        if (timeEnd > 0) {
+            int timeStart = timeEnd - 1;
+            while (timeStart >= start && line[timeStart] >= '0' && line[timeStart] <= '9') {
+                timeStart--;
             }
-            catch (NumberFormatException e) {
-                Log.e(LOG_TAG, "Unable to determine the total running time, received: " +
-                        time.group(1));
+            if (timeStart >= start && line[timeStart] == '(' && timeStart + 1 < timeEnd) {
+                long totalRunTime = parseNumber(line, timeStart + 1, timeEnd);
+                if (totalRunTime >= 0) {
+                    mTotalRunTime = totalRunTime;
+                }
+                else {
+                    Log.e(LOG_TAG, "Unable to determine the total running time, received: " +
+                            decode(line, timeStart + 1, timeEnd));
+                }
             }
         }
         reportTestRunEnded();
@@ -477,13 +524,14 @@ public class GeeTestResultParser extends MultiLineReceiver {
     /**
      * Processes and informs listener when we encounter a tag indicating that a test has started.
      *
-     * @param identifier Raw log output of the form classname.testname, with an optional time (x ms)
+     * @param line the line holding the raw log output of the form classname.testname, with an
+     *          optional time (x ms)
      */
-    private void processTestStartedTag(String identifier) {
-        ParsedTestInfo parsedResults = parseTestIdentifier(identifier);
+    private void processTestStartedTag(byte[] line, int start, int end) {
+        ParsedTestInfo parsedResults = parseTestIdentifier(line, start, end);
         TestResult testResult = getCurrentTestResult();
-        testResult.mTestClass = parsedResults.mTestClassName;
-        testResult.mTestName = parsedResults.mTestName;
+        testResult.mTestClass = parsedResults.getTestClassName();
+        testResult.mTestName = parsedResults.getTestName();
 
         TestIdentifier testId = new TestIdentifier(mFakePackagePrefix + testResult.mTestClass,
                 testResult.mTestName);
@@ -497,32 +545,27 @@ public class GeeTestResultParser extends MultiLineReceiver {
     /**
      * Helper method to do the work necessary when a test has ended.
      *
-     * @param identifier Raw log output of the form "classname.testname" with an optional (XX ms)
-     *          at the end indicating the running time.
+     * @param line the line holding the raw log output of the form "classname.testname" with an
+     *          optional (XX ms) at the end indicating the running time.
      * @param testPassed Indicates whether the test passed or failed (set to true if passed, false
      *          if failed)
      */
-    private void doTestEnded(String identifier, boolean testPassed) {
-        ParsedTestInfo parsedResults = parseTestIdentifier(identifier);
+    private void doTestEnded(byte[] line, int start, int end, boolean testPassed) {
+        ParsedTestInfo parsedResults = parseTestIdentifier(line, start, end);
         TestResult testResult = getCurrentTestResult();
         TestIdentifier testId = new TestIdentifier(mFakePackagePrefix + testResult.mTestClass,
                 testResult.mTestName);
 
         // Error - trying to end a test when one isn't in progress
         if (!testInProgress()) {
-            Log.e(LOG_TAG, "Test currently not in progress when trying to end test: " + identifier);
+            Log.e(LOG_TAG, "Test currently not in progress when trying to end test: " +
+                    decode(line, start, end).trim());
             return;
         }
 
         // Save the run time for this test if one exists
-        if (parsedResults.mTestRunTime != null) {
-            try {
-                testResult.mRunTime = new Long(parsedResults.mTestRunTime);
-            }
-            catch (NumberFormatException e) {
-                Log.e(LOG_TAG, "Test run time value is invalid, received: " +
-                        parsedResults.mTestRunTime);
-            }
+        if (parsedResults.mTestRunTime >= 0) {
+            testResult.mRunTime = parsedResults.mTestRunTime;
         }
 
         // Check that the test result is for the same test/class we're expecting it to be for
@@ -531,16 +574,16 @@ public class GeeTestResultParser extends MultiLineReceiver {
             Log.e(LOG_TAG, "No test/class name is currently recorded as running!");
         }
         else {
-            if (testResult.mTestClass.compareTo(parsedResults.mTestClassName) != 0) {
+            if (!parsedResults.isTestClassName(testResult.mTestClass)) {
                 Log.e(LOG_TAG, "Name for current test class does not match class we started " +
                         "with, expected: " + testResult.mTestClass + " but got: " +
-                        parsedResults.mTestClassName);
+                        parsedResults.getTestClassName());
                 encounteredUnexpectedTest = true;
             }
-            if (testResult.mTestName.compareTo(parsedResults.mTestName) != 0) {
+            if (!parsedResults.isTestName(testResult.mTestName)) {
                 Log.e(LOG_TAG, "Name for current test does not match test we started with," +
                         "expected: " + testResult.mTestName + " bug got: " +
-                        parsedResults.mTestName);
+                        parsedResults.getTestName());
                 encounteredUnexpectedTest = true;
             }
         }
@@ -571,37 +614,38 @@ public class GeeTestResultParser extends MultiLineReceiver {
     /**
      * Processes and informs listener when we encounter the OK tag.
      *
-     * @param identifier Raw log output of the form "classname.testname" with an optional (XX ms)
-     *          at the end indicating the running time.
+     * @param line the line holding the raw log output of the form "classname.testname" with an
+     *          optional (XX ms) at the end indicating the running time.
      */
-    private void processOKTag(String identifier) {
-        doTestEnded(identifier, true);
+    private void processOKTag(byte[] line, int start, int end) {
+        doTestEnded(line, start, end, true);
     }
 
     /**
      * Processes and informs listener when we encounter the FAILED tag.
      *
-     * @param identifier Raw log output of the form "classname.testname" with an optional (XX ms)
-     *          at the end indicating the running time.
+     * @param line the line holding the raw log output of the form "classname.testname" with an
+     *          optional (XX ms) at the end indicating the running time.
      */
-    private void processFailedTag(String identifier) {
-        doTestEnded(identifier, false);
+    private void processFailedTag(byte[] line, int start, int end) {
+        doTestEnded(line, start, end, false);
     }
 
     /**
      * Appends the test output to the current TestResult.
      *
-     * @param line Raw test result line of output.
+     * @param line the line holding the raw test result line of output.
      */
-    private void appendTestOutputLine(String line) {
+    private void appendTestOutputLine(byte[] line, int start, int end) {
         TestResult testResult = getCurrentTestResult();
-        if (testResult.mStackTrace == null) {
-            testResult.mStackTrace = new StringBuilder();
+        if (!testResult.mHasStackTrace) {
+            testResult.mHasStackTrace = true;
         }
         else {
-            testResult.mStackTrace.append("\r\n");
+            mStackTrace.write('\r');
+            mStackTrace.write('\n');
         }
-        testResult.mStackTrace.append(line);
+        mStackTrace.write(line, start, end - start);
     }
 
     /**
@@ -645,7 +689,6 @@ public class GeeTestResultParser extends MultiLineReceiver {
      */
     @Override
     public void done() {
-        super.done();
         if (mNumTestsExpected > mNumTestsRun) {
             handleTestRunFailed(String.format("Test run incomplete. Expected %d tests, received %d",
                     mNumTestsExpected, mNumTestsRun));
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * An {@link IRebootPolicy} that reboots only when the device looks degraded.
+ * <p/>
+ * The device is degraded when a crash or ANR dialog has focus, when no window had focus in two
+ * samples in a row, when the memory available to apps dropped below a share of what was
+ * available after the last reboot, or when the load average is too high. A single sample
+ * without focus is not enough, since the focus is briefly lost while activities switch. The
+ * policy also learns which packages leave the device degraded, and reboots after them even when
+ * the signals look fine, since some damage only shows once the next package runs. What it
+ * learned is kept in a history file, so it carries over to later runs. The shards of an
+ * invocation share the history file, so each adds the runs it recorded to the file when it
+ * finishes.
+ */
+class HealthRebootPolicy implements IRebootPolicy {
+
+    /** the number of runs of a package needed before its history is trusted */
+    static final int MIN_HISTORY_RUNS = 2;
+
+    private final File mHistoryFile;
+    private final long mMaxIntervalMs;
+    private final double mMinMemoryRatio;
+    private final double mMaxLoadAverage;
+    /** map of package name to the number of recorded runs and degraded runs */
+    private final Map<String, int[]> mHistory = new HashMap<>();
+    /** the runs recorded since the history was loaded, in the same form */
+    private final Map<String, int[]> mNewRuns = new HashMap<>();
+    private long mPrevRebootTime;
+    private long mBaselineMemoryKb = -1;
+    private boolean mPrevLostFocus = false;
+
+    /**
+     * @param historyFile the file the learned package history is kept in, or <code>null</code>
+     * to not keep it
+     * @param maxIntervalMs the max time between reboots in ms
+     * @param minMemoryRatio the share of the memory available after a reboot below which the
+     * device is degraded
+     * @param maxLoadAverage the load average above which the device is degraded
+     */
+    HealthRebootPolicy(File historyFile, long maxIntervalMs, double minMemoryRatio,
+            double maxLoadAverage) {
+        mHistoryFile = historyFile;
+        mMaxIntervalMs = maxIntervalMs;
+        mMinMemoryRatio = minMemoryRatio;
+        mMaxLoadAverage = maxLoadAverage;
+        if (historyFile != null) {
+            loadHistory(historyFile, mHistory);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean usesDeviceHealth() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deviceRebooted(DeviceHealth health, long timeMs) {
+        mPrevRebootTime = timeMs;
+        mBaselineMemoryKb = health == null ? -1 : health.getAvailableMemoryKb();
+        mPrevLostFocus = false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getRebootReason(String finishedPackage, String nextPackage,
+            DeviceHealth health, long timeMs) {
+        boolean lostFocus = health != null && health.hasLostFocus();
+        String degradation = getDegradation(health, lostFocus && mPrevLostFocus);
+        mPrevLostFocus = lostFocus;
+        // learn from the signals only, so proactive reboots do not reinforce themselves
+        recordRun(finishedPackage, degradation != null);
+        if (degradation != null) {
+            return degradation;
+        } else if (isKnownToDegrade(finishedPackage)) {
+            return String.format("%s usually leaves the device degraded", finishedPackage);
+        } else if (timeMs - mPrevRebootTime > mMaxIntervalMs) {
+            return "max reboot interval elapsed";
+        }
+        return null;
+    }
+
+    /**
+     * @param lostFocus <code>true</code> if no window had focus in this sample and the previous
+     * one
+     * @return the reason the device is degraded, or <code>null</code> if it is not
+     */
+    String getDegradation(DeviceHealth health, boolean lostFocus) {
+        if (health == null) {
+            return null;
+        } else if (health.hasErrorDialog()) {
+            return "error dialog shown";
+        } else if (lostFocus) {
+            return "no window has focus";
+        } else if (mBaselineMemoryKb > 0 && health.getAvailableMemoryKb() >= 0 &&
+                health.getAvailableMemoryKb() < mBaselineMemoryKb * mMinMemoryRatio) {
+            return String.format("available memory dropped from %d kB to %d kB",
+                    mBaselineMemoryKb, health.getAvailableMemoryKb());
+        } else if (health.getLoadAverage() > mMaxLoadAverage) {
+            return String.format("load average is %.2f", health.getLoadAverage());
+        }
+        return null;
+    }
+
+    /**
+     * @return <code>true</code> if the given package left the device degraded in most of its
+     * recorded runs
+     */
+    boolean isKnownToDegrade(String packageName) {
+        int[] history = mHistory.get(packageName);
+        return history != null && history[0] >= MIN_HISTORY_RUNS && history[1] * 2 > history[0];
+    }
+
+    private void recordRun(String packageName, boolean degraded) {
+        addRuns(mHistory, packageName, 1, degraded ? 1 : 0);
+        addRuns(mNewRuns, packageName, 1, degraded ? 1 : 0);
+    }
+
+    private static void addRuns(Map<String, int[]> history, String packageName, int runs,
+            int degradedRuns) {
+        int[] counts = history.get(packageName);
+        if (counts == null) {
+            counts = new int[2];
+            history.put(packageName, counts);
+        }
+        counts[0] += runs;
+        counts[1] += degradedRuns;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void finish() {
+        if (mHistoryFile != null) {
+            saveHistory(mHistoryFile);
+        }
+    }
+
+    private static void loadHistory(File historyFile, Map<String, int[]> history) {
+        Properties properties = new Properties();
+        InputStream input = null;
+        try {
+            input = new BufferedInputStream(new FileInputStream(historyFile));
+            properties.load(input);
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            CLog.w("Failed to read reboot history %s", historyFile.getAbsolutePath());
+            return;
+        } finally {
+            StreamUtil.close(input);
+        }
+        for (String packageName : properties.stringPropertyNames()) {
+            String[] counts = properties.getProperty(packageName).split(" ");
+            try {
+                if (counts.length == 2) {
+                    history.put(packageName, new int[] {Integer.parseInt(counts[0]),
+                            Integer.parseInt(counts[1])});
+                }
+            } catch (NumberFormatException e) {
+                CLog.w("Ignoring corrupt reboot history of %s", packageName);
+            }
+        }
+    }
+
+    /**
+     * Add the runs recorded by this policy to the history file. The file is read again and
+     * written under a lock, so the runs recorded by other shards since this policy loaded it
+     * are kept.
+     */
+    private void saveHistory(File historyFile) {
+        if (mNewRuns.isEmpty()) {
+            return;
+        }
+        // file locks are held by the whole process, so the shards of the invocation, which
+        // run in the same process, also need to exclude each other
+        synchronized (HealthRebootPolicy.class) {
+            historyFile.getParentFile().mkdirs();
+            File lockFile = new File(historyFile.getPath() + ".lock");
+            RandomAccessFile lock = null;
+            try {
+                lock = new RandomAccessFile(lockFile, "rw");
+                FileLock fileLock = lock.getChannel().lock();
+                try {
+                    Map<String, int[]> history = new HashMap<>();
+                    loadHistory(historyFile, history);
+                    for (Map.Entry<String, int[]> entry : mNewRuns.entrySet()) {
+                        addRuns(history, entry.getKey(), entry.getValue()[0],
+                                entry.getValue()[1]);
+                    }
+                    writeHistory(historyFile, history);
+                    mNewRuns.clear();
+                } finally {
+                    fileLock.release();
+                }
+            } catch (IOException e) {
+                CLog.w("Failed to lock reboot history %s", historyFile.getAbsolutePath());
+            } finally {
+                StreamUtil.close(lock);
+            }
+        }
+    }
+
+    private static void writeHistory(File historyFile, Map<String, int[]> history) {
+        Properties properties = new Properties();
+        for (Map.Entry<String, int[]> entry : history.entrySet()) {
+            properties.setProperty(entry.getKey(),
+                    String.format("%d %d", entry.getValue()[0], entry.getValue()[1]));
+        }
+        OutputStream output = null;
+        try {
+            output = new BufferedOutputStream(new FileOutputStream(historyFile));
+            properties.store(output, "runs and degraded runs of each package");
+        } catch (IOException e) {
+            CLog.w("Failed to write reboot history %s", historyFile.getAbsolutePath());
+        } finally {
+            StreamUtil.close(output);
+        }
+    }
+}
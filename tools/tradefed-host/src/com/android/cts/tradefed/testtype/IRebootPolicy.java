@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+/**
+ * Decides when {@link CtsTest} reboots the device between test packages.
+ */
+interface IRebootPolicy {
+
+    /**
+     * @return <code>true</code> if the policy needs the {@link DeviceHealth} of the device,
+     * <code>false</code> if it is always passed <code>null</code> instead
+     */
+    boolean usesDeviceHealth();
+
+    /**
+     * Record that the device was rebooted, or that the run started.
+     *
+     * @param health the {@link DeviceHealth} right after the reboot
+     * @param timeMs the current time in ms
+     */
+    void deviceRebooted(DeviceHealth health, long timeMs);
+
+    /**
+     * Decide whether to reboot the device between two packages.
+     *
+     * @param finishedPackage the name of the package that just finished
+     * @param nextPackage the name of the package to run next
+     * @param health the {@link DeviceHealth} after the finished package
+     * @param timeMs the current time in ms
+     * @return the reason to reboot, or <code>null</code> if the device should not be rebooted
+     */
+    String getRebootReason(String finishedPackage, String nextPackage, DeviceHealth health,
+            long timeMs);
+
+    /**
+     * Called when the run ends, to store anything learned for later runs.
+     */
+    void finish();
+}
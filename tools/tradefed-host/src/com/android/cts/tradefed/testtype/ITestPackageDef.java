@@ -69,6 +69,13 @@ public interface ITestPackageDef extends Comparable<ITestPackageDef> {
      */
     public IAbi getAbi();
 
+    /**
+     * Return whether the {@link IRemoteTest} created by {@link #createTest(File)} runs exactly
+     * the tests in {@link #getTests()}. Only then can the package be split into slices using
+     * {@link #setTestFilter(TestFilter)}.
+     */
+    public boolean isSliceable();
+
     /**
      * Set the filter to use for tests
      *
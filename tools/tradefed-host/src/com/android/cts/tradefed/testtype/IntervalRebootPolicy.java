@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An {@link IRebootPolicy} that reboots at a fixed interval, and around the packages known to
+ * leave the device in a bad state or to be sensitive to it.
+ */
+class IntervalRebootPolicy implements IRebootPolicy {
+
+    // If there comes spurious failure like INJECT_EVENTS for a package,
+    // reboot it before running it.
+    // Also reboot after package which is know to leave pop-up behind
+    private static final List<String> REBOOT_AFTER_LIST = Arrays.asList(
+            "CtsMediaTestCases",
+            "CtsAccessibilityTestCases");
+    private static final List<String> REBOOT_BEFORE_LIST = Arrays.asList(
+            "CtsAnimationTestCases",
+            "CtsGraphicsTestCases",
+            "CtsViewTestCases",
+            "CtsWidgetTestCases");
+
+    private final long mIntervalMs;
+    private long mPrevRebootTime;
+
+    /**
+     * @param intervalMs the max time between reboots in ms
+     */
+    IntervalRebootPolicy(long intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean usesDeviceHealth() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deviceRebooted(DeviceHealth health, long timeMs) {
+        mPrevRebootTime = timeMs;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getRebootReason(String finishedPackage, String nextPackage,
+            DeviceHealth health, long timeMs) {
+        if (timeMs - mPrevRebootTime > mIntervalMs) {
+            return "reboot interval elapsed";
+        } else if (REBOOT_AFTER_LIST.contains(finishedPackage)) {
+            return String.format("%s leaves pop-ups behind", finishedPackage);
+        } else if (REBOOT_BEFORE_LIST.contains(nextPackage)) {
+            return String.format("%s needs a clean device", nextPackage);
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void finish() {
+        // nothing to store
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Helper methods for splitting the tests of a package into disjoint slices, so a single package
+ * can run on several shards at once.
+ */
+class PackageSlicer {
+
+    private PackageSlicer() {
+    }
+
+    /**
+     * Get the number of slices to split a package into.
+     *
+     * @param testCount the number of tests in the package
+     * @param maxSliceSize the maximum number of tests per slice, or 0 to never split
+     * @param totalShards the number of shards. A package is never split into more slices, so
+     *            each shard runs at most one slice of it.
+     * @return the number of slices, at least 1
+     */
+    static int getSliceCount(int testCount, int maxSliceSize, int totalShards) {
+        if (maxSliceSize <= 0 || testCount <= maxSliceSize) {
+            return 1;
+        }
+        int slices = (testCount + maxSliceSize - 1) / maxSliceSize;
+        return Math.max(1, Math.min(slices, totalShards));
+    }
+
+    /**
+     * Create the {@link TestFilter} including only the tests of the given slice.
+     * <p/>
+     * Slices are contiguous runs of the given tests, so tests of a class tend to stay together.
+     * The sizes of the slices differ by at most one test.
+     *
+     * @param tests the sorted tests of the package
+     * @param sliceIndex the index of the slice, from 0 to <var>sliceCount</var> - 1
+     * @param sliceCount the total number of slices
+     * @return the {@link TestFilter}
+     */
+    static TestFilter createSliceFilter(Collection<TestIdentifier> tests, int sliceIndex,
+            int sliceCount) {
+        List<TestIdentifier> testList = new ArrayList<TestIdentifier>(tests);
+        int start = (int) ((long) testList.size() * sliceIndex / sliceCount);
+        int end = (int) ((long) testList.size() * (sliceIndex + 1) / sliceCount);
+        TestFilter filter = new TestFilter();
+        for (TestIdentifier test : testList.subList(start, end)) {
+            filter.addIncludedTest(test);
+        }
+        return filter;
+    }
+}
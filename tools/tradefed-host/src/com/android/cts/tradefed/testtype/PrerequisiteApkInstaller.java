@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.util.AbiUtils;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+/**
+ * Installs and uninstalls the prerequisite APKs of the test packages of a run in batches.
+ * <p/>
+ * APKs are installed concurrently, so copying one APK to the device overlaps with installing
+ * another. An APK that is already installed with the same contents for the same ABI, as left by
+ * an earlier run that did not finish, is not installed again. All prerequisite packages are
+ * uninstalled with a single shell command.
+ */
+class PrerequisiteApkInstaller {
+
+    private static final String INSTALLED_CMD = "p=$(pm path %1$s); p=${p#package:}; " +
+            "if [ -n \"$p\" ]; then sha1sum $p; dumpsys package %1$s | grep primaryCpuAbi; fi";
+    private static final String ABI_PREFIX = "primaryCpuAbi=";
+    private static final Pattern SHA1_PATTERN = Pattern.compile("[0-9a-f]{40}");
+
+    private final ITestDevice mDevice;
+    private final File mTestCasesDir;
+    private final int mNumThreads;
+
+    /**
+     * @param device the {@link ITestDevice} to install to
+     * @param testCasesDir the directory containing the APKs
+     * @param numThreads the max number of APKs to install concurrently
+     */
+    PrerequisiteApkInstaller(ITestDevice device, File testCasesDir, int numThreads) {
+        mDevice = device;
+        mTestCasesDir = testCasesDir;
+        mNumThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Install the given APKs for the given ABI.
+     *
+     * @param apks map of APK file names to the package names they contain
+     * @param abiName the ABI to install for
+     * @return the number of APKs installed, not counting the APKs already installed
+     * @throws DeviceNotAvailableException
+     */
+    int install(Map<String, String> apks, final String abiName)
+            throws DeviceNotAvailableException {
+        ExecutorService installService = Executors.newFixedThreadPool(
+                Math.min(mNumThreads, Math.max(1, apks.size())), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, String.format("PrerequisiteApkInstaller-%s",
+                                mDevice.getSerialNumber()));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try {
+            List<Future<Boolean>> installs = new ArrayList<>();
+            for (final Map.Entry<String, String> apk : apks.entrySet()) {
+                installs.add(installService.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws DeviceNotAvailableException {
+                        return installApk(apk.getKey(), apk.getValue(), abiName);
+                    }
+                }));
+            }
+            int installed = 0;
+            for (Future<Boolean> install : installs) {
+                if (getResult(install)) {
+                    installed++;
+                }
+            }
+            return installed;
+        } finally {
+            installService.shutdownNow();
+        }
+    }
+
+    /**
+     * Uninstall the given packages.
+     *
+     * @param packageNames the names of the packages to uninstall
+     * @throws DeviceNotAvailableException
+     */
+    void uninstall(Collection<String> packageNames) throws DeviceNotAvailableException {
+        if (packageNames.isEmpty()) {
+            return;
+        }
+        StringBuilder cmd = new StringBuilder();
+        for (String packageName : packageNames) {
+            if (cmd.length() > 0) {
+                cmd.append("; ");
+            }
+            cmd.append("pm uninstall ").append(packageName);
+        }
+        String output = mDevice.executeShellCommand(cmd.toString());
+        if (output == null || output.contains("Failure")) {
+            CLog.w("Failed to uninstall some of %s: %s", packageNames, output);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the APK was installed, <code>false</code> if it was already
+     * installed or could not be installed
+     */
+    private boolean installApk(String apkName, String packageName, String abiName)
+            throws DeviceNotAvailableException {
+        File apkFile = new File(mTestCasesDir, apkName);
+        if (!apkFile.isFile()) {
+            CLog.e("Could not find test apk %s", apkName);
+            return false;
+        }
+        if (packageName != null &&
+                isInstalled(packageName, getDigest(apkFile), abiName)) {
+            CLog.d("%s is already installed", apkName);
+            return false;
+        }
+        String[] options = {AbiUtils.createAbiFlag(abiName)};
+        String errorCode = mDevice.installPackage(apkFile, true, options);
+        if (errorCode != null) {
+            CLog.e("Failed to install %s. Reason: %s", apkName, errorCode);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if the given package is installed on the device from an APK
+     * with the given digest, for the given ABI
+     */
+    boolean isInstalled(String packageName, String digest, String abiName)
+            throws DeviceNotAvailableException {
+        if (digest == null || DigestCache.FAILED_DIGEST.equals(digest)) {
+            return false;
+        }
+        String output = mDevice.executeShellCommand(String.format(INSTALLED_CMD, packageName));
+        if (output == null) {
+            return false;
+        }
+        boolean digestMatches = false;
+        boolean abiMatches = true;
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (line.startsWith(ABI_PREFIX)) {
+                String abi = line.substring(ABI_PREFIX.length());
+                // a package without native code runs on any ABI
+                abiMatches = "null".equals(abi) || abiName.equals(abi);
+            } else if (line.length() > 40 && SHA1_PATTERN.matcher(line.substring(0, 40))
+                    .matches()) {
+                digestMatches = digest.equals(line.substring(0, 40));
+            }
+        }
+        return digestMatches && abiMatches;
+    }
+
+    /**
+     * Get the digest of the given APK, in the format of {@link DigestCache}.
+     * <p/>
+     * Exposed for unit testing
+     */
+    String getDigest(File apkFile) {
+        try {
+            return DigestCache.getInstance(mTestCasesDir).getDigest(apkFile).get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static boolean getResult(Future<Boolean> install)
+            throws DeviceNotAvailableException {
+        try {
+            return install.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.result.PackageDurationHistory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helper methods for distributing test packages over shards by their estimated cost.
+ */
+public class ShardBalancer {
+
+    /** the cost in ms assumed per test when there is no recorded history at all */
+    static final long DEFAULT_TEST_COST_MS = 1000;
+
+    private ShardBalancer() {
+    }
+
+    /**
+     * Estimate the cost of each package.
+     * <p/>
+     * Packages with a recorded duration use it. Other packages are estimated from their test
+     * count and the average recorded time per test. Without any history the estimate only
+     * depends on the test count, so the result is deterministic.
+     *
+     * @param testCounts map of package id to number of tests to run
+     * @param history the recorded {@link PackageDurationHistory}
+     * @return map of package id to estimated cost in ms, in the iteration order of
+     * <var>testCounts</var>
+     */
+    public static Map<String, Long> estimateCosts(Map<String, Integer> testCounts,
+            PackageDurationHistory history) {
+        long perTestCost = history.getAverageTestDuration();
+        if (perTestCost <= 0) {
+            perTestCost = DEFAULT_TEST_COST_MS;
+        }
+        Map<String, Long> costs = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Integer> entry : testCounts.entrySet()) {
+            Long duration = history.getDuration(entry.getKey());
+            if (duration == null) {
+                duration = entry.getValue() * perTestCost;
+            }
+            // never treat a package as free, so empty histories still spread packages out
+            costs.put(entry.getKey(), Math.max(duration, 1));
+        }
+        return costs;
+    }
+
+    /**
+     * Assign packages to shards using longest-processing-time-first bin packing.
+     * <p/>
+     * Packages are sorted by decreasing cost, and each is given to the shard with the least
+     * total cost so far. Ties are broken by package id and shard index, so equal inputs always
+     * produce equal assignments.
+     *
+     * @param costs map of package id to estimated cost
+     * @param totalShards the number of shards
+     * @return a {@link List} of package ids for each shard, in the order they should run
+     */
+    public static List<List<String>> assign(final Map<String, Long> costs, int totalShards) {
+        List<String> ids = new ArrayList<String>(costs.keySet());
+        Collections.sort(ids, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                int costCompare = costs.get(rhs).compareTo(costs.get(lhs));
+                return costCompare != 0 ? costCompare : lhs.compareTo(rhs);
+            }
+        });
+        List<List<String>> shards = new ArrayList<List<String>>(totalShards);
+        long[] loads = new long[totalShards];
+        for (int i = 0; i < totalShards; i++) {
+            shards.add(new ArrayList<String>());
+        }
+        for (String id : ids) {
+            int lightest = 0;
+            for (int i = 1; i < totalShards; i++) {
+                if (loads[i] < loads[lightest]) {
+                    lightest = i;
+                }
+            }
+            shards.get(lightest).add(id);
+            loads[lightest] += costs.get(id);
+        }
+        return shards;
+    }
+
+    /**
+     * Assign packages to shards the legacy way: every <var>totalShards</var>th package of the
+     * sorted package list.
+     *
+     * @param ids the sorted package ids
+     * @param totalShards the number of shards
+     * @return a {@link List} of package ids for each shard
+     */
+    public static List<List<String>> assignRoundRobin(List<String> ids, int totalShards) {
+        List<List<String>> shards = new ArrayList<List<String>>(totalShards);
+        for (int shard = 0; shard < totalShards; shard++) {
+            List<String> shardIds = new ArrayList<String>();
+            for (int i = shard; i < ids.size(); i += totalShards) {
+                shardIds.add(ids.get(i));
+            }
+            shards.add(shardIds);
+        }
+        return shards;
+    }
+
+    /**
+     * Compute the makespan, ie the time of the slowest shard, of a static assignment.
+     *
+     * @param shards the package ids of each shard
+     * @param durations map of package id to duration
+     */
+    public static long getMakespan(List<List<String>> shards, Map<String, Long> durations) {
+        long makespan = 0;
+        for (List<String> shard : shards) {
+            long total = 0;
+            for (String id : shard) {
+                total += durations.get(id);
+            }
+            makespan = Math.max(makespan, total);
+        }
+        return makespan;
+    }
+}
@@ -22,34 +22,67 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
  * Filter for {@link TestIdentifier}s.
+ * <p/>
+ * The inclusion and exclusion rules are kept per test class, so filtering a test takes a single
+ * lookup by its class name however many rules there are.
  */
 public class TestFilter {
 
-    private final Set<String> mExcludedClasses;
-    private final Set<TestIdentifier> mExcludedTests;
+    /** the separator of class and method in the string form of a {@link TestIdentifier} */
+    private static final char METHOD_DELIM = '#';
 
-    private final Set<String> mIncludedClasses;
-    private final Set<TestIdentifier> mIncludedTests;
+    private static final Comparator<TestIdentifier> TEST_ID_COMPARATOR = new TestIdComparator();
+
+    /** map of class names to the rules for the tests of that class */
+    private final Map<String, ClassRule> mClassRules;
+    private boolean mHasExclusion = false;
+    private boolean mHasInclusion = false;
 
     private String mIncludedClass = null;
     private Pattern mIncludedMethod = null;
 
+    /**
+     * The inclusion and exclusion rules of a test class.
+     */
+    private static class ClassRule {
+        private boolean mExcludeAll = false;
+        private boolean mIncludeAll = false;
+        private Set<String> mExcludedMethods = null;
+        private Set<String> mIncludedMethods = null;
+
+        boolean isExcluded(String method) {
+            return mExcludeAll || (mExcludedMethods != null && mExcludedMethods.contains(method));
+        }
+
+        boolean isIncluded(String method) {
+            return mIncludeAll || (mIncludedMethods != null && mIncludedMethods.contains(method));
+        }
+    }
+
     /**
      * Creates a {@link TestFilter}
      */
     public TestFilter() {
-        mExcludedClasses = new HashSet<String>();
-        mExcludedTests = new HashSet<TestIdentifier>();
+        // Uses a LinkedHashMap to have predictable iteration order
+        mClassRules = new LinkedHashMap<String, ClassRule>();
+    }
 
-        mIncludedClasses = new HashSet<String>();
-        mIncludedTests = new HashSet<TestIdentifier>();
+    private ClassRule getClassRule(String className) {
+        ClassRule rule = mClassRules.get(className);
+        if (rule == null) {
+            rule = new ClassRule();
+            mClassRules.put(className, rule);
+        }
+        return rule;
     }
 
     /**
@@ -58,14 +91,36 @@ public class TestFilter {
      * All tests in this class should be filtered.
      */
     public void addExcludedClass(String className) {
-        mExcludedClasses.add(className);
+        getClassRule(className).mExcludeAll = true;
+        mHasExclusion = true;
     }
 
     /**
      * Adds a test class to the filter. All tests in this class should be excluded.
      */
     public void addExcludedTest(TestIdentifier test) {
-        mExcludedTests.add(test);
+        addExcludedTest(test.getClassName(), test.getTestName());
+    }
+
+    /**
+     * Adds a test to the filter, by its class and method name.
+     */
+    void addExcludedTest(String className, String method) {
+        ClassRule rule = getClassRule(className);
+        if (rule.mExcludedMethods == null) {
+            rule.mExcludedMethods = new LinkedHashSet<String>();
+        }
+        rule.mExcludedMethods.add(method);
+        mHasExclusion = true;
+    }
+
+    /**
+     * Adds the given tests to the filter. All of them should be excluded.
+     */
+    public void addExcludedTests(Collection<TestIdentifier> tests) {
+        for (TestIdentifier test : tests) {
+            addExcludedTest(test.getClassName(), test.getTestName());
+        }
     }
 
     /**
@@ -74,7 +129,13 @@ public class TestFilter {
      * Exposed for unit testing
      */
     Set<String> getExcludedClasses() {
-        return mExcludedClasses;
+        Set<String> classes = new LinkedHashSet<String>();
+        for (Map.Entry<String, ClassRule> entry : mClassRules.entrySet()) {
+            if (entry.getValue().mExcludeAll) {
+                classes.add(entry.getKey());
+            }
+        }
+        return classes;
     }
 
     /**
@@ -83,7 +144,15 @@ public class TestFilter {
      * Exposed for unit testing
      */
     Set<TestIdentifier> getExcludedTests() {
-        return mExcludedTests;
+        Set<TestIdentifier> tests = new LinkedHashSet<TestIdentifier>();
+        for (Map.Entry<String, ClassRule> entry : mClassRules.entrySet()) {
+            if (entry.getValue().mExcludedMethods != null) {
+                for (String method : entry.getValue().mExcludedMethods) {
+                    tests.add(new TestIdentifier(entry.getKey(), method));
+                }
+            }
+        }
+        return tests;
     }
 
     /**
@@ -92,28 +161,57 @@ public class TestFilter {
      * All tests in this class should be allowed.
      */
     public void addIncludedClass(String className) {
-        mIncludedClasses.add(className);
+        getClassRule(className).mIncludeAll = true;
+        mHasInclusion = true;
     }
 
     /**
      * Adds a test class to the filter. All tests in this class should be excluded.
      */
     public void addIncludedTest(TestIdentifier test) {
-        mIncludedTests.add(test);
+        addIncludedTest(test.getClassName(), test.getTestName());
+    }
+
+    /**
+     * Adds a test to the filter, by its class and method name.
+     */
+    void addIncludedTest(String className, String method) {
+        ClassRule rule = getClassRule(className);
+        if (rule.mIncludedMethods == null) {
+            rule.mIncludedMethods = new LinkedHashSet<String>();
+        }
+        rule.mIncludedMethods.add(method);
+        mHasInclusion = true;
     }
 
     /**
-     * @return the mIncludedClasses
+     * @return a copy of the classes whose test methods are all included. Changes to it do not
+     * affect the filter.
      */
     public Set<String> getIncludedClasses() {
-        return mIncludedClasses;
+        Set<String> classes = new LinkedHashSet<String>();
+        for (Map.Entry<String, ClassRule> entry : mClassRules.entrySet()) {
+            if (entry.getValue().mIncludeAll) {
+                classes.add(entry.getKey());
+            }
+        }
+        return classes;
     }
 
     /**
-     * @return the mIncludedTests
+     * @return a copy of the individually included test methods. Changes to it do not affect the
+     * filter.
      */
     public Set<TestIdentifier> getIncludedTests() {
-        return mIncludedTests;
+        Set<TestIdentifier> tests = new LinkedHashSet<TestIdentifier>();
+        for (Map.Entry<String, ClassRule> entry : mClassRules.entrySet()) {
+            if (entry.getValue().mIncludedMethods != null) {
+                for (String method : entry.getValue().mIncludedMethods) {
+                    tests.add(new TestIdentifier(entry.getKey(), method));
+                }
+            }
+        }
+        return tests;
     }
 
     /**
@@ -138,8 +236,11 @@ public class TestFilter {
      */
     public Collection<TestIdentifier> filter(Collection<TestIdentifier> tests) {
         List<TestIdentifier> filteredTests = new ArrayList<TestIdentifier>(tests.size());
+        boolean sorted = true;
+        TestIdentifier lastTest = null;
         for (TestIdentifier test : tests) {
-            if (mIncludedClass != null && !test.getClassName().equals(mIncludedClass)) {
+            String className = test.getClassName();
+            if (mIncludedClass != null && !className.equals(mIncludedClass)) {
                 // skip
                 continue;
             }
@@ -147,23 +248,24 @@ public class TestFilter {
                 // skip
                 continue;
             }
-            if (mExcludedClasses.contains(test.getClassName())) {
+            ClassRule rule = mClassRules.get(className);
+            if (rule != null && rule.isExcluded(test.getTestName())) {
                 // skip
                 continue;
             }
-            if (mExcludedTests.contains(test)) {
+            if (mHasInclusion && (rule == null || !rule.isIncluded(test.getTestName()))) {
                 // skip
                 continue;
             }
-            if ((!mIncludedTests.isEmpty() || !mIncludedClasses.isEmpty())
-                    && !(mIncludedClasses.contains(test.getClassName())
-                            || mIncludedTests.contains(test))) {
-                // skip
-                continue;
+            if (sorted && lastTest != null && TEST_ID_COMPARATOR.compare(lastTest, test) > 0) {
+                sorted = false;
             }
+            lastTest = test;
             filteredTests.add(test);
         }
-        Collections.sort(filteredTests, new TestIdComparator());
+        if (!sorted) {
+            Collections.sort(filteredTests, TEST_ID_COMPARATOR);
+        }
         return filteredTests;
     }
 
@@ -171,25 +273,105 @@ public class TestFilter {
      * Return true if there are exclusions rules defined.
      */
     public boolean hasExclusion() {
-        return !mExcludedClasses.isEmpty() || !mExcludedTests.isEmpty();
+        return mHasExclusion;
     }
 
     /**
      * @return true if there are inclusion rules defined.
      */
     public boolean hasInclusion() {
-        return !mIncludedClasses.isEmpty() || !mIncludedTests.isEmpty();
+        return mHasInclusion;
+    }
+
+    /**
+     * Append the exclusions of this filter to the given {@link StringBuilder}, in the format of
+     * test plans: testClassName[#testMethodName][;testClassName2...]
+     */
+    void appendExclusions(StringBuilder builder, char delim) {
+        for (Map.Entry<String, ClassRule> entry : mClassRules.entrySet()) {
+            appendRules(builder, delim, entry.getKey(), entry.getValue().mExcludeAll,
+                    entry.getValue().mExcludedMethods);
+        }
     }
 
     /**
-     * A {@link Comparator} for {@link TestIdentifier} that compares using
-     * {@link TestIdentifier#toString()}
+     * Append the inclusions of this filter to the given {@link StringBuilder}, in the format of
+     * test plans: testClassName[#testMethodName][;testClassName2...]
      */
-    private class TestIdComparator implements Comparator<TestIdentifier> {
+    void appendInclusions(StringBuilder builder, char delim) {
+        for (Map.Entry<String, ClassRule> entry : mClassRules.entrySet()) {
+            appendRules(builder, delim, entry.getKey(), entry.getValue().mIncludeAll,
+                    entry.getValue().mIncludedMethods);
+        }
+    }
+
+    private static void appendRules(StringBuilder builder, char delim, String className,
+            boolean allMethods, Set<String> methods) {
+        if (allMethods) {
+            if (builder.length() > 0) {
+                builder.append(delim);
+            }
+            builder.append(className);
+        }
+        if (methods != null) {
+            for (String method : methods) {
+                if (builder.length() > 0) {
+                    builder.append(delim);
+                }
+                builder.append(className).append(METHOD_DELIM).append(method);
+            }
+        }
+    }
+
+    /**
+     * A {@link Comparator} for {@link TestIdentifier} that orders the same as comparing
+     * {@link TestIdentifier#toString()}, without creating the strings.
+     */
+    private static class TestIdComparator implements Comparator<TestIdentifier> {
 
         @Override
         public int compare(TestIdentifier o1, TestIdentifier o2) {
-            return o1.toString().compareTo(o2.toString());
+            String class1 = o1.getClassName();
+            String class2 = o2.getClassName();
+            int result = class1.compareTo(class2);
+            if (result == 0) {
+                return o1.getTestName().compareTo(o2.getTestName());
+            }
+            // the class names decide, unless one is a prefix of the other, in which case the
+            // METHOD_DELIM after the shorter one is compared to a char of the longer one
+            if (result == class1.length() - class2.length() &&
+                    (class1.startsWith(class2) || class2.startsWith(class1))) {
+                return compareChars(o1, o2);
+            }
+            return result;
+        }
+
+        private static int compareChars(TestIdentifier o1, TestIdentifier o2) {
+            String class1 = o1.getClassName();
+            String class2 = o2.getClassName();
+            int length1 = class1.length() + 1 + o1.getTestName().length();
+            int length2 = class2.length() + 1 + o2.getTestName().length();
+            int length = Math.min(length1, length2);
+            for (int i = 0; i < length; i++) {
+                char c1 = charAt(class1, o1.getTestName(), i);
+                char c2 = charAt(class2, o2.getTestName(), i);
+                if (c1 != c2) {
+                    return c1 - c2;
+                }
+            }
+            return length1 - length2;
+        }
+
+        /**
+         * @return the char at the given index of className#method
+         */
+        private static char charAt(String className, String method, int index) {
+            if (index < className.length()) {
+                return className.charAt(index);
+            } else if (index == className.length()) {
+                return METHOD_DELIM;
+            }
+            return method.charAt(index - className.length() - 1);
         }
     }
 }
@@ -23,19 +23,12 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.testtype.IAbi;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.InstrumentationTest;
-import com.android.tradefed.util.StreamUtil;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Container for CTS test info.
@@ -69,6 +62,7 @@ class TestPackageDef implements ITestPackageDef {
     private String mRunTimeArgs = null;
     private String mTestPackageName = null;
     private String mDigest = null;
+    private Future<String> mDigestFuture = null;
     private IAbi mAbi = null;
 
     // use a LinkedHashSet for predictable iteration insertion-order, and fast
@@ -88,6 +82,30 @@ class TestPackageDef implements ITestPackageDef {
     // So for now, only max timeout for the package is used.
     private int mTimeoutInMins = -1;
 
+    TestPackageDef() {
+    }
+
+    /**
+     * Creates a copy of the data parsed from the package xml of <var>other</var>. Dynamic options
+     * such as the test filter are not copied.
+     */
+    TestPackageDef(TestPackageDef other) {
+        mAppPackageName = other.mAppPackageName;
+        mAppNameSpace = other.mAppNameSpace;
+        mName = other.mName;
+        mRunner = other.mRunner;
+        mTestType = other.mTestType;
+        mJarPath = other.mJarPath;
+        mRunTimeArgs = other.mRunTimeArgs;
+        mTestPackageName = other.mTestPackageName;
+        mAbi = other.mAbi;
+        mTests = new LinkedHashSet<TestIdentifier>(other.mTests);
+        mTestClasses = new LinkedHashSet<String>(other.mTestClasses);
+        mTargetBinaryName = other.mTargetBinaryName;
+        mTargetNameSpace = other.mTargetNameSpace;
+        mTimeoutInMins = other.mTimeoutInMins;
+    }
+
     @Override
     public IAbi getAbi() {
         return mAbi;
@@ -192,6 +210,16 @@ class TestPackageDef implements ITestPackageDef {
         return mTargetNameSpace;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSliceable() {
+        // native, print and uiautomator tests run all tests of the package or class
+        return !NATIVE_TEST.equals(mTestType) && !WRAPPED_NATIVE_TEST.equals(mTestType)
+                && !PRINT_TEST.equals(mTestType) && !UIAUTOMATOR_TEST.equals(mTestType);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -228,7 +256,7 @@ class TestPackageDef implements ITestPackageDef {
             hostTest.setJarFileName(mJarPath);
             hostTest.setTests(mTests);
             hostTest.setAbi(mAbi);
-            mDigest = generateDigest(testCaseDir, mJarPath);
+            requestDigest(testCaseDir, mJarPath);
             return hostTest;
         } else if (VM_HOST_TEST.equals(mTestType)) {
             CLog.d("Creating vm host test for %s", mName);
@@ -237,7 +265,7 @@ class TestPackageDef implements ITestPackageDef {
             vmHostTest.setJarFileName(mJarPath);
             vmHostTest.setTests(mTests);
             vmHostTest.setAbi(mAbi);
-            mDigest = generateDigest(testCaseDir, mJarPath);
+            requestDigest(testCaseDir, mJarPath);
             return vmHostTest;
         } else if (DEQP_TEST.equals(mTestType)) {
             DeqpTestRunner deqpTest = new DeqpTestRunner(mAppPackageName, mName, mTests);
@@ -276,7 +304,7 @@ class TestPackageDef implements ITestPackageDef {
             jUnitDeviceTest.addRunTimeArgs(mRunTimeArgs);
             jUnitDeviceTest.setTests(mTests);
             jUnitDeviceTest.setAbi(mAbi);
-            mDigest = generateDigest(testCaseDir, mJarPath);
+            requestDigest(testCaseDir, mJarPath);
             return jUnitDeviceTest;
         } else {
             CLog.d("Creating instrumentation test for %s", mName);
@@ -300,7 +328,7 @@ class TestPackageDef implements ITestPackageDef {
         printTest.setClassName(mClassName);
         printTest.setMethodName(mMethodName);
         printTest.setAbi(mAbi);
-        mDigest = generateDigest(testCaseDir, String.format("%s.apk", mName));
+        requestDigest(testCaseDir, String.format("%s.apk", mName));
         return printTest;
     }
 
@@ -325,7 +353,7 @@ class TestPackageDef implements ITestPackageDef {
         instrTest.setReRunUsingTestFile(true);
         // mName means 'apk file name' for instrumentation tests
         instrTest.addInstallApk(String.format("%s.apk", mName), mAppNameSpace);
-        mDigest = generateDigest(testCaseDir, String.format("%s.apk", mName));
+        requestDigest(testCaseDir, String.format("%s.apk", mName));
         if (mTests.size() > 1000) {
             // TODO: hack, large test suites can take longer to collect tests, increase timeout
             instrTest.setCollectsTestsShellTimeout(10 * 60 * 1000);
@@ -398,64 +426,30 @@ class TestPackageDef implements ITestPackageDef {
      */
     @Override
     public String getDigest() {
+        if (mDigestFuture != null) {
+            try {
+                mDigest = mDigestFuture.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                CLog.e(e);
+                mDigest = DigestCache.FAILED_DIGEST;
+            }
+            mDigestFuture = null;
+        }
         return mDigest;
     }
 
     /**
-     * Generate a sha1sum digest for a file.
-     * <p/>
-     * Exposed for unit testing.
+     * Start computing the sha1sum digest of a file, returned by {@link #getDigest()}.
      *
      * @param fileDir the directory of the file
      * @param fileName the name of the file
-     * @return a hex {@link String} of the digest
-     */
-    String generateDigest(File fileDir, String fileName) {
-        final String algorithm = "SHA-1";
-        InputStream fileStream = null;
-        DigestInputStream d = null;
-        try {
-            fileStream = getFileStream(fileDir, fileName);
-            MessageDigest md = MessageDigest.getInstance(algorithm);
-            d = new DigestInputStream(fileStream, md);
-            byte[] buffer = new byte[8196];
-            while (d.read(buffer) != -1) {
-            }
-            return toHexString(md.digest());
-        } catch (NoSuchAlgorithmException e) {
-            return algorithm + " not found";
-        } catch (IOException e) {
-            CLog.e(e);
-        } finally {
-            StreamUtil.closeStream(d);
-            StreamUtil.closeStream(fileStream);
-        }
-        return "failed to generate digest";
-    }
-
-    /**
-     * Retrieve an input stream for given file
-     * <p/>
-     * Exposed so unit tests can mock.
      */
-    InputStream getFileStream(File fileDir, String fileName) throws FileNotFoundException {
-        InputStream fileStream;
-        fileStream = new BufferedInputStream(new FileInputStream(new File(fileDir, fileName)));
-        return fileStream;
-    }
-
-    /**
-     * Convert the given byte array into a lowercase hex string.
-     *
-     * @param arr The array to convert.
-     * @return The hex encoded string.
-     */
-    private String toHexString(byte[] arr) {
-        StringBuilder buf = new StringBuilder(arr.length * 2);
-        for (byte b : arr) {
-            buf.append(String.format("%02x", b & 0xFF));
-        }
-        return buf.toString();
+    void requestDigest(File fileDir, String fileName) {
+        mDigest = null;
+        mDigestFuture = DigestCache.getInstance(fileDir).getDigest(new File(fileDir, fileName));
     }
 
     @Override
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A queue of test package ids shared by all the shards of a {@link CtsTest}.
+ * <p/>
+ * Each shard has its own queue of packages, filled up front by
+ * {@link ShardBalancer#assign(Map, int)}. A shard takes packages from the head of its own queue.
+ * Once that is empty, it steals from the tail of the queue with the most remaining cost, so
+ * shards which finish early help out those that are still busy.
+ * <p/>
+ * Shards may not all be able to run the same packages, for example when their devices support
+ * different ABIs. The queue holds the packages of all shards, and a shard only ever takes the
+ * packages it can run, leaving the others for the shards that can.
+ * <p/>
+ * All methods are thread safe.
+ */
+class TestPackageQueue {
+
+    private final int mTotalShards;
+    private final List<Deque<String>> mShardQueues;
+    private Map<String, Long> mCosts = null;
+
+    /**
+     * Create an uninitialized {@link TestPackageQueue}.
+     *
+     * @param totalShards the number of shards that will take packages from the queue
+     */
+    TestPackageQueue(int totalShards) {
+        mTotalShards = totalShards;
+        mShardQueues = new ArrayList<Deque<String>>(totalShards);
+        for (int i = 0; i < totalShards; i++) {
+            mShardQueues.add(new LinkedList<String>());
+        }
+    }
+
+    /**
+     * @return <code>true</code> if all the given package ids have been added to the queue,
+     * whether or not they have been taken since.
+     */
+    synchronized boolean containsAll(Collection<String> ids) {
+        return mCosts != null && mCosts.keySet().containsAll(ids);
+    }
+
+    /**
+     * Add the packages a shard can run. Every shard adds its packages, and packages already added
+     * by another shard are ignored.
+     * <p/>
+     * The packages of the first call are balanced over all shards. Packages of later calls that
+     * no shard added before are added to the queue of the given shard, as it is the only shard
+     * known to be able to run them; other shards that can run them may still steal them.
+     *
+     * @param shardIndex the index of the shard adding its packages
+     * @param costs map of package id to estimated cost
+     */
+    synchronized void addPackages(int shardIndex, Map<String, Long> costs) {
+        if (mCosts == null) {
+            mCosts = new HashMap<String, Long>(costs);
+            List<List<String>> assignment = ShardBalancer.assign(costs, mTotalShards);
+            for (int i = 0; i < mTotalShards; i++) {
+                mShardQueues.get(i).addAll(assignment.get(i));
+            }
+            return;
+        }
+        for (Map.Entry<String, Long> cost : costs.entrySet()) {
+            if (!mCosts.containsKey(cost.getKey())) {
+                mCosts.put(cost.getKey(), cost.getValue());
+                mShardQueues.get(shardIndex).add(cost.getKey());
+            }
+        }
+    }
+
+    /**
+     * Take the next package to run for given shard. Packages the shard cannot run are left in the
+     * queue for other shards.
+     *
+     * @param shardIndex the index of the shard asking for work
+     * @param runnable the ids of the packages the shard can run
+     * @return the id of the package to run, or <code>null</code> if all packages the shard can
+     * run have been taken
+     */
+    synchronized String poll(int shardIndex, Collection<String> runnable) {
+        Iterator<String> own = mShardQueues.get(shardIndex).iterator();
+        while (own.hasNext()) {
+            String id = own.next();
+            if (runnable.contains(id)) {
+                own.remove();
+                return id;
+            }
+        }
+        // steal from the busiest shard that has a package this shard can run
+        List<Integer> shards = new ArrayList<Integer>(mTotalShards);
+        for (int i = 0; i < mTotalShards; i++) {
+            if (i != shardIndex) {
+                shards.add(i);
+            }
+        }
+        while (!shards.isEmpty()) {
+            int busiest = shards.get(0);
+            long busiestCost = getRemainingCost(busiest);
+            for (int i : shards) {
+                long cost = getRemainingCost(i);
+                if (cost > busiestCost) {
+                    busiest = i;
+                    busiestCost = cost;
+                }
+            }
+            Iterator<String> tail = mShardQueues.get(busiest).descendingIterator();
+            while (tail.hasNext()) {
+                String id = tail.next();
+                if (runnable.contains(id)) {
+                    tail.remove();
+                    CLog.i("Shard %d took package %s from shard %d", shardIndex, id, busiest);
+                    return id;
+                }
+            }
+            shards.remove(Integer.valueOf(busiest));
+        }
+        return null;
+    }
+
+    /**
+     * @return the estimated cost of the packages remaining in the given shard's queue
+     */
+    synchronized long getRemainingCost(int shardIndex) {
+        long total = 0;
+        for (String id : mShardQueues.get(shardIndex)) {
+            total += mCosts.get(id);
+        }
+        return total;
+    }
+
+    /**
+     * @return the total number of packages not taken yet
+     */
+    synchronized int size() {
+        int total = 0;
+        for (Deque<String> queue : mShardQueues) {
+            total += queue.size();
+        }
+        return total;
+    }
+}
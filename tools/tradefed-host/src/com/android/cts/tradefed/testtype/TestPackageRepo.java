@@ -26,24 +26,52 @@ import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Retrieves CTS test package definitions from the repository.
+ * <p/>
+ * The parsed package definitions are cached for the lifetime of the process, so all shards and
+ * console commands share a single parse of each test case directory. The cache is invalidated
+ * when any xml file in the directory is added, removed or modified. Each
+ * {@link TestPackageRepo} gets its own copies of the definitions, since callers modify them.
  */
 public class TestPackageRepo implements ITestPackageRepo {
 
     private static final String LOG_TAG = "TestCaseRepo";
 
+    /** the maximum number of threads used to parse the test case xml files */
+    private static final int MAX_PARSE_THREADS = 8;
+
+    /** cache of parsed test case directories, keyed by path and includeKnownFailures */
+    private static final Map<String, CachedTestMap> sTestMapCache = new HashMap<>();
+
     /** mapping of ABI to a mapping of appPackageName to test definition */
     private final Map<String, Map<String, TestPackageDef>> mTestMap;
     private final boolean mIncludeKnownFailures;
 
+    /** a parsed test case directory, and the state of the xml files it was parsed from */
+    private static class CachedTestMap {
+        final String mFingerprint;
+        final Map<String, Map<String, TestPackageDef>> mTestMap;
+
+        CachedTestMap(String fingerprint, Map<String, Map<String, TestPackageDef>> testMap) {
+            mFingerprint = fingerprint;
+            mTestMap = testMap;
+        }
+    }
+
     /**
      * Creates a {@link TestPackageRepo}, initialized from provided repo files
      *
@@ -54,20 +82,115 @@ public class TestPackageRepo implements ITestPackageRepo {
     public TestPackageRepo(File testCaseDir, boolean includeKnownFailures) {
         mTestMap = new HashMap<>();
         mIncludeKnownFailures = includeKnownFailures;
-        parse(testCaseDir);
+        load(testCaseDir);
     }
 
     /**
-     * Builds mTestMap based on directory contents
+     * Builds mTestMap from the cache, parsing the directory contents if the cached copy is
+     * missing or out of date.
      */
-    private void parse(File dir) {
+    private void load(File dir) {
         File[] xmlFiles = dir.listFiles(new XmlFilter());
-        for (File xmlFile : xmlFiles) {
-            parseTestFromXml(xmlFile);
+        if (xmlFiles == null) {
+            Log.e(LOG_TAG, String.format("Could not read test case dir %s",
+                    dir.getAbsolutePath()));
+            return;
+        }
+        // sort to get a fingerprint and a parse order independent of the file system
+        Arrays.sort(xmlFiles);
+        String key = String.format("%s:%b", dir.getAbsolutePath(), mIncludeKnownFailures);
+        String fingerprint = getFingerprint(xmlFiles);
+        Map<String, Map<String, TestPackageDef>> parsedMap;
+        // hold the lock while parsing, so shards starting together only parse once
+        synchronized (sTestMapCache) {
+            CachedTestMap cached = sTestMapCache.get(key);
+            if (cached != null && cached.mFingerprint.equals(fingerprint)) {
+                Log.d(LOG_TAG, String.format("Using cached test case definitions from %s",
+                        dir.getAbsolutePath()));
+                parsedMap = cached.mTestMap;
+            } else {
+                parsedMap = parse(xmlFiles);
+                sTestMapCache.put(key, new CachedTestMap(fingerprint, parsedMap));
+            }
+        }
+        for (Map.Entry<String, Map<String, TestPackageDef>> abiEntry : parsedMap.entrySet()) {
+            Map<String, TestPackageDef> nameMap = new HashMap<>();
+            for (Map.Entry<String, TestPackageDef> entry : abiEntry.getValue().entrySet()) {
+                nameMap.put(entry.getKey(), new TestPackageDef(entry.getValue()));
+            }
+            mTestMap.put(abiEntry.getKey(), nameMap);
         }
     }
 
-    private void parseTestFromXml(File xmlFile)  {
+    /**
+     * Clear the process wide cache of parsed test case directories.
+     * <p/>
+     * Exposed for unit testing
+     */
+    static void clearCache() {
+        synchronized (sTestMapCache) {
+            sTestMapCache.clear();
+        }
+    }
+
+    /**
+     * @return a {@link String} that changes whenever one of the given files changes
+     */
+    private static String getFingerprint(File[] files) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (File file : files) {
+            fingerprint.append(file.getName()).append(':').append(file.length()).append(':')
+                    .append(file.lastModified()).append(';');
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * Parse the given xml files in parallel.
+     *
+     * @return mapping of ABI to a mapping of appPackageName to test definition
+     */
+    private Map<String, Map<String, TestPackageDef>> parse(File[] xmlFiles) {
+        Map<String, Map<String, TestPackageDef>> testMap = new HashMap<>();
+        if (xmlFiles.length == 0) {
+            return testMap;
+        }
+        int numThreads = Math.min(xmlFiles.length,
+                Math.min(MAX_PARSE_THREADS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService parseService = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Set<TestPackageDef>>> results = new ArrayList<>(xmlFiles.length);
+            for (final File xmlFile : xmlFiles) {
+                results.add(parseService.submit(new Callable<Set<TestPackageDef>>() {
+                    @Override
+                    public Set<TestPackageDef> call() {
+                        return parseTestFromXml(xmlFile);
+                    }
+                }));
+            }
+            // merge in file order, so duplicate packages resolve the same way on every run
+            for (Future<Set<TestPackageDef>> result : results) {
+                for (TestPackageDef def : result.get()) {
+                    String name = def.getAppPackageName();
+                    String abi = def.getAbi().getName();
+                    if (!testMap.containsKey(abi)) {
+                        testMap.put(abi, new HashMap<String, TestPackageDef>());
+                    }
+                    testMap.get(abi).put(name, def);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while parsing test case xml files", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to parse test case xml files", e.getCause());
+        } finally {
+            parseService.shutdownNow();
+        }
+        return testMap;
+    }
+
+    private Set<TestPackageDef> parseTestFromXml(File xmlFile)  {
         TestPackageXmlParser parser = new TestPackageXmlParser(mIncludeKnownFailures);
         try {
             parser.parse(createStreamFromFile(xmlFile));
@@ -76,14 +199,7 @@ public class TestPackageRepo implements ITestPackageRepo {
                 Log.w(LOG_TAG, String.format("Could not find test package info in xml file %s",
                         xmlFile.getAbsolutePath()));
             }
-            for (TestPackageDef def : defs) {
-                String name = def.getAppPackageName();
-                String abi = def.getAbi().getName();
-                if (!mTestMap.containsKey(abi)) {
-                    mTestMap.put(abi, new HashMap<String, TestPackageDef>());
-                }
-                mTestMap.get(abi).put(name, def);
-            }
+            return defs;
         } catch (FileNotFoundException e) {
             Log.e(LOG_TAG, String.format("Could not find test case xml file %s",
                     xmlFile.getAbsolutePath()));
@@ -93,6 +209,7 @@ public class TestPackageRepo implements ITestPackageRepo {
                     xmlFile.getAbsolutePath()));
             Log.e(LOG_TAG, e);
         }
+        return Collections.emptySet();
     }
 
     /**
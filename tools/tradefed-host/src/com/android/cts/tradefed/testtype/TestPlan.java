@@ -18,7 +18,6 @@ package com.android.cts.tradefed.testtype;
 
 import com.android.cts.util.AbiUtils;
 import com.android.ddmlib.testrunner.TestIdentifier;
-import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser;
 
 import org.kxml2.io.KXmlSerializer;
@@ -48,8 +47,8 @@ public class TestPlan extends AbstractXmlParser implements ITestPlan {
     private Map<String, TestFilter> mIdFilterMap;
 
     private static final String ENTRY_TAG = "Entry";
-    private static final String TEST_DELIM = ";";
-    private static final String METHOD_DELIM = "#";
+    private static final char TEST_DELIM = ';';
+    private static final char METHOD_DELIM = '#';
     private static final String EXCLUDE_ATTR = "exclude";
     private static final String INCLUDE_ATTR = "include";
     private static final String ABI_ATTR = "abi";
@@ -94,31 +93,60 @@ public class TestPlan extends AbstractXmlParser implements ITestPlan {
         private TestFilter parseTestList(String excludedString, String includedString) {
             TestFilter filter = new TestFilter();
             if (excludedString != null) {
-                String[] testStrings = excludedString.split(TEST_DELIM);
-                for (String testString : testStrings) {
-                    String[] classMethodPair = testString.split(METHOD_DELIM);
-                    if (classMethodPair.length == 2) {
-                        filter.addExcludedTest(new TestIdentifier(classMethodPair[0],
-                                classMethodPair[1]));
-                    } else {
-                        filter.addExcludedClass(testString);
-                    }
-                }
+                parseTests(excludedString, filter, true);
             }
             if (includedString != null) {
-                String[] testStrings = includedString.split(TEST_DELIM);
-                for (String testString : testStrings) {
-                    String[] classMethodPair = testString.split(METHOD_DELIM);
-                    if (classMethodPair.length == 2) {
-                        filter.addIncludedTest(new TestIdentifier(classMethodPair[0],
-                                classMethodPair[1]));
+                parseTests(includedString, filter, false);
+            }
+
+            return filter;
+        }
+    }
+
+    /**
+     * Add the tests of a semicolon separated list to the given filter, scanning the list once
+     * without splitting it up front, as lists of derived plans can hold many thousands of tests.
+     *
+     * @param testList the test list
+     * @param filter the {@link TestFilter} to add to
+     * @param exclude <code>true</code> to add the tests as exclusions, <code>false</code> as
+     *            inclusions
+     */
+    private static void parseTests(String testList, TestFilter filter, boolean exclude) {
+        int begin = 0;
+        while (begin < testList.length()) {
+            int end = testList.indexOf(TEST_DELIM, begin);
+            if (end == -1) {
+                end = testList.length();
+            }
+            if (end > begin) {
+                // a test has exactly one METHOD_DELIM, followed by the method name
+                int methodBegin = -1;
+                int delimCount = 0;
+                for (int i = begin; i < end; i++) {
+                    if (testList.charAt(i) == METHOD_DELIM) {
+                        methodBegin = i;
+                        delimCount++;
+                    }
+                }
+                if (delimCount == 1 && methodBegin < end - 1) {
+                    String className = testList.substring(begin, methodBegin);
+                    String method = testList.substring(methodBegin + 1, end);
+                    if (exclude) {
+                        filter.addExcludedTest(className, method);
                     } else {
-                        filter.addIncludedClass(testString);
+                        filter.addIncludedTest(className, method);
+                    }
+                } else {
+                    String className = testList.substring(begin, end);
+                    if (exclude) {
+                        filter.addExcludedClass(className);
+                    } else {
+                        filter.addIncludedClass(className);
                     }
                 }
             }
-
-            return filter;
+            begin = end + 1;
         }
     }
 
@@ -203,7 +231,7 @@ public class TestPlan extends AbstractXmlParser implements ITestPlan {
     public void addExcludedTests(String id, Collection<TestIdentifier> excludedTests) {
         TestFilter filter = mIdFilterMap.get(id);
         if (filter != null) {
-            filter.getExcludedTests().addAll(excludedTests);
+            filter.addExcludedTests(excludedTests);
         } else {
             throw new IllegalArgumentException(String.format("Could not find package %s", id));
         }
@@ -245,25 +273,15 @@ public class TestPlan extends AbstractXmlParser implements ITestPlan {
     private void serializeFilter(KXmlSerializer serializer, TestFilter testFilter)
             throws IOException {
         if (testFilter.hasExclusion()) {
-            List<String> exclusionStrings = new ArrayList<String>();
-            exclusionStrings.addAll(testFilter.getExcludedClasses());
-            for (TestIdentifier test : testFilter.getExcludedTests()) {
-                // TODO: this relies on TestIdentifier.toString() using METHOD_DELIM.
-                exclusionStrings.add(test.toString());
-            }
-            String exclusionAttrValue = ArrayUtil.join(TEST_DELIM, exclusionStrings);
-            serializer.attribute(null, EXCLUDE_ATTR, exclusionAttrValue);
+            StringBuilder exclusions = new StringBuilder();
+            testFilter.appendExclusions(exclusions, TEST_DELIM);
+            serializer.attribute(null, EXCLUDE_ATTR, exclusions.toString());
         }
 
         if (testFilter.hasInclusion()) {
-            List<String> inclusionStrings = new ArrayList<String>();
-            inclusionStrings.addAll(testFilter.getIncludedClasses());
-            for (TestIdentifier test : testFilter.getIncludedTests()) {
-                // TODO: this relies on TestIdentifier.toString() using METHOD_DELIM.
-                inclusionStrings.add(test.toString());
-            }
-            String exclusionAttrValue = ArrayUtil.join(TEST_DELIM, inclusionStrings);
-            serializer.attribute(null, INCLUDE_ATTR, exclusionAttrValue);
+            StringBuilder inclusions = new StringBuilder();
+            testFilter.appendInclusions(inclusions, TEST_DELIM);
+            serializer.attribute(null, INCLUDE_ATTR, inclusions.toString());
         }
 
     }
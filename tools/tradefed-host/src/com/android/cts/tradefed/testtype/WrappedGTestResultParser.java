@@ -24,7 +24,13 @@ import java.util.ArrayList;
 
 public class WrappedGTestResultParser extends GeeTestResultParser {
 
+    private static final byte[] RESULT_PREFIX = ascii("INSTRUMENTATION_RESULT: ");
+    private static final byte[] GTEST_PREFIX = ascii("INSTRUMENTATION_STATUS: gtest=");
+    private static final byte[] INSTRUMENTATION_PREFIX = ascii("INSTRUMENTATION_");
+
     private boolean mInstrumentationError;
+    /** true while the lines continue a gtest status */
+    private boolean mReadMultiLine = false;
 
     /**
      * Creates the WrappedGTestResultParser.
@@ -53,13 +59,11 @@ public class WrappedGTestResultParser extends GeeTestResultParser {
      * the raw gtest output to the {@link GeeTestResultParser}.
      */
     @Override
-    public void processNewLines(String[] lines) {
-        if (mInstrumentationError) {
-            return;
+    protected void processLine(byte[] line, int start, int end) {
+        int gtestStart = stripInstrumentation(line, start, end);
+        if (gtestStart >= 0) {
+            super.processLine(line, gtestStart, end);
         }
-
-        String[] gtestOutput = parseInstrumentation(lines);
-        super.processNewLines(gtestOutput);
     }
 
     /**
@@ -71,36 +75,43 @@ public class WrappedGTestResultParser extends GeeTestResultParser {
      */
     public String[] parseInstrumentation(String[] lines) {
         List<String> output = new ArrayList<String>();
-        boolean readMultiLine = false;
         for (String line : lines) {
-
-            if (line.startsWith("INSTRUMENTATION_RESULT: ")) {
-                CLog.e("Instrumentation Error:");
-                mInstrumentationError = true;
+            byte[] bytes = line.getBytes(UTF_8);
+            int gtestStart = stripInstrumentation(bytes, 0, bytes.length);
+            if (gtestStart >= 0) {
+                output.add(decode(bytes, gtestStart, bytes.length));
             }
+        }
 
-            if (mInstrumentationError) {
-                CLog.e(line);
-                continue;
-            }
+        return output.toArray(new String[output.size()]);
+    }
 
-            if (line.startsWith("INSTRUMENTATION_STATUS: gtest=")) {
-                output.add(line.replace("INSTRUMENTATION_STATUS: gtest=", ""));
-                readMultiLine = true;
-                continue;
-            }
+    /**
+     * Parses a line of raw instrumentation output.
+     *
+     * @return the offset of the gtest output held by the line, or -1 if it holds none
+     */
+    private int stripInstrumentation(byte[] line, int start, int end) {
+        if (!mInstrumentationError && startsWith(line, start, end, RESULT_PREFIX)) {
+            CLog.e("Instrumentation Error:");
+            mInstrumentationError = true;
+        }
 
-            if (line.startsWith("INSTRUMENTATION_")) {
-                readMultiLine = false;
-                continue;
-            }
+        if (mInstrumentationError) {
+            CLog.e(decode(line, start, end));
+            return -1;
+        }
 
-            if (readMultiLine) {
-                output.add(line);
-            }
+        if (startsWith(line, start, end, GTEST_PREFIX)) {
+            mReadMultiLine = true;
+            return start + GTEST_PREFIX.length;
         }
 
-        return output.toArray(new String[output.size()]);
+        if (startsWith(line, start, end, INSTRUMENTATION_PREFIX)) {
+            mReadMultiLine = false;
+            return -1;
+        }
+
+        return mReadMultiLine ? start : -1;
     }
 }
-
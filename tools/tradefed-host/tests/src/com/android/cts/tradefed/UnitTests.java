@@ -17,17 +17,33 @@ package com.android.cts.tradefed;
 
 import com.android.cts.tradefed.result.CtsXmlResultReporterTest;
 import com.android.cts.tradefed.result.DeviceInfoResultTest;
+import com.android.cts.tradefed.result.LiveMetricsTest;
+import com.android.cts.tradefed.result.PassingResultCacheTest;
+import com.android.cts.tradefed.result.ResultArchiveTest;
+import com.android.cts.tradefed.result.ResultCheckpointTest;
+import com.android.cts.tradefed.result.ResultHistoryTest;
+import com.android.cts.tradefed.result.ResultJournalTest;
 import com.android.cts.tradefed.result.TestPackageResultTest;
 import com.android.cts.tradefed.result.TestResultsTest;
+import com.android.cts.tradefed.result.TestSummaryFileTest;
 import com.android.cts.tradefed.result.TestSummaryXmlTest;
 import com.android.cts.tradefed.result.TestTest;
 import com.android.cts.tradefed.result.TestLogTest;
 import com.android.cts.tradefed.testtype.Abi;
+import com.android.cts.tradefed.testtype.ByteLineReceiverTest;
 import com.android.cts.tradefed.testtype.CtsTestTest;
 import com.android.cts.tradefed.testtype.DeqpTestRunnerTest;
+import com.android.cts.tradefed.testtype.DigestCacheTest;
+import com.android.cts.tradefed.testtype.FailureArtifactCollectorTest;
+import com.android.cts.tradefed.testtype.GeeTestTest;
+import com.android.cts.tradefed.testtype.HealthRebootPolicyTest;
 import com.android.cts.tradefed.testtype.JarHostTestTest;
+import com.android.cts.tradefed.testtype.PackageSlicerTest;
+import com.android.cts.tradefed.testtype.PrerequisiteApkInstallerTest;
+import com.android.cts.tradefed.testtype.ShardBalancerTest;
 import com.android.cts.tradefed.testtype.TestFilterTest;
 import com.android.cts.tradefed.testtype.TestPackageDefTest;
+import com.android.cts.tradefed.testtype.TestPackageRepoTest;
 import com.android.cts.tradefed.testtype.TestPackageXmlParserTest;
 import com.android.cts.tradefed.testtype.TestPlanTest;
 import com.android.cts.tradefed.testtype.WrappedGTestResultParserTest;
@@ -52,17 +68,33 @@ public class UnitTests extends TestSuite {
         // result package
         addTestSuite(CtsXmlResultReporterTest.class);
         addTestSuite(DeviceInfoResultTest.class);
+        addTestSuite(LiveMetricsTest.class);
+        addTestSuite(PassingResultCacheTest.class);
+        addTestSuite(ResultArchiveTest.class);
+        addTestSuite(ResultCheckpointTest.class);
+        addTestSuite(ResultHistoryTest.class);
+        addTestSuite(ResultJournalTest.class);
         addTestSuite(TestPackageResultTest.class);
         addTestSuite(TestResultsTest.class);
+        addTestSuite(TestSummaryFileTest.class);
         addTestSuite(TestSummaryXmlTest.class);
         addTestSuite(TestTest.class);
         addTestSuite(TestLogTest.class);
 
         // testtype package
+        addTestSuite(ByteLineReceiverTest.class);
         addTestSuite(CtsTestTest.class);
+        addTestSuite(DigestCacheTest.class);
+        addTestSuite(FailureArtifactCollectorTest.class);
+        addTestSuite(GeeTestTest.class);
+        addTestSuite(HealthRebootPolicyTest.class);
         addTestSuite(JarHostTestTest.class);
+        addTestSuite(PackageSlicerTest.class);
+        addTestSuite(PrerequisiteApkInstallerTest.class);
+        addTestSuite(ShardBalancerTest.class);
         addTestSuite(TestFilterTest.class);
         addTestSuite(TestPackageDefTest.class);
+        addTestSuite(TestPackageRepoTest.class);
         addTestSuite(TestPackageXmlParserTest.class);
         addTestSuite(TestPlanTest.class);
         addTestSuite(WrappedGTestResultParserTest.class);
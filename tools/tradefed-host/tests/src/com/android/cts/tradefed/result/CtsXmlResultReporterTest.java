@@ -18,6 +18,8 @@ package com.android.cts.tradefed.result;
 import static com.android.cts.tradefed.result.CtsXmlResultReporter.CTS_RESULT_FILE_VERSION;
 
 import com.android.cts.tradefed.UnitTests;
+import com.android.cts.tradefed.device.DeviceInfoCollector;
+import com.android.cts.tradefed.testtype.CtsTest;
 import com.android.cts.util.AbiUtils;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IFolderBuildInfo;
@@ -32,6 +34,8 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import android.tests.getinfo.DeviceInfoConstants;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -39,8 +43,11 @@ import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.ZipFile;
 
 /**
  * Unit tests for {@link XmlResultReporter}.
@@ -208,6 +215,86 @@ public class CtsXmlResultReporterTest extends TestCase {
         assertTrue(output, output.contains(testLogTag));
     }
 
+    /**
+     * Test that failure logs saved after later tests started go to the failed test, and that the
+     * failed tests of a package are not matched once the next package started.
+     */
+    public void testIncludeTestLogTags_packages() {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        final TestIdentifier failedTest = new TestIdentifier("FooTest", "testFoo");
+        final TestIdentifier laterTest = new TestIdentifier("FooTest", "testLater");
+        mResultReporter.setIncludeTestLogTags(true);
+        mResultReporter.invocationStarted(mMockBuild);
+        mResultReporter.testRunStarted(AbiUtils.createId(UnitTests.ABI.getName(), "a"), 2);
+        mResultReporter.testStarted(failedTest);
+        mResultReporter.testFailed(failedTest, "trace");
+        mResultReporter.testEnded(failedTest, emptyMap);
+        mResultReporter.testStarted(laterTest);
+        mResultReporter.testLogSaved("logcat-FooTest_testFoo", LogDataType.TEXT, null,
+                new LogFile("path", "url1"));
+        mResultReporter.testEnded(laterTest, emptyMap);
+        mResultReporter.testRunEnded(3, emptyMap);
+
+        mResultReporter.testRunStarted(AbiUtils.createId(UnitTests.ABI.getName(), "b"), 1);
+        mResultReporter.testStarted(laterTest);
+        mResultReporter.testLogSaved("logcat-FooTest_testFoo", LogDataType.TEXT, null,
+                new LogFile("path", "url2"));
+        mResultReporter.testEnded(laterTest, emptyMap);
+        mResultReporter.testRunEnded(3, emptyMap);
+        mResultReporter.invocationEnded(1);
+
+        final String output = getOutput();
+        assertTrue(output, output.contains("<Test name=\"testFoo\" result=\"fail\""));
+        int failedIndex = output.indexOf("name=\"testFoo\"");
+        int laterIndex = output.indexOf("name=\"testLater\"");
+        int log1Index = output.indexOf("url=\"url1\"");
+        // the log of the failed test is within it, not within the test running when it was saved
+        assertTrue(output, failedIndex < log1Index && log1Index < laterIndex);
+        // the log saved in package b goes to the test of package b running at the time
+        int log2Index = output.indexOf("url=\"url2\"");
+        assertTrue(output, output.lastIndexOf("name=\"testLater\"") < log2Index);
+    }
+
+    /**
+     * Test that the live metrics are exported to the result directory when enabled, but left
+     * out of the result zip along with the other files only used by the host.
+     */
+    public void testZipResults_hostFiles() throws Exception {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        final TestIdentifier testId = new TestIdentifier("FooTest", "testFoo");
+        mResultReporter.setLiveMetrics(true);
+        mResultReporter.invocationStarted(mMockBuild);
+        mResultReporter.testRunStarted(AbiUtils.createId(UnitTests.ABI.getName(), "run"), 1);
+        mResultReporter.testStarted(testId);
+        mResultReporter.testEnded(testId, emptyMap);
+        mResultReporter.testRunEnded(3, emptyMap);
+        mResultReporter.invocationEnded(1);
+        // the results are in a unique directory created in the report dir
+        File resultDir = null;
+        for (File file : mReportDir.listFiles()) {
+            if (file.isDirectory()) {
+                resultDir = file;
+            }
+        }
+        assertNotNull(resultDir);
+        String[] hostFiles = {LiveMetricsExporter.METRICS_FILE_NAME,
+                ResultCheckpoint.CHECKPOINT_FILE_NAME, ResultArchive.ARCHIVE_FILE_NAME};
+        for (String hostFile : hostFiles) {
+            assertTrue(hostFile, new File(resultDir, hostFile).exists());
+        }
+
+        ZipFile zip = new ZipFile(new File(mReportDir, resultDir.getName() + ".zip"));
+        try {
+            assertNotNull(zip.getEntry(resultDir.getName() + "/"));
+            for (String hostFile : hostFiles) {
+                assertNull(hostFile, zip.getEntry(String.format("%s/%s", resultDir.getName(),
+                        hostFile)));
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
     public void testDeviceSetup() {
         Map<String, String> emptyMap = Collections.emptyMap();
         final TestIdentifier testId = new TestIdentifier("android.tests.devicesetup", "TestDeviceSetup");
@@ -223,6 +310,52 @@ public class CtsXmlResultReporterTest extends TestCase {
         assertFalse(output, output.contains(deviceSetupTag));
     }
 
+    /**
+     * Test that the results of a package are cached in incremental sessions while all its tests
+     * pass, and removed from the cache once one fails.
+     */
+    public void testIncremental() {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        TestIdentifier test1 = new TestIdentifier("com.foo.FooTest", "testFoo");
+        TestIdentifier test2 = new TestIdentifier("com.foo.FooTest", "testFoo2");
+        String pkgId = AbiUtils.createId(UnitTests.ABI.getName(), "run");
+        String filterHash = PassingResultCache.getFilterHash(Arrays.asList(test1, test2));
+        String key = PassingResultCache.getKey("digest", UnitTests.ABI.getName(), "fingerprint",
+                filterHash);
+        PassingResultCache cache = new PassingResultCache(new File(mBuildDir,
+                "android-cts/repository/result-cache"));
+        mResultReporter.setIncremental(true);
+        mResultReporter.invocationStarted(mMockBuild);
+        Map<String, String> deviceInfo = new HashMap<>();
+        deviceInfo.put(DeviceInfoConstants.BUILD_FINGERPRINT, "fingerprint");
+        mResultReporter.testRunStarted(DeviceInfoCollector.IDS.iterator().next(), 0);
+        mResultReporter.testRunEnded(0, deviceInfo);
+        Map<String, String> details = new HashMap<>();
+        details.put(CtsTest.PACKAGE_DIGEST_METRIC, "digest");
+        details.put(CtsTest.PACKAGE_ABI_METRIC, UnitTests.ABI.getName());
+        details.put(CtsTest.PACKAGE_FILTER_HASH_METRIC, filterHash);
+        mResultReporter.testRunStarted(pkgId, 0);
+        mResultReporter.testRunEnded(0, details);
+
+        mResultReporter.testRunStarted(pkgId, 2);
+        mResultReporter.testStarted(test1);
+        mResultReporter.testEnded(test1, emptyMap);
+        mResultReporter.testStarted(test2);
+        mResultReporter.testEnded(test2, emptyMap);
+        mResultReporter.testRunEnded(3000, emptyMap);
+        assertEquals(new HashSet<>(Arrays.asList(test1, test2)), cache.get(key));
+
+        // a later slice of the package fails
+        TestIdentifier test3 = new TestIdentifier("com.foo.FooTest", "testFoo3");
+        mResultReporter.testRunStarted(pkgId, 1);
+        mResultReporter.testStarted(test3);
+        mResultReporter.testFailed(test3, "trace");
+        mResultReporter.testEnded(test3, emptyMap);
+        mResultReporter.testRunEnded(3000, emptyMap);
+        mResultReporter.invocationEnded(1);
+        assertNull(cache.get(key));
+    }
+
     /**
      * Gets the output produced, stripping it of extraneous whitespace characters.
      */
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.Locale;
+
+/**
+ * Unit tests for {@link LiveMetrics} and {@link LatencyHistogram}.
+ */
+public class LiveMetricsTest extends TestCase {
+
+    private static final long START_MS = 1000 * 1000;
+
+    /**
+     * Test that percentiles read from the histogram are within its precision.
+     */
+    public void testHistogram_percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000, histogram.getPercentile(50), 5000 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(9900, histogram.getPercentile(99), 9900 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(10000, histogram.getPercentile(100));
+        assertEquals(1, histogram.getPercentile(0));
+    }
+
+    /**
+     * Test that small and huge latencies land in the right buckets, and negative ones are
+     * recorded as 0.
+     */
+    public void testHistogram_range() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(7);
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(0, histogram.getPercentile(1));
+        assertEquals(7, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE / 2, histogram.getPercentile(100));
+    }
+
+    /**
+     * Test that an encoded histogram decodes to the same distribution.
+     */
+    public void testHistogram_encode() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(3);
+        histogram.record(250);
+        histogram.record(90000);
+        LatencyHistogram decoded = LatencyHistogram.decode(histogram.encode(),
+                histogram.getMax(), histogram.getTotal());
+        assertEquals(histogram.encode(), decoded.encode());
+        assertEquals(4, decoded.getCount());
+        assertEquals(90256, decoded.getTotal());
+        assertEquals(histogram.getPercentile(75), decoded.getPercentile(75));
+        assertEquals(0, LatencyHistogram.decode("", 0, 0).getCount());
+        try {
+            LatencyHistogram.decode("3:2 250", 250, 256);
+            fail("NumberFormatException not thrown");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test the metrics written for a session with a finished package and a running one.
+     */
+    public void testWrite() throws Exception {
+        LiveMetrics metrics = new LiveMetrics(START_MS);
+        TimingProfile profileA = new TimingProfile();
+        metrics.runStarted("armeabi-v7a CtsA", profileA, START_MS);
+        runTest(metrics, new TestIdentifier("com.example.ATest", "testPass"), START_MS + 500,
+                100, false);
+        runTest(metrics, new TestIdentifier("com.example.ATest", "testFail"), START_MS + 600,
+                300, true);
+        metrics.runEnded();
+        assertEquals(1, profileA.getRunCount());
+        assertEquals(500, profileA.getStartupMs());
+        assertEquals("com.example.ATest#testFail", profileA.getSlowestTest());
+
+        TimingProfile profileB = new TimingProfile();
+        metrics.runStarted("armeabi-v7a CtsB", profileB, START_MS + 1000);
+        TestIdentifier running = new TestIdentifier("com.example.BTest", "testHang");
+        metrics.testStarted(running, START_MS + 1200);
+
+        StringWriter writer = new StringWriter();
+        metrics.write(writer, START_MS + 4000);
+        String text = writer.toString();
+        assertTrue(text, text.contains("cts_tests_completed_total 2\n"));
+        assertTrue(text, text.contains("cts_tests_failed_total 1\n"));
+        assertTrue(text, text.contains("# TYPE cts_test_duration_ms summary\n"));
+        assertTrue(text, text.contains("cts_test_duration_ms_sum 400\n"));
+        assertTrue(text, text.contains("cts_test_duration_ms_max 300\n"));
+        assertTrue(text, text.contains("cts_run_startup_ms_count 2\n"));
+        assertTrue(text, text.contains(
+                "cts_package_test_duration_ms_count{package=\"armeabi-v7a CtsA\"} 2\n"));
+        assertTrue(text, text.contains(
+                "cts_package_test_duration_ms_count{package=\"armeabi-v7a CtsB\"} 0\n"));
+        assertTrue(text, text.contains("cts_current_test_elapsed_ms{package=\"armeabi-v7a CtsB\"," +
+                "test=\"com.example.BTest#testHang\"} 2800\n"));
+    }
+
+    /**
+     * Test that overlapping tests, as run by sharded native tests, each get their own duration.
+     */
+    public void testWrite_overlappingTests() throws Exception {
+        LiveMetrics metrics = new LiveMetrics(START_MS);
+        TimingProfile profile = new TimingProfile();
+        metrics.runStarted("armeabi-v7a CtsNative", profile, START_MS);
+        TestIdentifier first = new TestIdentifier("Math", "Add");
+        TestIdentifier second = new TestIdentifier("Math", "Subtract");
+        TestIdentifier third = new TestIdentifier("Math", "Divide");
+        metrics.testStarted(first, START_MS);
+        metrics.testStarted(second, START_MS + 100);
+        metrics.testStarted(third, START_MS + 200);
+        metrics.testEnded(first, START_MS + 1000);
+        metrics.testEnded(second, START_MS + 300);
+
+        StringWriter writer = new StringWriter();
+        metrics.write(writer, START_MS + 2000);
+        String text = writer.toString();
+        assertTrue(text, text.contains("cts_test_duration_ms_sum 1200\n"));
+        assertTrue(text, text.contains("cts_test_duration_ms_max 1000\n"));
+        assertTrue(text, text.contains("cts_current_test_elapsed_ms{package=" +
+                "\"armeabi-v7a CtsNative\",test=\"Math#Divide\"} 1800\n"));
+        assertEquals("Math#Add", profile.getSlowestTest());
+    }
+
+    /**
+     * Test that the metrics are written in the exposition format whatever the default locale,
+     * which may use other decimal separators.
+     */
+    public void testWrite_locale() throws Exception {
+        LiveMetrics metrics = new LiveMetrics(START_MS);
+        metrics.runStarted("armeabi-v7a CtsA", new TimingProfile(), START_MS);
+        runTest(metrics, new TestIdentifier("com.example.ATest", "testPass"), START_MS, 10,
+                false);
+        Locale defaultLocale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.GERMANY);
+            StringWriter writer = new StringWriter();
+            metrics.write(writer, START_MS + 1000);
+            String text = writer.toString();
+            assertTrue(text, text.contains("cts_tests_per_second 0.500\n"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    /**
+     * Test that the test rate only counts tests completed within the window.
+     */
+    public void testGetTestRate() {
+        LiveMetrics metrics = new LiveMetrics(START_MS);
+        metrics.runStarted("armeabi-v7a CtsA", new TimingProfile(), START_MS);
+        for (int i = 0; i < 30; i++) {
+            runTest(metrics, new TestIdentifier("com.example.ATest", "test" + i),
+                    START_MS + i * 1000, 10, false);
+        }
+        // 30 tests over the first 30 seconds
+        assertEquals(1.0, metrics.getTestRate(START_MS + 29 * 1000), 0.001);
+        // half of them are older than the window
+        assertEquals(0.25, metrics.getTestRate(START_MS + 74 * 1000), 0.001);
+        assertEquals(0.0, metrics.getTestRate(START_MS + 1000 * 1000), 0.001);
+    }
+
+    private static void runTest(LiveMetrics metrics, TestIdentifier test, long startMs,
+            long durationMs, boolean fail) {
+        metrics.testStarted(test, startMs);
+        if (fail) {
+            metrics.testFailed();
+        }
+        metrics.testEnded(test, startMs + durationMs);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link PassingResultCache}.
+ */
+public class PassingResultCacheTest extends TestCase {
+
+    private static final TestIdentifier TEST1 = new TestIdentifier("com.foo.FooTest", "testFoo");
+    private static final TestIdentifier TEST2 = new TestIdentifier("com.foo.FooTest", "testFoo2");
+
+    private File mCacheDir;
+    private PassingResultCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = FileUtil.createTempDir("result-cache");
+        // the cache creates its directory when storing the first entry
+        mCache = new PassingResultCache(new File(mCacheDir, "cache"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mCacheDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test storing, reading and removing an entry.
+     */
+    public void testPutGet() {
+        String key = PassingResultCache.getKey("digest", "armeabi-v7a", "fingerprint", "hash");
+        assertNull(mCache.get(key));
+        List<TestIdentifier> tests = Arrays.asList(TEST1, TEST2);
+        mCache.put(key, tests);
+        assertEquals(tests, Arrays.asList(mCache.get(key).toArray()));
+        mCache.remove(key);
+        assertNull(mCache.get(key));
+    }
+
+    /**
+     * Test that every part of the key tells entries apart, and that unknown parts give no key.
+     */
+    public void testGetKey() {
+        String key = PassingResultCache.getKey("digest", "armeabi-v7a", "fingerprint", "hash");
+        assertEquals(key,
+                PassingResultCache.getKey("digest", "armeabi-v7a", "fingerprint", "hash"));
+        assertFalse(key.equals(
+                PassingResultCache.getKey("digest2", "armeabi-v7a", "fingerprint", "hash")));
+        assertFalse(key.equals(
+                PassingResultCache.getKey("digest", "x86", "fingerprint", "hash")));
+        assertFalse(key.equals(
+                PassingResultCache.getKey("digest", "armeabi-v7a", "fingerprint2", "hash")));
+        assertFalse(key.equals(
+                PassingResultCache.getKey("digest", "armeabi-v7a", "fingerprint", "hash2")));
+        assertNull(PassingResultCache.getKey("digest", "armeabi-v7a", null, "hash"));
+        assertNull(PassingResultCache.getKey("digest", "armeabi-v7a", "", "hash"));
+    }
+
+    /**
+     * Test that the filter hash depends on the set of tests but not their order.
+     */
+    public void testGetFilterHash() {
+        assertEquals(PassingResultCache.getFilterHash(Arrays.asList(TEST1, TEST2)),
+                PassingResultCache.getFilterHash(Arrays.asList(TEST2, TEST1)));
+        assertFalse(PassingResultCache.getFilterHash(Arrays.asList(TEST1, TEST2)).equals(
+                PassingResultCache.getFilterHash(Arrays.asList(TEST1))));
+    }
+
+    /**
+     * Test that tests whose names cannot be stored are not cached.
+     */
+    public void testPut_unstorableName() {
+        String key = PassingResultCache.getKey("digest", "armeabi-v7a", "fingerprint", "hash");
+        mCache.put(key, Arrays.asList(TEST1, new TestIdentifier("com.foo.FooTest", "a\tb")));
+        assertNull(mCache.get(key));
+    }
+}
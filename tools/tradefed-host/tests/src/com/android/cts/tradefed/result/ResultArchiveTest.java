@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.tradefed.UnitTests;
+import com.android.cts.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.kxml2.io.KXmlSerializer;
+
+import android.tests.getinfo.DeviceInfoConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ResultArchive}.
+ */
+public class ResultArchiveTest extends TestCase {
+
+    private static final String PERF_SUMMARY =
+            "frames per sec| |higherBetter|fps|59.5";
+    private static final String PERF_DETAILS =
+            "com.example.PerfTest#testPerf:42|frame time|lowerBetter|ms|16.0 17.5 16.2";
+    private static final String TRACE = "junit.framework.AssertionFailedError\n" +
+            "at com.example.BTest.testFail(BTest.java:10) & <more>";
+
+    private File mReportDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mReportDir = FileUtil.createTempDir("archive");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mReportDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that results read back from an archive serialize exactly like the archived ones.
+     */
+    public void testRead_identical() throws Exception {
+        TestResults results = new TestResults();
+        populateResults(results);
+        results.getOrCreatePackage(createId("b")).findTest(new TestIdentifier(
+                "com.example.BTest", "testFail")).setMessage("valeur inattendue : \u00e9t\u00e9");
+        ResultArchive.write(mReportDir, results, "CTS", "Fri Aug 20 15:13:03 PDT 2010", "serial");
+
+        TestResults archived = ResultArchive.read(mReportDir);
+        assertEquals("CTS", archived.getPlanName());
+        assertEquals(2, archived.getRebootCount());
+        assertEquals(61000, archived.getRebootTimeMs());
+        assertEquals(results.getDeviceInfoMetrics(), archived.getDeviceInfoMetrics());
+        assertTrue(archived.isComplete());
+        assertEquals(serialize(results), serialize(archived));
+        Test perf = archived.getOrCreatePackage(createId("c")).findTest(
+                new TestIdentifier("com.example.CTest", "testPerf"));
+        assertEquals(PERF_DETAILS, perf.getDetails());
+    }
+
+    /**
+     * Test that packages moved to the journal are archived too.
+     */
+    public void testWrite_journaled() throws Exception {
+        TestResults inMemory = new TestResults();
+        populateResults(inMemory);
+        TestResults journaled = new TestResults();
+        journaled.setJournal(new ResultJournal(new File(mReportDir, "journal")));
+        populateResults(journaled);
+        journaled.finishPackage(createId("a"));
+        journaled.finishPackage(createId("b"));
+
+        ResultArchive.write(mReportDir, journaled, "CTS", "start", "serial");
+        assertEquals(serialize(inMemory), serialize(ResultArchive.read(mReportDir)));
+        // archiving leaves the journal as it was
+        assertEquals(1, journaled.getPackages().size());
+        assertEquals(1, journaled.countTests(CtsTestStatus.FAIL));
+    }
+
+    /**
+     * Test reading the summary of a session from its archive.
+     */
+    public void testReadSummary() throws Exception {
+        TestResults results = new TestResults();
+        populateResults(results);
+        ResultArchive.write(mReportDir, results, "CTS", "start", "serial1, serial2");
+
+        ITestSummary summary = ResultArchive.readSummary(3, mReportDir);
+        assertEquals(3, summary.getId());
+        assertEquals(mReportDir.getName(), summary.getTimestamp());
+        assertEquals(4, summary.getNumPassed());
+        assertEquals(1, summary.getNumFailed());
+        assertEquals(1, summary.getNumIncomplete());
+        assertEquals("CTS", summary.getTestPlan());
+        assertEquals("start", summary.getStartTime());
+        assertEquals("serial1, serial2", summary.getDeviceSerials());
+    }
+
+    /**
+     * Test that an archive is only current while the session has no newer results.
+     */
+    public void testIsCurrent() throws Exception {
+        assertFalse(ResultArchive.isCurrent(mReportDir));
+        TestResults results = new TestResults();
+        populateResults(results);
+        File resultFile = new File(mReportDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
+        FileUtil.writeToFile("<TestResult/>", resultFile);
+        ResultArchive.write(mReportDir, results, "CTS", "start", "serial");
+        File archiveFile = new File(mReportDir, ResultArchive.ARCHIVE_FILE_NAME);
+        resultFile.setLastModified(archiveFile.lastModified() - 1000);
+        assertTrue(ResultArchive.isCurrent(mReportDir));
+
+        // the session was continued, and the result XML written again
+        resultFile.setLastModified(archiveFile.lastModified() + 1000);
+        assertFalse(ResultArchive.isCurrent(mReportDir));
+        resultFile.setLastModified(archiveFile.lastModified() - 1000);
+
+        // a continued invocation was interrupted
+        ResultCheckpoint checkpoint = ResultCheckpoint.open(mReportDir, 1, 0);
+        checkpoint.startSession("CTS", "start", "serial");
+        checkpoint.close();
+        assertFalse(ResultArchive.isCurrent(mReportDir));
+    }
+
+    /**
+     * Test that a truncated archive fails to read rather than returning partial results.
+     */
+    public void testRead_truncated() throws Exception {
+        TestResults results = new TestResults();
+        populateResults(results);
+        ResultArchive.write(mReportDir, results, "CTS", "start", "serial");
+        File archiveFile = new File(mReportDir, ResultArchive.ARCHIVE_FILE_NAME);
+        RandomAccessFile file = new RandomAccessFile(archiveFile, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+        try {
+            ResultArchive.read(mReportDir);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+
+        FileUtil.writeToFile("<TestResult/>", archiveFile);
+        try {
+            ResultArchive.readSummary(0, mReportDir);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that {@link TestResultRepo} archives a session read from its result XML, and reads
+     * it from the archive afterwards.
+     */
+    public void testResultRepo_backfill() throws Exception {
+        File resultsDir = FileUtil.createTempDir("results", mReportDir);
+        File sessionDir = new File(resultsDir, "2015.01.01_00.00.00");
+        sessionDir.mkdirs();
+        TestResults results = new TestResults();
+        populateResults(results);
+        String xml = String.format("<?xml version='1.0' encoding='UTF-8' standalone='no' ?>" +
+                "<TestResult testPlan=\"CTS\" starttime=\"start\">%s</TestResult>",
+                serialize(results));
+        FileUtil.writeToFile(xml, new File(sessionDir,
+                CtsXmlResultReporter.TEST_RESULT_FILE_NAME));
+
+        TestResultRepo repo = new TestResultRepo(resultsDir);
+        assertEquals(serialize(results), serialize(repo.getResult(0)));
+        assertTrue(ResultArchive.isCurrent(sessionDir));
+        assertEquals(0, repo.archiveResults());
+        assertEquals(serialize(results), serialize(repo.getResult(0)));
+    }
+
+    private void populateResults(TestResults results) {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        TestPackageResult a = results.getOrCreatePackage(createId("a"));
+        TestIdentifier aTest = new TestIdentifier("com.example.ATest", "testPass");
+        a.insertTest(aTest);
+        a.reportTestEnded(aTest, emptyMap);
+        a.setDigest("0123456789abcdef");
+        a.setName("CtsExampleTestCases");
+        a.setCached(true);
+        results.setReboots(2, 61000);
+        Map<String, String> deviceInfo = new HashMap<String, String>();
+        deviceInfo.put(DeviceInfoConstants.BUILD_FINGERPRINT, "fingerprint");
+        deviceInfo.put(DeviceInfoConstants.SERIAL_NUMBER, "serial1,serial2");
+        results.populateDeviceInfoMetrics(deviceInfo);
+
+        TestPackageResult b = results.getOrCreatePackage(createId("b"));
+        TestIdentifier bFail = new TestIdentifier("com.example.BTest", "testFail");
+        TestIdentifier bNotExecuted = new TestIdentifier("com.example.BTest", "testNotExecuted");
+        TestIdentifier bPass = new TestIdentifier("com.example.BTest", "testPass");
+        b.insertTest(bFail);
+        b.reportTestFailure(bFail, CtsTestStatus.FAIL, TRACE);
+        b.reportTestEnded(bFail, emptyMap);
+        b.findTest(bFail).addTestLog(TestLog.fromDataName("logcat-fail", "file:///logcat.zip"));
+        b.findTest(bFail).addTestLog(TestLog.fromDataName("bug-fail", "file:///bug.zip"));
+        b.insertTest(bNotExecuted);
+        b.insertTest(bPass);
+        b.reportTestEnded(bPass, emptyMap);
+        // a timestamp in another format is kept as is
+        b.findTest(bPass).setStartTime("yesterday");
+
+        TestPackageResult c = results.getOrCreatePackage(createId("c"));
+        TestIdentifier cOther = new TestIdentifier("com.example.CTest", "testOther");
+        TestIdentifier cTest = new TestIdentifier("com.example.CTest", "testPerf");
+        c.insertTest(cOther);
+        c.reportTestEnded(cOther, emptyMap);
+        c.insertTest(cTest);
+        c.reportTestEnded(cTest, emptyMap);
+        Test perf = c.findTest(cTest);
+        perf.setSummary(PERF_SUMMARY);
+        perf.setDetails(PERF_DETAILS);
+        perf.setStartTime(TimeUtil.getTimestamp(1262304000000L));
+        perf.setEndTime(TimeUtil.getTimestamp(1262304000000L + 3600 * 1000));
+    }
+
+    private static String createId(String name) {
+        return AbiUtils.createId(UnitTests.ABI.getName(), name);
+    }
+
+    /**
+     * @return the XML of the packages of the given results
+     */
+    private static String serialize(TestResults results) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        KXmlSerializer serializer = new KXmlSerializer();
+        serializer.setOutput(stream, "UTF-8");
+        for (String id : results.getPackageIds()) {
+            results.readPackage(id).serialize(serializer);
+        }
+        serializer.flush();
+        return stream.toString("UTF-8");
+    }
+}
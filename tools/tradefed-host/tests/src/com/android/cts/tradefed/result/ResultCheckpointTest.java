@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.tradefed.UnitTests;
+import com.android.cts.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import android.tests.getinfo.DeviceInfoConstants;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ResultCheckpoint}.
+ */
+public class ResultCheckpointTest extends TestCase {
+
+    private static final String PKG_ID = AbiUtils.createId(UnitTests.ABI.getName(), "com.foo");
+    private static final TestIdentifier PASS_TEST =
+            new TestIdentifier("com.foo.FooTest", "testPass");
+    private static final TestIdentifier FAIL_TEST =
+            new TestIdentifier("com.foo.FooTest", "testFail");
+    private static final TestIdentifier SKIP_TEST =
+            new TestIdentifier("com.foo.FooTest", "testSkip");
+    private static final String TRACE = "java.lang.AssertionError\n\tat FooTest.testFail\\x";
+    private static final String PERF_SUMMARY = "frames|5|higherBetter|fps|60.0";
+
+    private File mReportDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mReportDir = FileUtil.createTempDir("checkpoint");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mReportDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a completed invocation is replayed with all its outcomes.
+     */
+    public void testReplay() throws Exception {
+        ResultCheckpoint checkpoint = ResultCheckpoint.open(mReportDir, 2, 60 * 1000);
+        checkpoint.startSession("CTS", "start", "serial");
+        Map<String, String> deviceInfo = new HashMap<String, String>();
+        deviceInfo.put(DeviceInfoConstants.BUILD_FINGERPRINT, "fingerprint");
+        deviceInfo.put(DeviceInfoConstants.SERIAL_NUMBER, "serial1");
+        checkpoint.deviceInfoCollected(deviceInfo);
+        // a continued invocation on another device combines the serials
+        deviceInfo.put(DeviceInfoConstants.SERIAL_NUMBER, "serial2");
+        checkpoint.deviceInfoCollected(deviceInfo);
+        runPackage(checkpoint);
+        checkpoint.rebooted(1, 30000);
+        checkpoint.endSession();
+        checkpoint.close();
+
+        assertTrue(ResultCheckpoint.isComplete(mReportDir));
+        ResultCheckpoint.Replay replay = ResultCheckpoint.replay(mReportDir);
+        assertTrue(replay.isComplete());
+        assertEquals("CTS", replay.getPlanName());
+        assertEquals("start", replay.getStartTime());
+        TestResults results = replay.getResults();
+        assertTrue(results.isComplete());
+        assertEquals(1, results.getRebootCount());
+        assertEquals(30000, results.getRebootTimeMs());
+        assertEquals(1, results.countTests(CtsTestStatus.PASS));
+        assertEquals(1, results.countTests(CtsTestStatus.FAIL));
+        assertEquals(1, results.countTests(CtsTestStatus.NOT_EXECUTED));
+        TestPackageResult pkg = results.getPackages().iterator().next();
+        assertEquals("foo", pkg.getName());
+        assertEquals("digest", pkg.getDigest());
+        assertTrue(pkg.isCached());
+        Test failed = pkg.findTest(FAIL_TEST);
+        assertEquals(TRACE, failed.getStackTrace());
+        assertEquals(1, failed.getTestLogs().size());
+        assertEquals("file:///logs/logcat-fail.zip", failed.getTestLogs().get(0).getUrl());
+        assertEquals("fingerprint",
+                results.getDeviceInfoMetrics().get(DeviceInfoConstants.BUILD_FINGERPRINT));
+        assertEquals("serial1,serial2",
+                results.getDeviceInfoMetrics().get(DeviceInfoConstants.SERIAL_NUMBER));
+        assertEquals(Test.getFailureMessageFromStackTrace(TRACE), failed.getMessage());
+        assertEquals(PERF_SUMMARY, pkg.findTest(PASS_TEST).getSummary());
+    }
+
+    /**
+     * Test that an interrupted invocation is replayed up to the last complete record, and that
+     * reopening the checkpoint drops the torn record so later records can be read.
+     */
+    public void testReplay_tornRecord() throws Exception {
+        ResultCheckpoint checkpoint = ResultCheckpoint.open(mReportDir, 100, 60 * 1000);
+        checkpoint.startSession("CTS", "start", "serial");
+        Test passed = new Test(PASS_TEST.getTestName());
+        passed.setResultStatus(CtsTestStatus.PASS);
+        checkpoint.testEnded(PKG_ID, PASS_TEST, passed);
+        checkpoint.close();
+        // simulate a crash in the middle of writing a record
+        byte[] record = ResultCheckpoint.formatRecord("test", PKG_ID, "com.foo.FooTest",
+                "testFail", "fail", "st", "et", "msg", "trace");
+        appendBytes(Arrays.copyOf(record, record.length / 2));
+
+        assertFalse(ResultCheckpoint.isComplete(mReportDir));
+        ResultCheckpoint.Replay replay = ResultCheckpoint.replay(mReportDir);
+        assertFalse(replay.isComplete());
+        assertFalse(replay.getResults().isComplete());
+        assertEquals(1, replay.getResults().countTests(CtsTestStatus.PASS));
+        assertEquals(0, replay.getResults().countTests(CtsTestStatus.FAIL));
+
+        // continue the session
+        checkpoint = ResultCheckpoint.open(mReportDir, 100, 60 * 1000);
+        checkpoint.startSession("CTS", "start", "serial");
+        Test failed = new Test(FAIL_TEST.getTestName());
+        failed.setResultStatus(CtsTestStatus.FAIL);
+        checkpoint.testEnded(PKG_ID, FAIL_TEST, failed);
+        checkpoint.endSession();
+        checkpoint.close();
+
+        replay = ResultCheckpoint.replay(mReportDir);
+        assertTrue(replay.isComplete());
+        assertEquals(1, replay.getResults().countTests(CtsTestStatus.PASS));
+        assertEquals(1, replay.getResults().countTests(CtsTestStatus.FAIL));
+    }
+
+    /**
+     * Test that replay stops at a record with a bad checksum.
+     */
+    public void testReplay_corruptRecord() throws Exception {
+        ResultCheckpoint checkpoint = ResultCheckpoint.open(mReportDir, 100, 60 * 1000);
+        checkpoint.startSession("CTS", "start", "serial");
+        checkpoint.close();
+        byte[] record = ResultCheckpoint.formatRecord("test", PKG_ID, "com.foo.FooTest",
+                "testPass", "pass", "st", "et", null, null);
+        record[record.length - 2] ^= 1;
+        appendBytes(record);
+        appendBytes(ResultCheckpoint.formatRecord("end"));
+
+        ResultCheckpoint.Replay replay = ResultCheckpoint.replay(mReportDir);
+        assertFalse(replay.isComplete());
+        assertEquals(0, replay.getResults().countTests(CtsTestStatus.PASS));
+    }
+
+    /**
+     * Test that a snapshot of results read from XML replays to the same results.
+     */
+    public void testWriteSnapshot() throws Exception {
+        ResultCheckpoint checkpoint = ResultCheckpoint.open(mReportDir, 100, 60 * 1000);
+        checkpoint.startSession("CTS", "start", "serial");
+        runPackage(checkpoint);
+        checkpoint.close();
+        TestResults results = ResultCheckpoint.replay(mReportDir).getResults();
+        FileUtil.recursiveDelete(new File(mReportDir, ResultCheckpoint.CHECKPOINT_FILE_NAME));
+
+        ResultCheckpoint.writeSnapshot(mReportDir, results, "CTS", "start", "serial");
+        TestResults snapshot = ResultCheckpoint.replay(mReportDir).getResults();
+        for (CtsTestStatus status : CtsTestStatus.values()) {
+            assertEquals(results.countTests(status), snapshot.countTests(status));
+        }
+        TestPackageResult pkg = snapshot.getPackages().iterator().next();
+        assertEquals(TRACE, pkg.findTest(FAIL_TEST).getStackTrace());
+        assertEquals(1, pkg.findTest(FAIL_TEST).getTestLogs().size());
+        assertEquals(PERF_SUMMARY, pkg.findTest(PASS_TEST).getSummary());
+    }
+
+    /**
+     * Test that {@link TestResultRepo} lists a session which only has a checkpoint.
+     */
+    public void testResultRepo_interruptedSession() throws Exception {
+        File sessionDir = new File(mReportDir, "2015.01.01_00.00.00");
+        assertTrue(sessionDir.mkdir());
+        ResultCheckpoint checkpoint = ResultCheckpoint.open(sessionDir, 100, 60 * 1000);
+        checkpoint.startSession("CTS", "start", "serial");
+        runPackage(checkpoint);
+        checkpoint.close();
+
+        TestResultRepo repo = new TestResultRepo(mReportDir);
+        List<ITestSummary> summaries = repo.getSummaries();
+        assertEquals(1, summaries.size());
+        assertEquals("CTS", summaries.get(0).getTestPlan());
+        assertEquals(1, summaries.get(0).getNumPassed());
+        TestResults results = repo.getResult(0);
+        assertFalse(results.isComplete());
+        assertEquals("CTS", results.getPlanName());
+        assertEquals(1, results.countTests(CtsTestStatus.FAIL));
+    }
+
+    /**
+     * Report a package run with a passed test with performance results, a failed test and a
+     * test that did not complete.
+     */
+    private void runPackage(ResultCheckpoint checkpoint) {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        TestPackageResult pkg = new TestResults().getOrCreatePackage(PKG_ID);
+        pkg.insertTest(PASS_TEST);
+        pkg.reportTestEnded(PASS_TEST, emptyMap);
+        checkpoint.testEnded(PKG_ID, PASS_TEST, pkg.findTest(PASS_TEST));
+        pkg.insertTest(FAIL_TEST);
+        pkg.reportTestFailure(FAIL_TEST, CtsTestStatus.FAIL, TRACE);
+        pkg.reportTestEnded(FAIL_TEST, emptyMap);
+        checkpoint.testEnded(PKG_ID, FAIL_TEST, pkg.findTest(FAIL_TEST));
+        TestLog log = TestLog.fromDataName("logcat-fail", "file:///logs/logcat-fail.zip");
+        pkg.findTest(FAIL_TEST).addTestLog(log);
+        checkpoint.testLogSaved(PKG_ID, FAIL_TEST, log);
+        pkg.insertTest(SKIP_TEST);
+        pkg.findTest(PASS_TEST).setSummary(PERF_SUMMARY);
+        pkg.setName("foo");
+        pkg.setDigest("digest");
+        pkg.setCached(true);
+        checkpoint.packageEnded(pkg, Arrays.asList(PASS_TEST, FAIL_TEST, SKIP_TEST));
+    }
+
+    private void appendBytes(byte[] bytes) throws IOException {
+        FileOutputStream stream = new FileOutputStream(
+                new File(mReportDir, ResultCheckpoint.CHECKPOINT_FILE_NAME), true);
+        try {
+            stream.write(bytes);
+        } finally {
+            stream.close();
+        }
+    }
+}
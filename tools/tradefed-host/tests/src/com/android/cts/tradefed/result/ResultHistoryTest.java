@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.tradefed.UnitTests;
+import com.android.cts.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.util.FileUtil;
+
+import android.tests.getinfo.DeviceInfoConstants;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ResultHistory}, {@link TestHistory} and {@link HistoryQuery}.
+ */
+public class ResultHistoryTest extends TestCase {
+
+    private static final String PKG_ID = AbiUtils.createId(UnitTests.ABI.getName(), "CtsA");
+    private static final TestIdentifier FLAKY = new TestIdentifier("com.example.ATest",
+            "testFlaky");
+    private static final TestIdentifier STABLE = new TestIdentifier("com.example.ATest",
+            "testStable");
+    private static final TestIdentifier BROKEN = new TestIdentifier("com.example.ATest",
+            "testBroken");
+    private static final long START_MS = 1262304000000L;
+
+    private File mResultsDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResultsDir = FileUtil.createTempDir("history");
+        // FLAKY: pass, fail, fail, pass, fail
+        // STABLE: passes, taking 1s before build3 and 5s from it
+        // BROKEN: always fails
+        boolean[] flakyPasses = {true, false, false, true, false};
+        for (int i = 0; i < flakyPasses.length; i++) {
+            TestResults results = new TestResults();
+            TestPackageResult pkg = results.getOrCreatePackage(PKG_ID);
+            long startMs = START_MS + i * 3600 * 1000;
+            addTest(pkg, FLAKY, flakyPasses[i], startMs, 1000);
+            addTest(pkg, STABLE, true, startMs, i < 2 ? 1000 : 5000);
+            addTest(pkg, BROKEN, false, startMs, 1000);
+            String build = String.format("google/device/build%d:user/release-keys", i + 1);
+            results.populateDeviceInfoMetrics(Collections.singletonMap(
+                    DeviceInfoConstants.BUILD_FINGERPRINT, build));
+            File sessionDir = new File(mResultsDir, String.format("2015.01.0%d_00.00.00", i + 1));
+            sessionDir.mkdirs();
+            ResultArchive.write(sessionDir, results, "CTS", "start", "serial");
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mResultsDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test the history of each test across all sessions.
+     */
+    public void testLoad() throws Exception {
+        // a session which is not archived yet
+        File xmlSession = new File(mResultsDir, "2015.01.09_00.00.00");
+        xmlSession.mkdirs();
+        FileUtil.writeToFile("<TestResult/>", new File(xmlSession,
+                CtsXmlResultReporter.TEST_RESULT_FILE_NAME));
+
+        ResultHistory history = ResultHistory.load(mResultsDir, null, 2);
+        assertEquals(5, history.getSessionCount());
+        assertEquals(1, history.getSkippedSessionCount());
+
+        TestHistory flaky = history.getHistory(PKG_ID, FLAKY);
+        assertEquals(5, flaky.getTotal().getRuns());
+        assertEquals(2, flaky.getTotal().getPasses());
+        assertEquals(3, flaky.getTotal().getFlips());
+        assertEquals(0.4, flaky.getRecent().getPassRate(), 0.001);
+        assertTrue(flaky.isFlaky());
+        assertTrue(flaky.isRegressed());
+        assertEquals("google/device/build5:user/release-keys", flaky.getFailingSinceBuild());
+        assertEquals("google/device/build2:user/release-keys", flaky.getFirstFailedBuild());
+
+        TestHistory broken = history.getHistory(PKG_ID, BROKEN);
+        assertFalse(broken.isFlaky());
+        assertFalse(broken.isRegressed());
+        assertEquals("google/device/build1:user/release-keys", broken.getFailingSinceBuild());
+
+        TestHistory stable = history.getHistory(PKG_ID, STABLE);
+        assertNull(stable.getFailingSinceBuild());
+        assertEquals(3400, stable.getTotal().getMeanDurationMs());
+        assertTrue(stable.getDurationTrendMs() > 0);
+
+        assertEquals(Collections.singletonList(flaky), history.getFlakyTests());
+        assertEquals(Collections.singletonList(flaky), history.getRegressedTests());
+        assertEquals(stable, history.getSlowestTests(1).get(0));
+    }
+
+    /**
+     * Test comparing the runs since a build against the runs before it.
+     */
+    public void testLoad_sinceBuild() throws Exception {
+        ResultHistory history = ResultHistory.load(mResultsDir, "build3", 4);
+        TestHistory stable = history.getHistory(PKG_ID, STABLE);
+        assertEquals(2, stable.getBaseline().getRuns());
+        assertEquals(3, stable.getRecent().getRuns());
+        assertEquals(1000, stable.getBaseline().getMeanDurationMs());
+        assertEquals(5000, stable.getRecent().getMeanDurationMs());
+        assertEquals(Collections.singletonList(stable), history.getSlowerTests(1.5, 1000));
+        assertTrue(history.getSlowerTests(10, 0).isEmpty());
+
+        // FLAKY flipped once in its 2 baseline runs, and twice in its 3 recent ones
+        TestHistory flaky = history.getHistory(PKG_ID, FLAKY);
+        assertEquals(0.5, flaky.getBaseline().getFlipRate(), 0.001);
+        assertEquals(Collections.singletonList(flaky), history.getFlakierTests());
+    }
+
+    /**
+     * Test selecting tests with a {@link HistoryQuery}.
+     */
+    public void testHistoryQuery() throws Exception {
+        List<TestHistory> slowest = new HistoryQuery(HistoryQuery.SLOWEST, null, 2).run(
+                mResultsDir);
+        assertEquals(2, slowest.size());
+        assertEquals(STABLE, slowest.get(0).getTest());
+
+        try {
+            new HistoryQuery("fastest", null, 10).run(mResultsDir);
+            fail("ConfigurationException not thrown");
+        } catch (ConfigurationException e) {
+            // expected
+        }
+        try {
+            new HistoryQuery(HistoryQuery.SLOWER, null, 10).run(mResultsDir);
+            fail("ConfigurationException not thrown");
+        } catch (ConfigurationException e) {
+            // expected
+        }
+    }
+
+    private static void addTest(TestPackageResult pkg, TestIdentifier testId, boolean pass,
+            long startMs, long durationMs) {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        pkg.insertTest(testId);
+        if (!pass) {
+            pkg.reportTestFailure(testId, CtsTestStatus.FAIL, "trace");
+        }
+        pkg.reportTestEnded(testId, emptyMap);
+        Test test = pkg.findTest(testId);
+        test.setStartTime(TimeUtil.getTimestamp(startMs));
+        test.setEndTime(TimeUtil.getTimestamp(startMs + durationMs));
+    }
+}
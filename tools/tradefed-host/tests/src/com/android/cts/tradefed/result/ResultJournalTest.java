@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.tradefed.UnitTests;
+import com.android.cts.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.kxml2.io.KXmlSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ResultJournal}.
+ */
+public class ResultJournalTest extends TestCase {
+
+    private static final String PERF_SUMMARY =
+            "frames per sec| |higherBetter|fps|59.5";
+    private static final String PERF_DETAILS =
+            "com.example.PerfTest#testPerf:42|frame time|lowerBetter|ms|16.0 17.5 16.2";
+
+    private File mJournalDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJournalDir = FileUtil.createTempDir("journal");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mJournalDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that journaled packages are serialized exactly like packages kept in memory.
+     */
+    public void testSerialize_identical() throws Exception {
+        TestResults inMemory = new TestResults();
+        populateResults(inMemory);
+
+        TestResults journaled = new TestResults();
+        journaled.setJournal(new ResultJournal(mJournalDir));
+        populateResults(journaled);
+        journaled.finishPackage(createId("b"));
+        journaled.finishPackage(createId("c"));
+        assertEquals(1, journaled.getPackages().size());
+
+        assertEquals(serialize(inMemory), serialize(journaled));
+        assertEquals(inMemory.countTests(CtsTestStatus.PASS),
+                journaled.countTests(CtsTestStatus.PASS));
+        assertEquals(inMemory.countTests(CtsTestStatus.FAIL),
+                journaled.countTests(CtsTestStatus.FAIL));
+    }
+
+    /**
+     * Test that a journaled package is read back when more results are reported for it.
+     */
+    public void testGetOrCreatePackage_fromJournal() throws Exception {
+        TestResults results = new TestResults();
+        results.setJournal(new ResultJournal(mJournalDir));
+        populateResults(results);
+        results.finishPackage(createId("b"));
+        assertEquals(1, results.countTests(CtsTestStatus.FAIL));
+
+        TestPackageResult pkg = results.getOrCreatePackage(createId("b"));
+        Map<String, String> emptyMap = Collections.emptyMap();
+        TestIdentifier test = new TestIdentifier("com.example.BTest", "testLater");
+        pkg.insertTest(test);
+        pkg.reportTestEnded(test, emptyMap);
+
+        assertNotNull(pkg.findTest(new TestIdentifier("com.example.BTest", "testFail")));
+        assertEquals(1, results.countTests(CtsTestStatus.FAIL));
+        assertEquals(2, pkg.countTests(CtsTestStatus.PASS));
+        assertEquals(0, mJournalDir.list().length);
+    }
+
+    /**
+     * Test that performance results survive a trip through the journal.
+     */
+    public void testRemove_perfResults() throws Exception {
+        TestResults results = new TestResults();
+        populateResults(results);
+        ResultJournal journal = new ResultJournal(mJournalDir);
+        journal.write(results.getOrCreatePackage(createId("c")));
+
+        TestPackageResult pkg = journal.remove(createId("c"));
+        assertNotNull(pkg);
+        Test test = pkg.findTest(new TestIdentifier("com.example.CTest", "testPerf"));
+        assertEquals(PERF_SUMMARY.replace("| |", "||"), test.getSummary());
+        assertEquals(PERF_DETAILS, test.getDetails());
+        assertFalse(journal.contains(createId("c")));
+    }
+
+    /**
+     * Test that the timing profile of a package survives a trip through the journal, and keeps
+     * accumulating afterwards.
+     */
+    public void testRemove_timingProfile() throws Exception {
+        TestResults results = new TestResults();
+        populateResults(results);
+        TimingProfile profile = results.getOrCreatePackage(createId("a")).getTimingProfile();
+        profile.recordStartup(1200);
+        profile.recordTest("com.example.ATest#testPass", 15);
+        profile.recordTest("com.example.ATest#testSlow", 4000);
+        ResultJournal journal = new ResultJournal(mJournalDir);
+        journal.write(results.getOrCreatePackage(createId("a")));
+
+        profile = journal.remove(createId("a")).getTimingProfile();
+        assertEquals(2, profile.getTestDurations().getCount());
+        assertEquals(4015, profile.getTestDurations().getTotal());
+        assertEquals(4000, profile.getTestDurations().getMax());
+        assertEquals("com.example.ATest#testSlow", profile.getSlowestTest());
+        assertEquals(1, profile.getRunCount());
+        assertEquals(1200, profile.getStartupMs());
+        profile.recordTest("com.example.ATest#testFast", 1);
+        assertEquals(3, profile.getTestDurations().getCount());
+        assertEquals("com.example.ATest#testSlow", profile.getSlowestTest());
+    }
+
+    private void populateResults(TestResults results) {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        TestPackageResult a = results.getOrCreatePackage(createId("a"));
+        TestIdentifier aTest = new TestIdentifier("com.example.ATest", "testPass");
+        a.insertTest(aTest);
+        a.reportTestEnded(aTest, emptyMap);
+
+        TestPackageResult b = results.getOrCreatePackage(createId("b"));
+        TestIdentifier bPass = new TestIdentifier("com.example.BTest", "testPass");
+        TestIdentifier bFail = new TestIdentifier("com.example.BTest", "testFail");
+        b.insertTest(bPass);
+        b.reportTestEnded(bPass, emptyMap);
+        b.insertTest(bFail);
+        b.reportTestFailure(bFail, CtsTestStatus.FAIL, "junit.framework.AssertionFailedError\n" +
+                "at com.example.BTest.testFail(BTest.java:10) & <more>");
+        b.reportTestEnded(bFail, emptyMap);
+
+        TestPackageResult c = results.getOrCreatePackage(createId("c"));
+        TestIdentifier cTest = new TestIdentifier("com.example.CTest", "testPerf");
+        c.insertTest(cTest);
+        c.reportTestEnded(cTest, emptyMap);
+        Test perf = c.findTest(cTest);
+        perf.setSummary(PERF_SUMMARY);
+        perf.setDetails(PERF_DETAILS);
+    }
+
+    private static String createId(String name) {
+        return AbiUtils.createId(UnitTests.ABI.getName(), name);
+    }
+
+    private static String serialize(TestResults results) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        KXmlSerializer serializer = new KXmlSerializer();
+        serializer.setOutput(stream, "UTF-8");
+        serializer.startDocument("UTF-8", false);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        serializer.startTag(CtsXmlResultReporter.ns, CtsXmlResultReporter.RESULT_TAG);
+        results.serialize(serializer, stream);
+        serializer.endDocument();
+        // the results being compared may have been created in different seconds
+        return stream.toString("UTF-8").replaceAll("(starttime|endtime)=\"[^\"]*\"",
+                "$1=\"\"");
+    }
+}
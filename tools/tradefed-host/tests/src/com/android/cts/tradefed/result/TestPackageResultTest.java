@@ -15,12 +15,20 @@
  */
 package com.android.cts.tradefed.result;
 
+import com.android.cts.tradefed.testtype.CtsTest;
 import com.android.ddmlib.testrunner.TestIdentifier;
 
 import junit.framework.TestCase;
 
+import org.kxml2.io.KXmlSerializer;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Unit tests for {@link TestPackageResult}.
@@ -43,4 +51,91 @@ public class TestPackageResultTest extends TestCase {
         assertEquals(1, tests.size());
         assertEquals(includedTest, tests.iterator().next());
     }
+
+    /**
+     * Test that two runs of the same package, as reported by the slices of a split package,
+     * merge into one result and each run only processes its own test metrics.
+     */
+    public void testPopulateMetrics_slices() {
+        TestPackageResult pkgResult = new TestPackageResult();
+        TestIdentifier perfTest = new TestIdentifier("com.example.ExampleTest", "testPerf");
+        TestIdentifier otherTest = new TestIdentifier("com.example.ExampleTest", "testOther");
+        Map<String, String> perfMetrics = new HashMap<String, String>();
+        perfMetrics.put(TestPackageResult.CTS_RESULT_KEY, "summary++++details");
+        pkgResult.insertTest(perfTest);
+        pkgResult.reportTestEnded(perfTest, perfMetrics);
+        pkgResult.populateMetrics(new HashMap<String, String>());
+        assertEquals("summary", pkgResult.findTest(perfTest).getSummary());
+
+        // the summary of the first slice must not be parsed again by the second slice
+        pkgResult.findTest(perfTest).setSummary("kept");
+        pkgResult.insertTest(otherTest);
+        pkgResult.reportTestFailure(otherTest, CtsTestStatus.FAIL, "trace");
+        pkgResult.reportTestEnded(otherTest, new HashMap<String, String>());
+        pkgResult.populateMetrics(new HashMap<String, String>());
+        assertEquals("kept", pkgResult.findTest(perfTest).getSummary());
+        assertEquals(1, pkgResult.countTests(CtsTestStatus.PASS));
+        assertEquals(1, pkgResult.countTests(CtsTestStatus.FAIL));
+    }
+
+    /**
+     * Test that a package replayed from the result cache is marked as cached in the result XML,
+     * and that a later run of the package clears the mark.
+     */
+    public void testSerialize_cached() throws Exception {
+        TestPackageResult pkgResult = new TestPackageResult();
+        pkgResult.setName("foo");
+        Map<String, String> runMetrics = new HashMap<String, String>();
+        runMetrics.put(CtsTest.PACKAGE_CACHED_METRIC, Boolean.TRUE.toString());
+        pkgResult.populateMetrics(runMetrics);
+        assertTrue(pkgResult.isCached());
+        String xml = serialize(pkgResult);
+        assertTrue(xml.contains("cached=\"true\""));
+
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(new StringReader(xml));
+        parser.nextTag();
+        TestPackageResult parsed = new TestPackageResult();
+        parsed.parse(parser);
+        assertTrue(parsed.isCached());
+
+        parsed.populateMetrics(new HashMap<String, String>());
+        assertFalse(parsed.isCached());
+        assertFalse(serialize(parsed).contains("cached="));
+    }
+
+    /**
+     * Test that {@link TestPackageResult#findTest(TestIdentifier)} finds inserted tests, and
+     * does not create suites when looking up a missing test.
+     */
+    public void testFindTest() {
+        TestPackageResult pkgResult = new TestPackageResult();
+        TestIdentifier test = new TestIdentifier("com.example.ExampleTest", "testFoo");
+        TestIdentifier nestedTest = new TestIdentifier("com.example.nested.ExampleTest",
+                "testFoo");
+        Test result = pkgResult.insertTest(test);
+        Test nestedResult = pkgResult.insertTest(nestedTest);
+        assertNotSame(result, nestedResult);
+        assertSame(result, pkgResult.insertTest(test));
+        assertSame(result, pkgResult.findTest(new TestIdentifier("com.example.ExampleTest",
+                "testFoo")));
+        assertSame(nestedResult, pkgResult.findTest(nestedTest));
+
+        assertNull(pkgResult.findTest(new TestIdentifier("com.example.ExampleTest", "testBar")));
+        assertNull(pkgResult.findTest(new TestIdentifier("com.other.OtherTest", "testFoo")));
+        assertEquals(1, pkgResult.getTestSuites().size());
+        TestSuite example = pkgResult.getTestSuites().iterator().next().getTestSuites()
+                .iterator().next();
+        assertEquals("example", example.getName());
+        assertEquals(1, example.getTestCases().size());
+    }
+
+    private static String serialize(TestPackageResult pkgResult) throws Exception {
+        KXmlSerializer serializer = new KXmlSerializer();
+        StringWriter writer = new StringWriter();
+        serializer.setOutput(writer);
+        pkgResult.serialize(serializer);
+        serializer.flush();
+        return writer.toString();
+    }
 }
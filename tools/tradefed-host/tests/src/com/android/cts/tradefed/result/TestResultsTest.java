@@ -15,9 +15,18 @@
  */
 package com.android.cts.tradefed.result;
 
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
+import org.kxml2.io.KXmlSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.StringReader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * Unit tests for {@link TestResults} parsing.
@@ -70,6 +79,30 @@ public class TestResultsTest extends junit.framework.TestCase {
         assertEquals("digValue", pkg.getDigest());
     }
 
+    /**
+     * Test that the reboots of a session are read back from the summary
+     */
+    public void testParse_reboots() throws Exception {
+        TestResults results = new TestResults();
+        results.setReboots(3, 95000);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        KXmlSerializer serializer = new KXmlSerializer();
+        serializer.setOutput(stream, "UTF-8");
+        serializer.startTag(CtsXmlResultReporter.ns, CtsXmlResultReporter.RESULT_TAG);
+        results.serialize(serializer);
+        serializer.endTag(CtsXmlResultReporter.ns, CtsXmlResultReporter.RESULT_TAG);
+        serializer.flush();
+
+        TestResults parser = new TestResults();
+        parser.parse(new StringReader(stream.toString("UTF-8")));
+        assertEquals(3, parser.getRebootCount());
+        assertEquals(95000, parser.getRebootTimeMs());
+
+        parser = new TestResults();
+        parser.parse(new StringReader(TEST_PACKAGE_FULL));
+        assertEquals(0, parser.getRebootCount());
+    }
+
     /**
      * Test parsing not well formed XML data
      */
@@ -102,5 +135,81 @@ public class TestResultsTest extends junit.framework.TestCase {
         assertEquals("testExample", exampleTest.getName());
         assertEquals("msg", exampleTest.getMessage());
         assertEquals("at ExampleTest.testExample()", exampleTest.getStackTrace());
+        assertEquals(1, parser.countTests(CtsTestStatus.FAIL));
+        assertEquals(1, comSuite.countTests(CtsTestStatus.FAIL));
+        assertEquals(0, exampleCase.countTests(CtsTestStatus.PASS));
+    }
+
+    /**
+     * Test that the test counts, which are kept up to date as tests change, match a full count
+     * of the tests after a random stream of test events, journaling and re-parsing.
+     */
+    public void testCountTests_randomEvents() throws Exception {
+        File journalDir = FileUtil.createTempDir("journal");
+        try {
+            TestResults results = new TestResults();
+            results.setJournal(new ResultJournal(journalDir));
+            Random random = new Random(42);
+            Map<String, String> emptyMap = Collections.emptyMap();
+            CtsTestStatus[] statuses = CtsTestStatus.values();
+            for (int i = 0; i < 3000; i++) {
+                String pkgId = "armeabi-v7a pkg" + random.nextInt(4);
+                TestIdentifier testId = new TestIdentifier(String.format("com.example%d.Test%d",
+                        random.nextInt(3), random.nextInt(4)), "test" + random.nextInt(5));
+                int event = random.nextInt(10);
+                if (event == 8) {
+                    results.finishPackage(pkgId);
+                } else if (event == 9) {
+                    TestPackageResult pkg = results.readPackage(pkgId);
+                    if (pkg != null && results.getPackages().contains(pkg)) {
+                        // replace the package with a parsed copy of itself
+                        results.parse(new StringReader(serialize(pkg)));
+                    }
+                } else {
+                    TestPackageResult pkg = results.getOrCreatePackage(pkgId);
+                    Test test = pkg.insertTest(testId);
+                    if (event == 5) {
+                        pkg.reportTestFailure(testId, CtsTestStatus.FAIL, "trace");
+                    } else if (event == 6) {
+                        pkg.reportTestEnded(testId, emptyMap);
+                    } else if (event == 7) {
+                        test.setResultStatus(statuses[random.nextInt(statuses.length)]);
+                    }
+                }
+                if (i % 100 == 0) {
+                    assertCountsMatch(results);
+                }
+            }
+            assertCountsMatch(results);
+        } finally {
+            FileUtil.recursiveDelete(journalDir);
+        }
+    }
+
+    /**
+     * Assert that the counts of the results and each of their packages match a full count.
+     */
+    private static void assertCountsMatch(TestResults results) {
+        for (CtsTestStatus status : CtsTestStatus.values()) {
+            int total = 0;
+            for (String id : results.getPackageIds()) {
+                TestPackageResult pkg = results.readPackage(id);
+                int count = pkg.getTestsWithStatus(status).size();
+                assertEquals(count, pkg.countTests(status));
+                total += count;
+            }
+            assertEquals(total, results.countTests(status));
+        }
+    }
+
+    private static String serialize(TestPackageResult pkg) throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        KXmlSerializer serializer = new KXmlSerializer();
+        serializer.setOutput(stream, "UTF-8");
+        serializer.startTag(CtsXmlResultReporter.ns, CtsXmlResultReporter.RESULT_TAG);
+        pkg.serialize(serializer);
+        serializer.endTag(CtsXmlResultReporter.ns, CtsXmlResultReporter.RESULT_TAG);
+        serializer.flush();
+        return stream.toString("UTF-8");
     }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.List;
+
+/**
+ * Unit tests for {@link TestSummaryFile}.
+ */
+public class TestSummaryFileTest extends TestCase {
+
+    private static final String RESULT_DATA =
+        "<TestResult testPlan=\"CTS\" starttime=\"start\">" +
+            "<Summary failed=\"1\" notExecuted=\"2\" pass=\"3\" timeout=\"4\"/>" +
+        "</TestResult>";
+
+    private File mResultsDir;
+    private File mSessionDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResultsDir = FileUtil.createTempDir("results");
+        mSessionDir = new File(mResultsDir, "2015.01.01_00.00.00");
+        assertTrue(mSessionDir.mkdir());
+        FileUtil.writeToFile(RESULT_DATA,
+                new File(mSessionDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mResultsDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a stored summary loads with the same values.
+     */
+    public void testWriteLoad() throws Exception {
+        TestSummaryXml xml = new TestSummaryXml(0, mSessionDir.getName());
+        xml.parse(new StringReader(RESULT_DATA));
+        TestSummaryFile.write(mSessionDir, xml);
+
+        TestSummaryFile summary = TestSummaryFile.load(3, mSessionDir);
+        assertNotNull(summary);
+        assertEquals(3, summary.getId());
+        assertEquals(mSessionDir.getName(), summary.getTimestamp());
+        assertEquals("CTS", summary.getTestPlan());
+        assertEquals("start", summary.getStartTime());
+        assertEquals(3, summary.getNumPassed());
+        assertEquals(5, summary.getNumFailed());
+        assertEquals(2, summary.getNumIncomplete());
+    }
+
+    /**
+     * Test that a summary is ignored once the result XML changes.
+     */
+    public void testLoad_stale() throws Exception {
+        TestSummaryXml xml = new TestSummaryXml(0, mSessionDir.getName());
+        xml.parse(new StringReader(RESULT_DATA));
+        TestSummaryFile.write(mSessionDir, xml);
+        FileUtil.writeToFile(RESULT_DATA + " ",
+                new File(mSessionDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME));
+        assertNull(TestSummaryFile.load(0, mSessionDir));
+    }
+
+    /**
+     * Test that {@link TestResultRepo} stores the summary of a session which has none, and uses
+     * it afterwards.
+     */
+    public void testResultRepo_backfill() throws Exception {
+        assertNull(TestSummaryFile.load(0, mSessionDir));
+        List<ITestSummary> summaries = new TestResultRepo(mResultsDir).getSummaries();
+        assertEquals(1, summaries.size());
+        assertTrue(summaries.get(0) instanceof TestSummaryXml);
+        assertNotNull(TestSummaryFile.load(0, mSessionDir));
+
+        summaries = new TestResultRepo(mResultsDir).getSummaries();
+        assertTrue(summaries.get(0) instanceof TestSummaryFile);
+        assertEquals(3, summaries.get(0).getNumPassed());
+    }
+}
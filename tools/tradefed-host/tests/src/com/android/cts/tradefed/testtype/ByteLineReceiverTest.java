@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ByteLineReceiver} and the parsers built on it.
+ */
+public class ByteLineReceiverTest extends TestCase {
+
+    private static final String GTEST_OUTPUT = "[==========] Running 2 tests from 1 test case.\r\n"
+            + "[----------] 2 tests from Math\r\n"
+            + "[ RUN      ] Math.Add\r\n"
+            + "[       OK ] Math.Add (3 ms)\r\n"
+            + "[ RUN      ] Math.Divide\r\n"
+            + "math_test.cpp:12: Failure\r\n"
+            + "Value of: 1 / 0 é\r\n"
+            + "[  FAILED  ] Math.Divide (12 ms)\r\n"
+            + "[----------] 2 tests from Math (15 ms total)\r\n"
+            + "[==========] 2 tests from 1 test case ran. (17 ms total)\r\n";
+
+    /** A receiver that records the lines it is given */
+    private static class LineCollector extends ByteLineReceiver {
+        final List<String> mLines = new ArrayList<String>();
+        boolean mDone = false;
+
+        @Override
+        protected void processLine(byte[] line, int start, int end) {
+            mLines.add(decode(line, start, end));
+        }
+
+        @Override
+        protected void done() {
+            mDone = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /** A listener that records the events it is given */
+    private static class EventCollector implements ITestRunListener {
+        final List<String> mEvents = new ArrayList<String>();
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            mEvents.add("runStarted " + runName + " " + testCount);
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            mEvents.add("started " + test);
+        }
+
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+            mEvents.add("failed " + test + " " + trace);
+        }
+
+        @Override
+        public void testAssumptionFailure(TestIdentifier test, String trace) {
+            mEvents.add("assumptionFailure " + test);
+        }
+
+        @Override
+        public void testIgnored(TestIdentifier test) {
+            mEvents.add("ignored " + test);
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            mEvents.add("ended " + test);
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            mEvents.add("runFailed " + errorMessage);
+        }
+
+        @Override
+        public void testRunStopped(long elapsedTime) {
+            mEvents.add("runStopped");
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            mEvents.add("runEnded " + elapsedTime);
+        }
+    }
+
+    /**
+     * Test that lines are split and trimmed like {@link com.android.ddmlib.MultiLineReceiver}
+     * does, whichever way the output is chunked.
+     */
+    public void testAddOutput() {
+        byte[] output = ByteLineReceiver.ascii("  one\r\ntwo\n\nthree \r\nfour");
+        List<String> expected = Arrays.asList("one", "two", "", "three", "four");
+        for (int chunkSize = 1; chunkSize <= output.length; chunkSize++) {
+            LineCollector collector = new LineCollector();
+            feed(collector, output, chunkSize);
+            assertFalse(collector.mDone);
+            collector.flush();
+            assertTrue(collector.mDone);
+            assertEquals("chunk size " + chunkSize, expected, collector.mLines);
+        }
+    }
+
+    /**
+     * Test the helpers matching ASCII within a range.
+     */
+    public void testHelpers() {
+        byte[] line = ByteLineReceiver.ascii("xx(12 ms) (34 ms)xx");
+        assertTrue(ByteLineReceiver.startsWith(line, 2, line.length,
+                ByteLineReceiver.ascii("(12")));
+        assertFalse(ByteLineReceiver.startsWith(line, 2, 4, ByteLineReceiver.ascii("(12")));
+        assertEquals(13, ByteLineReceiver.lastIndexOf(line, 0, line.length,
+                ByteLineReceiver.ascii(" ms)")));
+        assertEquals(5, ByteLineReceiver.lastIndexOf(line, 0, 12,
+                ByteLineReceiver.ascii(" ms)")));
+        assertEquals(34, ByteLineReceiver.parseNumber(line, 11, 13));
+        assertEquals(-1, ByteLineReceiver.parseNumber(line, 10, 13));
+        assertEquals(-1, ByteLineReceiver.parseNumber(line, 3, 3));
+        assertTrue(ByteLineReceiver.regionEquals(line, 3, 5, "12"));
+        assertFalse(ByteLineReceiver.regionEquals(line, 3, 5, "13"));
+    }
+
+    /**
+     * Test that {@link GeeTestResultParser} reports the same events whichever way its output is
+     * chunked, including a failure trace with non-ASCII characters.
+     */
+    public void testGeeTestResultParser_chunked() {
+        byte[] output = GTEST_OUTPUT.getBytes(ByteLineReceiver.UTF_8);
+        List<String> expected = Arrays.asList(
+                "runStarted run 2",
+                "started Math#Add",
+                "ended Math#Add",
+                "started Math#Divide",
+                "failed Math#Divide math_test.cpp:12: Failure\r\nValue of: 1 / 0 é",
+                "ended Math#Divide",
+                "runEnded 17");
+        for (int chunkSize : new int[] {1, 2, 7, 64, output.length}) {
+            EventCollector listener = new EventCollector();
+            GeeTestResultParser parser = new GeeTestResultParser("run", listener);
+            feed(parser, output, chunkSize);
+            parser.flush();
+            assertEquals("chunk size " + chunkSize, expected, listener.mEvents);
+        }
+
+        // the same output, split into lines beforehand
+        EventCollector listener = new EventCollector();
+        GeeTestResultParser parser = new GeeTestResultParser("run", listener);
+        parser.processNewLines(GTEST_OUTPUT.split("\r\n"));
+        parser.done();
+        assertEquals(expected, listener.mEvents);
+    }
+
+    /**
+     * Test that {@link WrappedGTestResultParser} strips the instrumentation status of output
+     * lines split across chunks.
+     */
+    public void testWrappedGTestResultParser_chunked() {
+        StringBuilder wrapped = new StringBuilder();
+        for (String line : GTEST_OUTPUT.split("\r\n")) {
+            wrapped.append("INSTRUMENTATION_STATUS: gtest=").append(line).append("\r\n");
+            wrapped.append("INSTRUMENTATION_STATUS_CODE: 1\r\n");
+        }
+        byte[] output = wrapped.toString().getBytes(ByteLineReceiver.UTF_8);
+        EventCollector listener = new EventCollector();
+        WrappedGTestResultParser parser = new WrappedGTestResultParser("run", listener);
+        feed(parser, output, 5);
+        parser.flush();
+        assertEquals(7, listener.mEvents.size());
+        assertEquals("runEnded 17", listener.mEvents.get(6));
+    }
+
+    private static void feed(ByteLineReceiver receiver, byte[] output, int chunkSize) {
+        // copy each chunk into a reused buffer, like the shell output reader does
+        byte[] buffer = new byte[chunkSize + 3];
+        for (int i = 0; i < output.length; i += chunkSize) {
+            int length = Math.min(chunkSize, output.length - i);
+            System.arraycopy(output, i, buffer, 3, length);
+            receiver.addOutput(buffer, 3, length);
+        }
+    }
+}
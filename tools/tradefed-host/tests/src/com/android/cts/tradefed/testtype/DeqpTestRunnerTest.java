@@ -23,6 +23,7 @@ import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.testtype.IAbi;
 
 import junit.framework.TestCase;
@@ -31,9 +32,18 @@ import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
 import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Unit tests for {@link DeqpTestRunner}.
@@ -596,4 +606,284 @@ public class DeqpTestRunnerTest extends TestCase {
     public void testRun_resultTimeout() throws Exception {
         testResultCode("Timeout", false);
     }
+
+    /**
+     * Test that the testcase trie groups the paths by their components, in the order given.
+     */
+    public void testGenerateTestCaseTrieFromPaths() {
+        List<String> paths = Arrays.asList("dEQP-GLES3.info.vendor",
+                "dEQP-GLES3.functional.prerequisite.state_reset",
+                "dEQP-GLES3.info.renderer",
+                "dEQP-GLES3.functional.color_clear.single_rgb");
+        assertEquals("{dEQP-GLES3{info{vendor,renderer},functional{prerequisite{state_reset},"
+                + "color_clear{single_rgb}}}}",
+                DeqpTestRunner.generateTestCaseTrieFromPaths(paths));
+    }
+
+    /**
+     * A fake {@link ITestDevice} that runs the test cases of the pushed case list files, and
+     * records the case lists run.
+     */
+    private static class FakeDeqpDevice implements InvocationHandler {
+        private static final Pattern CASE_LIST_PATTERN =
+                Pattern.compile("--deqp-caselist-file=(\\S+)");
+
+        private final Map<String, String> mFiles = new HashMap<>();
+        /** the order in which each file was last pushed */
+        private final Map<String, Integer> mPushOrder = new HashMap<>();
+        /** the test case paths of each instrumentation run */
+        private final List<List<String>> mRuns = new ArrayList<>();
+        /** the number of runs during which the case list of the next run was pushed */
+        private int mOverlappedPushes = 0;
+        private int mPushCount = 0;
+        /** the test case that crashes the instrumentation the first time it runs */
+        private String mCrashingTest = null;
+        /** the number of runs, from the first, that exit without running any test case */
+        private int mIdleRuns = 0;
+        /** the number of test cases still to run, as a next batch is only pushed if any */
+        private int mRemainingTests;
+
+        FakeDeqpDevice(int testCount) {
+            mRemainingTests = testCount;
+        }
+
+        ITestDevice getDevice() {
+            return (ITestDevice) Proxy.newProxyInstance(ITestDevice.class.getClassLoader(),
+                    new Class<?>[] {ITestDevice.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getSerialNumber")) {
+                return "fake";
+            } else if (name.equals("getProperty")) {
+                return Integer.toString(3 << 16);
+            } else if (name.equals("installPackage") || name.equals("uninstallPackage")) {
+                return null;
+            } else if (name.equals("pushString")) {
+                synchronized (this) {
+                    mFiles.put((String) args[1], (String) args[0]);
+                    mPushOrder.put((String) args[1], ++mPushCount);
+                    notifyAll();
+                }
+                return true;
+            } else if (name.equals("executeShellCommand") && args.length == 1) {
+                String cmd = (String) args[0];
+                if (cmd.startsWith("rm ")) {
+                    synchronized (this) {
+                        mFiles.remove(cmd.substring("rm ".length()));
+                    }
+                }
+                return "";
+            } else if (name.equals("executeShellCommand")) {
+                runInstrumentation((String) args[0], (IShellOutputReceiver) args[1]);
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        private void runInstrumentation(String cmd, IShellOutputReceiver receiver)
+                throws InterruptedException {
+            Matcher matcher = CASE_LIST_PATTERN.matcher(cmd);
+            assertTrue(matcher.find());
+            List<String> tests = new ArrayList<>();
+            synchronized (this) {
+                String caseList = mFiles.get(matcher.group(1));
+                assertNotNull("case list not pushed: " + matcher.group(1), caseList);
+                parseTrie(caseList.trim(), 0, "", tests);
+                mRuns.add(tests);
+                // the test cases of an idle run are counted as done, so no run waits for a next
+                // case list that is not coming; a retry only makes the count lower
+                mRemainingTests -= tests.size();
+                if (mIdleRuns > 0) {
+                    mIdleRuns--;
+                    return;
+                }
+                // give the runner time to push the next case list to another file, as a real
+                // run would
+                int pushOrder = mPushOrder.get(matcher.group(1));
+                long deadline = System.currentTimeMillis() + 5000;
+                while (mRemainingTests > 0 && mPushCount == pushOrder
+                        && System.currentTimeMillis() < deadline) {
+                    wait(deadline - System.currentTimeMillis());
+                }
+                if (mPushCount > pushOrder) {
+                    mOverlappedPushes++;
+                }
+            }
+            StringBuilder output = new StringBuilder();
+            output.append("INSTRUMENTATION_STATUS: dEQP-EventType=BeginSession\r\n"
+                    + "INSTRUMENTATION_STATUS_CODE: 0\r\n");
+            boolean crashed = false;
+            for (String test : tests) {
+                output.append("INSTRUMENTATION_STATUS: dEQP-EventType=BeginTestCase\r\n"
+                        + "INSTRUMENTATION_STATUS: dEQP-BeginTestCase-TestCasePath=" + test
+                        + "\r\n"
+                        + "INSTRUMENTATION_STATUS_CODE: 0\r\n");
+                if (test.equals(mCrashingTest)) {
+                    mCrashingTest = null;
+                    crashed = true;
+                    break;
+                }
+                output.append("INSTRUMENTATION_STATUS: dEQP-TestCaseResult-Code=Pass\r\n"
+                        + "INSTRUMENTATION_STATUS: dEQP-TestCaseResult-Details=Pass\r\n"
+                        + "INSTRUMENTATION_STATUS: dEQP-EventType=TestCaseResult\r\n"
+                        + "INSTRUMENTATION_STATUS_CODE: 0\r\n"
+                        + "INSTRUMENTATION_STATUS: dEQP-EventType=EndTestCase\r\n"
+                        + "INSTRUMENTATION_STATUS_CODE: 0\r\n");
+            }
+            if (!crashed) {
+                output.append("INSTRUMENTATION_STATUS: dEQP-EventType=EndSession\r\n"
+                        + "INSTRUMENTATION_STATUS_CODE: 0\r\n"
+                        + "INSTRUMENTATION_CODE: 0\r\n");
+            }
+            byte[] data = output.toString().getBytes();
+            receiver.addOutput(data, 0, data.length);
+            receiver.flush();
+        }
+
+        /**
+         * Parse the paths of a testcase trie, starting at the '{' at the given index.
+         *
+         * @return the index after the matching '}'
+         */
+        private static int parseTrie(String trie, int index, String prefix, List<String> paths) {
+            assertEquals('{', trie.charAt(index));
+            index++;
+            while (trie.charAt(index) != '}') {
+                int end = index;
+                while ("{},".indexOf(trie.charAt(end)) == -1) {
+                    end++;
+                }
+                String path = prefix + trie.substring(index, end);
+                if (trie.charAt(end) == '{') {
+                    end = parseTrie(trie, end, path + ".", paths);
+                } else {
+                    paths.add(path);
+                }
+                index = trie.charAt(end) == ',' ? end + 1 : end;
+            }
+            return index + 1;
+        }
+    }
+
+    /**
+     * Records the test cases started and failed.
+     */
+    private static class TestCaseRecorder extends ResultForwarder {
+        private final List<TestIdentifier> mStarted = new ArrayList<>();
+        private final List<TestIdentifier> mFailed = new ArrayList<>();
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            mStarted.add(test);
+        }
+
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+            mFailed.add(test);
+        }
+    }
+
+    private static List<TestIdentifier> createTestCases(int count) {
+        List<TestIdentifier> tests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tests.add(new TestIdentifier("dEQP-GLES3.functional.group" + (i / 100),
+                    "case" + i));
+        }
+        return tests;
+    }
+
+    private DeqpTestRunner createPipelinedRunner(Collection<TestIdentifier> tests,
+            FakeDeqpDevice fakeDevice) {
+        DeqpTestRunner deqpTest = new DeqpTestRunner(NAME, NAME, tests);
+        deqpTest.setAbi(UnitTests.ABI);
+        deqpTest.setPipelined(true);
+        deqpTest.setDevice(fakeDevice.getDevice());
+        deqpTest.setBuildHelper(new StubCtsBuildHelper());
+        return deqpTest;
+    }
+
+    /**
+     * Test that the case list of the next batch is pushed while the current batch runs, and
+     * that batches grow when test cases are quick.
+     */
+    public void testRun_pipelined() throws Exception {
+        List<TestIdentifier> testIds = createTestCases(2500);
+        FakeDeqpDevice fakeDevice = new FakeDeqpDevice(testIds.size());
+        TestCaseRecorder recorder = new TestCaseRecorder();
+        DeqpTestRunner deqpTest = createPipelinedRunner(new LinkedHashSet<>(testIds),
+                fakeDevice);
+        deqpTest.run(recorder);
+
+        assertEquals(testIds, recorder.mStarted);
+        assertTrue(recorder.mFailed.isEmpty());
+        // the first two batches are prepared before any time per test case is known
+        assertEquals(3, fakeDevice.mRuns.size());
+        assertEquals(1000, fakeDevice.mRuns.get(0).size());
+        assertEquals(1000, fakeDevice.mRuns.get(1).size());
+        assertEquals(500, fakeDevice.mRuns.get(2).size());
+        assertEquals(2, fakeDevice.mOverlappedPushes);
+        assertTrue(deqpTest.getBatchSize() > 1000);
+    }
+
+    /**
+     * Test that a batch that crashes is continued from the test case after the crashed one.
+     */
+    public void testRun_pipelinedCrash() throws Exception {
+        List<TestIdentifier> testIds = createTestCases(1500);
+        TestIdentifier crashingTest = testIds.get(600);
+        FakeDeqpDevice fakeDevice = new FakeDeqpDevice(testIds.size());
+        fakeDevice.mCrashingTest = crashingTest.getClassName() + "." +
+                crashingTest.getTestName();
+        TestCaseRecorder recorder = new TestCaseRecorder();
+        DeqpTestRunner deqpTest = createPipelinedRunner(new LinkedHashSet<>(testIds),
+                fakeDevice);
+        deqpTest.run(recorder);
+
+        assertEquals(testIds, recorder.mStarted);
+        assertEquals(Arrays.asList(crashingTest), recorder.mFailed);
+        List<String> restartedRun = fakeDevice.mRuns.get(1);
+        assertEquals("dEQP-GLES3.functional.group6.case601", restartedRun.get(0));
+        assertEquals(899, restartedRun.size());
+    }
+
+    /**
+     * Test that a batch that does not run any test case is retried once.
+     */
+    public void testRun_pipelinedIdleRetried() throws Exception {
+        List<TestIdentifier> testIds = createTestCases(500);
+        FakeDeqpDevice fakeDevice = new FakeDeqpDevice(testIds.size());
+        fakeDevice.mIdleRuns = 1;
+        TestCaseRecorder recorder = new TestCaseRecorder();
+        DeqpTestRunner deqpTest = createPipelinedRunner(new LinkedHashSet<>(testIds),
+                fakeDevice);
+        deqpTest.run(recorder);
+
+        assertEquals(testIds, recorder.mStarted);
+        assertTrue(recorder.mFailed.isEmpty());
+        assertEquals(2, fakeDevice.mRuns.size());
+        assertEquals(fakeDevice.mRuns.get(0), fakeDevice.mRuns.get(1));
+    }
+
+    /**
+     * Test that the test cases of a batch that does not run any test case twice are reported as
+     * failed, and that the next batches still run.
+     */
+    public void testRun_pipelinedIdle() throws Exception {
+        List<TestIdentifier> testIds = createTestCases(2500);
+        FakeDeqpDevice fakeDevice = new FakeDeqpDevice(testIds.size());
+        fakeDevice.mIdleRuns = 2;
+        TestCaseRecorder recorder = new TestCaseRecorder();
+        Collection<TestIdentifier> tests = new ArrayList<>(testIds);
+        DeqpTestRunner deqpTest = createPipelinedRunner(tests, fakeDevice);
+        deqpTest.run(recorder);
+
+        assertEquals(testIds, recorder.mStarted);
+        assertEquals(testIds.subList(0, 1000), recorder.mFailed);
+        assertEquals(fakeDevice.mRuns.get(0), fakeDevice.mRuns.get(1));
+        assertEquals("dEQP-GLES3.functional.group10.case1000", fakeDevice.mRuns.get(2).get(0));
+        assertTrue(tests.isEmpty());
+    }
 }
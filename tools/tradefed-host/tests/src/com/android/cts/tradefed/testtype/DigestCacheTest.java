@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Unit tests for {@link DigestCache}.
+ */
+public class DigestCacheTest extends TestCase {
+
+    private static final String DATA_DIGEST = "58c222b5f5f81b4b58891ec59924b9b2f530452e";
+
+    private File mTestCaseDir;
+    private File mTestFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestCaseDir = FileUtil.createTempDir("testcases");
+        mTestFile = new File(mTestCaseDir, "foo.apk");
+        FileUtil.writeToFile("test data for digest", mTestFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTestCaseDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test {@link DigestCache#toHexString(byte[])}.
+     */
+    public void testToHexString() {
+        assertEquals("00017f80ff", DigestCache.toHexString(
+                new byte[] {0x00, 0x01, 0x7f, (byte) 0x80, (byte) 0xff}));
+    }
+
+    /**
+     * Test that digests are written to the index, and read back by a new cache.
+     */
+    public void testGetDigest_persisted() throws Exception {
+        File indexFile = new File(mTestCaseDir, DigestCache.INDEX_FILE_NAME);
+        assertEquals(DATA_DIGEST, new DigestCache(indexFile).getDigest(mTestFile).get());
+        assertTrue(indexFile.exists());
+        String index = FileUtil.readStringFromFile(indexFile);
+        assertTrue(index.startsWith(DATA_DIGEST));
+
+        // a bogus digest in the index proves the second cache does not hash the file again
+        FileUtil.writeToFile(index.replace(DATA_DIGEST, "cached"), indexFile);
+        assertEquals("cached", new DigestCache(indexFile).getDigest(mTestFile).get());
+    }
+
+    /**
+     * Test that a modified file is hashed again.
+     */
+    public void testGetDigest_modified() throws Exception {
+        File indexFile = new File(mTestCaseDir, DigestCache.INDEX_FILE_NAME);
+        assertEquals(DATA_DIGEST, new DigestCache(indexFile).getDigest(mTestFile).get());
+        FileUtil.writeToFile("other data", mTestFile);
+        assertFalse(DATA_DIGEST.equals(new DigestCache(indexFile).getDigest(mTestFile).get()));
+    }
+
+    /**
+     * Test that a missing file reports a failed digest.
+     */
+    public void testGetDigest_missing() throws Exception {
+        File indexFile = new File(mTestCaseDir, DigestCache.INDEX_FILE_NAME);
+        assertEquals(DigestCache.FAILED_DIGEST, new DigestCache(indexFile).getDigest(
+                new File(mTestCaseDir, "missing.apk")).get());
+    }
+}
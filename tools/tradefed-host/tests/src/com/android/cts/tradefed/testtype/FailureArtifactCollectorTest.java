@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.ResultForwarder;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link FailureArtifactCollector}.
+ */
+public class FailureArtifactCollectorTest extends TestCase {
+
+    private static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    /** the names of the logs forwarded to the listener */
+    private List<String> mLogNames = new ArrayList<String>();
+    /** the sizes of the logs forwarded to the listener */
+    private List<Integer> mLogSizes = new ArrayList<Integer>();
+    /** the threads the logs were forwarded on */
+    private List<Thread> mLogThreads = new ArrayList<Thread>();
+    /** released to let captures complete */
+    private CountDownLatch mCaptureLatch = new CountDownLatch(0);
+    private byte[] mCaptureData = "data".getBytes();
+
+    private ResultForwarder mListener = new ResultForwarder() {
+        @Override
+        public void testLog(String dataName, LogDataType dataType, InputStreamSource source) {
+            mLogNames.add(dataName);
+            mLogThreads.add(Thread.currentThread());
+            try {
+                mLogSizes.add(StreamUtil.getStringFromStream(source.createInputStream())
+                        .length());
+            } catch (IOException e) {
+                fail(e.toString());
+            }
+        }
+    };
+
+    private FailureArtifactCollector createCollector(int maxQueuedCaptures, long maxBytes) {
+        return new FailureArtifactCollector(mListener, null, maxQueuedCaptures, maxBytes) {
+            @Override
+            InputStreamSource captureBugreport() {
+                return capture();
+            }
+
+            @Override
+            InputStreamSource captureScreenshot() {
+                return capture();
+            }
+
+            @Override
+            InputStreamSource captureLogcat(int maxBytes) {
+                return capture();
+            }
+        };
+    }
+
+    private InputStreamSource capture() {
+        try {
+            mCaptureLatch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+        return new ByteArrayInputStreamSource(mCaptureData);
+    }
+
+    private void runFailedTest(FailureArtifactCollector collector, String name) {
+        TestIdentifier test = new TestIdentifier("com.example.ExampleTest", name);
+        collector.testStarted(test);
+        collector.testFailed(test, "trace");
+        collector.testEnded(test, EMPTY_MAP);
+    }
+
+    /**
+     * Test that failures are captured without waiting for the capture, and that the artifacts
+     * are forwarded on the thread reporting test results.
+     */
+    public void testCapture_async() throws Exception {
+        mCaptureLatch = new CountDownLatch(1);
+        FailureArtifactCollector collector = createCollector(10, Long.MAX_VALUE);
+        collector.setBugreport(0);
+        collector.setScreenshot();
+        collector.setLogcat(100);
+        collector.testRunStarted("run", 1);
+        runFailedTest(collector, "testFail");
+        collector.testRunEnded(0, EMPTY_MAP);
+        assertTrue(mLogNames.isEmpty());
+
+        mCaptureLatch.countDown();
+        collector.finish();
+        assertEquals(3, mLogNames.size());
+        assertTrue(mLogNames.contains("bug-com.example.ExampleTest_testFail"));
+        assertTrue(mLogNames.contains("screenshot-com.example.ExampleTest_testFail"));
+        assertTrue(mLogNames.contains("logcat-com.example.ExampleTest_testFail"));
+        for (Thread thread : mLogThreads) {
+            assertSame(Thread.currentThread(), thread);
+        }
+    }
+
+    /**
+     * Test that one bugreport is taken for a burst of failures within the window.
+     */
+    public void testBugreport_coalesced() throws Exception {
+        FailureArtifactCollector collector = createCollector(10, Long.MAX_VALUE);
+        collector.setBugreport(60 * 1000);
+        runFailedTest(collector, "testFail1");
+        runFailedTest(collector, "testFail2");
+        runFailedTest(collector, "testFail3");
+        collector.finish();
+        assertEquals(1, mLogNames.size());
+        assertEquals("bug-com.example.ExampleTest_testFail1", mLogNames.get(0));
+    }
+
+    /**
+     * Test that failures are not captured while the capture queue is full.
+     */
+    public void testCapture_queueFull() throws Exception {
+        mCaptureLatch = new CountDownLatch(1);
+        FailureArtifactCollector collector = createCollector(1, Long.MAX_VALUE);
+        collector.setBugreport(0);
+        // the first capture runs right away and blocks, so the second fills the queue
+        runFailedTest(collector, "testFail1");
+        runFailedTest(collector, "testFail2");
+        runFailedTest(collector, "testFail3");
+        mCaptureLatch.countDown();
+        collector.finish();
+        assertEquals(2, mLogNames.size());
+        assertEquals("bug-com.example.ExampleTest_testFail1", mLogNames.get(0));
+        assertEquals("bug-com.example.ExampleTest_testFail2", mLogNames.get(1));
+    }
+
+    /**
+     * Test that captures stop once the byte budget is used up, truncating the last one.
+     */
+    public void testCapture_byteBudget() throws Exception {
+        mCaptureData = "12345678".getBytes();
+        FailureArtifactCollector collector = createCollector(10, 10);
+        collector.setLogcat(100);
+        runFailedTest(collector, "testFail1");
+        collector.waitForCaptures();
+        runFailedTest(collector, "testFail2");
+        collector.waitForCaptures();
+        runFailedTest(collector, "testFail3");
+        collector.finish();
+        assertEquals(2, mLogNames.size());
+        assertEquals(Integer.valueOf(8), mLogSizes.get(0));
+        assertEquals(Integer.valueOf(2), mLogSizes.get(1));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.device.ITestDevice;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A fake {@link ITestDevice} that simulates installing and uninstalling packages, for unit tests
+ * and benchmarks of {@link PrerequisiteApkInstaller}.
+ * <p/>
+ * The package name of an APK is its file name without extension. Each call to the device takes
+ * {@link #setTiming(long, long, long) a round trip}, copying an APK takes a transfer time that
+ * overlaps with other calls, and installing or uninstalling a package takes a package manager time
+ * that does not, since the package manager handles one request at a time.
+ */
+class FakeTestDevice implements InvocationHandler {
+
+    private static final Pattern PM_PATH_PATTERN = Pattern.compile("pm path ([\\w.]+)");
+    private static final Pattern PM_UNINSTALL_PATTERN = Pattern.compile("pm uninstall ([\\w.]+)");
+
+    /** installed package names, mapped to the digest and ABI they were installed with */
+    private final Map<String, String[]> mInstalled = new HashMap<>();
+    private final Object mPackageManagerLock = new Object();
+    private final AtomicInteger mInstallCount = new AtomicInteger();
+    private final AtomicInteger mCallCount = new AtomicInteger();
+    private final AtomicInteger mConcurrentCalls = new AtomicInteger();
+    private final AtomicInteger mMaxConcurrentCalls = new AtomicInteger();
+    private long mRoundTripMs = 0;
+    private long mTransferMs = 0;
+    private long mPackageManagerMs = 0;
+
+    /**
+     * @return the {@link ITestDevice} backed by this fake
+     */
+    ITestDevice getDevice() {
+        return (ITestDevice) Proxy.newProxyInstance(ITestDevice.class.getClassLoader(),
+                new Class<?>[] {ITestDevice.class}, this);
+    }
+
+    /**
+     * Set the simulated time of device operations.
+     *
+     * @param roundTripMs the time of each call to the device
+     * @param transferMs the time to copy an APK to the device
+     * @param packageManagerMs the time for the package manager to install or uninstall a package
+     */
+    void setTiming(long roundTripMs, long transferMs, long packageManagerMs) {
+        mRoundTripMs = roundTripMs;
+        mTransferMs = transferMs;
+        mPackageManagerMs = packageManagerMs;
+    }
+
+    /**
+     * @return the number of packages installed so far
+     */
+    int getInstallCount() {
+        return mInstallCount.get();
+    }
+
+    /**
+     * @return the number of calls made to the device so far
+     */
+    int getCallCount() {
+        return mCallCount.get();
+    }
+
+    /**
+     * @return the max number of calls that were made to the device concurrently
+     */
+    int getMaxConcurrentCalls() {
+        return mMaxConcurrentCalls.get();
+    }
+
+    /**
+     * @return <code>true</code> if the given package is installed
+     */
+    synchronized boolean isInstalled(String packageName) {
+        return mInstalled.containsKey(packageName);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("getSerialNumber")) {
+            return "fake";
+        }
+        mCallCount.incrementAndGet();
+        int concurrent = mConcurrentCalls.incrementAndGet();
+        synchronized (mMaxConcurrentCalls) {
+            mMaxConcurrentCalls.set(Math.max(concurrent, mMaxConcurrentCalls.get()));
+        }
+        try {
+            sleep(mRoundTripMs);
+            if (name.equals("installPackage")) {
+                return installPackage((File) args[0], (String[]) args[2]);
+            } else if (name.equals("uninstallPackage")) {
+                return uninstallPackage((String) args[0]) ? null : "DELETE_FAILED";
+            } else if (name.equals("executeShellCommand") && args.length == 1) {
+                return executeShellCommand((String) args[0]);
+            }
+            throw new UnsupportedOperationException(name);
+        } finally {
+            mConcurrentCalls.decrementAndGet();
+        }
+    }
+
+    private String installPackage(File apkFile, String[] options) throws Exception {
+        sleep(mTransferMs);
+        String digest = DigestCache.computeDigest(apkFile);
+        String abi = options[0].substring(options[0].indexOf(" ") + 1).trim();
+        synchronized (mPackageManagerLock) {
+            sleep(mPackageManagerMs);
+            synchronized (this) {
+                mInstalled.put(getPackageName(apkFile), new String[] {digest, abi});
+            }
+        }
+        mInstallCount.incrementAndGet();
+        return null;
+    }
+
+    private boolean uninstallPackage(String packageName) {
+        synchronized (mPackageManagerLock) {
+            sleep(mPackageManagerMs);
+            synchronized (this) {
+                return mInstalled.remove(packageName) != null;
+            }
+        }
+    }
+
+    private String executeShellCommand(String cmd) {
+        Matcher pathMatcher = PM_PATH_PATTERN.matcher(cmd);
+        if (pathMatcher.find()) {
+            String packageName = pathMatcher.group(1);
+            String[] installed;
+            synchronized (this) {
+                installed = mInstalled.get(packageName);
+            }
+            if (installed == null) {
+                return "";
+            }
+            return String.format("%s  /data/app/%s-1/base.apk\n    primaryCpuAbi=%s\n",
+                    installed[0], packageName, installed[1]);
+        }
+        StringBuilder output = new StringBuilder();
+        Matcher uninstallMatcher = PM_UNINSTALL_PATTERN.matcher(cmd);
+        while (uninstallMatcher.find()) {
+            output.append(uninstallPackage(uninstallMatcher.group(1)) ? "Success\n" :
+                    "Failure [DELETE_FAILED_INTERNAL_ERROR]\n");
+        }
+        return output.toString();
+    }
+
+    private static String getPackageName(File apkFile) {
+        String name = apkFile.getName();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    private static void sleep(long ms) {
+        if (ms > 0) {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
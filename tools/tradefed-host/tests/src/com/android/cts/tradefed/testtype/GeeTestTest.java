@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.FolderBuildInfo;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.ResultForwarder;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Unit tests for {@link GeeTest}.
+ */
+public class GeeTestTest extends TestCase {
+
+    private static final String PACKAGE_NAME = "android.nativetest";
+    private static final String EXE_NAME = "NativeTests";
+    /** the tests of the fake executable, in the order they are defined in */
+    private static final String[] TESTS = {"Math.Add", "Math.Subtract", "Math.Multiply",
+            "Math.Divide", "String.Concat", "String.Split", "String.Trim"};
+    private static final String FAILED_TEST = "Math.Divide";
+    private static final Pattern SHARD_PATTERN = Pattern.compile(
+            "GTEST_TOTAL_SHARDS=(\\d+) GTEST_SHARD_INDEX=(\\d+) ");
+
+    private File mRootDir;
+    private File mExeFile;
+    private FakeDevice mFakeDevice;
+    private GeeTest mGeeTest;
+
+    /**
+     * A fake {@link ITestDevice} that replays the gtest output of {@link #TESTS} for each shard
+     * of the executable, and keeps track of the files pushed to it.
+     */
+    private static class FakeDevice implements InvocationHandler {
+        private final Map<String, String> mPushedDigests = new HashMap<>();
+        private final AtomicInteger mPushCount = new AtomicInteger();
+        private final AtomicInteger mRunningTests = new AtomicInteger();
+        private final AtomicInteger mMaxRunningTests = new AtomicInteger();
+        private long mTestTimeMs = 0;
+        /** the shard that loses the device half way through its tests, or -1 */
+        private int mFailingShard = -1;
+
+        ITestDevice getDevice() {
+            return (ITestDevice) Proxy.newProxyInstance(ITestDevice.class.getClassLoader(),
+                    new Class<?>[] {ITestDevice.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getSerialNumber")) {
+                return "fake";
+            } else if (name.equals("doesFileExist")) {
+                return true;
+            } else if (name.equals("pushFile")) {
+                mPushCount.incrementAndGet();
+                synchronized (mPushedDigests) {
+                    mPushedDigests.put((String) args[1],
+                            DigestCache.computeDigest((File) args[0]));
+                }
+                return true;
+            } else if (name.equals("executeShellCommand") && args.length == 1) {
+                String cmd = (String) args[0];
+                if (cmd.startsWith("sha1sum ")) {
+                    String path = cmd.substring("sha1sum ".length());
+                    synchronized (mPushedDigests) {
+                        String digest = mPushedDigests.get(path);
+                        return digest == null ? "sha1sum: " + path + ": No such file or directory"
+                                : digest + "  " + path;
+                    }
+                }
+                return "";
+            } else if (name.equals("executeShellCommand")) {
+                runTests((String) args[0], (IShellOutputReceiver) args[1]);
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        private void runTests(String cmd, IShellOutputReceiver receiver)
+                throws DeviceNotAvailableException {
+            int totalShards = 1;
+            int shardIndex = 0;
+            Matcher matcher = SHARD_PATTERN.matcher(cmd);
+            if (matcher.find()) {
+                totalShards = Integer.parseInt(matcher.group(1));
+                shardIndex = Integer.parseInt(matcher.group(2));
+            }
+            List<String> tests = new ArrayList<>();
+            for (int i = shardIndex; i < TESTS.length; i += totalShards) {
+                tests.add(TESTS[i]);
+            }
+            int running = mRunningTests.incrementAndGet();
+            synchronized (mMaxRunningTests) {
+                mMaxRunningTests.set(Math.max(running, mMaxRunningTests.get()));
+            }
+            try {
+                output(receiver, String.format(
+                        "[==========] Running %d tests from 2 test cases.\n", tests.size()));
+                for (int i = 0; i < tests.size(); i++) {
+                    String test = tests.get(i);
+                    output(receiver, String.format("[ RUN      ] %s\n", test));
+                    if (shardIndex == mFailingShard && i == tests.size() / 2) {
+                        throw new DeviceNotAvailableException("device went away");
+                    }
+                    sleep(mTestTimeMs);
+                    if (test.equals(FAILED_TEST)) {
+                        output(receiver, String.format(
+                                "math_test.cpp:42: Failure\n[  FAILED  ] %s (1 ms)\n", test));
+                    } else {
+                        output(receiver, String.format("[       OK ] %s (1 ms)\n", test));
+                    }
+                }
+                output(receiver, String.format(
+                        "[==========] %d tests from 2 test cases ran. (%d ms total)\n",
+                        tests.size(), tests.size()));
+                receiver.flush();
+            } finally {
+                mRunningTests.decrementAndGet();
+            }
+        }
+
+        private static void output(IShellOutputReceiver receiver, String output) {
+            byte[] data = output.getBytes();
+            receiver.addOutput(data, 0, data.length);
+        }
+
+        private static void sleep(long ms) {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Records the test events reported to it.
+     */
+    private static class RecordingListener implements ITestRunListener {
+        final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            mEvents.add(String.format("runStarted %s %d", runName, testCount));
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            mEvents.add("started " + test);
+        }
+
+        @Override
+        public void testFailed(TestIdentifier test, String trace) {
+            mEvents.add("failed " + test);
+        }
+
+        @Override
+        public void testAssumptionFailure(TestIdentifier test, String trace) {
+            mEvents.add("assumptionFailure " + test);
+        }
+
+        @Override
+        public void testIgnored(TestIdentifier test) {
+            mEvents.add("ignored " + test);
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            mEvents.add("ended " + test);
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            mEvents.add("runFailed");
+        }
+
+        @Override
+        public void testRunStopped(long elapsedTime) {
+            mEvents.add("runStopped");
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            mEvents.add("runEnded");
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRootDir = FileUtil.createTempDir("geetest");
+        File testCasesDir = new File(new File(new File(mRootDir, "android-cts"), "repository"),
+                "testcases");
+        testCasesDir.mkdirs();
+        new File(testCasesDir.getParentFile(), "plans").mkdirs();
+        mExeFile = new File(testCasesDir, EXE_NAME + "32");
+        FileUtil.writeToFile("native test", mExeFile);
+        FolderBuildInfo build = new FolderBuildInfo("0", "cts", "cts");
+        build.setRootDir(mRootDir);
+
+        mFakeDevice = new FakeDevice();
+        mGeeTest = new GeeTest(PACKAGE_NAME, EXE_NAME);
+        mGeeTest.setAbi(new Abi("armeabi-v7a", "32"));
+        mGeeTest.setBuild(build);
+        mGeeTest.setDevice(mFakeDevice.getDevice());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DigestCache.clearInstances();
+        FileUtil.recursiveDelete(mRootDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that running in shards reports the same tests in one test run as running in a single
+     * instance, with the events of each test in order.
+     */
+    public void testRun_sharded() throws Exception {
+        RecordingListener serialListener = new RecordingListener();
+        mGeeTest.runTest(serialListener);
+        assertEquals(String.format("runStarted %s %d", PACKAGE_NAME, TESTS.length),
+                serialListener.mEvents.get(0));
+
+        mGeeTest.setNumShards(3);
+        RecordingListener shardedListener = new RecordingListener();
+        mGeeTest.runShardedTest(shardedListener);
+        List<String> events = shardedListener.mEvents;
+        assertEquals(serialListener.mEvents.get(0), events.get(0));
+        assertEquals("runEnded", events.get(events.size() - 1));
+        List<String> sortedSerialEvents = new ArrayList<>(serialListener.mEvents);
+        Collections.sort(sortedSerialEvents);
+        List<String> sortedEvents = new ArrayList<>(events);
+        Collections.sort(sortedEvents);
+        assertEquals(sortedSerialEvents, sortedEvents);
+        for (String test : TESTS) {
+            String id = PACKAGE_NAME + "." + test.replace('.', '#');
+            int started = events.indexOf("started " + id);
+            assertTrue(id, started > 0);
+            assertTrue(id, events.indexOf("ended " + id) > started);
+        }
+    }
+
+    /**
+     * Test that the tests of the shards are reported while the shards run, not once they are
+     * all done.
+     */
+    public void testRun_live() throws Exception {
+        mFakeDevice.mTestTimeMs = 50;
+        mGeeTest.setNumShards(3);
+        final AtomicInteger endedWhileRunning = new AtomicInteger();
+        mGeeTest.runShardedTest(new RecordingListener() {
+            @Override
+            public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+                super.testEnded(test, testMetrics);
+                if (mFakeDevice.mRunningTests.get() > 0) {
+                    endedWhileRunning.incrementAndGet();
+                }
+            }
+        });
+        assertTrue(endedWhileRunning.get() > 0);
+    }
+
+    /**
+     * Test that the shards run concurrently.
+     */
+    public void testRun_concurrent() throws Exception {
+        mFakeDevice.mTestTimeMs = 50;
+        mGeeTest.setNumShards(3);
+        mGeeTest.runShardedTest(new RecordingListener());
+        assertEquals(3, mFakeDevice.mMaxRunningTests.get());
+    }
+
+    /**
+     * Test that the results of all shards are reported when one of them loses the device.
+     */
+    public void testRun_shardDeviceNotAvailable() throws Exception {
+        mFakeDevice.mFailingShard = 1;
+        mGeeTest.setNumShards(2);
+        RecordingListener listener = new RecordingListener();
+        try {
+            mGeeTest.runShardedTest(listener);
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            // expected
+        }
+        // shard 0 ran all of its 4 tests, shard 1 lost the device in its second test of 3
+        assertEquals("runStarted " + PACKAGE_NAME + " 7", listener.mEvents.get(0));
+        assertTrue(listener.mEvents.contains("ended " + PACKAGE_NAME + ".String#Trim"));
+        assertTrue(listener.mEvents.contains("ended " + PACKAGE_NAME + ".String#Concat"));
+        assertFalse(listener.mEvents.contains("started " + PACKAGE_NAME + ".String#Split"));
+        assertTrue(listener.mEvents.contains("runFailed"));
+        assertEquals("runEnded", listener.mEvents.get(listener.mEvents.size() - 1));
+    }
+
+    /**
+     * Test that the executable is only pushed when the device does not have the same file.
+     */
+    public void testRun_skipPush() throws Exception {
+        mGeeTest.run(new ResultForwarder());
+        assertEquals(1, mFakeDevice.mPushCount.get());
+        mGeeTest.run(new ResultForwarder());
+        assertEquals(1, mFakeDevice.mPushCount.get());
+
+        FileUtil.writeToFile("new native test", mExeFile);
+        mGeeTest.run(new ResultForwarder());
+        assertEquals(2, mFakeDevice.mPushCount.get());
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Unit tests for {@link HealthRebootPolicy} and {@link DeviceHealth}, replaying recorded traces
+ * of device health samples.
+ */
+public class HealthRebootPolicyTest extends TestCase {
+
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    /** the output of {@link DeviceHealth#SAMPLE_CMD} on a freshly booted device */
+    private static final String HEALTHY = "1.52 1.80 1.95 2/1043 5874\n" +
+            "MemFree:          812344 kB\n" +
+            "MemAvailable:    1402232 kB\n" +
+            "Cached:           530108 kB\n" +
+            "  mCurrentFocus=Window{3f1e0b7 u0 com.android.launcher3/" +
+            "com.android.launcher3.Launcher}\n";
+    private static final String CRASH_DIALOG = "2.10 2.31 2.02 1/1101 6012\n" +
+            "MemFree:          702344 kB\n" +
+            "MemAvailable:    1302232 kB\n" +
+            "Cached:           530108 kB\n" +
+            "  mCurrentFocus=Window{1a2b3c u0 Application Error: android.media.cts}\n";
+    private static final String NO_FOCUS = "1.02 1.31 1.50 1/1011 6100\n" +
+            "MemFree:          802344 kB\n" +
+            "MemAvailable:    1392232 kB\n" +
+            "Cached:           530108 kB\n" +
+            "  mCurrentFocus=null\n";
+    private static final String LOW_MEMORY = "3.02 2.31 2.50 1/1011 6200\n" +
+            "MemFree:           92344 kB\n" +
+            "MemAvailable:     402232 kB\n" +
+            "Cached:           300108 kB\n" +
+            "  mCurrentFocus=Window{3f1e0b7 u0 com.android.launcher3/" +
+            "com.android.launcher3.Launcher}\n";
+    /** a kernel without MemAvailable */
+    private static final String OLD_KERNEL = "15.40 9.31 5.50 9/1011 6300\n" +
+            "MemFree:          200000 kB\n" +
+            "Cached:           300000 kB\n";
+
+    private File mTmpDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("reboot-history");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test parsing recorded health samples.
+     */
+    public void testParse() {
+        DeviceHealth health = DeviceHealth.parse(HEALTHY);
+        assertEquals(1.52, health.getLoadAverage(), 0.001);
+        assertEquals(1402232, health.getAvailableMemoryKb());
+        assertFalse(health.hasErrorDialog());
+        assertFalse(health.hasLostFocus());
+
+        assertTrue(DeviceHealth.parse(CRASH_DIALOG).hasErrorDialog());
+        assertTrue(DeviceHealth.parse(NO_FOCUS).hasLostFocus());
+
+        health = DeviceHealth.parse(OLD_KERNEL);
+        assertEquals(500000, health.getAvailableMemoryKb());
+        // the focus is unknown, which is not a lost focus
+        assertFalse(health.hasLostFocus());
+
+        health = DeviceHealth.parse(null);
+        assertTrue(health.getLoadAverage() < 0);
+        assertTrue(health.getAvailableMemoryKb() < 0);
+        assertFalse(health.hasErrorDialog());
+    }
+
+    /**
+     * Test that a healthy device is not rebooted until the max interval elapses.
+     */
+    public void testHealthy() {
+        HealthRebootPolicy policy = createPolicy(null);
+        String[] trace = {"CtsA", HEALTHY, "CtsB", HEALTHY, "CtsC", HEALTHY};
+        assertEquals("---", replay(policy, trace, 0));
+        assertNotNull(policy.getRebootReason("CtsD", "CtsE", DeviceHealth.parse(HEALTHY),
+                5 * HOUR_MS));
+    }
+
+    /**
+     * Test replaying a trace in which packages leave the device degraded in different ways.
+     */
+    public void testDegraded() {
+        HealthRebootPolicy policy = createPolicy(null);
+        String[] trace = {
+            "CtsMediaTestCases", CRASH_DIALOG,
+            "CtsA", HEALTHY,
+            "CtsB", NO_FOCUS,
+            "CtsC", NO_FOCUS,
+            "CtsD", LOW_MEMORY,
+            "CtsE", OLD_KERNEL};
+        assertEquals("R--RRR", replay(policy, trace, 0));
+    }
+
+    /**
+     * Test that a single sample without focus does not reboot the device, since the focus is
+     * briefly lost while activities switch.
+     */
+    public void testLostFocus_transient() {
+        HealthRebootPolicy policy = createPolicy(null);
+        String[] trace = {
+            "CtsA", NO_FOCUS,
+            "CtsB", HEALTHY,
+            "CtsC", NO_FOCUS,
+            "CtsD", HEALTHY};
+        assertEquals("----", replay(policy, trace, 0));
+    }
+
+    /**
+     * Test that packages which usually leave the device degraded are learned, carried over to
+     * the next run, and rebooted after even if the signals look fine.
+     */
+    public void testLearnedDegradation() {
+        File historyFile = new File(mTmpDir, "history.properties");
+        HealthRebootPolicy policy = createPolicy(historyFile);
+        String[] trace = {
+            "CtsMediaTestCases", CRASH_DIALOG,
+            "CtsA", HEALTHY,
+            "CtsMediaTestCases", LOW_MEMORY,
+            "CtsA", HEALTHY};
+        assertEquals("R-R-", replay(policy, trace, 0));
+        assertTrue(policy.isKnownToDegrade("CtsMediaTestCases"));
+        assertFalse(policy.isKnownToDegrade("CtsA"));
+        policy.finish();
+
+        policy = createPolicy(historyFile);
+        assertEquals("R-", replay(policy, new String[] {
+            "CtsMediaTestCases", HEALTHY,
+            "CtsA", HEALTHY}, 0));
+    }
+
+    /**
+     * Test that shards sharing the history file add up their runs instead of overwriting the
+     * runs of each other.
+     */
+    public void testHistory_shards() {
+        File historyFile = new File(mTmpDir, "history.properties");
+        HealthRebootPolicy shard1 = createPolicy(historyFile);
+        HealthRebootPolicy shard2 = createPolicy(historyFile);
+        replay(shard1, new String[] {"CtsMediaTestCases", CRASH_DIALOG}, 0);
+        replay(shard2, new String[] {"CtsMediaTestCases", CRASH_DIALOG}, 0);
+        shard1.finish();
+        shard2.finish();
+        // neither shard has enough runs on its own
+        assertFalse(shard1.isKnownToDegrade("CtsMediaTestCases"));
+        assertTrue(createPolicy(historyFile).isKnownToDegrade("CtsMediaTestCases"));
+    }
+
+    private HealthRebootPolicy createPolicy(File historyFile) {
+        HealthRebootPolicy policy = new HealthRebootPolicy(historyFile, 4 * HOUR_MS, 0.5, 12.0);
+        policy.deviceRebooted(DeviceHealth.parse(HEALTHY), 0);
+        return policy;
+    }
+
+    /**
+     * Replay a trace of finished packages and the health samples taken after them.
+     *
+     * @return the decisions, 'R' for a reboot and '-' for none
+     */
+    private String replay(HealthRebootPolicy policy, String[] trace, long timeMs) {
+        StringBuilder decisions = new StringBuilder();
+        for (int i = 0; i < trace.length; i += 2) {
+            String reason = policy.getRebootReason(trace[i], "CtsNext",
+                    DeviceHealth.parse(trace[i + 1]), timeMs);
+            if (reason != null) {
+                decisions.append('R');
+                policy.deviceRebooted(DeviceHealth.parse(HEALTHY), timeMs);
+            } else {
+                decisions.append('-');
+            }
+        }
+        return decisions.toString();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link PackageSlicer}.
+ */
+public class PackageSlicerTest extends TestCase {
+
+    /**
+     * Test {@link PackageSlicer#getSliceCount(int, int, int)}.
+     */
+    public void testGetSliceCount() {
+        assertEquals(1, PackageSlicer.getSliceCount(100, 0, 4));
+        assertEquals(1, PackageSlicer.getSliceCount(100, 100, 4));
+        assertEquals(2, PackageSlicer.getSliceCount(101, 100, 4));
+        // never more slices than shards
+        assertEquals(4, PackageSlicer.getSliceCount(1000, 100, 4));
+    }
+
+    /**
+     * Test the slices created by {@link PackageSlicer#createSliceFilter(java.util.Collection,
+     * int, int)} are disjoint and cover all tests.
+     */
+    public void testCreateSliceFilter() {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        for (int i = 0; i < 10; i++) {
+            tests.add(new TestIdentifier("FooTest", "testFoo" + i));
+        }
+        Set<TestIdentifier> sliced = new HashSet<TestIdentifier>();
+        for (int slice = 0; slice < 3; slice++) {
+            List<TestIdentifier> sliceTests = new ArrayList<TestIdentifier>(
+                    PackageSlicer.createSliceFilter(tests, slice, 3).filter(tests));
+            assertTrue(sliceTests.size() == 3 || sliceTests.size() == 4);
+            for (TestIdentifier test : sliceTests) {
+                assertTrue(sliced.add(test));
+            }
+        }
+        assertEquals(tests.size(), sliced.size());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link PrerequisiteApkInstaller}.
+ */
+public class PrerequisiteApkInstallerTest extends TestCase {
+
+    private static final String ABI_32 = "armeabi-v7a";
+    private static final String ABI_64 = "arm64-v8a";
+
+    private File mTestCaseDir;
+    private FakeTestDevice mFakeDevice;
+    private PrerequisiteApkInstaller mInstaller;
+    private Map<String, String> mApks = new LinkedHashMap<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestCaseDir = FileUtil.createTempDir("testcases");
+        for (String packageName : Arrays.asList("com.foo", "com.bar", "com.baz")) {
+            String apkName = packageName + ".apk";
+            FileUtil.writeToFile(packageName, new File(mTestCaseDir, apkName));
+            mApks.put(apkName, packageName);
+        }
+        mFakeDevice = new FakeTestDevice();
+        mInstaller = new PrerequisiteApkInstaller(mFakeDevice.getDevice(), mTestCaseDir, 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DigestCache.clearInstances();
+        FileUtil.recursiveDelete(mTestCaseDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that APKs already installed with the same contents are not installed again.
+     */
+    public void testInstall_skipInstalled() throws Exception {
+        assertEquals(3, mInstaller.install(mApks, ABI_32));
+        assertEquals(3, mFakeDevice.getInstallCount());
+        assertEquals(0, mInstaller.install(mApks, ABI_32));
+        assertEquals(3, mFakeDevice.getInstallCount());
+
+        // a modified APK is installed again
+        FileUtil.writeToFile("modified", new File(mTestCaseDir, "com.bar.apk"));
+        assertEquals(1, mInstaller.install(mApks, ABI_32));
+        assertEquals(4, mFakeDevice.getInstallCount());
+    }
+
+    /**
+     * Test that APKs installed for another ABI are installed again.
+     */
+    public void testInstall_otherAbi() throws Exception {
+        assertEquals(3, mInstaller.install(mApks, ABI_32));
+        assertEquals(3, mInstaller.install(mApks, ABI_64));
+        assertEquals(6, mFakeDevice.getInstallCount());
+    }
+
+    /**
+     * Test that APKs are installed concurrently, up to the given number of threads.
+     */
+    public void testInstall_concurrent() throws Exception {
+        mFakeDevice.setTiming(0, 50, 0);
+        assertEquals(3, mInstaller.install(mApks, ABI_32));
+        assertEquals(2, mFakeDevice.getMaxConcurrentCalls());
+    }
+
+    /**
+     * Test that packages are uninstalled with a single call to the device.
+     */
+    public void testUninstall() throws Exception {
+        mInstaller.install(mApks, ABI_32);
+        int calls = mFakeDevice.getCallCount();
+        mInstaller.uninstall(mApks.values());
+        assertEquals(calls + 1, mFakeDevice.getCallCount());
+        for (String packageName : mApks.values()) {
+            assertFalse(mFakeDevice.isInstalled(packageName));
+        }
+    }
+}
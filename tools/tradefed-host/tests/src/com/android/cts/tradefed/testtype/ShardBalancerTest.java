@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.result.PackageDurationHistory;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link ShardBalancer} and {@link TestPackageQueue}.
+ */
+public class ShardBalancerTest extends TestCase {
+
+    private Map<String, Long> mCosts;
+
+    @Override
+    protected void setUp() throws Exception {
+        mCosts = new LinkedHashMap<String, Long>();
+        mCosts.put("a", 10L);
+        mCosts.put("b", 70L);
+        mCosts.put("c", 20L);
+        mCosts.put("d", 30L);
+        mCosts.put("e", 30L);
+    }
+
+    /**
+     * Test {@link ShardBalancer#estimateCosts(Map, PackageDurationHistory)} without any history
+     * falls back to the test count.
+     */
+    public void testEstimateCosts_noHistory() {
+        Map<String, Integer> testCounts = new LinkedHashMap<String, Integer>();
+        testCounts.put("a", 3);
+        testCounts.put("b", 0);
+        Map<String, Long> costs = ShardBalancer.estimateCosts(testCounts,
+                new PackageDurationHistory());
+        assertEquals(3 * ShardBalancer.DEFAULT_TEST_COST_MS, costs.get("a").longValue());
+        assertEquals(1, costs.get("b").longValue());
+    }
+
+    /**
+     * Test {@link ShardBalancer#assign(Map, int)} puts the most expensive packages first and
+     * balances the total cost.
+     */
+    public void testAssign() {
+        List<List<String>> shards = ShardBalancer.assign(mCosts, 2);
+        assertEquals(Arrays.asList("b", "a"), shards.get(0));
+        assertEquals(Arrays.asList("d", "e", "c"), shards.get(1));
+        assertEquals(80, ShardBalancer.getMakespan(shards, mCosts));
+    }
+
+    /**
+     * Test {@link ShardBalancer#assign(Map, int)} is independent of the iteration order of the
+     * costs.
+     */
+    public void testAssign_deterministic() {
+        Map<String, Long> reversed = new LinkedHashMap<String, Long>();
+        for (String id : Arrays.asList("e", "d", "c", "b", "a")) {
+            reversed.put(id, mCosts.get(id));
+        }
+        assertEquals(ShardBalancer.assign(mCosts, 3), ShardBalancer.assign(reversed, 3));
+    }
+
+    /**
+     * Test {@link ShardBalancer#assignRoundRobin(List, int)} matches the legacy assignment.
+     */
+    public void testAssignRoundRobin() {
+        List<List<String>> shards = ShardBalancer.assignRoundRobin(
+                Arrays.asList("a", "b", "c", "d", "e"), 2);
+        assertEquals(Arrays.asList("a", "c", "e"), shards.get(0));
+        assertEquals(Arrays.asList("b", "d"), shards.get(1));
+        assertEquals(100, ShardBalancer.getMakespan(shards, mCosts));
+    }
+
+    /**
+     * Test {@link TestPackageQueue} lets an idle shard steal from the tail of the busiest shard.
+     */
+    public void testQueue_steal() {
+        TestPackageQueue queue = new TestPackageQueue(2);
+        assertFalse(queue.containsAll(mCosts.keySet()));
+        queue.addPackages(0, mCosts);
+        // packages already added by another shard are ignored
+        queue.addPackages(1, mCosts);
+        assertTrue(queue.containsAll(mCosts.keySet()));
+        assertEquals(5, queue.size());
+        Set<String> all = mCosts.keySet();
+        assertEquals("b", queue.poll(0, all));
+        assertEquals("a", queue.poll(0, all));
+        assertEquals("d", queue.poll(1, all));
+        assertEquals("c", queue.poll(0, all));
+        assertEquals("e", queue.poll(1, all));
+        assertNull(queue.poll(0, all));
+        assertNull(queue.poll(1, all));
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * Test {@link TestPackageQueue} with shards that can run different packages, like shards on
+     * devices with different ABIs: packages of all shards are queued, and a shard never takes a
+     * package it cannot run.
+     */
+    public void testQueue_differentPackages() {
+        Map<String, Long> costs32 = new LinkedHashMap<String, Long>();
+        costs32.put("armeabi-v7a a", 10L);
+        costs32.put("armeabi-v7a b", 20L);
+        Map<String, Long> costs64 = new LinkedHashMap<String, Long>();
+        costs64.put("arm64-v8a a", 10L);
+        costs64.put("arm64-v8a b", 20L);
+        costs64.put("arm64-v8a c", 30L);
+
+        TestPackageQueue queue = new TestPackageQueue(2);
+        queue.addPackages(0, costs32);
+        queue.addPackages(1, costs64);
+        assertEquals(5, queue.size());
+
+        // shard 1 can only run its own packages, even those balanced to shard 0 are left
+        List<String> taken1 = new ArrayList<String>();
+        String id;
+        while ((id = queue.poll(1, costs64.keySet())) != null) {
+            taken1.add(id);
+        }
+        assertEquals(3, taken1.size());
+        assertTrue(taken1.containsAll(costs64.keySet()));
+        assertEquals(2, queue.size());
+
+        List<String> taken0 = new ArrayList<String>();
+        while ((id = queue.poll(0, costs32.keySet())) != null) {
+            taken0.add(id);
+        }
+        assertEquals(Arrays.asList("armeabi-v7a b", "armeabi-v7a a"), taken0);
+        assertEquals(0, queue.size());
+    }
+}
@@ -21,6 +21,7 @@ import junit.framework.TestCase;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -174,4 +175,50 @@ public class TestFilterTest extends TestCase {
         mFilter.addIncludedClass(TEST1.getClassName());
         assertTrue(mFilter.filter(mTestList).isEmpty());
     }
+
+    /**
+     * Test that {@link TestFilter#filter(java.util.Collection)} sorts tests in the order of their
+     * string form, including classes whose names are prefixes of other class names.
+     */
+    public void testFilter_sortOrder() {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(new TestIdentifier("a.Foo", "testB"));
+        tests.add(new TestIdentifier("a.Foo2", "testA"));
+        tests.add(new TestIdentifier("a.Foo", "testA"));
+        tests.add(new TestIdentifier("a.Fo", "testZ"));
+        tests.add(new TestIdentifier("a.Foo$Inner", "testA"));
+        tests.add(new TestIdentifier("a.Foo", "test"));
+        List<String> expected = new ArrayList<String>();
+        for (TestIdentifier test : tests) {
+            expected.add(test.toString());
+        }
+        Collections.sort(expected);
+        List<String> actual = new ArrayList<String>();
+        for (TestIdentifier test : mFilter.filter(tests)) {
+            actual.add(test.toString());
+        }
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Test {@link TestFilter#filter(java.util.Collection)} with many excluded tests added at once
+     */
+    public void testFilter_excludeTests() {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        List<TestIdentifier> excludedTests = new ArrayList<TestIdentifier>();
+        for (int i = 0; i < 1000; i++) {
+            TestIdentifier test = new TestIdentifier("FooTest" + (i % 10), "test" + i);
+            tests.add(test);
+            if (i % 2 == 0) {
+                excludedTests.add(test);
+            }
+        }
+        mFilter.addExcludedTests(excludedTests);
+        Collection<TestIdentifier> filteredList = mFilter.filter(tests);
+        assertEquals(500, filteredList.size());
+        for (TestIdentifier test : filteredList) {
+            assertFalse(excludedTests.contains(test));
+        }
+        assertEquals(500, mFilter.getExcludedTests().size());
+    }
 }
@@ -15,9 +15,9 @@
  */
 package com.android.cts.tradefed.testtype;
 
-import java.io.ByteArrayInputStream;
+import com.android.tradefed.util.FileUtil;
+
 import java.io.File;
-import java.io.InputStream;
 
 import junit.framework.TestCase;
 
@@ -27,20 +27,24 @@ import junit.framework.TestCase;
 public class TestPackageDefTest extends TestCase {
 
     /**
-     * Regression test for {@link TestPackageDef#generateDigest(File, String)} that ensures expected
-     * digest is generated for fixed data.
+     * Regression test for the digest generated by {@link TestPackageDef#createTest(File)} that
+     * ensures expected digest is generated for fixed data.
      */
-    public void testGenerateDigest() {
-        TestPackageDef def = new TestPackageDef() {
-          @Override
-          InputStream getFileStream(File dir, String fileName) {
-              return new ByteArrayInputStream("test data for digest".getBytes());
-          }
-        };
-        String digest = def.generateDigest(new File("unused"), "alsounused");
-        assertNotNull(digest);
-        assertEquals("58c222b5f5f81b4b58891ec59924b9b2f530452e", digest);
-
+    public void testGenerateDigest() throws Exception {
+        File testCaseDir = FileUtil.createTempDir("testcases");
+        try {
+            FileUtil.writeToFile("test data for digest", new File(testCaseDir, "foo.jar"));
+            TestPackageDef def = new TestPackageDef();
+            def.setTestType(TestPackageDef.HOST_SIDE_ONLY_TEST);
+            def.setJarPath("foo.jar");
+            def.createTest(testCaseDir);
+            String digest = def.getDigest();
+            assertNotNull(digest);
+            assertEquals("58c222b5f5f81b4b58891ec59924b9b2f530452e", digest);
+        } finally {
+            FileUtil.recursiveDelete(testCaseDir);
+            DigestCache.clearInstances();
+        }
     }
 
 }
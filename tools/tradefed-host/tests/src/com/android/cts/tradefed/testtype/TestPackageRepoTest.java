@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.util.AbiUtils;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+/**
+ * Unit tests for {@link TestPackageRepo}.
+ */
+public class TestPackageRepoTest extends TestCase {
+
+    private static final String PACKAGE_XML =
+        "<TestPackage appPackageName=\"%s\" appNameSpace=\"%s\" name=\"%s\">\n" +
+        "    <TestSuite name=\"com\" >\n" +
+        "        <TestCase name=\"ExampleTest\" >\n" +
+        "            <Test name=\"testFoo\" />\n" +
+        "        </TestCase>\n" +
+        "    </TestSuite>\n" +
+        "</TestPackage>";
+
+    private File mTestCaseDir;
+    private int mParsedFiles;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestPackageRepo.clearCache();
+        mTestCaseDir = FileUtil.createTempDir("testcases");
+        mParsedFiles = 0;
+        for (int i = 0; i < 3; i++) {
+            writePackageXml("android.example" + i);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTestCaseDir);
+        TestPackageRepo.clearCache();
+        super.tearDown();
+    }
+
+    private void writePackageXml(String name) throws Exception {
+        FileUtil.writeToFile(String.format(PACKAGE_XML, name, name, name),
+                new File(mTestCaseDir, name + ".xml"));
+    }
+
+    private TestPackageRepo createRepo() {
+        return new TestPackageRepo(mTestCaseDir, false) {
+            @Override
+            InputStream createStreamFromFile(File xmlFile) throws FileNotFoundException {
+                synchronized (TestPackageRepoTest.this) {
+                    mParsedFiles++;
+                }
+                return super.createStreamFromFile(xmlFile);
+            }
+        };
+    }
+
+    /**
+     * Test that all packages are loaded, and a second repo reuses the parsed files.
+     */
+    public void testLoad_cached() {
+        TestPackageRepo repo = createRepo();
+        assertEquals(3, repo.getPackageNames().size());
+        assertEquals(3 * AbiUtils.getAbisSupportedByCts().size(), repo.getPackageIds().size());
+        assertEquals(3, mParsedFiles);
+        TestPackageRepo cachedRepo = createRepo();
+        assertEquals(repo.getPackageIds(), cachedRepo.getPackageIds());
+        assertEquals(3, mParsedFiles);
+    }
+
+    /**
+     * Test that repos sharing the cache get independent package definitions.
+     */
+    public void testLoad_copies() {
+        String id = createRepo().getPackageIds().get(0);
+        ITestPackageDef def = createRepo().getTestPackage(id);
+        def.getTests().clear();
+        assertNotSame(def, createRepo().getTestPackage(id));
+        assertEquals(1, createRepo().getTestPackage(id).getTests().size());
+    }
+
+    /**
+     * Test that the cache is invalidated when a package xml is added.
+     */
+    public void testLoad_modified() throws Exception {
+        assertEquals(3, createRepo().getPackageNames().size());
+        writePackageXml("android.example3");
+        assertEquals(4, createRepo().getPackageNames().size());
+        assertEquals(7, mParsedFiles);
+    }
+}
@@ -214,6 +214,47 @@ public class TestPlanTest extends TestCase {
         assertMultiExcluded(parsedPlan);
     }
 
+    /**
+     * Test serializing and deserializing a plan with many excluded tests
+     */
+    public void testSerialize_manyExcluded() throws ParseException, IOException  {
+        String test1Id = AbiUtils.createId(AbiUtils.getAbisSupportedByCts().iterator().next(),
+                TEST_NAME1);
+        mPlan.addPackage(test1Id);
+        List<TestIdentifier> excludedTests = new ArrayList<TestIdentifier>();
+        for (int i = 0; i < 10000; i++) {
+            excludedTests.add(new TestIdentifier(EXCLUDE_TEST_CLASS + (i % 100), "test" + i));
+        }
+        mPlan.addExcludedTests(test1Id, excludedTests);
+        mPlan.getTestFilter(test1Id).addExcludedClass(EXCLUDE_TEST_CLASS);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        mPlan.serialize(outStream);
+        TestPlan parsedPlan = new TestPlan("parsed", AbiUtils.getAbisSupportedByCts());
+        parsedPlan.parse(getStringAsStream(outStream.toString()));
+        TestFilter filter = parsedPlan.getTestFilter(test1Id);
+        assertEquals(Collections.singleton(EXCLUDE_TEST_CLASS), filter.getExcludedClasses());
+        assertEquals(excludedTests.size(), filter.getExcludedTests().size());
+        assertTrue(filter.getExcludedTests().containsAll(excludedTests));
+    }
+
+    /**
+     * Test parsing exclusions that are not of the form class#method as excluded classes
+     */
+    public void testParse_malformedExclude() throws ParseException  {
+        String data = "<TestPlan version=\"1.0\">" +
+                String.format("<Entry name=\"%s\" exclude=\"a.Foo#;;a.Bar#b#c;a.Baz#test\" />",
+                        TEST_NAME1) +
+                "</TestPlan>";
+        mPlan.parse(getStringAsStream(data));
+        String id = mPlan.getTestIds().iterator().next();
+        TestFilter filter = mPlan.getTestFilter(id);
+        assertEquals(2, filter.getExcludedClasses().size());
+        assertTrue(filter.getExcludedClasses().contains("a.Foo#"));
+        assertTrue(filter.getExcludedClasses().contains("a.Bar#b#c"));
+        assertEquals(Collections.singleton(new TestIdentifier("a.Baz", "test")),
+                filter.getExcludedTests());
+    }
+
     private InputStream getStringAsStream(String input) {
         return new ByteArrayInputStream(input.getBytes());
     }